@@ -1,6 +1,6 @@
 import config.Config;
 import server.RedisServer;
-import store.DataStore;
+import store.Databases;
 
 public class Main {
     public static void main(String[] args) {
@@ -11,10 +11,11 @@ public class Main {
 
             // Initialize configuration, data store, and server
             Config config = new Config(args);
-            DataStore store = new DataStore();
+            int shards = Integer.parseInt(config.get("shards"));
+            Databases databases = new Databases(Integer.parseInt(config.get("databases")), shards);
             
             // Create and start the Redis server
-            RedisServer server = new RedisServer(config, store);
+            RedisServer server = new RedisServer(config, databases);
             server.start();
             
         } catch (Exception e) {
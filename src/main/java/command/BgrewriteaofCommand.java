@@ -0,0 +1,32 @@
+package command;
+
+import protocol.CommandParts;
+import rdb.AppendOnlyFile;
+import server.ClientConnection;
+import store.Database;
+
+// BGREWRITEAOF: a new base file with the keyspace of this moment is written in the background, then it replaces
+// the AOF files so far (see AppendOnlyFile). while a BGSAVE runs it is scheduled to start after it
+public class BgrewriteaofCommand implements Command {
+    private final AppendOnlyFile aof; // null unless appendonly yes
+
+    public BgrewriteaofCommand(AppendOnlyFile aof) {
+        this.aof = aof;
+    }
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (aof == null) {
+            throw new Exception("ERR Background append only file rewriting needs appendonly yes");
+        }
+
+        int result = aof.rewrite();
+        if (result == AppendOnlyFile.REWRITE_STARTED) {
+            client.addReplyStatus("Background append only file rewriting started");
+        } else if (result == AppendOnlyFile.REWRITE_SCHEDULED) {
+            client.addReplyStatus("Background append only file rewriting scheduled");
+        } else {
+            throw new Exception("ERR Background append only file rewriting already in progress");
+        }
+    }
+}
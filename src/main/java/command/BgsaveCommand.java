@@ -0,0 +1,37 @@
+package command;
+
+import protocol.CommandParts;
+import rdb.RDBSaver;
+import server.ClientConnection;
+import store.Database;
+
+// BGSAVE [SCHEDULE]: the RDB file is written by a background thread from a snapshot of this moment, commands keep
+// running meanwhile. with SCHEDULE a save already in progress is not an error, another one follows it
+public class BgsaveCommand implements Command {
+    private final RDBSaver rdbSaver;
+
+    public BgsaveCommand(RDBSaver rdbSaver) {
+        this.rdbSaver = rdbSaver;
+    }
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        boolean schedule = false;
+        if (commandParts.size() == 2 && "SCHEDULE".equalsIgnoreCase(commandParts.get(1))) {
+            schedule = true;
+        } else if (commandParts.size() > 1) {
+            throw new Exception("ERR syntax error");
+        }
+
+        if (rdbSaver.startBackgroundSave(schedule)) {
+            client.addReplyStatus("Background saving started");
+        } else if (schedule) {
+            client.addReplyStatus("Background saving scheduled");
+        } else if (rdbSaver.isAofRewriteInProgress()) {
+            throw new Exception("ERR An AOF log rewriting in progress: can't BGSAVE right now. "
+                    + "Use BGSAVE SCHEDULE in order to schedule a BGSAVE whenever possible.");
+        } else {
+            throw new Exception("ERR Background save already in progress");
+        }
+    }
+}
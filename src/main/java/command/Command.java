@@ -1,12 +1,11 @@
 package command;
 
-import java.nio.channels.SocketChannel;
-import java.util.List;
-
-import store.DataStore;
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
 
+// single entry point for every command, the arity is checked by the caller against the command's descriptor
+// (see CommandRegistry). store is the database the client selected, commands that don't use it simply ignore it
 public interface Command {
-	void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception;
-	void execute(SocketChannel client, List<String> commandParts) throws Exception;
-	void execute(SocketChannel client) throws Exception;
+	void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception;
 }
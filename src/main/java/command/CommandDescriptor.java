@@ -0,0 +1,36 @@
+package command;
+
+// static metadata of a command, resolved once per call by CommandRegistry.lookup()
+// arity follows redis: N means exactly N arguments (command name included), -N means at least N.
+// keys are at commandParts[firstKey..lastKey] every keyStep, a negative lastKey counts from the end,
+// firstKey 0 means no keys (or keys that can only be found by parsing the arguments, like XREAD).
+public record CommandDescriptor(String name, Command command, int arity, int flags, int firstKey, int lastKey, int keyStep) {
+    public static final int WRITE = 1;             // modifies the keyspace, propagated to replicas
+    public static final int READONLY = 1 << 1;     // only reads the keyspace
+    public static final int BLOCKING = 1 << 2;     // may block the client (WAIT, XREAD BLOCK)
+    public static final int ADMIN = 1 << 3;        // server and replication administration
+    public static final int TRANSACTION = 1 << 4;  // MULTI / EXEC / DISCARD, never queued by MULTI
+    public static final int DENYOOM = 1 << 5;      // may use more memory, refused when over maxmemory
+    public static final int PAUSE_SHARDS = 1 << 6; // reads no keys but needs the shards parked (SAVE / BGSAVE snapshot)
+
+    public boolean checkArity(int argc) {
+        return arity >= 0 ? argc == arity : argc >= -arity;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public boolean isWrite() {
+        return hasFlag(WRITE);
+    }
+
+    // write, readonly and EXEC (which runs queued commands) need the keyspace
+    public boolean accessesKeyspace() {
+        return hasFlag(WRITE | READONLY) || "exec".equals(name);
+    }
+
+    public boolean isSingleKey() {
+        return firstKey > 0 && firstKey == lastKey;
+    }
+}
@@ -1,8 +1,5 @@
 package command;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import command.streams.XaddCommand;
 import command.streams.XrangeCommand;
 import command.streams.XreadCommand;
@@ -10,43 +7,145 @@ import command.transactions.DiscardCommand;
 import command.transactions.ExecCommand;
 import command.transactions.MultiCommand;
 import config.Config;
+import rdb.AppendOnlyFile;
+import rdb.RDBSaver;
 import replication.ReplicationManager;
+import store.Databases;
 import streams.manager.StreamManager;
 
-public class CommandRegistry {
-	private static final Map<String, Command> commands = new HashMap<>();
+import static command.CommandDescriptor.*;
+
+// the commands of one server by name, EXEC and the replication link look queued and propagated commands up here too
+public final class CommandRegistry {
+	private static final int MAX_TABLE_SIZE = 1 << 16;
+
+	// open addressing table sized so that no two command names share a slot (a perfect hash for the
+	// registered set), a lookup is one hash over the name plus one case-insensitive compare, no allocation.
+	// only replaced while the constructors register commands, read-only afterwards
+	private CommandDescriptor[] table = new CommandDescriptor[0];
+	private int mask;
 
 	public CommandRegistry() {
-		registerCommand("PING", new PingCommand());
-		registerCommand("SET", new SetCommand());
-		registerCommand("GET", new GetCommand());
-		registerCommand("ECHO", new EchoCommand());
-		registerCommand("KEYS", new KeysCommand());
-		registerCommand("PSYNC", new PsyncCommand());
-		registerCommand("TYPE", new TypeCommand());
-		registerCommand("XADD", new XaddCommand());
-		registerCommand("XRANGE", new XrangeCommand());
-		registerCommand("INCR", new IncermentCommand());
-		registerCommand("MULTI", new MultiCommand());
-		registerCommand("EXEC", new ExecCommand());
-		registerCommand("DISCARD", new DiscardCommand());
-	}
-
-	public CommandRegistry(Config config, ReplicationManager replicationManager, StreamManager streamManager) {
+		registerCommand("ping", new PingCommand(), -1, 0, 0, 0, 0);
+		registerCommand("echo", new EchoCommand(), 2, 0, 0, 0, 0);
+		registerCommand("set", new SetCommand(), -3, WRITE | DENYOOM, 1, 1, 1);
+		registerCommand("get", new GetCommand(), 2, READONLY, 1, 1, 1);
+		registerCommand("incr", new IncermentCommand(), 2, WRITE | DENYOOM, 1, 1, 1);
+		registerCommand("mget", new MgetCommand(), -2, READONLY, 1, -1, 1);
+		registerCommand("mset", new MsetCommand(), -3, WRITE | DENYOOM, 1, -1, 2);
+		registerCommand("del", new DelCommand(), -2, WRITE, 1, -1, 1);
+		registerCommand("unlink", new DelCommand(), -2, WRITE, 1, -1, 1);
+		registerCommand("keys", new KeysCommand(), 2, READONLY, 0, 0, 0);
+		registerCommand("scan", new ScanCommand(), -2, READONLY, 0, 0, 0);
+		registerCommand("type", new TypeCommand(), 2, READONLY, 1, 1, 1);
+		registerCommand("xadd", new XaddCommand(), -5, WRITE | DENYOOM, 1, 1, 1);
+		registerCommand("xrange", new XrangeCommand(), -4, READONLY, 1, 1, 1);
+		registerCommand("psync", new PsyncCommand(), 3, ADMIN, 0, 0, 0);
+		registerCommand("multi", new MultiCommand(), 1, TRANSACTION, 0, 0, 0);
+		registerCommand("discard", new DiscardCommand(), 1, TRANSACTION, 0, 0, 0);
+	}
+
+	// aof is null unless appendonly yes
+	public CommandRegistry(Config config, Databases databases, ReplicationManager replicationManager, StreamManager streamManager, RDBSaver rdbSaver, AppendOnlyFile aof) {
 		this();
-		registerCommand("CONFIG", new ConfigCommand(config));
-		registerCommand("INFO", new InfoCommand(config));
-		registerCommand("WAIT", new WaitCommand(replicationManager));
-		registerCommand("REPLCONF", new ReplconfCommand(replicationManager));
-		registerCommand("XREAD", new XreadCommand(streamManager));
+		registerCommand("exec", new ExecCommand(this, databases), 1, TRANSACTION, 0, 0, 0);
+		registerCommand("select", new SelectCommand(databases), 2, 0, 0, 0, 0);
+		registerCommand("swapdb", new SwapdbCommand(databases), 3, WRITE, 0, 0, 0);
+		registerCommand("flushall", new FlushCommand(databases), -1, WRITE, 0, 0, 0);
+		registerCommand("flushdb", new FlushCommand(databases), -1, WRITE, 0, 0, 0);
+		registerCommand("config", new ConfigCommand(config), -2, ADMIN, 0, 0, 0);
+		registerCommand("info", new InfoCommand(config, databases, rdbSaver, aof), 2, 0, 0, 0, 0);
+		registerCommand("save", new SaveCommand(rdbSaver), 1, PAUSE_SHARDS | ADMIN, 0, 0, 0);
+		registerCommand("bgsave", new BgsaveCommand(rdbSaver), -1, PAUSE_SHARDS | ADMIN, 0, 0, 0);
+		registerCommand("bgrewriteaof", new BgrewriteaofCommand(aof), 1, PAUSE_SHARDS | ADMIN, 0, 0, 0);
+		registerCommand("lastsave", new LastsaveCommand(rdbSaver), 1, 0, 0, 0, 0);
+		registerCommand("wait", new WaitCommand(replicationManager), 3, BLOCKING, 0, 0, 0);
+		registerCommand("replconf", new ReplconfCommand(replicationManager), -2, ADMIN, 0, 0, 0);
+		registerCommand("xread", new XreadCommand(streamManager), -4, READONLY | BLOCKING, 0, 0, 0);
+	}
+
+	private void registerCommand(String name, Command command, int arity, int flags, int firstKey, int lastKey, int keyStep) {
+		CommandDescriptor descriptor = new CommandDescriptor(name, command, arity, flags, firstKey, lastKey, keyStep);
+
+		CommandDescriptor[] all = new CommandDescriptor[size() + 1];
+		int n = 0;
+		for (CommandDescriptor d : table) {
+			if (d != null && !d.name().equals(name)) {
+				all[n++] = d;
+			}
+		}
+		all[n++] = descriptor;
+		rebuild(all, n);
+	}
+
+	// the name as the client sent it, no String is built for it. returns null for unknown commands
+	public CommandDescriptor lookup(byte[] name) {
+		CommandDescriptor descriptor = table.length == 0 ? null : table[hash(name) & mask];
+		return descriptor != null && equalsIgnoreCase(descriptor.name(), name) ? descriptor : null;
 	}
 
-	private void registerCommand(String name, Command command) {
-		commands.put(name, command);
+	private int size() {
+		int n = 0;
+		for (CommandDescriptor d : table) {
+			if (d != null) {
+				n++;
+			}
+		}
+		return n;
 	}
 
-    public static Command getCommand(String name) {
-        return commands.get(name.toUpperCase());
-    }
+	// grows the table until every name gets its own slot
+	private void rebuild(CommandDescriptor[] descriptors, int count) {
+		for (int size = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1; size <= MAX_TABLE_SIZE; size <<= 1) {
+			CommandDescriptor[] candidate = new CommandDescriptor[size];
+			boolean collision = false;
+			for (int i = 0; i < count && !collision; i++) {
+				int slot = hash(descriptors[i].name()) & (size - 1);
+				collision = candidate[slot] != null;
+				candidate[slot] = descriptors[i];
+			}
 
+			if (!collision) {
+				table = candidate;
+				mask = size - 1;
+				return;
+			}
+		}
+		throw new IllegalStateException("no collision free command table up to " + MAX_TABLE_SIZE + " slots");
+	}
+
+	// ascii case folding, command names are ascii (anything else simply won't match)
+	private static int hash(String name) {
+		int h = 0;
+		for (int i = 0; i < name.length(); i++) {
+			h = 31 * h + toLower(name.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	// the same hash over the bytes of a name (its latin-1 chars)
+	private static int hash(byte[] name) {
+		int h = 0;
+		for (byte b : name) {
+			h = 31 * h + toLower((char) (b & 0xFF));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equalsIgnoreCase(String lowerCaseName, byte[] name) {
+		if (lowerCaseName.length() != name.length) {
+			return false;
+		}
+
+		for (int i = 0; i < name.length; i++) {
+			if (lowerCaseName.charAt(i) != toLower((char) (name[i] & 0xFF))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char toLower(char c) {
+		return (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
+	}
 }
@@ -1,12 +1,11 @@
 package command;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.List;
 
+import protocol.CommandParts;
 import config.Config;
-import store.DataStore;
+import server.ClientConnection;
+import store.Database;
 
 public class ConfigCommand implements Command {
     private final Config config;
@@ -16,46 +15,22 @@ public class ConfigCommand implements Command {
     }
 
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
-        execute(client, commandParts);
-    }
-
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        try {
-            if (commandParts.size() < 3) {
-                throw new Exception("ERR wrong number of arguments for 'CONFIG' command");
-            }
-
-            if ("GET".equalsIgnoreCase(commandParts.get(1))) {
-                List<String> params = commandParts.subList(2, commandParts.size());
-                StringBuilder response = new StringBuilder();
-                response.append("*").append(2 * params.size()).append("\r\n");
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() < 3) {
+            throw new Exception("ERR wrong number of arguments for 'CONFIG' command");
+        }
 
-                for (String param : params) {
-                    String value = config.get(param);
-                    if (value != null) {
-                        response.append("$").append(param.length()).append("\r\n").append(param)
-                                .append("\r\n");
-                        response.append("$").append(value.length()).append("\r\n").append(value)
-                                .append("\r\n");
-                    } else {
-                        // Error response
-                        response.append("$-1\r\np");
-                    }
-                }
+        if ("GET".equalsIgnoreCase(commandParts.get(1))) {
+            List<String> params = commandParts.subList(2, commandParts.size());
+            client.addReplyArrayLen(2L * params.size());
 
-                client.write(ByteBuffer.wrap(response.toString().getBytes()));
-            } else {
-                throw new Exception("ERR unsupported CONFIG command");
+            // unknown parameters are sent as nil, so the array keeps its announced length
+            for (String param : params) {
+                client.addReplyBulk(param);
+                client.addReplyBulk(config.get(param));
             }
-        } catch (IOException e) {
-            throw new Exception("ERR something went wrong while processing CONFIG: " + e.getMessage());
+        } else {
+            throw new Exception("ERR unsupported CONFIG command");
         }
     }
-
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'CONFIG' command");
-    }
 }
\ No newline at end of file
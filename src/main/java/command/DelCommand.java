@@ -0,0 +1,43 @@
+package command;
+
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
+
+// DEL and UNLINK: both only detach the keys from the keyspace, so UNLINK needs no separate path
+public class DelCommand implements SplittableCommand {
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() < 2) {
+            throw new Exception("ERR wrong number of arguments for '" + commandParts.get(0).toUpperCase() + "' command");
+        }
+
+        long deleted = 0;
+        for (int i = 1; i < commandParts.size(); i++) {
+            if (store.delete(commandParts.getBytes(i))) {
+                deleted++;
+            }
+        }
+        client.addReplyLong(deleted);
+    }
+
+    @Override
+    public void executeKeys(CommandParts commandParts, int[] keys, Database store, Object[] results) {
+        for (int key : keys) {
+            if (store.delete(commandParts.getBytes(key))) {
+                results[key] = Boolean.TRUE;
+            }
+        }
+    }
+
+    @Override
+    public void addCombinedReply(ClientConnection client, CommandParts commandParts, Object[] results) {
+        long deleted = 0;
+        for (Object result : results) {
+            if (result != null) {
+                deleted++;
+            }
+        }
+        client.addReplyLong(deleted);
+    }
+}
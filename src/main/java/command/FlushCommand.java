@@ -0,0 +1,35 @@
+package command;
+
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
+import store.Databases;
+
+// FLUSHALL (every database) and FLUSHDB (the selected one) [ASYNC | SYNC]. flushing swaps in empty tables whatever the mode, the old keyspace is
+// reclaimed by the garbage collector, so ASYNC and SYNC are accepted for compatibility and behave the same
+public class FlushCommand implements Command {
+    private final Databases databases;
+
+    public FlushCommand(Databases databases) {
+        this.databases = databases;
+    }
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() > 2) {
+            throw new Exception("ERR syntax error");
+        }
+
+        if (commandParts.size() == 2 && !"ASYNC".equalsIgnoreCase(commandParts.get(1))
+                && !"SYNC".equalsIgnoreCase(commandParts.get(1))) {
+            throw new Exception("ERR syntax error");
+        }
+
+        if ("FLUSHALL".equalsIgnoreCase(commandParts.get(0))) {
+            databases.flushAll();
+        } else {
+            store.flush();
+        }
+        client.addReplyStatus("OK");
+    }
+}
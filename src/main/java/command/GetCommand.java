@@ -1,37 +1,24 @@
 package command;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.List;
-
-import store.DataStore;
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import store.Database;
+import store.Entry;
 
 public class GetCommand implements Command{
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
-    	try {
-    		String k = commandParts.get(1);
-    		String v = (String) store.get(k);
-    		if (v != null) {
-    			String response = "$" + v.length() + "\r\n" + v + "\r\n";
-    			client.write(ByteBuffer.wrap(response.getBytes()));
-    		} else {
-    			client.write(ByteBuffer.wrap("$-1\r\n".getBytes()));
-    		}
-    	} catch (IOException e) {
-    		throw new Exception("ERR, somthing went wrong while processing GET: " + e.getMessage());
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+    	Entry entry = store.getEntry(commandParts.getBytes(1));
+    	if (entry == null) {
+    		client.addReply(RESPEncoder.NULL_BULK);
+    		return;
     	}
-    }
 
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-    	throw new Exception("ERR wrong number of arguments for 'GET'");
-    }
-    
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-    	throw new Exception("ERR wrong number of arguments for 'GET'");
+    	if (!entry.isString()) {
+    		throw new Exception("WRONGTYPE Operation against a key holding the wrong kind of value");
+    	}
+    	entry.addValueReplyTo(client);
     }
 
 }
@@ -1,57 +1,121 @@
 package command;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.List;
+import java.util.Locale;
 
+import protocol.CommandParts;
 import config.Config;
-import store.DataStore;
+import rdb.AppendOnlyFile;
+import rdb.RDBSaver;
+import server.ClientConnection;
+import store.Database;
+import store.Databases;
 
 public class InfoCommand implements Command {
     private static final String MASTER_REPLICATION_ID = "8371b4fb1155b71f4a04d3e1bc3e18c4a990aeeb";
     private static final int MASTER_REPLICATION_OFFSET = 0;
     
     private final Config config;
+    private final Databases databases;
+    private final RDBSaver rdbSaver;
+    private final AppendOnlyFile aof; // null unless appendonly yes
     
-    public InfoCommand(Config config) {
+    public InfoCommand(Config config, Databases databases, RDBSaver rdbSaver, AppendOnlyFile aof) {
         this.config = config;
-    }
-    
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
-        execute(client, commandParts);
+        this.databases = databases;
+        this.rdbSaver = rdbSaver;
+        this.aof = aof;
     }
 
     @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        try {
-            if (commandParts.size() != 2) {
-                throw new Exception("ERR wrong number of arguments for 'INFO' command");
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() != 2) {
+            throw new Exception("ERR wrong number of arguments for 'INFO' command");
+        }
+
+        if ("replication".equalsIgnoreCase(commandParts.get(1))) {
+            String role = config.get("replicaof") != null ? "slave" : "master";  
+            StringBuilder response = new StringBuilder();
+            response.append("role:").append(role).append("\r\n");
+            
+            if ("master".equals(role)) {
+                response.append("master_replid:").append(MASTER_REPLICATION_ID).append("\r\n");
+                response.append("master_repl_offset:").append(MASTER_REPLICATION_OFFSET);
+            }
+            
+            client.addReplyBulk(response.toString());
+        } else if ("stats".equalsIgnoreCase(commandParts.get(1))) {
+            StringBuilder response = new StringBuilder();
+            response.append("expired_keys:").append(databases.getExpiredKeys()).append("\r\n");
+            response.append("expired_stale_perc:").append(String.format(Locale.ROOT, "%.2f", databases.getExpiredStalePerc())).append("\r\n");
+            response.append("expired_time_cap_reached_count:").append(databases.getExpiredTimeCapReachedCount()).append("\r\n");
+            response.append("expire_cycle_cpu_milliseconds:").append(databases.getExpireCycleCpuMillis()).append("\r\n");
+            response.append("volatile_keys:").append(databases.getVolatileKeyCount()).append("\r\n");
+            response.append("evicted_keys:").append(databases.getEvictedKeys());
+
+            client.addReplyBulk(response.toString());
+        } else if ("memory".equalsIgnoreCase(commandParts.get(1))) {
+            // estimated size of the keyspace, the figure maxmemory is compared with
+            StringBuilder response = new StringBuilder();
+            response.append("used_memory:").append(databases.getUsedMemory()).append("\r\n");
+            // direct memory slabs of the values above offheap-threshold, part of used_memory as far as it is in use
+            response.append("used_memory_offheap:").append(databases.getOffHeapUsedBytes()).append("\r\n");
+            response.append("offheap_slab_bytes:").append(databases.getOffHeapSlabBytes()).append("\r\n");
+            // cold values spilled to the value log on disk (value-log yes), not part of used_memory
+            response.append("spilled_values:").append(databases.getSpilledValues()).append("\r\n");
+            response.append("lazy_values:").append(databases.getLazyValues()).append("\r\n");
+            response.append("value_log_bytes:").append(databases.getValueLogBytes()).append("\r\n");
+            response.append("value_log_live_bytes:").append(databases.getValueLogLiveBytes()).append("\r\n");
+            response.append("maxmemory:").append(databases.getMaxMemory()).append("\r\n");
+            response.append("maxmemory_policy:").append(databases.getEvictionPolicy().getConfigName());
+
+            client.addReplyBulk(response.toString());
+        } else if ("persistence".equalsIgnoreCase(commandParts.get(1))) {
+            StringBuilder response = new StringBuilder();
+            response.append("rdb_changes_since_last_save:").append(rdbSaver.getChangesSinceLastSave()).append("\r\n");
+            response.append("rdb_bgsave_in_progress:").append(rdbSaver.isBackgroundSaveInProgress() ? 1 : 0).append("\r\n");
+            response.append("rdb_last_save_time:").append(rdbSaver.getLastSaveTime()).append("\r\n");
+            response.append("rdb_last_bgsave_status:").append(rdbSaver.isLastBackgroundSaveOk() ? "ok" : "err").append("\r\n");
+            response.append("rdb_last_bgsave_time_sec:").append(rdbSaver.getLastBackgroundSaveSeconds()).append("\r\n");
+            response.append("rdb_current_bgsave_time_sec:").append(rdbSaver.getCurrentBackgroundSaveSeconds()).append("\r\n");
+            response.append("rdb_load_checksum_status:").append(rdbSaver.getLoadChecksumStatus()).append("\r\n");
+            response.append("aof_enabled:").append(aof != null ? 1 : 0);
+            if (aof != null) {
+                response.append("\r\n");
+                response.append("aof_rewrite_in_progress:").append(aof.isRewriteInProgress() ? 1 : 0).append("\r\n");
+                response.append("aof_rewrite_scheduled:").append(aof.isRewriteScheduled() ? 1 : 0).append("\r\n");
+                response.append("aof_last_rewrite_time_sec:").append(aof.getLastRewriteSeconds()).append("\r\n");
+                response.append("aof_current_rewrite_time_sec:").append(aof.getCurrentRewriteSeconds()).append("\r\n");
+                response.append("aof_last_bgrewrite_status:").append(aof.isLastRewriteOk() ? "ok" : "err").append("\r\n");
+                response.append("aof_last_write_status:").append(aof.getWriteError() == null ? "ok" : "err").append("\r\n");
+                response.append("aof_current_size:").append(aof.getCurrentSize()).append("\r\n");
+                response.append("aof_base_size:").append(aof.getBaseSize()).append("\r\n");
+                response.append("aof_buffer_length:").append(aof.getBufferLength()).append("\r\n");
+                response.append("aof_pending_bio_fsync:").append(aof.isFsyncPending() ? 1 : 0).append("\r\n");
+                response.append("aof_delayed_fsync:").append(aof.getDelayedFsyncs());
             }
 
-            if ("replication".equalsIgnoreCase(commandParts.get(1))) {
-                String role = config.get("replicaof") != null ? "slave" : "master";  
-                StringBuilder response = new StringBuilder();
-                response.append("role:").append(role).append("\r\n");
-                
-                if ("master".equals(role)) {
-                    response.append("master_replid:").append(MASTER_REPLICATION_ID).append("\r\n");
-                    response.append("master_repl_offset:").append(MASTER_REPLICATION_OFFSET);
+            client.addReplyBulk(response.toString());
+        } else if ("keyspace".equalsIgnoreCase(commandParts.get(1))) {
+            // one line per database holding keys
+            StringBuilder response = new StringBuilder();
+            for (int i = 0; i < databases.count(); i++) {
+                Database db = databases.get(i);
+                long keys = db.size();
+                if (keys == 0) {
+                    continue;
+                }
+
+                if (!response.isEmpty()) {
+                    response.append("\r\n");
                 }
-                
-                String bulkString = "$" + response.length() + "\r\n" + response.toString() + "\r\n";
-                client.write(ByteBuffer.wrap(bulkString.getBytes()));
-            } else {
-                throw new Exception("ERR unsupported INFO section");
+                response.append("db").append(i).append(":keys=").append(keys)
+                        .append(",expires=").append(db.getVolatileKeyCount())
+                        .append(",avg_ttl=").append(db.getAvgTtl());
             }
-        } catch (IOException e) {
-            throw new Exception("ERR something went wrong while processing INFO: " + e.getMessage());
-        }
-    }
 
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'INFO' command");
+            client.addReplyBulk(response.toString());
+        } else {
+            throw new Exception("ERR unsupported INFO section");
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package command;
+
+import protocol.CommandParts;
+import rdb.RDBSaver;
+import server.ClientConnection;
+import store.Database;
+
+// LASTSAVE: unix time of the last successful save, a client polls it to see a BGSAVE finish
+public class LastsaveCommand implements Command {
+    private final RDBSaver rdbSaver;
+
+    public LastsaveCommand(RDBSaver rdbSaver) {
+        this.rdbSaver = rdbSaver;
+    }
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        client.addReplyLong(rdbSaver.getLastSaveTime());
+    }
+}
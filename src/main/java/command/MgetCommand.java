@@ -0,0 +1,49 @@
+package command;
+
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import store.Database;
+import store.Entry;
+
+public class MgetCommand implements SplittableCommand {
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() < 2) {
+            throw new Exception("ERR wrong number of arguments for 'MGET' command");
+        }
+
+        client.addReplyArrayLen(commandParts.size() - 1);
+        for (int i = 1; i < commandParts.size(); i++) {
+            // non string values are returned as nil like redis does
+            Entry entry = store.getEntry(commandParts.getBytes(i));
+            if (entry != null && entry.isString()) {
+                entry.addValueReplyTo(client);
+            } else {
+                client.addReply(RESPEncoder.NULL_BULK);
+            }
+        }
+    }
+
+    @Override
+    public void executeKeys(CommandParts commandParts, int[] keys, Database store, Object[] results) {
+        for (int key : keys) {
+            Entry entry = store.getEntry(commandParts.getBytes(key));
+            if (entry != null && entry.isString()) {
+                results[key] = entry.getValueBytes();
+            }
+        }
+    }
+
+    @Override
+    public void addCombinedReply(ClientConnection client, CommandParts commandParts, Object[] results) {
+        client.addReplyArrayLen(commandParts.size() - 1);
+        for (int i = 1; i < commandParts.size(); i++) {
+            if (results[i] != null) {
+                client.addReplyBulk((byte[]) results[i]);
+            } else {
+                client.addReply(RESPEncoder.NULL_BULK);
+            }
+        }
+    }
+}
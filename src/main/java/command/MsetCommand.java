@@ -0,0 +1,32 @@
+package command;
+
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import store.Database;
+
+public class MsetCommand implements SplittableCommand {
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() < 3 || commandParts.size() % 2 == 0) {
+            throw new Exception("ERR wrong number of arguments for 'MSET' command");
+        }
+
+        for (int i = 1; i < commandParts.size(); i += 2) {
+            store.set(commandParts.getBytes(i), commandParts.getBytes(i + 1));
+        }
+        client.addReply(RESPEncoder.OK);
+    }
+
+    @Override
+    public void executeKeys(CommandParts commandParts, int[] keys, Database store, Object[] results) {
+        for (int key : keys) {
+            store.set(commandParts.getBytes(key), commandParts.getBytes(key + 1));
+        }
+    }
+
+    @Override
+    public void addCombinedReply(ClientConnection client, CommandParts commandParts, Object[] results) {
+        client.addReply(RESPEncoder.OK);
+    }
+}
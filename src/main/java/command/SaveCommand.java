@@ -0,0 +1,21 @@
+package command;
+
+import protocol.CommandParts;
+import rdb.RDBSaver;
+import server.ClientConnection;
+import store.Database;
+
+// SAVE: writes the RDB file before replying, nothing else runs meanwhile. BGSAVE is what a live server wants
+public class SaveCommand implements Command {
+    private final RDBSaver rdbSaver;
+
+    public SaveCommand(RDBSaver rdbSaver) {
+        this.rdbSaver = rdbSaver;
+    }
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        rdbSaver.save();
+        client.addReplyStatus("OK");
+    }
+}
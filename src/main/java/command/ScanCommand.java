@@ -0,0 +1,78 @@
+package command;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
+import store.DataType;
+import store.Entry;
+import store.GlobPattern;
+
+// SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]
+public class ScanCommand implements Command {
+    private static final long DEFAULT_COUNT = 10;
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() < 2) {
+            throw new Exception("ERR wrong number of arguments for 'SCAN' command");
+        }
+
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(commandParts.get(1));
+        } catch (NumberFormatException e) {
+            throw new Exception("ERR invalid cursor");
+        }
+
+        GlobPattern pattern = GlobPattern.compile("*");
+        long count = DEFAULT_COUNT;
+        DataType type = null;
+
+        for (int i = 2; i < commandParts.size(); i += 2) {
+            String option = commandParts.get(i);
+            if (i + 1 >= commandParts.size()) {
+                throw new Exception("ERR syntax error");
+            }
+            String value = commandParts.get(i + 1);
+
+            if ("MATCH".equalsIgnoreCase(option)) {
+                pattern = GlobPattern.compile(value);
+            } else if ("COUNT".equalsIgnoreCase(option)) {
+                try {
+                    count = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new Exception("ERR value is not an integer or out of range");
+                }
+                if (count < 1) {
+                    throw new Exception("ERR syntax error");
+                }
+            } else if ("TYPE".equalsIgnoreCase(option)) {
+                type = parseType(value);
+            } else {
+                throw new Exception("ERR syntax error");
+            }
+        }
+
+        List<Entry> keys = new ArrayList<>();
+        long next = store.scan(cursor, count, pattern, type, keys);
+
+        client.addReplyArrayLen(2);
+        client.addReplyBulk(Long.toUnsignedString(next));
+        client.addReplyArrayLen(keys.size());
+        for (Entry entry : keys) {
+            entry.addKeyReplyTo(client);
+        }
+    }
+
+    private static DataType parseType(String name) throws Exception {
+        for (DataType type : DataType.values()) {
+            if (type != DataType.NONE && type.toString().equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        throw new Exception("ERR unknown type name '" + name + "'");
+    }
+}
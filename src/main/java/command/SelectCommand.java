@@ -0,0 +1,39 @@
+package command;
+
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
+import store.Databases;
+
+public class SelectCommand implements Command {
+    private final Databases databases;
+
+    public SelectCommand(Databases databases) {
+        this.databases = databases;
+    }
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() != 2) {
+            throw new Exception("ERR wrong number of arguments for 'SELECT' command");
+        }
+
+        client.setDb(parseIndex(commandParts.get(1), databases, "ERR value is not an integer or out of range"));
+        client.addReplyStatus("OK");
+    }
+
+    // a database number, notInteger is the error for anything that isn't one
+    static int parseIndex(String value, Databases databases, String notInteger) throws Exception {
+        int index;
+        try {
+            index = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new Exception(notInteger);
+        }
+
+        if (index < 0 || index >= databases.count()) {
+            throw new Exception("ERR DB index is out of range");
+        }
+        return index;
+    }
+}
@@ -1,49 +1,45 @@
 package command;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.List;
-
-import store.DataStore;
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import server.ServerClock;
+import store.Database;
 
 public class SetCommand implements Command {
 
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
-        if (commandParts.size() < 3) {
-            client.write(ByteBuffer.wrap("$-1\r\n".getBytes()));
-        }
-
-        String key = commandParts.get(1);
-        String value = commandParts.get(2);
-
-        if (commandParts.size() == 5 && "PX".equalsIgnoreCase(commandParts.get(3))) {
-            long timeMillis = Long.parseLong(commandParts.get(4));
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        byte[] key = commandParts.getBytes(1);
+        byte[] value = commandParts.getBytes(2);
+
+        boolean absolute = commandParts.size() == 5 && commandParts.equalsIgnoreCase(3, "PXAT");
+        if (commandParts.size() == 5 && (commandParts.equalsIgnoreCase(3, "PX") || absolute)) {
+            long timeMillis;
+            try {
+                timeMillis = Long.parseLong(commandParts.get(4));
+            } catch (NumberFormatException e) {
+                throw new Exception("ERR value is not an integer or out of range");
+            }
 
-            if (timeMillis <= 0) {
-                client.write(ByteBuffer.wrap("$-1\r\n".getBytes()));
+            // thrown before anything is stored, a failed command is neither replied OK nor propagated
+            long now = ServerClock.millis();
+            if (timeMillis <= 0 || (!absolute && timeMillis > Long.MAX_VALUE - now)) {
+                throw new Exception("ERR invalid expire time in 'set' command");
             }
 
-            store.set(key, value, timeMillis);
-            client.write(ByteBuffer.wrap("+OK\r\n".getBytes()));
+            // replicas and the AOF get the unix time, a replay later on expires the key at the same moment
+            long expiryTimeInMillis = absolute ? timeMillis : now + timeMillis;
+            store.setWithExpiryAt(key, value, expiryTimeInMillis);
+            commandParts.set(3, "PXAT");
+            commandParts.set(4, Long.toString(expiryTimeInMillis));
+            client.addReply(RESPEncoder.OK);
         } else if (commandParts.size() == 3) {
             store.set(key, value);
-            client.write(ByteBuffer.wrap("+OK\r\n".getBytes()));
+            client.addReply(RESPEncoder.OK);
         } else {
-            client.write(ByteBuffer.wrap("$-1\r\n".getBytes()));
+            client.addReply(RESPEncoder.NULL_BULK);
         }
     }
 
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'SET'");
-
-    }
-
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'SET'");
-
-    }
-
 }
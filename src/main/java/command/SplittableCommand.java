@@ -0,0 +1,14 @@
+package command;
+
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
+
+// a multi-key command whose keys don't depend on each other (MGET, MSET, DEL). with --shards every shard runs
+// executeKeys() for its own keys, results has a slot per argument and addCombinedReply() answers once all shards
+// are done. the arguments are checked before it is split
+public interface SplittableCommand extends Command {
+	void executeKeys(CommandParts commandParts, int[] keys, Database store, Object[] results);
+
+	void addCombinedReply(ClientConnection client, CommandParts commandParts, Object[] results);
+}
@@ -0,0 +1,27 @@
+package command;
+
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
+import store.Databases;
+
+// SWAPDB index1 index2: the two databases trade places in O(1), nothing is copied
+public class SwapdbCommand implements Command {
+    private final Databases databases;
+
+    public SwapdbCommand(Databases databases) {
+        this.databases = databases;
+    }
+
+    @Override
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
+        if (commandParts.size() != 3) {
+            throw new Exception("ERR wrong number of arguments for 'SWAPDB' command");
+        }
+
+        int first = SelectCommand.parseIndex(commandParts.get(1), databases, "ERR invalid first DB index");
+        int second = SelectCommand.parseIndex(commandParts.get(2), databases, "ERR invalid second DB index");
+        databases.swap(first, second);
+        client.addReplyStatus("OK");
+    }
+}
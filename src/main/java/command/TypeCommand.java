@@ -1,37 +1,16 @@
 package command;
 
-import store.DataStore;
-import store.DataType;
-
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.List;
+import protocol.CommandParts;
+import server.ClientConnection;
+import store.Database;
 
 public class TypeCommand implements Command {
     @Override
-    public void execute (SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
         if (commandParts.size() != 2) {
             throw new Exception("ERR wrong number of arguments for 'TYPE' command");
         }
 
-        String key = commandParts.get(1);
-        String type = DataType.NONE.toString();
-
-        if (store.exists(key)) {
-            type = store.getDataType(key).toString();
-        }
-
-        String response = "+" + type + "\r\n";
-        client.write(ByteBuffer.wrap(response.getBytes()));
-    }
-
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'TYPE' command");
-    }
-
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'TYPE' command");
+        client.addReplyStatus(store.getDataType(commandParts.getBytes(1)).toString());
     }
 }
@@ -1,17 +1,16 @@
 package command.streams;
 
+import protocol.CommandParts;
 import command.Command;
-import store.DataStore;
+import server.ClientConnection;
+import store.Database;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class XaddCommand implements Command {
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
         if (commandParts.size() < 4 || (commandParts.size() - 3) % 2 != 0) {
             throw new Exception("ERR wrong number of arguments for 'XADD' command");
         }
@@ -27,24 +26,13 @@ public class XaddCommand implements Command {
 
             // this to be modified to let method add entries to without specifying id (use overloading)
             String streamEntryId = store.addToStream(key, id, fields);
-            String response = "$" + streamEntryId.length() + "\r\n" + streamEntryId + "\r\n";
-            client.write(ByteBuffer.wrap(response.getBytes()));
+            // replicas and the AOF get the id that was generated for '*'
+            commandParts.set(2, streamEntryId);
+            client.addReplyBulk(streamEntryId);
         } catch (Exception e) {
-            String errorMsg = "-" + e.getMessage() + "\r\n";
-            client.write(ByteBuffer.wrap((errorMsg).getBytes()));
+            client.addReplyError(e.getMessage());
         }
 
-
-    }
-
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        throw new Exception("ERR wrong context for 'XADD' command");
-    }
-
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong context for 'XADD' command");
     }
 
 }
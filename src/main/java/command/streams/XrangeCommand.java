@@ -1,19 +1,19 @@
 package command.streams;
 
 import command.Command;
-import store.DataStore;
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import store.Database;
 import store.DataType;
 import streams.Stream;
 import streams.StreamEntry;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.List;
-import java.util.Map;
 
 public class XrangeCommand implements Command {
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
         if (commandParts.size() != 4) {
             throw new Exception("ERR wrong number of arguments for 'XRANGE' command");
         }
@@ -24,7 +24,7 @@ public class XrangeCommand implements Command {
 
         if (!store.exists(key)) {
             // send empty RESP array
-            client.write(ByteBuffer.wrap("*0\r\n".getBytes()));
+            client.addReply(RESPEncoder.EMPTY_ARRAY);
             return;
         }
 
@@ -32,44 +32,14 @@ public class XrangeCommand implements Command {
             throw new Exception("WRONGTYPE Operation against a key holding the wrong kind of value");
         }
 
-
         Stream stream = (Stream) store.get(key);
         List<StreamEntry> entries = stream.getInclusiveRange(startId, endId);
 
-        if (entries.isEmpty()) {
-            client.write(ByteBuffer.wrap("*0\r\n".getBytes()));
-        }
-
         // Format response as a RESP Array
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(entries.size()).append("\r\n");
-
+        client.addReplyArrayLen(entries.size());
         for (StreamEntry entry : entries) {
-            // Add entry ID and field count
-            response.append("*2\r\n");
-            response.append("$").append(entry.id().length()).append("\r\n").append(entry.id()).append("\r\n");
-
-            // Add fields array
-            Map<String, String> fields = entry.fields();
-            response.append("*").append(fields.size() * 2).append("\r\n");
-
-            for (Map.Entry<String, String> field : fields.entrySet()) {
-                response.append("$").append(field.getKey().length()).append("\r\n").append(field.getKey()).append("\r\n");
-                response.append("$").append(field.getValue().length()).append("\r\n").append(field.getValue()).append("\r\n");
-            }
+            entry.addReplyTo(client);
         }
-
-        client.write(ByteBuffer.wrap(response.toString().getBytes()));
-    }
-
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        throw new Exception("ERR wrong context for 'XRANGE' command");
-    }
-
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong context for 'XRANGE' command");
     }
 
 }
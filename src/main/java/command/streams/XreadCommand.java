@@ -1,14 +1,15 @@
 package command.streams;
 
 import command.Command;
-import store.DataStore;
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import store.Database;
 import store.DataType;
 import streams.Stream;
 import streams.StreamEntry;
 import streams.manager.StreamManager;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -22,7 +23,7 @@ public class XreadCommand implements Command {
     }
 
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
         // Check if command has minimum required parts (XREAD STREAMS key1 id1)
         if (commandParts.size() < 4) {
             throw new Exception("ERR wrong number of arguments for 'XREAD' command");
@@ -36,7 +37,6 @@ public class XreadCommand implements Command {
             blockTimeout = Integer.parseInt(commandParts.get(commandParts.indexOf("block") + 1));
         }
 
-
         int streamsKeywordIndex = -1;
         for (int i = 1; i < commandParts.size(); i++) {
             if ("STREAMS".equalsIgnoreCase(commandParts.get(i))) {
@@ -118,16 +118,18 @@ public class XreadCommand implements Command {
 
         }
 
-
-        // Build RESP response
-        StringBuilder response = new StringBuilder();
-
         // First array length - number of streams with entries
         long streamsElementsCount = streamResults.entrySet().stream()
                 .filter(entry -> !entry.getValue().isEmpty())
                 .count();
 
-        response.append("*").append(streamsElementsCount).append("\r\n");
+        // If no stream has entries, return an empty array
+        if (streamsElementsCount == 0) {
+            client.addReply(RESPEncoder.EMPTY_ARRAY);
+            return;
+        }
+
+        client.addReplyArrayLen(streamsElementsCount);
 
         // For each stream with entries
         for (Map.Entry<String, List<StreamEntry>> streamEntry : streamResults.entrySet()) {
@@ -139,44 +141,12 @@ public class XreadCommand implements Command {
             }
 
             // Stream name and entries array
-            response.append("*2\r\n");
-            response.append("$").append(streamKey.length()).append("\r\n").append(streamKey).append("\r\n");
-
-            // Entries array
-            response.append("*").append(entries.size()).append("\r\n");
-
-            // For each entry in this stream
+            client.addReplyArrayLen(2);
+            client.addReplyBulk(streamKey);
+            client.addReplyArrayLen(entries.size());
             for (StreamEntry entry : entries) {
-                // Entry ID and fields
-                response.append("*2\r\n");
-                response.append("$").append(entry.id().length()).append("\r\n").append(entry.id()).append("\r\n");
-
-                // Fields array
-                Map<String, String> fields = entry.fields();
-                response.append("*").append(fields.size() * 2).append("\r\n");
-
-                for (Map.Entry<String, String> field : fields.entrySet()) {
-                    response.append("$").append(field.getKey().length()).append("\r\n").append(field.getKey()).append("\r\n");
-                    response.append("$").append(field.getValue().length()).append("\r\n").append(field.getValue()).append("\r\n");
-                }
+                entry.addReplyTo(client);
             }
         }
-
-        // If no stream has entries, return an empty array
-        if (streamsElementsCount == 0) {
-            response = new StringBuilder("*0\r\n");
-        }
-
-        client.write(ByteBuffer.wrap(response.toString().getBytes()));
-    }
-
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        throw new Exception("ERR wrong context for 'XREAD' command");
-    }
-
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong context for 'XREAD' command");
     }
 }
\ No newline at end of file
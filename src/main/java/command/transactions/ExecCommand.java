@@ -1,72 +1,76 @@
 package command.transactions;
 
 import command.Command;
+import command.CommandDescriptor;
 import command.CommandRegistry;
-import command.transactions.helper.CapturingSocketChannel;
-import store.DataStore;
+import command.transactions.helper.CapturingClientConnection;
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import store.Database;
+import store.Databases;
 import transaction.TransactionManager;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Queue;
 
-import static server.RedisServer.cmdContext;
-
 public class ExecCommand implements Command {
+    private final CommandRegistry commandRegistry;
+    private final Databases databases;
+
+    public ExecCommand(CommandRegistry commandRegistry, Databases databases) {
+        this.commandRegistry = commandRegistry;
+        this.databases = databases;
+    }
+
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
         if (commandParts.size() != 1) {
             throw new Exception("ERR wrong number of arguments for 'EXEC' command");
         }
 
         if (!TransactionManager.isInTransaction(client)) {
-            client.write(ByteBuffer.wrap("-ERR EXEC without MULTI\r\n".getBytes()));
+            client.addReplyError("ERR EXEC without MULTI");
             return;
         }
 
-        Queue<List<String>> transaction = TransactionManager.getTransaction(client);
+        Queue<CommandParts> transaction = TransactionManager.removeTransaction(client);
 
-        if (transaction.isEmpty()) {
-            // return empty array and remove completely remove transaction (next call with same conditions will throw simple error above)
-            client.write(ByteBuffer.wrap("*0\r\n".getBytes()));
-            TransactionManager.removeTransaction(client);
-            return;
-        }
+        // empty transaction gives an empty array (next call with same conditions will throw simple error above)
+        // otherwise every queued command writes its reply straight after the array header
+        client.addReplyArrayLen(transaction.size());
 
-        // collecting responses for queued commands
-        List<String> responses = new ArrayList<>();
-        SocketChannel sc = new CapturingSocketChannel(responses); // mock socket channel to capture responses
+        for (CommandParts command : transaction) {
+            CommandDescriptor descriptor = commandRegistry.lookup(command.getBytes(0));
 
-        for (List<String> command : transaction) {
-            String cmdName = command.get(0);
-            Command cmd = CommandRegistry.getCommand(cmdName);
+            // like redis, a failing command gets its error in the reply array and the others still run.
+            // a queued SELECT switches the database of the commands after it
+            store = databases.get(client.getDb());
+            try {
+                if (descriptor == null) {
+                    throw new Exception("ERR unknown command '" + command.get(0) + "'");
+                }
+                if (!descriptor.checkArity(command.size())) {
+                    throw new Exception("ERR wrong number of arguments for '" + descriptor.name() + "' command");
+                }
 
-            if (cmdContext.get("minimalCtx").contains(cmdName.toUpperCase())) {
-                cmd.execute(sc);
-            } else if (cmdContext.get("partialCtx").contains(cmdName.toUpperCase())) {
-                cmd.execute(sc, command);
-            } else if (cmdContext.get("fullCtx").contains(cmdName.toUpperCase())) {
-                cmd.execute(sc, command, store);
+                if (descriptor.hasFlag(CommandDescriptor.BLOCKING)) {
+                    executeWithoutBlocking(client, descriptor, command, store);
+                } else {
+                    descriptor.command().execute(client, command, store);
+                }
+            } catch (Exception e) {
+                client.addReplyError(e.getMessage());
             }
         }
-
-        StringBuilder arrayResponse = new StringBuilder();
-        arrayResponse.append("*").append(responses.size()).append("\r\n");
-        for (String response : responses) {
-            arrayResponse.append(response);
-        }
-
-        TransactionManager.removeTransaction(client);
-        client.write(ByteBuffer.wrap(arrayResponse.toString().getBytes()));
     }
 
-    public void execute(SocketChannel client, List<String> commandParts) {
-        throw new RuntimeException("ERR wrong number of arguments for 'EXEC' command");
-    }
+    // commands never block inside a transaction: the reply is taken if there is one right away, nil otherwise
+    private void executeWithoutBlocking(ClientConnection client, CommandDescriptor descriptor, CommandParts command, Database store) throws Exception {
+        CapturingClientConnection sc = new CapturingClientConnection(); // mock connection to capture responses
+        sc.setDb(client.getDb());
+        descriptor.command().execute(sc, command, store);
 
-    public void execute(SocketChannel client) {
-        throw new RuntimeException("ERR wrong number of arguments for 'EXEC' command");
+        byte[] reply = sc.takeReplies();
+        client.addReply(reply.length > 0 ? reply : RESPEncoder.NULL_BULK);
     }
 }
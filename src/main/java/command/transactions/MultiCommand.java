@@ -1,17 +1,16 @@
 package command.transactions;
 
+import protocol.CommandParts;
+import protocol.RESPEncoder;
 import command.Command;
-import store.DataStore;
+import server.ClientConnection;
+import store.Database;
 import transaction.TransactionManager;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.List;
-
 public class MultiCommand implements Command {
 
     @Override
-    public void execute(SocketChannel client, List<String> commandParts, DataStore store) throws Exception {
+    public void execute(ClientConnection client, CommandParts commandParts, Database store) throws Exception {
         if (commandParts.size() != 1) {
             throw new Exception("ERR wrong number of arguments for 'MULTI' command");
         }
@@ -22,16 +21,6 @@ public class MultiCommand implements Command {
 
         TransactionManager.startTransaction(client);
 
-        client.write(ByteBuffer.wrap("+OK\r\n".getBytes()));
-    }
-
-    @Override
-    public void execute(SocketChannel client, List<String> commandParts) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'MULTI'");
-    }
-
-    @Override
-    public void execute(SocketChannel client) throws Exception {
-        throw new Exception("ERR wrong number of arguments for 'MULTI'");
+        client.addReply(RESPEncoder.OK);
     }
 }
@@ -0,0 +1,21 @@
+package command.transactions.helper;
+
+import server.ClientConnection;
+import server.OutputBufferLimits;
+
+// connection without a socket, replies stay in its buffer until they are taken (or dropped)
+public class CapturingClientConnection extends ClientConnection {
+    public CapturingClientConnection() {
+        super(null, null, new OutputBufferLimits(0, 0, 0));
+    }
+
+    @Override
+    public byte[] takeReplies() {
+        return super.takeReplies();
+    }
+
+    @Override
+    public void discardReplies() {
+        super.discardReplies();
+    }
+}
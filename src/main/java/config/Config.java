@@ -1,9 +1,38 @@
 package config;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Config {
+	// parameters accepted as "--<name> <value>" on the command line
+	private static final List<String> SUPPORTED_PARAMS = List.of(
+			"dir",
+			"dbfilename",
+			"port",
+			"replicaof",
+			"io-threads",
+			"shards",
+			"execution-model",
+			"clock-update",
+			"maxmemory",
+			"maxmemory-policy",
+			"maxmemory-samples",
+			"databases",
+			"offheap-threshold",
+			"value-log",
+			"rdb-load-threads",
+			"rdb-lazy-load",
+			"rdb-lazy-warmer",
+			"save",
+			"appendonly",
+			"appendfilename",
+			"appendfsync",
+			"appenddirname",
+			"auto-aof-rewrite-percentage",
+			"auto-aof-rewrite-min-size"
+	);
+
 	private Map<String, String> configMap;
 
 	public Config(String[] args) {
@@ -16,14 +45,14 @@ public class Config {
 			if (i + 1 < args.length) {
 				String flag = args[i];
 				String value = args[i + 1];
-				if ("--dir".equals(flag)) {
-					configMap.put("dir", value);
-				} else if ("--dbfilename".equals(flag)) {
-					configMap.put("dbfilename", value);
-				} else if ("--port".equals(flag)) {
-					configMap.put("port", value);
-				} else if ("--replicaof".equals(flag) && i + 1 < args.length) {
-					configMap.put("replicaof", args[++i]);
+				if ("--client-output-buffer-limit".equals(flag)) {
+					// "<class> <hard> <soft> <seconds>", stored per client class like redis does
+					String[] parts = value.trim().split("\\s+", 2);
+					if (parts.length == 2) {
+						configMap.put("client-output-buffer-limit-" + parts[0].toLowerCase(), parts[1]);
+					}
+				} else if (flag.startsWith("--") && SUPPORTED_PARAMS.contains(flag.substring(2))) {
+					configMap.put(flag.substring(2), value);
 				}
 			}
 		}
@@ -31,10 +60,57 @@ public class Config {
 		configMap.putIfAbsent("dir", "/tmp/redis-files");
 		configMap.putIfAbsent("dbfilename", "dump.rdb");
 		configMap.putIfAbsent("port", "6379");
+		configMap.putIfAbsent("io-threads", "1");
+		configMap.putIfAbsent("shards", "1");
+		configMap.putIfAbsent("execution-model", "reactor");
+		configMap.putIfAbsent("clock-update", "batch");
+		configMap.putIfAbsent("maxmemory", "0");
+		configMap.putIfAbsent("maxmemory-policy", "noeviction");
+		configMap.putIfAbsent("maxmemory-samples", "5");
+		configMap.putIfAbsent("databases", "16");
+		configMap.putIfAbsent("offheap-threshold", "64kb");
+		configMap.putIfAbsent("value-log", "no");
+		configMap.putIfAbsent("rdb-load-threads", "1");
+		configMap.putIfAbsent("rdb-lazy-load", "no"); // long string values stay in the mapped file until read
+		configMap.putIfAbsent("rdb-lazy-warmer", "yes"); // with rdb-lazy-load, the cron decodes them meanwhile
+		configMap.putIfAbsent("save", ""); // "<seconds> <changes> ..." save points, none by default
+		configMap.putIfAbsent("appendonly", "no");
+		configMap.putIfAbsent("appendfilename", "appendonly.aof");
+		configMap.putIfAbsent("appendfsync", "everysec"); // always, everysec or no
+		configMap.putIfAbsent("appenddirname", "appendonlydir"); // in dir, holds the base and incr files
+		configMap.putIfAbsent("auto-aof-rewrite-percentage", "100"); // growth since the last rewrite, 0 disables
+		configMap.putIfAbsent("auto-aof-rewrite-min-size", "64mb");
+		configMap.putIfAbsent("client-output-buffer-limit-normal", "0 0 0");
+		configMap.putIfAbsent("client-output-buffer-limit-replica", "256mb 64mb 60");
 	}
 
 	public String get(String param) {
 		return configMap.get(param);
 	}
 
+	// parses sizes like "100", "64kb", "256mb" or "1gb" into bytes
+	public static long parseMemory(String value) {
+		String v = value.trim().toLowerCase();
+		long unit = 1;
+		if (v.endsWith("kb")) {
+			unit = 1024L;
+		} else if (v.endsWith("mb")) {
+			unit = 1024L * 1024;
+		} else if (v.endsWith("gb")) {
+			unit = 1024L * 1024 * 1024;
+		} else if (v.endsWith("b")) {
+			v = v.substring(0, v.length() - 1);
+		}
+
+		if (unit > 1) {
+			v = v.substring(0, v.length() - 2);
+		}
+
+		try {
+			return Long.parseLong(v) * unit;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("ERR invalid memory value: " + value);
+		}
+	}
+
 }
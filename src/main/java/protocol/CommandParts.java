@@ -0,0 +1,80 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+// the arguments of one command, each copied once out of the query buffer into an array of its own (see
+// RESPCommand.toParts()). this is what commands run with and what outlives the read that parsed it: queued by
+// MULTI, io threads and blocked clients, handed to a shard, propagated to replicas and the AOF.
+// keys and values reach the store as these bytes. get() decodes an argument to a String (ISO-8859-1, one char
+// per byte) for the commands that need one, nothing is decoded on the paths that don't call it
+public final class CommandParts extends AbstractList<String> implements RandomAccess {
+    private final byte[][] parts;
+
+    public CommandParts(byte[][] parts) {
+        this.parts = parts;
+    }
+
+    // commands the server makes up itself (SELECT, MULTI / EXEC around a transaction)
+    public static CommandParts of(String... parts) {
+        byte[][] bytes = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = parts[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return new CommandParts(bytes);
+    }
+
+    public byte[] getBytes(int index) {
+        return parts[index];
+    }
+
+    public int length(int index) {
+        return parts[index].length;
+    }
+
+    @Override
+    public String get(int index) {
+        return new String(parts[index], StandardCharsets.ISO_8859_1);
+    }
+
+    // commands rewrite relative arguments before they are propagated (SET PX into PXAT)
+    @Override
+    public String set(int index, String value) {
+        String previous = get(index);
+        parts[index] = value.getBytes(StandardCharsets.ISO_8859_1);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return parts.length;
+    }
+
+    // the argument bytes, what an io thread's backlog of this command is counted as
+    public long byteLength() {
+        long length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        return length;
+    }
+
+    public boolean equalsIgnoreCase(int index, String value) {
+        byte[] part = parts[index];
+        if (part.length != value.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < part.length; i++) {
+            if (toUpper(part[i]) != toUpper((byte) value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toUpper(byte b) {
+        return (b >= 'a' && b <= 'z') ? b - 32 : b;
+    }
+}
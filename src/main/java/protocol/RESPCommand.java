@@ -0,0 +1,142 @@
+package protocol;
+
+import java.util.Arrays;
+
+// a parsed command kept as offset/length slices into the buffer it was parsed from.
+// the same instance is reused for every command of a connection, so parsing itself allocates nothing.
+// slices are only valid until the underlying buffer is compacted or grown.
+// a frame that is not complete yet keeps its parse progress here (the arguments read so far and the length of
+// the bulk string being received), so the next read continues where the last one stopped instead of scanning
+// the frame from its start again. positions are kept relative to the frame start, which moves when the buffer
+// is compacted
+public class RESPCommand {
+    private static final int INITIAL_ARGUMENTS = 8;
+
+    private byte[] buffer;
+    private int frameStart;
+    private int size;
+    private int[] offsets = new int[INITIAL_ARGUMENTS];
+    private int[] lengths = new int[INITIAL_ARGUMENTS];
+    private int frameLength;
+
+    // parse progress of an incomplete multibulk frame
+    private long expectedArguments = -1; // the "*<count>" of the frame, -1 until its line was read
+    private int resumeAt; // where the next "$<length>" line starts, or the data of pendingBulkLength
+    private long pendingBulkLength = -1; // a bulk whose "$<length>" line was read but not all of its data
+
+    void reset(byte[] buffer, int frameStart) {
+        this.buffer = buffer;
+        this.frameStart = frameStart;
+        this.size = 0;
+        this.frameLength = 0;
+        this.expectedArguments = -1;
+        this.pendingBulkLength = -1;
+    }
+
+    // the frame moved to frameStart of buffer (compacted or grown), what was parsed of it stays valid
+    void resume(byte[] buffer, int frameStart) {
+        this.buffer = buffer;
+        this.frameStart = frameStart;
+    }
+
+    boolean isPartial() {
+        return expectedArguments >= 0;
+    }
+
+    long getExpectedArguments() {
+        return expectedArguments;
+    }
+
+    void setExpectedArguments(long expectedArguments) {
+        this.expectedArguments = expectedArguments;
+    }
+
+    int getResumeAt() {
+        return frameStart + resumeAt;
+    }
+
+    long getPendingBulkLength() {
+        return pendingBulkLength;
+    }
+
+    // the frame ends before position, parsing goes on from there with the next read
+    void suspend(int position, long pendingBulkLength) {
+        this.resumeAt = position - frameStart;
+        this.pendingBulkLength = pendingBulkLength;
+    }
+
+    void addArgument(int offset, int length) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        offsets[size] = offset - frameStart;
+        lengths[size] = length;
+        size++;
+        pendingBulkLength = -1;
+    }
+
+    void finish(int frameEnd) {
+        this.frameLength = frameEnd - frameStart;
+        this.expectedArguments = -1;
+        this.pendingBulkLength = -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int offset(int index) {
+        return frameStart + offsets[index];
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    // number of bytes the whole frame took on the wire (used for replication offsets)
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    public boolean argEqualsIgnoreCase(int index, String value) {
+        if (index >= size || lengths[index] != value.length()) {
+            return false;
+        }
+
+        int offset = offset(index);
+        for (int i = 0; i < value.length(); i++) {
+            if (toUpper(buffer[offset + i]) != toUpper((byte) value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] argToBytes(int index) {
+        int offset = offset(index);
+        return Arrays.copyOfRange(buffer, offset, offset + lengths[index]);
+    }
+
+    // the arguments copied out of the buffer, one array each: what the command runs with and what is kept
+    // after the buffer moves on
+    public CommandParts toParts() {
+        byte[][] parts = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            parts[i] = argToBytes(i);
+        }
+        return new CommandParts(parts);
+    }
+
+    private static int toUpper(byte b) {
+        return (b >= 'a' && b <= 'z') ? b - 32 : b;
+    }
+}
@@ -0,0 +1,121 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// pre-encoded replies shared by every client and helpers that encode RESP straight into a ByteBuffer.
+// the shared arrays are never modified, ClientConnection copies them into its reply buffer.
+public final class RESPEncoder {
+    public static final byte[] OK = encode("+OK\r\n");
+    public static final byte[] QUEUED = encode("+QUEUED\r\n");
+    public static final byte[] PONG = encode("+PONG\r\n");
+    public static final byte[] NULL_BULK = encode("$-1\r\n");
+    public static final byte[] EMPTY_ARRAY = encode("*0\r\n");
+    public static final byte[] CRLF = encode("\r\n");
+
+    // line prefixes, the text and CRLF are appended by the caller
+    public static final byte[] STATUS_PREFIX = encode("+");
+    public static final byte[] ERR_PREFIX = encode("-ERR ");
+    public static final byte[] WRONGTYPE_PREFIX = encode("-WRONGTYPE ");
+    public static final byte[] ERROR_PREFIX = encode("-");
+
+    public static final int SHARED_INTEGERS = 10000;
+    public static final int SHARED_HEADERS = 32;
+
+    private static final byte[][] integers = new byte[SHARED_INTEGERS][];
+    private static final byte[][] bulkHeaders = new byte[SHARED_HEADERS][];
+    private static final byte[][] arrayHeaders = new byte[SHARED_HEADERS][];
+
+    // longest header: prefix, sign, 19 digits and CRLF
+    public static final int MAX_HEADER_LENGTH = 23;
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            integers[i] = encode(":" + i + "\r\n");
+        }
+        for (int i = 0; i < SHARED_HEADERS; i++) {
+            bulkHeaders[i] = encode("$" + i + "\r\n");
+            arrayHeaders[i] = encode("*" + i + "\r\n");
+        }
+    }
+
+    private RESPEncoder() {
+    }
+
+    // ":<value>\r\n" if it is shared, null otherwise
+    public static byte[] sharedInteger(long value) {
+        return value >= 0 && value < SHARED_INTEGERS ? integers[(int) value] : null;
+    }
+
+    public static byte[] sharedBulkHeader(long length) {
+        return length >= 0 && length < SHARED_HEADERS ? bulkHeaders[(int) length] : null;
+    }
+
+    public static byte[] sharedArrayHeader(long length) {
+        return length >= 0 && length < SHARED_HEADERS ? arrayHeaders[(int) length] : null;
+    }
+
+    // bytes needed by "<prefix><value>\r\n"
+    public static int headerLength(long value) {
+        return 1 + digits(value) + 2;
+    }
+
+    // writes "<prefix><value>\r\n" at the absolute index at, the buffer must have headerLength(value) bytes there.
+    // digits are written right to left, so no intermediate String or char[] is needed
+    public static int encodeHeader(ByteBuffer dst, int at, byte prefix, long value) {
+        dst.put(at, prefix);
+        return 1 + encodeNumber(dst, at + 1, value);
+    }
+
+    // writes "<value>\r\n" at the absolute index at, the buffer must have headerLength(value) - 1 bytes there
+    public static int encodeNumber(ByteBuffer dst, int at, long value) {
+        int length = digits(value) + 2;
+
+        int end = at + length - 2;
+        dst.put(end, (byte) '\r');
+        dst.put(end + 1, (byte) '\n');
+
+        // negative values are handled as negative numbers, so Long.MIN_VALUE needs no special case
+        long v = value < 0 ? value : -value;
+        int i = end;
+        do {
+            dst.put(--i, (byte) ('0' - (v % 10)));
+            v /= 10;
+        } while (v != 0);
+
+        if (value < 0) {
+            dst.put(--i, (byte) '-');
+        }
+        return length;
+    }
+
+    public static int digits(long value) {
+        int n = value < 0 ? 2 : 1; // the sign counts as a digit
+        long v = value < 0 ? value : -value;
+        while (v <= -10) {
+            v /= 10;
+            n++;
+        }
+        return n;
+    }
+
+    // true if the message starts with an upper case error code followed by a space ("ERR ...", "WRONGTYPE ...")
+    public static boolean hasErrorCode(String message) {
+        int space = message.indexOf(' ');
+        if (space <= 0) {
+            return false;
+        }
+
+        for (int i = 0; i < space; i++) {
+            char c = message.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -1,8 +1,5 @@
 package protocol;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class RESPParser {
 
     public static final byte DOLLAR_BYTE = '$';
@@ -11,153 +8,198 @@ public class RESPParser {
     public static final byte MINUS_BYTE = '-';
     public static final byte COLON_BYTE = ':';
 
+    // same limits as redis (proto-max-bulk-len and the multibulk sanity check)
+    public static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    public static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+
+    public static final int INCOMPLETE = -1;
+
     private RESPParser() {
         // this prevent the class from instantiation
     }
 
-    public static List<String> process(String input) {
-        if (input.isEmpty()) {
-            System.out.println("Error: Empty input!");
-            return new ArrayList<>();
+    // parses one command from buffer[start, end) into 'command' without copying any bytes.
+    // returns the position right after the frame or INCOMPLETE if more bytes are needed.
+    // an empty multibulk ("*0\r\n") is consumed and leaves 'command' empty.
+    // after INCOMPLETE the next call has to pass the same frame start (the buffer may have been compacted or
+    // grown in between), the arguments and the bulk length read so far are taken from 'command'
+    public static int parseCommand(byte[] buffer, int start, int end, RESPCommand command) {
+        if (start >= end) {
+            return INCOMPLETE;
         }
 
-        byte type = (byte) input.charAt(0);
+        if (command.isPartial()) {
+            command.resume(buffer, start);
+        } else {
+            command.reset(buffer, start);
+
+            if (buffer[start] != ASTERISK_BYTE) {
+                return parseInlineCommand(buffer, start, end, command);
+            }
+
+            int lineEnd = indexOfCRLF(buffer, start, end);
+            if (lineEnd == INCOMPLETE) {
+                checkLineLength(start, end);
+                return INCOMPLETE;
+            }
 
-        switch (type) {
-            case PLUS_BYTE:
-                return processSimpleReply(input);
-            case ASTERISK_BYTE:
-                return processMultiBulkReply(input);
-            default:
-                throw new IllegalArgumentException("Unknown reply: " + (char) type);
+            long numberOfElements = parseLength(buffer, start + 1, lineEnd, "invalid multibulk length");
+            if (numberOfElements > MAX_MULTIBULK_LENGTH) {
+                throw new IllegalArgumentException("Protocol error: invalid multibulk length");
+            }
+            command.setExpectedArguments(Math.max(numberOfElements, 0));
+            command.suspend(lineEnd + 2, -1); // start of the first "$<num>"
         }
-    }
 
-    private static List<String> processMultiBulkReply(String input) {
-        List<String> result = new ArrayList<>();
-        String[] lines = input.split("\r\n");
+        int pos = command.getResumeAt();
+        long length = command.getPendingBulkLength();
+        while (command.size() < command.getExpectedArguments()) {
+            int dataStart = pos;
+            if (length < 0) {
+                if (pos >= end) {
+                    command.suspend(pos, -1);
+                    return INCOMPLETE;
+                }
 
-        int numeberOfElements = Integer.parseInt(lines[0].substring(1));
-        int index = 1; // start after "*<num>" number array elements next element should start with
-        // "$<num>" (bulk string)
+                if (buffer[pos] != DOLLAR_BYTE) {
+                    throw new IllegalArgumentException("Protocol error: expected '$', got '" + (char) buffer[pos] + "'");
+                }
 
-        for (int i = 0; i < numeberOfElements; i++) {
-            if (index + 1 >= lines.length) {
-                break;
-            }
+                int lineEnd = indexOfCRLF(buffer, pos, end);
+                if (lineEnd == INCOMPLETE) {
+                    checkLineLength(pos, end);
+                    command.suspend(pos, -1);
+                    return INCOMPLETE;
+                }
 
-            if (lines[index].charAt(0) == DOLLAR_BYTE) {
-                int length = Integer.parseInt(lines[index].substring(1));
-                if (length == -1) {
-                    // it might be changed to throw error in future
-                    result.add(null);
-                } else {
-                    String value = lines[index + 1];
-                    result.add(value);
+                length = parseLength(buffer, pos + 1, lineEnd, "invalid bulk length");
+                if (length < 0 || length > MAX_BULK_LENGTH) {
+                    throw new IllegalArgumentException("Protocol error: invalid bulk length");
                 }
+                dataStart = lineEnd + 2;
+            }
 
-                index += 2; // go to the next element (skipping length "$<num>)
+            // the length prefix is trusted, so values may contain CRLF or any other byte
+            if ((long) end - dataStart < length + 2) {
+                command.suspend(dataStart, length);
+                return INCOMPLETE;
             }
+
+            int dataEnd = dataStart + (int) length;
+            if (buffer[dataEnd] != '\r' || buffer[dataEnd + 1] != '\n') {
+                throw new IllegalArgumentException("Protocol error: bulk string is not terminated by CRLF");
+            }
+
+            command.addArgument(dataStart, (int) length);
+            pos = dataEnd + 2;
+            length = -1;
         }
 
-        return result;
+        command.finish(pos);
+        return pos;
     }
 
-    public static List<List<String>> processBufferData(String data) {
-        StringBuilder buffer = new StringBuilder();
-
-        buffer.append(data);
+    // inline commands ("PING\r\n") as sent by telnet and by redis-cli in some cases
+    private static int parseInlineCommand(byte[] buffer, int start, int end, RESPCommand command) {
+        int newLine = INCOMPLETE;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '\n') {
+                newLine = i;
+                break;
+            }
+        }
 
-        List<List<String>> commands = new ArrayList<>();
+        if (newLine == INCOMPLETE) {
+            checkLineLength(start, end);
+            return INCOMPLETE;
+        }
 
-        while (!buffer.isEmpty()) {
-            try {
-                int[] result = findCompleteCommand(buffer);
-                if (result[0] == -1) {
-                    break;
-                }
+        int lineEnd = (newLine > start && buffer[newLine - 1] == '\r') ? newLine - 1 : newLine;
+        int pos = start;
+        while (pos < lineEnd) {
+            while (pos < lineEnd && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+                pos++;
+            }
 
-                String commandStr = buffer.substring(0, result[0]);
-                // remove processed command from buffer
-                buffer.delete(0, result[0]);
+            int argStart = pos;
+            while (pos < lineEnd && buffer[pos] != ' ' && buffer[pos] != '\t') {
+                pos++;
+            }
 
-                List<String> command = process(commandStr);
-                if (!command.isEmpty()) {
-                    commands.add(command);
-                }
-            } catch (Exception e) {
-                System.out.println("\u001B[31mError parsing command: " + e.getMessage() + "\u001B[0m");
-                // Clear a portion of the buffer to recover from parsing errors
-                if (buffer.length() > 0) {
-                    // Find next command marker '*' or clear everything if not found
-                    int nextCommand = buffer.indexOf("*", 1);
-                    if (nextCommand != -1) {
-                        buffer.delete(0, nextCommand);
-                    } else {
-                        buffer.setLength(0);
-                    }
-                }
+            if (pos > argStart) {
+                command.addArgument(argStart, pos - argStart);
             }
         }
 
-        return commands;
+        command.finish(newLine + 1);
+        return newLine + 1;
     }
 
-    private static int[] findCompleteCommand(StringBuilder buffer) {
-        if (buffer.length() < 3) {
-            return new int[]{-1, 0};
+    // returns the end of a simple reply line ("+PONG\r\n") or INCOMPLETE, the line itself is buffer[start, result)
+    public static int findLineEnd(byte[] buffer, int start, int end) {
+        int lineEnd = indexOfCRLF(buffer, start, end);
+        if (lineEnd == INCOMPLETE) {
+            checkLineLength(start, end);
         }
+        return lineEnd;
+    }
 
-        if (buffer.charAt(0) != (char) ASTERISK_BYTE) {
-            return new int[]{-1, 0};
+    // returns the position after a "$<len>\r\n<payload>" frame that has no trailing CRLF (RDB transfer), or INCOMPLETE
+    public static int skipBulkPayload(byte[] buffer, int start, int end) {
+        if (start >= end) {
+            return INCOMPLETE;
         }
 
-        int newLinePos = buffer.indexOf("\r\n");
-        if (newLinePos == -1) {
-            return new int[]{-1, 0};
+        if (buffer[start] != DOLLAR_BYTE) {
+            throw new IllegalArgumentException("Protocol error: expected '$', got '" + (char) buffer[start] + "'");
         }
 
-        int arraySize = Integer.parseInt(buffer.substring(1, newLinePos));
-
-        int pos = newLinePos + 2; // moves to start of the next command <$num>
-
-        for (int i = 0; i < arraySize; i++) {
-            if (pos + 1 >= buffer.length()) {
-                return new int[]{-1, 0};
-            }
+        int lineEnd = findLineEnd(buffer, start, end);
+        if (lineEnd == INCOMPLETE) {
+            return INCOMPLETE;
+        }
 
-            if (buffer.charAt(pos) != (char) DOLLAR_BYTE) {
-                return new int[]{-1, 0};
-            }
+        long length = parseLength(buffer, start + 1, lineEnd, "invalid bulk length");
+        long payloadEnd = lineEnd + 2 + length;
+        return payloadEnd <= end ? (int) payloadEnd : INCOMPLETE;
+    }
 
-            int cmdPartLengthEndPos = buffer.indexOf("\r\n", pos); // $<num>
-            if (cmdPartLengthEndPos == -1) {
-                return new int[]{-1, 0};
+    private static int indexOfCRLF(byte[] buffer, int from, int end) {
+        for (int i = from; i < end - 1; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                return i;
             }
+        }
+        return INCOMPLETE;
+    }
 
-            int cmdPartLength;
-            try {
-                cmdPartLength = Integer.parseInt(buffer.substring(pos + 1, cmdPartLengthEndPos));
-            } catch (NumberFormatException e) {
-                return new int[]{-1, 0};
-            }
+    private static long parseLength(byte[] buffer, int start, int end, String error) {
+        if (start >= end) {
+            throw new IllegalArgumentException("Protocol error: " + error);
+        }
 
-            // Calculate position of the end of this bulk string
-            int cmdPartEndPos = cmdPartLengthEndPos + 2 + cmdPartLength + 2;
+        boolean negative = buffer[start] == MINUS_BYTE;
+        int pos = negative ? start + 1 : start;
+        if (pos >= end || end - pos > 18) {
+            throw new IllegalArgumentException("Protocol error: " + error);
+        }
 
-            if (cmdPartEndPos > buffer.length()) {
-                return new int[]{-1, 0};
+        long value = 0;
+        for (; pos < end; pos++) {
+            byte b = buffer[pos];
+            if (b < '0' || b > '9') {
+                throw new IllegalArgumentException("Protocol error: " + error);
             }
-
-            pos = cmdPartEndPos;
+            value = value * 10 + (b - '0');
         }
-        return new int[]{pos, arraySize};
-    }
-
-    private static List<String> processSimpleReply(String input) {
-        return null;
-        // TODO Auto-generated method stub
 
+        return negative ? -value : value;
     }
 
+    private static void checkLineLength(int start, int end) {
+        if (end - start > MAX_INLINE_LENGTH) {
+            throw new IllegalArgumentException("Protocol error: too big inline request");
+        }
+    }
 }
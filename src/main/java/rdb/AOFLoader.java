@@ -0,0 +1,217 @@
+package rdb;
+
+import protocol.CommandParts;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// replays an append only file: its RDB preamble if it has one, then the commands, parsed straight out of a large
+// read buffer without going through a connection. the commands of a MULTI are handed over once their EXEC is read.
+// a file ending inside a command or a transaction was cut short by a crash: it is truncated after the last whole
+// one and the load goes on, like redis with aof-load-truncated yes. only the last file of a multi part AOF (see
+// AOFManifest) can be cut short that way, the others were complete before the next one was started. anything
+// else that isn't RESP stops the load
+public final class AOFLoader {
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int MAX_LINE_LENGTH = 32; // "*<count>\r\n" and "$<length>\r\n"
+	private static final byte[] RDB_MAGIC = "REDIS".getBytes(StandardCharsets.ISO_8859_1);
+
+	// receives the commands in file order
+	public interface CommandConsumer {
+		void accept(CommandParts commandParts) throws IOException;
+	}
+
+	private final Path path;
+	private final FileChannel channel;
+	private final boolean last;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+	private long bufferOffset; // file offset of buffer[0]
+	private boolean endOfFile;
+
+	private AOFLoader(Path path, FileChannel channel, boolean last, long offset) {
+		this.path = path;
+		this.channel = channel;
+		this.last = last;
+		this.bufferOffset = offset;
+	}
+
+	// keys of the preamble go to keys (see RDBFileParser.parseFile() for loadThreads, dropExpired and lazy), commands to
+	// commands. last is false for a file another one follows. returns the number of commands replayed
+	public static long load(Path path, boolean last, int loadThreads, boolean dropExpired, boolean lazy, RDBFileParser.KeyConsumer keys, CommandConsumer commands) throws IOException {
+		long startMillis = System.currentTimeMillis();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long start = 0;
+			if (hasRdbPreamble(channel)) {
+				System.out.println("Reading RDB preamble from AOF file " + path.getFileName());
+				start = RDBFileParser.parseFile(path.toString(), loadThreads, dropExpired, lazy, keys);
+			}
+
+			channel.position(start);
+			long replayed = new AOFLoader(path, channel, last, start).replay(commands);
+			System.out.println("DB loaded from append only file " + path.getFileName() + ": " + replayed + " commands in "
+					+ (System.currentTimeMillis() - startMillis) / 1000.0 + " seconds");
+			return replayed;
+		}
+	}
+
+	private static boolean hasRdbPreamble(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(RDB_MAGIC.length);
+		while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+			// a short read only happens at the end of the file
+		}
+		return !magic.hasRemaining() && ByteBuffer.wrap(RDB_MAGIC).equals(magic.flip());
+	}
+
+	private long replay(CommandConsumer commands) throws IOException {
+		long replayed = 0;
+		long valid = offset(); // after the last command that was handed over (or queued before its MULTI)
+		List<CommandParts> transaction = null;
+		boolean truncated = false;
+		try {
+			CommandParts command;
+			while ((command = readCommand()) != null) {
+				if (command.equalsIgnoreCase(0, "multi")) {
+					transaction = new ArrayList<>();
+				} else if (transaction != null && command.equalsIgnoreCase(0, "exec")) {
+					for (CommandParts queued : transaction) {
+						commands.accept(queued);
+					}
+					replayed += transaction.size();
+					transaction = null;
+				} else if (transaction != null) {
+					transaction.add(command);
+				} else {
+					commands.accept(command);
+					replayed++;
+				}
+
+				if (transaction == null) {
+					valid = offset();
+				}
+			}
+		} catch (EOFException e) {
+			truncated = true;
+		}
+
+		if ((truncated || transaction != null) && !last) {
+			throw new IOException("Fatal error: the truncated file " + path.getFileName() + " is not the last file of the AOF");
+		}
+		if (truncated || transaction != null) {
+			System.out.println(truncated
+					? "!!! Warning: short read while loading the AOF file " + path.getFileName() + "!!!"
+					: "Revert incomplete MULTI/EXEC transaction in AOF file " + path.getFileName());
+			channel.truncate(valid);
+			channel.force(true);
+			System.out.println("AOF loaded anyway, the file was truncated to " + valid + " bytes");
+		}
+		return replayed;
+	}
+
+	// the next command, null at the end of the file. EOFException if the file ends inside it
+	private CommandParts readCommand() throws IOException {
+		if (!fill(1)) {
+			return null;
+		}
+		if (buffer[position] != '*') {
+			throw badFormat();
+		}
+		position++;
+		int count = readNumber();
+		if (count < 1) {
+			throw badFormat();
+		}
+
+		byte[][] parts = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			require(1);
+			if (buffer[position] != '$') {
+				throw badFormat();
+			}
+			position++;
+			int length = readNumber();
+			require(length + 2);
+			if (buffer[position + length] != '\r' || buffer[position + length + 1] != '\n') {
+				throw badFormat();
+			}
+			parts[i] = Arrays.copyOfRange(buffer, position, position + length);
+			position += length + 2;
+		}
+		return new CommandParts(parts);
+	}
+
+	// the digits up to the line end
+	private int readNumber() throws IOException {
+		fill(MAX_LINE_LENGTH);
+		long value = 0;
+		int at = position;
+		while (at < limit && buffer[at] != '\r') {
+			int digit = buffer[at++] - '0';
+			if (digit < 0 || digit > 9 || at - position > 10) {
+				throw badFormat();
+			}
+			value = value * 10 + digit;
+		}
+		if (at + 1 >= limit) {
+			// the line did not fit in the bytes fill() got, so the file ends here
+			throw new EOFException();
+		}
+		if (at == position || buffer[at + 1] != '\n' || value > Integer.MAX_VALUE - 2) {
+			throw badFormat();
+		}
+		position = at + 2;
+		return (int) value;
+	}
+
+	private void require(int bytes) throws IOException {
+		if (!fill(bytes)) {
+			throw new EOFException();
+		}
+	}
+
+	// reads until bytes are buffered after position, false if the file ends first
+	private boolean fill(int bytes) throws IOException {
+		while (limit - position < bytes) {
+			if (endOfFile) {
+				return false;
+			}
+
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				bufferOffset += position;
+				limit -= position;
+				position = 0;
+			}
+			if (buffer.length < bytes) {
+				byte[] grown = new byte[Math.max(bytes, buffer.length * 2)];
+				System.arraycopy(buffer, 0, grown, 0, limit);
+				buffer = grown;
+			}
+
+			int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+			if (read < 0) {
+				endOfFile = true;
+			} else {
+				limit += read;
+			}
+		}
+		return true;
+	}
+
+	private long offset() {
+		return bufferOffset + position;
+	}
+
+	private IOException badFormat() {
+		return new IOException("Bad file format reading the append only file " + path.getFileName() + " at offset " + offset());
+	}
+}
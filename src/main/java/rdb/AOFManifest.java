@@ -0,0 +1,176 @@
+package rdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// the files of a multi part AOF (redis 7): a base file written by the last rewrite, RDB format, then the incr
+// files with the commands since, in the order they are replayed. the manifest names them, one line each like
+// "file appendonly.aof.1.base.rdb seq 1 type b". it is replaced as a whole (temp file and rename), so the files
+// it names are always the complete dataset. redis' history entries (type h) are files about to be deleted,
+// they are dropped when read
+final class AOFManifest {
+	static final String TYPE_BASE = "b";
+	static final String TYPE_HISTORY = "h";
+	static final String TYPE_INCR = "i";
+
+	record Part(String fileName, long seq, String type) {
+	}
+
+	private final String baseName; // appendfilename, the prefix of every file
+	private Part base;
+	private final List<Part> incrs = new ArrayList<>();
+
+	AOFManifest(String baseName) {
+		this.baseName = baseName;
+	}
+
+	static AOFManifest load(Path path, String baseName) throws IOException {
+		AOFManifest manifest = new AOFManifest(baseName);
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(path, StandardCharsets.ISO_8859_1)) {
+			lineNumber++;
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+
+			String[] fields = trimmed.split("\\s+");
+			String fileName = null;
+			String type = null;
+			long seq = -1;
+			for (int i = 0; i + 1 < fields.length; i += 2) {
+				switch (fields[i]) {
+				case "file":
+					fileName = fields[i + 1];
+					break;
+				case "seq":
+					try {
+						seq = Long.parseLong(fields[i + 1]);
+					} catch (NumberFormatException e) {
+						seq = -1;
+					}
+					break;
+				case "type":
+					type = fields[i + 1];
+					break;
+				default:
+					break; // a field of a later version
+				}
+			}
+			if (fields.length % 2 != 0 || fileName == null || fileName.contains("/") || seq < 0 || type == null) {
+				throw new IOException("Invalid AOF manifest file format at line " + lineNumber + " of " + path.getFileName());
+			}
+
+			switch (type) {
+			case TYPE_BASE:
+				if (manifest.base != null) {
+					throw new IOException("Found duplicate base file information in " + path.getFileName());
+				}
+				manifest.base = new Part(fileName, seq, type);
+				break;
+			case TYPE_INCR:
+				if (!manifest.incrs.isEmpty() && manifest.incrs.get(manifest.incrs.size() - 1).seq() >= seq) {
+					throw new IOException("Found a non-monotonic sequence number in " + path.getFileName());
+				}
+				manifest.incrs.add(new Part(fileName, seq, type));
+				break;
+			case TYPE_HISTORY:
+				break;
+			default:
+				throw new IOException("Unknown AOF file type " + type + " in " + path.getFileName());
+			}
+		}
+		return manifest;
+	}
+
+	Part getBase() {
+		return base;
+	}
+
+	List<Part> getIncrs() {
+		return incrs;
+	}
+
+	// the file commands are appended to, null before the first one is added
+	Part getLastIncr() {
+		return incrs.isEmpty() ? null : incrs.get(incrs.size() - 1);
+	}
+
+	// base and incr files in replay order
+	List<Part> getParts() {
+		List<Part> parts = new ArrayList<>(incrs.size() + 1);
+		if (base != null) {
+			parts.add(base);
+		}
+		parts.addAll(incrs);
+		return parts;
+	}
+
+	// a new incr file after the last one, the writes from now on go there
+	Part addIncr() {
+		long seq = incrs.isEmpty() ? 1 : getLastIncr().seq() + 1;
+		Part incr = new Part(baseName + "." + seq + ".incr.aof", seq, TYPE_INCR);
+		incrs.add(incr);
+		return incr;
+	}
+
+	// the name the next base file gets, extension "rdb" for one a rewrite writes, "aof" for an old single file AOF
+	Part nextBase(String extension) {
+		long seq = base == null ? 1 : base.seq() + 1;
+		return new Part(baseName + "." + seq + ".base." + extension, seq, TYPE_BASE);
+	}
+
+	// a finished rewrite: newBase replaces the base and the incr files before firstKeptIncr, which it covers.
+	// returns the files that are no longer part of the AOF
+	List<Part> replaceBase(Part newBase, long firstKeptIncr) {
+		List<Part> obsolete = new ArrayList<>();
+		if (base != null) {
+			obsolete.add(base);
+		}
+		base = newBase;
+		while (!incrs.isEmpty() && incrs.get(0).seq() < firstKeptIncr) {
+			obsolete.add(incrs.remove(0));
+		}
+		return obsolete;
+	}
+
+	// the base of an old single file AOF that was moved into the AOF directory
+	void setBase(Part base) {
+		this.base = base;
+	}
+
+	// written to a temp file in dir and renamed over path, then dir is synced
+	void persist(Path dir, Path path) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (Part part : getParts()) {
+			text.append("file ").append(part.fileName()).append(" seq ").append(part.seq())
+					.append(" type ").append(part.type()).append('\n');
+		}
+
+		Path temp = dir.resolve("temp-" + path.getFileName());
+		try {
+			try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+				while (bytes.hasRemaining()) {
+					file.write(bytes);
+				}
+				file.force(true);
+			}
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+			try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+				directory.force(true);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+}
@@ -0,0 +1,614 @@
+package rdb;
+
+import config.Config;
+import protocol.CommandParts;
+import protocol.RESPEncoder;
+import server.ServerClock;
+import store.Databases;
+import store.Snapshot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// the append only file: every write command as a client sends it (RESP), with a SELECT before the ones of another
+// database. commands are buffered while they execute and written once per event loop iteration by flush(), before
+// the replies of that iteration go out, so one write (and with appendfsync always one fsync) covers all of them.
+// with everysec the fsync runs on the aof-fsync thread about once a second and the loop never waits for the disk.
+// the AOF is multi part like redis 7 (see AOFManifest): in appenddirname a base file and the incr files appended
+// to since. BGREWRITEAOF starts a new incr file, so the commands from then on are already on disk apart from the
+// ones the new base covers, and writes the keyspace of that moment as the new base (RDB format, from a Snapshot
+// walked like BGSAVE's). once written the manifest is switched over and the old files go. everything but the
+// aof-fsync and aof-rewrite threads runs on the thread executing commands
+public final class AppendOnlyFile {
+	private static final long FSYNC_INTERVAL_MILLIS = 1000;
+	private static final long MAX_POSTPONE_MILLIS = 2000; // everysec: how long a write waits for a running fsync
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_KEPT_BUFFER_SIZE = 4 * 1024 * 1024; // a larger buffer is dropped once written
+	private static final long REWRITE_RETRY_DELAY_MILLIS = 5000; // after a failed automatic rewrite
+
+	// rewrite()
+	public static final int REWRITE_STARTED = 0;
+	public static final int REWRITE_SCHEDULED = 1; // starts once the running BGSAVE is done
+	public static final int REWRITE_IN_PROGRESS = 2;
+
+	public enum FsyncPolicy {
+		ALWAYS, EVERYSEC, NO;
+
+		public static FsyncPolicy fromConfig(String name) {
+			for (FsyncPolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name)) {
+					return policy;
+				}
+			}
+			throw new IllegalArgumentException("ERR invalid appendfsync '" + name + "' (always, everysec, no)");
+		}
+	}
+
+	private final Databases databases;
+	private final RDBSaver rdbSaver;
+	private final Path dir; // appenddirname in dir
+	private final String fileName; // appendfilename, the prefix of the files in dir
+	private final Path manifestPath;
+	private final Path singleFilePath; // appendfilename in dir, the one file AOF of before multi part AOFs
+	private final FsyncPolicy policy;
+	private final int rewritePercentage; // auto-aof-rewrite-percentage, 0 disables automatic rewrites
+	private final long rewriteMinSize;
+	private Runnable rewriteStarted = () -> {};
+
+	private AOFManifest manifest;
+	private FileChannel channel; // the last incr file
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int length;
+	private int selectedDb = -1;
+	private long size; // bytes written to the last incr file
+	private long previousSize; // bytes of the base and the other incr files
+	private long baseSize; // the whole AOF after the last rewrite (or the load), the growth is measured from it
+	private long syncedSize; // bytes covered by an fsync, done (always) or handed to the fsync thread (everysec)
+	private long lastFsyncMillis;
+	private long postponedSinceMillis;
+	private long delayedFsyncs;
+	private String writeError; // why the last write failed, null once one works again
+
+	// jobs for the aof-fsync thread, like redis' bio thread: fsyncs (everysec), closing and deleting old files
+	private final LinkedBlockingQueue<Runnable> backgroundJobs = new LinkedBlockingQueue<>();
+	private volatile boolean fsyncInProgress;
+	private volatile String fsyncError;
+
+	// the rewrite in progress
+	private Snapshot rewriteSnapshot;
+	private Path rewriteTemp;
+	private long rewriteFirstIncr; // seq of the incr file started with it, the new base covers the ones before
+	private long rewriteStartMillis;
+	private volatile boolean rewriteWritten; // set by the aof-rewrite thread, then rewriteError
+	private volatile String rewriteError;
+	private boolean rewriteScheduled; // BGREWRITEAOF while a BGSAVE runs
+	private long lastRewriteAttemptMillis;
+	private boolean lastRewriteOk = true;
+	private long lastRewriteSeconds = -1;
+
+	public AppendOnlyFile(Config config, Databases databases, RDBSaver rdbSaver) {
+		this.databases = databases;
+		this.rdbSaver = rdbSaver;
+		this.dir = Path.of(config.get("dir")).resolve(config.get("appenddirname"));
+		this.fileName = config.get("appendfilename");
+		if (fileName.contains("/")) {
+			throw new IllegalArgumentException("ERR appendfilename can't be a path, just a filename");
+		}
+		this.manifestPath = dir.resolve(fileName + ".manifest");
+		this.singleFilePath = Path.of(config.get("dir")).resolve(fileName);
+		this.policy = FsyncPolicy.fromConfig(config.get("appendfsync"));
+		try {
+			this.rewritePercentage = Integer.parseInt(config.get("auto-aof-rewrite-percentage"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("ERR invalid auto-aof-rewrite-percentage '" + config.get("auto-aof-rewrite-percentage") + "'");
+		}
+		this.rewriteMinSize = Config.parseMemory(config.get("auto-aof-rewrite-min-size"));
+	}
+
+	// run whenever a rewrite starts, the server begins walking its snapshot
+	public void setRewriteStarted(Runnable rewriteStarted) {
+		this.rewriteStarted = rewriteStarted;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return policy;
+	}
+
+	public boolean exists() {
+		return Files.exists(manifestPath) || Files.exists(singleFilePath);
+	}
+
+	// replays the files of the manifest in order, or a one file AOF of before, which open() turns into the base
+	// of a multi part one. see AOFLoader.load() for the arguments
+	public void load(int loadThreads, boolean dropExpired, boolean lazy, RDBFileParser.KeyConsumer keys, AOFLoader.CommandConsumer commands) throws IOException {
+		if (!Files.exists(manifestPath)) {
+			AOFLoader.load(singleFilePath, true, loadThreads, dropExpired, lazy, keys, commands);
+			return;
+		}
+
+		manifest = AOFManifest.load(manifestPath, fileName);
+		List<AOFManifest.Part> parts = manifest.getParts();
+		if (parts.isEmpty()) {
+			throw new IOException("Found an empty AOF manifest " + manifestPath.getFileName());
+		}
+		long startMillis = System.currentTimeMillis();
+		long replayed = 0;
+		for (int i = 0; i < parts.size(); i++) {
+			Path file = dir.resolve(parts.get(i).fileName());
+			if (i == 0 && manifest.getBase() != null && !Files.exists(file) && Files.exists(singleFilePath)) {
+				// a crash between writing the manifest of an upgrade and moving the old file in, see open()
+				Files.move(singleFilePath, file, StandardCopyOption.ATOMIC_MOVE);
+			}
+			if (!Files.exists(file)) {
+				throw new IOException("Append only file " + file.getFileName() + " in the manifest doesn't exist");
+			}
+			replayed += AOFLoader.load(file, i == parts.size() - 1, loadThreads, dropExpired, lazy, keys, commands);
+		}
+		System.out.println("DB loaded from " + parts.size() + " append only files: " + replayed + " commands in "
+				+ (System.currentTimeMillis() - startMillis) / 1000.0 + " seconds");
+	}
+
+	// opens the last incr file for appending after the load. without a manifest one is made: a one file AOF of
+	// before becomes its base, otherwise the base has the keys loaded from the RDB file (if any), they would be
+	// gone after the next restart otherwise
+	public void open() throws IOException {
+		Files.createDirectories(dir);
+		// what a rewrite that was cut short by a crash left behind
+		try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir, "temp-*")) {
+			for (Path leftover : leftovers) {
+				Files.deleteIfExists(leftover);
+			}
+		}
+		AOFManifest.Part upgradedBase = null;
+		if (manifest == null) {
+			manifest = new AOFManifest(fileName);
+			if (Files.exists(singleFilePath)) {
+				upgradedBase = manifest.nextBase("aof");
+				manifest.setBase(upgradedBase);
+			} else {
+				manifest.setBase(createBase());
+			}
+		}
+		if (manifest.getLastIncr() == null) {
+			openIncr(manifest.addIncr(), true);
+			manifest.persist(dir, manifestPath);
+		} else {
+			openIncr(manifest.getLastIncr(), false);
+		}
+		if (upgradedBase != null) {
+			// after the manifest, a crash before the move is finished by load()
+			Files.move(singleFilePath, dir.resolve(upgradedBase.fileName()), StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("Moving the AOF file " + singleFilePath.getFileName() + " into " + dir.getFileName()
+					+ " as its base file " + upgradedBase.fileName());
+		}
+
+		size = channel.size();
+		syncedSize = size;
+		previousSize = sizeOfPreviousFiles();
+		baseSize = getCurrentSize();
+		lastFsyncMillis = System.currentTimeMillis();
+
+		Thread fsyncThread = new Thread(this::runBackgroundJobs, "aof-fsync");
+		fsyncThread.setDaemon(true);
+		fsyncThread.start();
+	}
+
+	// the base and the incr files before the one written to
+	private long sizeOfPreviousFiles() throws IOException {
+		long total = 0;
+		for (AOFManifest.Part part : manifest.getParts()) {
+			if (part != manifest.getLastIncr()) {
+				total += Files.size(dir.resolve(part.fileName()));
+			}
+		}
+		return total;
+	}
+
+	// the keyspace as it is now, written on this thread
+	private AOFManifest.Part createBase() throws IOException {
+		AOFManifest.Part base = manifest.nextBase("rdb");
+		Path temp = dir.resolve("temp-" + ProcessHandle.current().pid() + ".aof");
+		try {
+			Snapshot snapshot = databases.snapshot(ServerClock.millis(), true);
+			long keys;
+			try {
+				keys = RDBWriter.write(snapshot, temp, true);
+			} catch (IOException | InterruptedException e) {
+				snapshot.abort();
+				snapshot.step(-1, 0);
+				throw e instanceof IOException io ? io : new InterruptedIOException(e.getMessage());
+			}
+			Files.move(temp, dir.resolve(base.fileName()), StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("Creating AOF base file " + base.fileName() + " on server start (" + keys + " keys)");
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return base;
+	}
+
+	// a new incr file replaces whatever a crash left under its name before the manifest named it
+	private void openIncr(AOFManifest.Part incr, boolean fresh) throws IOException {
+		Path file = dir.resolve(incr.fileName());
+		if (fresh) {
+			Files.deleteIfExists(file);
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	// a write command that ran against database db, it reaches the file with the next flush()
+	public void feed(int db, CommandParts commandParts) {
+		if (db != selectedDb) {
+			selectedDb = db;
+			append(CommandParts.of("SELECT", Integer.toString(db)));
+		}
+		append(commandParts);
+	}
+
+	// a RESP array of bulk strings
+	private void append(CommandParts commandParts) {
+		int needed = 16;
+		for (int i = 0; i < commandParts.size(); i++) {
+			needed += commandParts.length(i) + 16;
+		}
+		if (buffer.length - length < needed) {
+			byte[] grown = new byte[Math.max(length + needed, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+		}
+
+		appendHeader('*', commandParts.size());
+		for (int i = 0; i < commandParts.size(); i++) {
+			byte[] part = commandParts.getBytes(i);
+			appendHeader('$', part.length);
+			System.arraycopy(part, 0, buffer, length, part.length);
+			length += part.length;
+			buffer[length++] = '\r';
+			buffer[length++] = '\n';
+		}
+	}
+
+	// "<prefix><value>\r\n", the common ones are copied from RESPEncoder's shared headers
+	private void appendHeader(char prefix, int value) {
+		byte[] shared = prefix == '*' ? RESPEncoder.sharedArrayHeader(value) : RESPEncoder.sharedBulkHeader(value);
+		if (shared != null) {
+			System.arraycopy(shared, 0, buffer, length, shared.length);
+			length += shared.length;
+			return;
+		}
+
+		buffer[length++] = (byte) prefix;
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		for (int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+		buffer[length++] = '\r';
+		buffer[length++] = '\n';
+	}
+
+	// writes what the commands since the last call fed, called before their replies are sent. with always it is
+	// on disk when this returns and a failed write or fsync is an IOException (redis exits there too), otherwise a
+	// failed write keeps the commands buffered for the next call
+	public void flush() throws IOException {
+		long now = System.currentTimeMillis();
+		if (length > 0) {
+			if (policy == FsyncPolicy.EVERYSEC && fsyncInProgress) {
+				// a write may block while the disk is busy with the fsync, so it waits for it a while
+				if (postponedSinceMillis == 0) {
+					postponedSinceMillis = now;
+					return;
+				}
+				if (now - postponedSinceMillis < MAX_POSTPONE_MILLIS) {
+					return;
+				}
+				delayedFsyncs++;
+				System.out.println("Asynchronous AOF fsync is taking too long (disk is busy?). Writing the AOF buffer without waiting for fsync to complete, this may slow down the server.");
+			}
+			postponedSinceMillis = 0;
+			if (!write()) {
+				return;
+			}
+		}
+
+		switch (policy) {
+		case ALWAYS:
+			if (syncedSize < size) {
+				try {
+					channel.force(false);
+				} catch (IOException e) {
+					throw new IOException("Can't persist AOF for fsync error when the AOF fsync policy is 'always': " + e.getMessage(), e);
+				}
+				syncedSize = size;
+				lastFsyncMillis = now;
+			}
+			break;
+		case EVERYSEC:
+			if (syncedSize < size && !fsyncInProgress && now - lastFsyncMillis >= FSYNC_INTERVAL_MILLIS) {
+				fsyncInProgress = true;
+				FileChannel file = channel;
+				backgroundJobs.add(() -> fsync(file));
+				syncedSize = size;
+				lastFsyncMillis = now;
+			}
+			break;
+		default:
+			break; // the kernel writes it out when it wants to
+		}
+	}
+
+	private boolean write() throws IOException {
+		try {
+			ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+			while (source.hasRemaining()) {
+				channel.write(source);
+			}
+		} catch (IOException e) {
+			if (policy == FsyncPolicy.ALWAYS) {
+				throw new IOException("Can't recover from AOF write error when the AOF fsync policy is 'always': " + e.getMessage(), e);
+			}
+			// whatever made it into the file is cut off again, the whole buffer goes out with the next try
+			try {
+				channel.truncate(size);
+			} catch (IOException ignored) {
+				// the next write fails the same way, or works and the file gets the commands after the partial ones
+			}
+			if (writeError == null) {
+				System.out.println("Error writing to the AOF file: " + e.getMessage());
+			}
+			writeError = e.getMessage() == null ? e.toString() : e.getMessage();
+			return false;
+		}
+
+		if (writeError != null) {
+			System.out.println("AOF write error looks solved, the server can write again.");
+			writeError = null;
+		}
+		size += length;
+		length = 0;
+		if (buffer.length > MAX_KEPT_BUFFER_SIZE) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+		return true;
+	}
+
+	// BGREWRITEAOF, and the cron once isRewriteDue(). the shards have to be paused: the commands so far go to the
+	// files the new base replaces, the ones after it to the incr file started here
+	public int rewrite() throws IOException {
+		if (rewriteSnapshot != null) {
+			return REWRITE_IN_PROGRESS;
+		}
+		if (rdbSaver.isBackgroundSaveInProgress()) {
+			rewriteScheduled = true;
+			return REWRITE_SCHEDULED;
+		}
+
+		rewriteScheduled = false;
+		lastRewriteAttemptMillis = System.currentTimeMillis();
+		if (length > 0 && !write()) {
+			lastRewriteOk = false;
+			throw new IOException("Error writing to the AOF file: " + writeError);
+		}
+
+		AOFManifest.Part incr = manifest.addIncr();
+		FileChannel previous = channel;
+		try {
+			openIncr(incr, true);
+			manifest.persist(dir, manifestPath);
+		} catch (IOException e) {
+			manifest.getIncrs().remove(incr);
+			lastRewriteOk = false;
+			if (channel != previous) {
+				channel.close();
+				channel = previous;
+			}
+			throw e;
+		}
+		// the old file is synced (unless appendfsync no) and closed behind the fsync that may be running on it
+		backgroundJobs.add(() -> close(previous, policy != FsyncPolicy.NO));
+		previousSize += size;
+		size = 0;
+		syncedSize = 0;
+		selectedDb = -1;
+
+		rewriteFirstIncr = incr.seq();
+		rewriteStartMillis = lastRewriteAttemptMillis;
+		rewriteWritten = false;
+		rewriteError = null;
+		Path temp = dir.resolve("temp-rewriteaof-bg-" + ProcessHandle.current().pid() + ".aof");
+		rewriteTemp = temp;
+		Snapshot started = databases.snapshot(ServerClock.millis(), false);
+		rewriteSnapshot = started;
+
+		Thread writer = new Thread(() -> {
+			try {
+				long keys = RDBWriter.write(started, temp, true);
+				System.out.println("Successfully created the temporary AOF base file " + temp.getFileName() + " (" + keys + " keys)");
+			} catch (IOException | InterruptedException | RuntimeException | OutOfMemoryError e) {
+				rewriteError = e.getMessage() == null ? e.toString() : e.getMessage();
+				started.abort();
+			}
+			rewriteWritten = true;
+		}, "aof-rewrite");
+		writer.setDaemon(true);
+		writer.start();
+
+		System.out.println("Background append only file rewriting started");
+		rewriteStarted.run();
+		return REWRITE_STARTED;
+	}
+
+	// the snapshot the server has to walk, null if no rewrite runs
+	public Snapshot getRewriteSnapshot() {
+		return rewriteSnapshot;
+	}
+
+	// called by the server after walking: true once the rewrite is over (or none runs). the new base replaces
+	// the old one and the incr files before the one the rewrite started, in the manifest first, then on disk
+	public boolean finishRewrite() {
+		if (rewriteSnapshot == null) {
+			return true;
+		}
+		if (!rewriteWritten || !rewriteSnapshot.isReleased()) {
+			return false;
+		}
+
+		rewriteSnapshot = null;
+		lastRewriteSeconds = (System.currentTimeMillis() - rewriteStartMillis) / 1000;
+		String error = rewriteError;
+		if (error == null) {
+			try {
+				AOFManifest.Part base = manifest.nextBase("rdb");
+				Files.move(rewriteTemp, dir.resolve(base.fileName()), StandardCopyOption.ATOMIC_MOVE);
+				List<AOFManifest.Part> obsolete = manifest.replaceBase(base, rewriteFirstIncr);
+				manifest.persist(dir, manifestPath);
+				for (AOFManifest.Part part : obsolete) {
+					Path file = dir.resolve(part.fileName());
+					backgroundJobs.add(() -> delete(file));
+				}
+
+				previousSize = sizeOfPreviousFiles();
+				baseSize = getCurrentSize();
+			} catch (IOException e) {
+				error = e.getMessage() == null ? e.toString() : e.getMessage();
+			}
+		}
+
+		if (error == null) {
+			lastRewriteOk = true;
+			System.out.println("Background AOF rewrite terminated with success");
+		} else {
+			lastRewriteOk = false;
+			System.out.println("Background AOF rewrite error: " + error);
+			try {
+				Files.deleteIfExists(rewriteTemp);
+			} catch (IOException ignored) {
+				// a leftover temp file, the next rewrite writes over it
+			}
+		}
+		return true;
+	}
+
+	// from the cron: a BGREWRITEAOF waits for a BGSAVE, or the AOF grew auto-aof-rewrite-percentage percent over
+	// its size after the last rewrite and is at least auto-aof-rewrite-min-size. after a failure the next attempt
+	// waits REWRITE_RETRY_DELAY_MILLIS
+	public boolean isRewriteDue() {
+		if (rewriteSnapshot != null || rdbSaver.isBackgroundSaveInProgress()) {
+			return false;
+		}
+		if (rewriteScheduled) {
+			return true;
+		}
+
+		long current = getCurrentSize();
+		if (rewritePercentage <= 0 || current < rewriteMinSize
+				|| !lastRewriteOk && System.currentTimeMillis() - lastRewriteAttemptMillis < REWRITE_RETRY_DELAY_MILLIS) {
+			return false;
+		}
+		long base = Math.max(1, baseSize);
+		long growth = (current - base) * 100 / base;
+		if (growth < rewritePercentage) {
+			return false;
+		}
+		System.out.println("Starting automatic rewriting of AOF on " + growth + "% growth");
+		return true;
+	}
+
+	// aof-fsync thread
+	private void runBackgroundJobs() {
+		try {
+			while (true) {
+				backgroundJobs.take().run();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void fsync(FileChannel file) {
+		try {
+			file.force(false);
+			fsyncError = null;
+		} catch (IOException e) {
+			fsyncError = e.getMessage() == null ? e.toString() : e.getMessage();
+			System.out.println("Error syncing the AOF file: " + fsyncError);
+		}
+		fsyncInProgress = false;
+	}
+
+	private void close(FileChannel file, boolean sync) {
+		try {
+			if (sync) {
+				file.force(false);
+			}
+			file.close();
+		} catch (IOException e) {
+			System.out.println("Error closing the AOF file: " + e.getMessage());
+		}
+	}
+
+	private void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			System.out.println("Error removing the old AOF file " + file.getFileName() + ": " + e.getMessage());
+		}
+	}
+
+	// the last write or background fsync failed, write commands are refused until one works again
+	public String getWriteError() {
+		return writeError != null ? writeError : fsyncError;
+	}
+
+	public long getCurrentSize() {
+		return previousSize + size;
+	}
+
+	public long getBaseSize() {
+		return baseSize;
+	}
+
+	public int getBufferLength() {
+		return length;
+	}
+
+	public boolean isFsyncPending() {
+		return fsyncInProgress;
+	}
+
+	public long getDelayedFsyncs() {
+		return delayedFsyncs;
+	}
+
+	public boolean isRewriteInProgress() {
+		return rewriteSnapshot != null;
+	}
+
+	public boolean isRewriteScheduled() {
+		return rewriteScheduled;
+	}
+
+	public boolean isLastRewriteOk() {
+		return lastRewriteOk;
+	}
+
+	public long getLastRewriteSeconds() {
+		return lastRewriteSeconds;
+	}
+
+	public long getCurrentRewriteSeconds() {
+		return rewriteSnapshot == null ? -1 : (System.currentTimeMillis() - rewriteStartMillis) / 1000;
+	}
+}
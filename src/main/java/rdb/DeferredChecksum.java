@@ -0,0 +1,31 @@
+package rdb;
+
+import java.io.IOException;
+
+// the crc64 trailer of a file rdb-lazy-load indexed without reading it all (see RDBFileParser.parseFile()).
+// the server checks it on a background thread once it serves the keys, from the same mapping the lazy values
+// are read from. a mismatch can't undo the load anymore: the keys stay, verify() fails and the server reports it
+public final class DeferredChecksum {
+	private final String filePath;
+	private final MappedRDBFile mapped;
+	private final long length; // bytes before the trailer
+	private final long stored;
+
+	DeferredChecksum(String filePath, MappedRDBFile mapped, long length, long stored) {
+		this.filePath = filePath;
+		this.mapped = mapped;
+		this.length = length;
+		this.stored = stored;
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public void verify() throws IOException {
+		long computed = mapped.checksum(length);
+		if (computed != stored) {
+			throw new IOException("Wrong RDB checksum: file has " + Long.toHexString(stored) + ", computed " + Long.toHexString(computed));
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package rdb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// walks the elements of a listpack, the serialized form of stream nodes (and of small lists, hashes, sets
+// and zsets). <total bytes u32><element count u16> then the elements, each an encoding byte, its data and a
+// back length, up to a 0xFF terminator. integers come back as their decimal digits like RDB strings
+final class Listpack {
+	private static final int HEADER_SIZE = 6;
+	private static final int END = 0xFF;
+
+	private final byte[] bytes;
+	private int position = HEADER_SIZE;
+
+	Listpack(byte[] bytes) throws IOException {
+		if (bytes.length < HEADER_SIZE + 1 || totalBytes(bytes) != bytes.length || (bytes[bytes.length - 1] & 0xFF) != END) {
+			throw new IOException("Invalid listpack");
+		}
+		this.bytes = bytes;
+	}
+
+	private static long totalBytes(byte[] bytes) {
+		return (bytes[0] & 0xFFL) | (bytes[1] & 0xFFL) << 8 | (bytes[2] & 0xFFL) << 16 | (bytes[3] & 0xFFL) << 24;
+	}
+
+	boolean hasNext() {
+		return (bytes[position] & 0xFF) != END;
+	}
+
+	byte[] next() throws IOException {
+		int encoding = byteAt(position);
+		if ((encoding & 0x80) == 0) { // 0xxxxxxx 7 bit unsigned integer
+			return digits(encoding, 1);
+		}
+		if ((encoding & 0xC0) == 0x80) { // 10xxxxxx string of up to 63 bytes
+			return string(1, encoding & 0x3F);
+		}
+		if ((encoding & 0xE0) == 0xC0) { // 110xxxxx 13 bit signed integer
+			int value = (encoding & 0x1F) << 8 | byteAt(position + 1);
+			return digits(value << 19 >> 19, 2);
+		}
+		if ((encoding & 0xF0) == 0xE0) { // 1110xxxx string of up to 4095 bytes
+			return string(2, (encoding & 0x0F) << 8 | byteAt(position + 1));
+		}
+
+		switch (encoding) {
+		case 0xF0: // 32 bit string length
+			long length = byteAt(position + 1) | byteAt(position + 2) << 8 | byteAt(position + 3) << 16 | (long) byteAt(position + 4) << 24;
+			if (length > bytes.length) {
+				throw new IOException("Invalid listpack");
+			}
+			return string(5, (int) length);
+		case 0xF1: // 16 bit signed integer
+			return digits(signed(2), 3);
+		case 0xF2: // 24 bit
+			return digits(signed(3), 4);
+		case 0xF3: // 32 bit
+			return digits(signed(4), 5);
+		case 0xF4: // 64 bit
+			return digits(signed(8), 9);
+		default:
+			throw new IOException("Invalid listpack");
+		}
+	}
+
+	// an element holding an integer, like the counters and id deltas of stream nodes
+	long nextLong() throws IOException {
+		byte[] element = next();
+		try {
+			return Long.parseLong(new String(element, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid listpack, expected an integer");
+		}
+	}
+
+	private int byteAt(int index) throws IOException {
+		if (index >= bytes.length) {
+			throw new IOException("Invalid listpack");
+		}
+		return bytes[index] & 0xFF;
+	}
+
+	// little endian two's complement integer of size bytes after the encoding byte
+	private long signed(int size) throws IOException {
+		long value = 0;
+		for (int i = size; i > 0; i--) {
+			value = value << 8 | byteAt(position + i);
+		}
+		int shift = 64 - size * 8;
+		return value << shift >> shift;
+	}
+
+	private byte[] string(int headerSize, int length) throws IOException {
+		int start = position + headerSize;
+		if (start + length > bytes.length - 1) {
+			throw new IOException("Invalid listpack");
+		}
+		byte[] element = new byte[length];
+		System.arraycopy(bytes, start, element, 0, length);
+		advance(headerSize + length);
+		return element;
+	}
+
+	private byte[] digits(long value, int size) throws IOException {
+		advance(size);
+		return Long.toString(value).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	// past the element and its back length, 7 bits of the element size per byte
+	private void advance(int elementSize) throws IOException {
+		int backLength = elementSize <= 127 ? 1 : elementSize < 16383 ? 2 : elementSize < 2097151 ? 3 : elementSize < 268435455 ? 4 : 5;
+		position += elementSize + backLength;
+		if (position >= bytes.length) {
+			throw new IOException("Invalid listpack");
+		}
+	}
+
+	// builds a listpack element by element: integers in the smallest encoding, strings with a 6, 12 or 32 bit length
+	static final class Writer {
+		private byte[] bytes = new byte[256];
+		private int length = HEADER_SIZE;
+		private int count;
+
+		void add(long value) {
+			int start = length;
+			if (value >= 0 && value <= 127) {
+				put((int) value);
+			} else if (value >= -4096 && value <= 4095) {
+				put(0xC0 | (int) (value >> 8) & 0x1F);
+				put((int) value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				put(0xF1);
+				putLittleEndian(value, 2);
+			} else if (value >= -(1 << 23) && value < 1 << 23) {
+				put(0xF2);
+				putLittleEndian(value, 3);
+			} else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+				put(0xF3);
+				putLittleEndian(value, 4);
+			} else {
+				put(0xF4);
+				putLittleEndian(value, 8);
+			}
+			endElement(start);
+		}
+
+		void add(byte[] value) {
+			int start = length;
+			if (value.length < 64) {
+				put(0x80 | value.length);
+			} else if (value.length < 4096) {
+				put(0xE0 | value.length >> 8);
+				put(value.length);
+			} else {
+				put(0xF0);
+				putLittleEndian(value.length, 4);
+			}
+			ensure(value.length);
+			System.arraycopy(value, 0, bytes, length, value.length);
+			length += value.length;
+			endElement(start);
+		}
+
+		// the size of the element, written so it can be read backwards: the most significant 7 bits first,
+		// all but that byte flagged with 128
+		private void endElement(int start) {
+			int size = length - start;
+			int backLength = size <= 127 ? 1 : size < 16383 ? 2 : size < 2097151 ? 3 : size < 268435455 ? 4 : 5;
+			for (int i = backLength - 1; i >= 0; i--) {
+				put(size >>> (7 * i) & 0x7F | (i == backLength - 1 ? 0 : 128));
+			}
+			count++;
+		}
+
+		// the header filled in and the terminator appended
+		byte[] toByteArray() {
+			put(END);
+			bytes[0] = (byte) length;
+			bytes[1] = (byte) (length >> 8);
+			bytes[2] = (byte) (length >> 16);
+			bytes[3] = (byte) (length >> 24);
+			int elements = Math.min(count, 65535); // 65535: count them to know
+			bytes[4] = (byte) elements;
+			bytes[5] = (byte) (elements >> 8);
+			return Arrays.copyOf(bytes, length);
+		}
+
+		private void put(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		private void putLittleEndian(long value, int size) {
+			for (int i = 0; i < size; i++) {
+				put((int) (value >> 8 * i));
+			}
+		}
+
+		private void ensure(int more) {
+			if (bytes.length - length < more) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+			}
+		}
+	}
+}
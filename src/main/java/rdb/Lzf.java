@@ -0,0 +1,155 @@
+package rdb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// LZF, the compression of the strings of an RDB file (redis compresses strings over 20 bytes when
+// rdbcompression is on). a control byte below 32 starts a run of ctrl + 1 literal bytes, anything else is a
+// back reference: length in the top 3 bits (7 means an extra length byte follows), offset in the rest and the next byte
+final class Lzf {
+	private static final int HASH_BITS = 14;
+	private static final int MAX_LITERAL = 32;
+	private static final int MAX_OFFSET = 1 << 13;
+	private static final int MAX_REFERENCE = 264; // 7 + 255 + 2
+
+	private Lzf() {
+	}
+
+	// compresses strings one after the other with one hash table: the 3 bytes at every position are hashed to
+	// the last position they were seen at, like liblzf. positions are stored plus a base that moves past every
+	// string, so the table never has to be cleared (older strings' positions fall below the base)
+	static final class Compressor {
+		private final int[] table = new int[1 << HASH_BITS];
+		private int base;
+
+		// compresses in[0..length) into out, returns the compressed size or 0 if it takes more than limit bytes
+		// (then the string is stored as it is)
+		int compress(byte[] in, int length, byte[] out, int limit) {
+			if (base > Integer.MAX_VALUE - length - 1) {
+				Arrays.fill(table, 0);
+				base = 0;
+			}
+			base += 1;
+			int result = compressWith(in, length, out, Math.min(limit, out.length), table, base);
+			base += length;
+			return result;
+		}
+	}
+
+	private static int compressWith(byte[] in, int length, byte[] out, int limit, int[] table, int base) {
+		int ip = 0;
+		int op = 1; // out[0] is the control byte of the first literal run
+		int literals = 0;
+
+		while (ip < length - 2) {
+			int triple = (in[ip] & 0xFF) << 16 | (in[ip + 1] & 0xFF) << 8 | (in[ip + 2] & 0xFF);
+			int slot = (triple * 0x9E3779B1) >>> (32 - HASH_BITS);
+			int ref = table[slot] - base; // negative if not seen in this string
+			table[slot] = base + ip;
+
+			int offset = ip - ref - 1;
+			if (ref >= 0 && offset < MAX_OFFSET && in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+				int max = Math.min(MAX_REFERENCE, length - ip);
+				int run = 3;
+				while (run < max && in[ref + run] == in[ip + run]) {
+					run++;
+				}
+
+				// close the literal run (or take back its unused control byte), then the reference and a new control byte
+				if (op + 4 > limit) {
+					return 0;
+				}
+				if (literals > 0) {
+					out[op - literals - 1] = (byte) (literals - 1);
+				} else {
+					op--;
+				}
+				int encoded = run - 2;
+				if (encoded < 7) {
+					out[op++] = (byte) ((offset >> 8) + (encoded << 5));
+				} else {
+					out[op++] = (byte) ((offset >> 8) + (7 << 5));
+					out[op++] = (byte) (encoded - 7);
+				}
+				out[op++] = (byte) offset;
+				op++;
+				literals = 0;
+				ip += run;
+				continue;
+			}
+
+			if (op >= limit) {
+				return 0;
+			}
+			out[op++] = in[ip++];
+			if (++literals == MAX_LITERAL) {
+				out[op - literals - 1] = (byte) (literals - 1);
+				literals = 0;
+				op++;
+			}
+		}
+
+		while (ip < length) {
+			if (op >= limit) {
+				return 0;
+			}
+			out[op++] = in[ip++];
+			if (++literals == MAX_LITERAL) {
+				out[op - literals - 1] = (byte) (literals - 1);
+				literals = 0;
+				op++;
+			}
+		}
+
+		if (literals > 0) {
+			out[op - literals - 1] = (byte) (literals - 1);
+		} else {
+			op--;
+		}
+		return op;
+	}
+
+	static byte[] decompress(byte[] in, int length) throws IOException {
+		byte[] out = new byte[length];
+		int ip = 0;
+		int op = 0;
+		while (ip < in.length) {
+			int ctrl = in[ip++] & 0xFF;
+			if (ctrl < 32) {
+				int run = ctrl + 1;
+				if (op + run > length || ip + run > in.length) {
+					throw new IOException("Invalid LZF compressed string");
+				}
+				System.arraycopy(in, ip, out, op, run);
+				ip += run;
+				op += run;
+				continue;
+			}
+
+			int run = ctrl >> 5;
+			if (ip >= in.length) {
+				throw new IOException("Invalid LZF compressed string");
+			}
+			if (run == 7) {
+				run += in[ip++] & 0xFF;
+				if (ip >= in.length) {
+					throw new IOException("Invalid LZF compressed string");
+				}
+			}
+			int ref = op - ((ctrl & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+			run += 2;
+			if (ref < 0 || op + run > length) {
+				throw new IOException("Invalid LZF compressed string");
+			}
+			// byte by byte, a reference may overlap the bytes it produces
+			for (int i = 0; i < run; i++) {
+				out[op++] = out[ref++];
+			}
+		}
+
+		if (op != length) {
+			throw new IOException("Invalid LZF compressed string");
+		}
+		return out;
+	}
+}
@@ -0,0 +1,101 @@
+package rdb;
+
+import store.LazyValue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// an RDB file mapped read-only for rdb-lazy-load, in chunks as one mapping can't exceed 2GB. the string values
+// of the keys stay encoded in it (Value) until something reads them. a mapping outlives the file's name: a save
+// renames a new file over it and an AOF rewrite deletes its base, neither touches the mapped pages. it is
+// unmapped once no Value references it anymore. writing into the file in place would change the values
+final class MappedRDBFile {
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	private final MappedByteBuffer[] chunks;
+
+	private MappedRDBFile(MappedByteBuffer[] chunks) {
+		this.chunks = chunks;
+	}
+
+	static MappedRDBFile map(FileChannel channel) throws IOException {
+		long size = channel.size();
+		MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+		for (int i = 0; i < chunks.length; i++) {
+			long from = i * CHUNK_SIZE;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(CHUNK_SIZE, size - from));
+		}
+		return new MappedRDBFile(chunks);
+	}
+
+	// length bytes at offset, across chunks if needed. a page the kernel dropped faults in from disk
+	byte[] read(long offset, int length) {
+		byte[] bytes = new byte[length];
+		int done = 0;
+		while (done < length) {
+			long at = offset + done;
+			MappedByteBuffer chunk = chunks[(int) (at / CHUNK_SIZE)];
+			int position = (int) (at % CHUNK_SIZE);
+			int count = Math.min(length - done, chunk.capacity() - position);
+			chunk.get(position, bytes, done, count);
+			done += count;
+		}
+		return bytes;
+	}
+
+	// crc64 of the first length bytes, copied out a buffer at a time
+	long checksum(long length) {
+		byte[] buffer = new byte[(int) Math.min(length, 1024 * 1024)];
+		long crc = 0;
+		for (long done = 0; done < length; ) {
+			int count = (int) Math.min(buffer.length, length - done);
+			MappedByteBuffer chunk = chunks[(int) (done / CHUNK_SIZE)];
+			int position = (int) (done % CHUNK_SIZE);
+			count = Math.min(count, chunk.capacity() - position);
+			chunk.get(position, buffer, 0, count);
+			crc = Crc64.update(crc, buffer, 0, count);
+			done += count;
+		}
+		return crc;
+	}
+
+	// an encoded string (see RDBInput.readString()) at offset
+	byte[] readString(long offset, int encodedLength) {
+		try {
+			return new RDBInput(read(offset, encodedLength), encodedLength).readString();
+		} catch (IOException e) {
+			// the load read past the same bytes, so only a file changed since fails here
+			throw new UncheckedIOException("RDB file changed under a lazily loaded value: " + e.getMessage(), e);
+		}
+	}
+
+	Value value(long offset, int encodedLength) {
+		return new Value(this, offset, encodedLength);
+	}
+
+	// the handle an Entry keeps instead of the value
+	static final class Value implements LazyValue {
+		private final MappedRDBFile file;
+		private final long offset;
+		private final int encodedLength;
+
+		private Value(MappedRDBFile file, long offset, int encodedLength) {
+			this.file = file;
+			this.offset = offset;
+			this.encodedLength = encodedLength;
+		}
+
+		@Override
+		public byte[] decode() {
+			return file.readString(offset, encodedLength);
+		}
+
+		// header, a reference, a long and an int
+		@Override
+		public long getMemoryUsage() {
+			return 32;
+		}
+	}
+}
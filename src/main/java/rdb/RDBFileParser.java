@@ -1,205 +1,725 @@
 package rdb;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import store.Entry;
+import streams.Stream;
+import streams.StreamEntry;
 
+// streams an RDB file (versions 1 to 12) from disk, handing every key to a KeyConsumer as soon as it is read,
+// so a snapshot is never held in memory twice. strings and streams become entries. the types the store has
+// no representation for yet (lists, sets, hashes, zsets, module values) are parsed past and counted, as are
+// aux fields, module aux data, functions and the LRU / LFU hints. the crc64 trailer is verified (after the load
+// with rdb-lazy-load, see DeferredChecksum)
 public class RDBFileParser {
 
-	private static final int BUFFER_SIZE = 8192;
-	private static final String HEADER_STRING = "REDIS0011";
-	private static final byte DATABASE_SELECTOR_BYTE = (byte) 0xFE;
-	private static final byte METADATA_START_BYTE = (byte) 0xFA;
-	private static final byte HASH_TABLE_SIZE_BYTE = (byte) 0xFB;
-	private static final byte EX_TIME_SECONDS_BYTE = (byte) 0xFD;
-	private static final byte EX_TIME_MILLISECONDS_BYTE = (byte) 0xFC;
-	private static final byte FILE_END_BYTE = (byte) 0xFF;
-	private static final int STRING_VALUE_TYPE = 0;
+	private static final String MAGIC = "REDIS";
+	private static final int MAX_VERSION = 12;
+	private static final int MIN_CHECKSUM_VERSION = 5;
 
-	public static Map<String, Entry> parseFile(String filePath) throws IOException {
-		Map<String, Entry> dataStore = new HashMap<>();
-		try (FileInputStream fis = new FileInputStream(filePath)) {
-			FileChannel ch = fis.getChannel();
-			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-			ch.read(buffer);
-			buffer.flip();
+	// opcodes
+	private static final int SLOT_INFO = 0xF4;
+	private static final int FUNCTION_PRE_GA = 0xF5;
+	private static final int FUNCTION2 = 0xF6;
+	private static final int MODULE_AUX = 0xF7;
+	private static final int IDLE = 0xF8;
+	private static final int FREQ = 0xF9;
+	private static final int AUX = 0xFA;
+	private static final int RESIZE_DB = 0xFB;
+	private static final int EXPIRE_TIME_MS = 0xFC;
+	private static final int EXPIRE_TIME = 0xFD;
+	private static final int SELECT_DB = 0xFE;
+	private static final int EOF = 0xFF;
 
-			validateHeader(buffer);
-			skipMetaData(buffer);
-			parseDataBaseSection(buffer, dataStore);
-			verifyFileEnd(buffer);
+	// value types
+	private static final int TYPE_STRING = 0;
+	private static final int TYPE_LIST = 1;
+	private static final int TYPE_SET = 2;
+	private static final int TYPE_ZSET = 3;
+	private static final int TYPE_HASH = 4;
+	private static final int TYPE_ZSET_2 = 5;
+	private static final int TYPE_MODULE_PRE_GA = 6;
+	private static final int TYPE_MODULE_2 = 7;
+	private static final int TYPE_HASH_ZIPMAP = 9;
+	private static final int TYPE_LIST_ZIPLIST = 10;
+	private static final int TYPE_SET_INTSET = 11;
+	private static final int TYPE_ZSET_ZIPLIST = 12;
+	private static final int TYPE_HASH_ZIPLIST = 13;
+	private static final int TYPE_LIST_QUICKLIST = 14;
+	private static final int TYPE_STREAM_LISTPACKS = 15;
+	private static final int TYPE_HASH_LISTPACK = 16;
+	private static final int TYPE_ZSET_LISTPACK = 17;
+	private static final int TYPE_LIST_QUICKLIST_2 = 18;
+	private static final int TYPE_STREAM_LISTPACKS_2 = 19;
+	private static final int TYPE_SET_LISTPACK = 20;
+	private static final int TYPE_STREAM_LISTPACKS_3 = 21;
+	private static final int TYPE_HASH_METADATA_PRE_GA = 22;
+	private static final int TYPE_HASH_LISTPACK_EX_PRE_GA = 23;
+	private static final int TYPE_HASH_METADATA = 24;
+	private static final int TYPE_HASH_LISTPACK_EX = 25;
 
-			return dataStore;
+	// module values are a series of typed fields up to MODULE_OPCODE_EOF
+	private static final int MODULE_OPCODE_EOF = 0;
+	private static final int MODULE_OPCODE_SINT = 1;
+	private static final int MODULE_OPCODE_UINT = 2;
+	private static final int MODULE_OPCODE_FLOAT = 3;
+	private static final int MODULE_OPCODE_DOUBLE = 4;
+	private static final int MODULE_OPCODE_STRING = 5;
+
+	// stream node entry flags
+	private static final int STREAM_ITEM_FLAG_DELETED = 1;
+	private static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+
+	private static final int QUICKLIST_NODE_PLAIN = 1;
+	private static final int QUICKLIST_NODE_PACKED = 2;
+
+	// rdb-lazy-load: a shorter string is decoded right away, it takes less memory than the handle of a lazy one
+	private static final int MIN_LAZY_LENGTH = 64;
+
+	// the scanner cuts the file into batches of whole records about this large for the decoders
+	private static final int BATCH_SIZE = 512 * 1024;
+
+	// receives the keys in file order, db is the number of the last database selector (0 before any)
+	public interface KeyConsumer {
+		void accept(int db, Entry entry) throws IOException;
+
+		// RESIZEDB: about this many keys of db follow
+		default void reserve(int db, long keys) {
 		}
-	}
 
-	private static void validateHeader(ByteBuffer buffer) throws IOException {
-		byte[] headerBytes = new byte[HEADER_STRING.length()];
-		buffer.get(headerBytes);
-		String header = new String(headerBytes);
-		if (!HEADER_STRING.equals(header)) {
-			throw new IOException("Invalid RDB file header: expected " + HEADER_STRING + ", got " + header);
+		// rdb-lazy-load: the checksum of the file, left for after the load. checked right away unless the
+		// consumer has a better time for it
+		default void checksumDeferred(DeferredChecksum checksum) throws IOException {
+			checksum.verify();
 		}
 	}
 
-	private static void skipMetaData(ByteBuffer buffer) throws IOException {
-		while (buffer.hasRemaining() && buffer.get() != DATABASE_SELECTOR_BYTE) {
-			byte previousByte = buffer.get(buffer.position() - 1);
-			if (previousByte == METADATA_START_BYTE) {
-				skipEncodedString(buffer); // skip key
-				skipEncodedString(buffer); // skip value
+	private RDBInput in;
+	private final KeyConsumer consumer;
+	private final boolean dropExpired;
+	private final long loadStartMillis;
+	private int version;
+	private long loadedKeys;
+	private long expiredKeys;
+	private long lazyKeys;
+	private final Map<String, Long> skippedKeys = new TreeMap<>(); // by type name
+	private long skippedConsumerGroups;
+
+	// parallel load, only set on the scanner
+	private ExecutorService decoders;
+	private BlockingQueue<Future<Batch>> batches;
+	private int batchDb;
+
+	private MappedRDBFile mapped; // rdb-lazy-load: long string values stay in it until they are read
+
+	private RDBFileParser(RDBInput in, KeyConsumer consumer, boolean dropExpired, long loadStartMillis) {
+		this.in = in;
+		this.consumer = consumer;
+		this.dropExpired = dropExpired;
+		this.loadStartMillis = loadStartMillis;
+	}
+
+	// loadThreads above 1 decodes on that many threads, see parseParallel(). dropExpired leaves out the keys
+	// whose TTL passed before the load started (a master does, a replica waits for the DELs of its master).
+	// lazy maps the file and only indexes the long string values, their entries point into the mapping until
+	// they are read (see MappedRDBFile). the scan seeks over them without reading, so the checksum is handed to
+	// the consumer as a DeferredChecksum to check once the keys are served (nothing to check for a 0 trailer,
+	// rdbchecksum no). there is nothing for decoder threads to do and loadThreads is ignored.
+	// returns the file offset after the checksum, where the commands of an AOF with an RDB preamble start
+	public static long parseFile(String filePath, int loadThreads, boolean dropExpired, boolean lazy, KeyConsumer consumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+			RDBFileParser parser = new RDBFileParser(new RDBInput(channel), consumer, dropExpired, System.currentTimeMillis());
+			parser.readHeader();
+			if (lazy) {
+				parser.mapped = MappedRDBFile.map(channel);
+				parser.in.disableChecksum();
+				parser.readRecords(0);
+				parser.deferChecksum(filePath);
+			} else if (loadThreads > 1) {
+				parser.parseParallel(loadThreads);
 			} else {
-				throw new IOException("Unexpected byte in metadata: " + previousByte);
+				parser.readRecords(0);
+				parser.verifyChecksum();
 			}
+			parser.report();
+			return parser.in.offset();
 		}
 	}
 
-	private static void parseDataBaseSection(ByteBuffer buffer, Map<String, Entry> dataStore) throws IOException {
-		int index = readEncodedSize(buffer);
-		if (index != 0) {
-			throw new IOException("Only database 0 is supported, got " + index);
+	// opcodes and key records up to the EOF opcode, or to the end of a batch in memory. the scanner of a
+	// parallel load reads past the keys and hands the records to the decoders instead
+	private void readRecords(int db) throws IOException {
+		long expiryTimeInMillis = -1;
+		while (in.hasRemaining()) {
+			int opcode = in.readByte();
+			switch (opcode) {
+			case AUX:
+				in.skipString(); // key
+				in.skipString(); // value
+				break;
+			case SELECT_DB:
+				long index = in.readLength();
+				if (index > Integer.MAX_VALUE) {
+					throw new IOException("Invalid database number " + index);
+				}
+				db = (int) index;
+				break;
+			case RESIZE_DB:
+				long keys = in.readLength();
+				in.readLength(); // keys with a TTL
+				if (decoders == null) {
+					consumer.reserve(db, keys);
+				}
+				break;
+			case EXPIRE_TIME:
+				expiryTimeInMillis = (in.readIntLE() & 0xFFFFFFFFL) * 1000;
+				break;
+			case EXPIRE_TIME_MS:
+				expiryTimeInMillis = in.readMillisecondTime();
+				break;
+			case IDLE:
+				in.readLength(); // LRU idle seconds, the access clock starts over
+				break;
+			case FREQ:
+				in.readByte(); // LFU counter
+				break;
+			case MODULE_AUX:
+				skipModuleAux();
+				break;
+			case FUNCTION2:
+				in.skipString(); // library code, there is no scripting
+				break;
+			case FUNCTION_PRE_GA:
+				throw new IOException("Pre-release function format not supported");
+			case SLOT_INFO:
+				in.readLength(); // slot
+				in.readLength(); // keys
+				in.readLength(); // keys with a TTL
+				break;
+			case EOF:
+				return;
+			default:
+				if (decoders == null) {
+					readKeyValue(opcode, db, expiryTimeInMillis);
+				} else {
+					in.skipString();
+					skipValue(opcode);
+					endOfRecord(db);
+				}
+				expiryTimeInMillis = -1;
+			}
 		}
+	}
+
+	// one thread (the scanner) reads the file and checks the structure and the checksum, cutting it into
+	// batches of whole records. decoders turn the batches into entries (LZF, integers, stream listpacks, expired
+	// keys dropped) in parallel. the calling thread inserts them in file order, the store stays single owner.
+	// the queue of pending batches bounds the memory taken by records read ahead
+	private void parseParallel(int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "rdb-decoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		BlockingQueue<Future<Batch>> queue = new ArrayBlockingQueue<>(threads * 2);
+		RDBFileParser scanner = new RDBFileParser(in, null, dropExpired, loadStartMillis);
+		scanner.version = version;
+		scanner.decoders = pool;
+		scanner.batches = queue;
+		Thread scannerThread = new Thread(scanner::scan, "rdb-scanner");
+		scannerThread.setDaemon(true);
+		scannerThread.start();
 
-		byte marker = buffer.get();
-		if (marker != HASH_TABLE_SIZE_BYTE) {
-			throw new IOException("Expected hash table size marker (0xFB), got " + marker);
+		try {
+			while (true) {
+				Batch batch = queue.take().get();
+				if (batch == null) {
+					return;
+				}
+				batch.insertInto(consumer);
+				merge(batch.decoder);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("RDB load interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException io) {
+				throw io;
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			scannerThread.interrupt();
+			pool.shutdownNow();
 		}
+	}
 
-		int dataSize = readEncodedSize(buffer);
-		readEncodedSize(buffer); // skip expiry size
+	// scanner thread: batches in file order, then null for the end or the error that stopped the scan
+	private void scan() {
+		Future<Batch> end;
+		try {
+			in.startCapture();
+			readRecords(0);
+			submitBatch(0); // the last records and the EOF opcode
+			verifyChecksum();
+			end = CompletableFuture.completedFuture(null);
+		} catch (InterruptedException | InterruptedIOException e) {
+			return; // the load was abandoned
+		} catch (Exception e) {
+			end = CompletableFuture.failedFuture(e);
+		}
+		try {
+			batches.put(end);
+		} catch (InterruptedException e) {
+			// the load was abandoned
+		}
+	}
 
-		for (int i = 0; i < dataSize; i++) {
-			parseData(buffer, dataStore);
+	private void endOfRecord(int db) throws IOException {
+		if (in.capturedLength() >= BATCH_SIZE) {
+			try {
+				submitBatch(db);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			in.startCapture();
 		}
 	}
 
-	private static void parseData(ByteBuffer b, Map<String, Entry> ds) throws IOException {
-		long expiryTimeInMillis = -1;
-		byte nextByte = b.get();
-		if (nextByte == EX_TIME_SECONDS_BYTE) {
-            byte[] bytes = new byte[4];
-            b.get(bytes);
-            long seconds = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL; // Read expiry seconds
-            expiryTimeInMillis = seconds * 1000; 
-		} else if (nextByte == EX_TIME_MILLISECONDS_BYTE) {
-            byte[] bytes = new byte[8];
-            b.get(bytes);
-            expiryTimeInMillis = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong(); // Read 8 byte milliseconds
-		} else {
-			b.position(b.position() - 1); // No expiry
+	// the records captured so far go to a decoder, the next batch starts in database nextDb
+	private void submitBatch(int nextDb) throws InterruptedException {
+		byte[] records = in.takeCapture();
+		int db = batchDb;
+		batches.put(decoders.submit(() -> decode(records, db)));
+		batchDb = nextDb;
+	}
+
+	// decoder thread
+	private Batch decode(byte[] records, int db) throws IOException {
+		Batch batch = new Batch();
+		batch.decoder = new RDBFileParser(new RDBInput(records, records.length), batch, dropExpired, loadStartMillis);
+		batch.decoder.readRecords(db);
+		return batch;
+	}
+
+	// the keys of a batch and the RESIZEDB hints between them, replayed on the loading thread
+	private static final class Batch implements KeyConsumer {
+		private RDBFileParser decoder;
+		private int size;
+		private int[] dbs = new int[256];
+		private Entry[] entries = new Entry[256];
+		private long[] reservations = new long[256]; // for a null entry
+
+		@Override
+		public void accept(int db, Entry entry) {
+			add(db, entry, 0);
+		}
+
+		@Override
+		public void reserve(int db, long keys) {
+			add(db, null, keys);
+		}
+
+		private void add(int db, Entry entry, long keys) {
+			if (size == entries.length) {
+				dbs = Arrays.copyOf(dbs, size * 2);
+				entries = Arrays.copyOf(entries, size * 2);
+				reservations = Arrays.copyOf(reservations, size * 2);
+			}
+			dbs[size] = db;
+			entries[size] = entry;
+			reservations[size] = keys;
+			size++;
+		}
+
+		void insertInto(KeyConsumer consumer) throws IOException {
+			for (int i = 0; i < size; i++) {
+				if (entries[i] == null) {
+					consumer.reserve(dbs[i], reservations[i]);
+				} else {
+					consumer.accept(dbs[i], entries[i]);
+				}
+			}
 		}
+	}
 
-		int valueType = b.get();
-		if (valueType != STRING_VALUE_TYPE) {
-			throw new IOException("Only string values supported, got value type " + valueType);
+	private void merge(RDBFileParser decoder) {
+		loadedKeys += decoder.loadedKeys;
+		expiredKeys += decoder.expiredKeys;
+		skippedConsumerGroups += decoder.skippedConsumerGroups;
+		decoder.skippedKeys.forEach((type, count) -> skippedKeys.merge(type, count, Long::sum));
+	}
+
+	// REDIS followed by a four digit version
+	private void readHeader() throws IOException {
+		byte[] header = new byte[9];
+		in.readFully(header, 0, header.length);
+		String text = new String(header, StandardCharsets.ISO_8859_1);
+		if (!text.startsWith(MAGIC)) {
+			throw new IOException("Invalid RDB file header: " + text);
+		}
+		try {
+			version = Integer.parseInt(text.substring(MAGIC.length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid RDB file header: " + text);
+		}
+		if (version < 1 || version > MAX_VERSION) {
+			throw new IOException("Can't handle RDB format version " + version);
 		}
+	}
 
-		String key = readEncodedString(b);
-		String value = readEncodedString(b);
-		Entry entry = (expiryTimeInMillis == -1) ? new Entry(value) : new Entry(value, expiryTimeInMillis);
-		ds.put(key, entry);
+	// the crc64 of everything before it, little endian. 0 when the file was written with rdbchecksum no
+	private void verifyChecksum() throws IOException {
+		if (version < MIN_CHECKSUM_VERSION) {
+			return;
+		}
+		long expected = in.checksum();
+		long stored = in.readLongLE();
+		if (stored != 0 && stored != expected) {
+			throw new IOException("Wrong RDB checksum: file has " + Long.toHexString(stored) + ", computed " + Long.toHexString(expected));
+		}
 	}
 
-	private static void verifyFileEnd(ByteBuffer b) throws IOException {
-		byte endMarker = b.get();
-		if (endMarker != FILE_END_BYTE) {
-			throw new IOException("Expected file end marker (0xFF), got " + endMarker);
+	private void deferChecksum(String filePath) throws IOException {
+		if (version < MIN_CHECKSUM_VERSION) {
+			return;
+		}
+		long length = in.offset();
+		long stored = in.readLongLE();
+		if (stored != 0) {
+			consumer.checksumDeferred(new DeferredChecksum(filePath, mapped, length, stored));
 		}
-		b.position(b.position() + 8); // skip checksum
 	}
 
-	private static int readEncodedSize(ByteBuffer b) throws IOException {
-		byte firstByte = b.get();
-		int type = (firstByte & 0xC0) >> 6;
+	private void readKeyValue(int type, int db, long expiryTimeInMillis) throws IOException {
+		if (dropExpired && expiryTimeInMillis != -1 && expiryTimeInMillis < loadStartMillis) {
+			in.skipString();
+			skipValue(type);
+			expiredKeys++;
+			return;
+		}
 
+		byte[] key = in.readString();
 		switch (type) {
-		case 0:
-			return firstByte & 0x3F;
-		case 1:
-			byte secondByte = b.get();
-			return ((firstByte & 0x3F) << 8) | (secondByte & 0xFF);
-		case 2:
-			return b.getInt();
+		case TYPE_STRING:
+			consumer.accept(db, mapped != null ? readLazyString(key, expiryTimeInMillis) : Entry.ofString(key, in.readString(), expiryTimeInMillis));
+			loadedKeys++;
+			break;
+		case TYPE_STREAM_LISTPACKS:
+		case TYPE_STREAM_LISTPACKS_2:
+		case TYPE_STREAM_LISTPACKS_3:
+			consumer.accept(db, Entry.ofStream(key, readStream(type))); // streams have no TTL here
+			loadedKeys++;
+			break;
 		default:
-			throw new IOException("Invalid size encoding type: " + type);
+			skipValue(type);
+			skippedKeys.merge(typeName(type), 1L, Long::sum);
 		}
 	}
 
-	private static String readEncodedString(ByteBuffer b) throws IOException {
-		int originalPosition = b.position();
-		byte firstByte = b.get();
-		int encodingType = (firstByte & 0xC0) >> 6;
+	// the value is skipped and, if long enough, left in the mapping. a short one is read back from it
+	private Entry readLazyString(byte[] key, long expiryTimeInMillis) throws IOException {
+		long offset = in.offset();
+		long length = in.skipString();
+		int encodedLength = (int) (in.offset() - offset);
+		if (length >= MIN_LAZY_LENGTH) {
+			lazyKeys++;
+			return Entry.ofLazyString(key, mapped.value(offset, encodedLength), expiryTimeInMillis);
+		}
+		return Entry.ofString(key, mapped.readString(offset, encodedLength), expiryTimeInMillis);
+	}
 
-		if (encodingType == 3) {
-			return readSpecialEncodedString(b, firstByte);
-		} else {
-			b.position(originalPosition);
-			int length = readEncodedSize(b);
-			byte[] bytes = new byte[length];
-			b.get(bytes);
-			return new String(bytes);
+	// node listpacks keyed by their master id, then the stream metadata and consumer groups
+	private Stream readStream(int type) throws IOException {
+		Stream stream = new Stream();
+		long nodes = in.readLength();
+		for (long n = 0; n < nodes; n++) {
+			byte[] nodeKey = in.readString();
+			if (nodeKey.length != 16) {
+				throw new IOException("Stream node key entry is not the size of a stream ID");
+			}
+			Listpack listpack = new Listpack(in.readString());
+			readStreamNode(stream, readLongBE(nodeKey, 0), readLongBE(nodeKey, 8), listpack);
 		}
+		skippedConsumerGroups += readStreamMetadata(type);
+		return stream;
 	}
 
-	private static String readSpecialEncodedString(ByteBuffer b, byte firstByte) throws IOException {
-		int format = firstByte & 0x3F;
-		switch (format) {
-		case 0:
-			return String.valueOf(b.get());
-		case 1: {
-			byte[] bytes = new byte[2];
-			b.get(bytes);
-			short value = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getShort();
-			return String.valueOf(value);
+	private void skipStream(int type) throws IOException {
+		long nodes = in.readLength();
+		for (long n = 0; n < nodes; n++) {
+			in.skipString(); // node key
+			in.skipString(); // listpack
 		}
-		case 2: {
-			byte[] bytes = new byte[4];
-			b.get(bytes);
-			int value = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
-			return String.valueOf(value);
+		readStreamMetadata(type);
+	}
+
+	// returns the number of consumer groups, read past
+	private long readStreamMetadata(int type) throws IOException {
+		in.readLength(); // number of entries
+		in.readLength(); // last id ms
+		in.readLength(); // last id seq
+		if (type >= TYPE_STREAM_LISTPACKS_2) {
+			in.readLength(); // first id ms
+			in.readLength(); // first id seq
+			in.readLength(); // max deleted id ms
+			in.readLength(); // max deleted id seq
+			in.readLength(); // entries added
 		}
-		case 3:
-			throw new IOException("LZF compression not supported");
-		default:
-			throw new IOException("Unknown special encoding: 0x" + Integer.toHexString(format));
+
+		long groups = in.readLength();
+		for (long g = 0; g < groups; g++) {
+			skipConsumerGroup(type);
 		}
+		return groups;
 	}
 
-	private static void skipEncodedString(ByteBuffer b) throws IOException {
-		int originalPosition = b.position();
-		byte firstByte = b.get();
-		int encodingType = (firstByte & 0xC0) >> 6;
+	// master entry: count, deleted, the master fields and a 0 terminator. then per entry: flags, id deltas
+	// from the node key, the values of the master fields (SAMEFIELDS) or its own field / value pairs, and
+	// the number of listpack elements of the entry
+	private void readStreamNode(Stream stream, long masterMs, long masterSeq, Listpack listpack) throws IOException {
+		listpack.nextLong(); // valid entries
+		listpack.nextLong(); // deleted entries
+		byte[][] masterFields = new byte[(int) listpack.nextLong()][];
+		for (int i = 0; i < masterFields.length; i++) {
+			masterFields[i] = listpack.next();
+		}
+		listpack.nextLong(); // master entry terminator
+
+		while (listpack.hasNext()) {
+			int flags = (int) listpack.nextLong();
+			long ms = masterMs + listpack.nextLong();
+			long seq = masterSeq + listpack.nextLong();
+
+			Map<String, String> fields = new LinkedHashMap<>();
+			if ((flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0) {
+				for (byte[] field : masterFields) {
+					fields.put(toString(field), toString(listpack.next()));
+				}
+			} else {
+				long count = listpack.nextLong();
+				for (long i = 0; i < count; i++) {
+					fields.put(toString(listpack.next()), toString(listpack.next()));
+				}
+			}
+			listpack.nextLong(); // lp-count
+
+			if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+				stream.restoreEntry(new StreamEntry(Long.toUnsignedString(ms) + "-" + Long.toUnsignedString(seq), fields));
+			}
+		}
+	}
+
+	// there are no consumer groups in this store, the group, its pending entries and consumers are read past
+	private void skipConsumerGroup(int type) throws IOException {
+		in.skipString(); // name
+		in.readLength(); // last delivered id ms
+		in.readLength(); // last delivered id seq
+		if (type >= TYPE_STREAM_LISTPACKS_2) {
+			in.readLength(); // entries read
+		}
 
-		if (encodingType == 3) {
-			skipSpecialEncodedString(b, firstByte);
-		} else {
-			b.position(originalPosition);
-			int length = readEncodedSize(b);
-			b.position(b.position() + length);
+		long pending = in.readLength();
+		for (long p = 0; p < pending; p++) {
+			in.skip(16); // raw id
+			in.readMillisecondTime(); // delivery time
+			in.readLength(); // delivery count
+		}
+
+		long consumers = in.readLength();
+		for (long c = 0; c < consumers; c++) {
+			in.skipString(); // name
+			in.readMillisecondTime(); // seen time
+			if (type >= TYPE_STREAM_LISTPACKS_3) {
+				in.readMillisecondTime(); // active time
+			}
+			in.skip(in.readLength() * 16); // raw ids of its pending entries
 		}
 	}
 
-	private static void skipSpecialEncodedString(ByteBuffer b, byte firstByte) throws IOException {
-		int format = firstByte & 0x3F;
-		switch (format) {
-		case 0:
-			b.position(b.position() + 1);
+	// reads past a value: one of a type the store can not hold, an expired key or a record the scanner hands on
+	private void skipValue(int type) throws IOException {
+		switch (type) {
+		case TYPE_STRING:
+			in.skipString();
+			break;
+		case TYPE_STREAM_LISTPACKS:
+		case TYPE_STREAM_LISTPACKS_2:
+		case TYPE_STREAM_LISTPACKS_3:
+			skipStream(type);
+			break;
+		case TYPE_LIST:
+		case TYPE_SET:
+			skipStrings(in.readLength());
+			break;
+		case TYPE_HASH:
+			skipStrings(in.readLength() * 2);
+			break;
+		case TYPE_ZSET:
+		case TYPE_ZSET_2:
+			long members = in.readLength();
+			for (long i = 0; i < members; i++) {
+				in.skipString();
+				if (type == TYPE_ZSET_2) {
+					in.readBinaryDouble();
+				} else {
+					in.readStringDouble();
+				}
+			}
+			break;
+		case TYPE_HASH_ZIPMAP:
+		case TYPE_LIST_ZIPLIST:
+		case TYPE_SET_INTSET:
+		case TYPE_ZSET_ZIPLIST:
+		case TYPE_HASH_ZIPLIST:
+		case TYPE_HASH_LISTPACK:
+		case TYPE_ZSET_LISTPACK:
+		case TYPE_SET_LISTPACK:
+		case TYPE_HASH_LISTPACK_EX_PRE_GA:
+			in.skipString(); // the whole encoded blob
 			break;
-		case 1:
-			b.position(b.position() + 2);
+		case TYPE_HASH_LISTPACK_EX:
+			in.readMillisecondTime(); // earliest field expiry
+			in.skipString();
 			break;
-		case 2:
-			b.position(b.position() + 4);
+		case TYPE_LIST_QUICKLIST:
+			skipStrings(in.readLength()); // ziplist nodes
 			break;
-		case 3:
-			throw new IOException("LZF compression not supported");
+		case TYPE_LIST_QUICKLIST_2:
+			long nodes = in.readLength();
+			for (long i = 0; i < nodes; i++) {
+				long container = in.readLength();
+				if (container != QUICKLIST_NODE_PLAIN && container != QUICKLIST_NODE_PACKED) {
+					throw new IOException("Quicklist integrity check failed");
+				}
+				in.skipString();
+			}
+			break;
+		case TYPE_HASH_METADATA:
+		case TYPE_HASH_METADATA_PRE_GA:
+			if (type == TYPE_HASH_METADATA) {
+				in.readMillisecondTime(); // earliest field expiry
+			}
+			long fields = in.readLength();
+			for (long i = 0; i < fields; i++) {
+				if (type == TYPE_HASH_METADATA) {
+					in.readLength(); // ttl relative to the earliest expiry
+				} else {
+					in.readMillisecondTime();
+				}
+				in.skipString(); // field
+				in.skipString(); // value
+			}
+			break;
+		case TYPE_MODULE_2:
+			in.readLength(); // module id
+			skipModuleFields();
+			break;
+		case TYPE_MODULE_PRE_GA:
+			throw new IOException("Pre-release module format not supported");
 		default:
-			throw new IOException("Unknown special encoding type: " + format);
+			throw new IOException("Unknown RDB value type " + type + " at offset " + (in.offset() - 1));
 		}
 	}
+
+	private void skipStrings(long count) throws IOException {
+		for (long i = 0; i < count; i++) {
+			in.skipString();
+		}
+	}
+
+	// module id, when the module wants it loaded (before / after the keys) and its fields
+	private void skipModuleAux() throws IOException {
+		in.readLength(); // module id
+		if (in.readLength() != MODULE_OPCODE_UINT) {
+			throw new IOException("Invalid module aux data");
+		}
+		in.readLength(); // when
+		skipModuleFields();
+	}
+
+	private void skipModuleFields() throws IOException {
+		while (true) {
+			long opcode = in.readLength();
+			if (opcode == MODULE_OPCODE_EOF) {
+				return;
+			}
+			if (opcode == MODULE_OPCODE_SINT || opcode == MODULE_OPCODE_UINT) {
+				in.readLength();
+			} else if (opcode == MODULE_OPCODE_FLOAT) {
+				in.readIntLE();
+			} else if (opcode == MODULE_OPCODE_DOUBLE) {
+				in.readLongLE();
+			} else if (opcode == MODULE_OPCODE_STRING) {
+				in.skipString();
+			} else {
+				throw new IOException("Unknown module opcode " + opcode);
+			}
+		}
+	}
+
+	private static String typeName(int type) {
+		switch (type) {
+		case TYPE_LIST:
+		case TYPE_LIST_ZIPLIST:
+		case TYPE_LIST_QUICKLIST:
+		case TYPE_LIST_QUICKLIST_2:
+			return "list";
+		case TYPE_SET:
+		case TYPE_SET_INTSET:
+		case TYPE_SET_LISTPACK:
+			return "set";
+		case TYPE_ZSET:
+		case TYPE_ZSET_2:
+		case TYPE_ZSET_ZIPLIST:
+		case TYPE_ZSET_LISTPACK:
+			return "zset";
+		case TYPE_MODULE_2:
+			return "module";
+		default:
+			return "hash";
+		}
+	}
+
+	private void report() {
+		System.out.println("Loaded " + loadedKeys + " keys from RDB file (format version " + version + ")");
+		if (lazyKeys > 0) {
+			System.out.println(lazyKeys + " values are left in the RDB file until they are read");
+		}
+		if (expiredKeys > 0) {
+			System.out.println("Dropped " + expiredKeys + " keys whose TTL had passed");
+		}
+		for (Map.Entry<String, Long> skipped : skippedKeys.entrySet()) {
+			System.out.println("Skipped " + skipped.getValue() + " " + skipped.getKey() + " keys, the type is not supported");
+		}
+		if (skippedConsumerGroups > 0) {
+			System.out.println("Skipped " + skippedConsumerGroups + " stream consumer groups, consumer groups are not supported");
+		}
+	}
+
+	private static long readLongBE(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = value << 8 | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static String toString(byte[] bytes) {
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
 }
@@ -0,0 +1,366 @@
+package rdb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// reads the encodings of an RDB file (lengths, strings, times, doubles) from a FileChannel through one
+// buffer that is refilled as it drains, so the whole file streams through a fixed amount of memory.
+// every byte consumed goes into the crc64 of the file, checked against the trailer at the end. the parallel
+// load copies the bytes of whole records out while scanning (capture) and decodes them from memory.
+// rdb-lazy-load turns the checksum off, skipped values are then seeked over instead of read
+final class RDBInput {
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	// length encodings, the top two bits of the first byte
+	private static final int LENGTH_6BIT = 0;
+	private static final int LENGTH_14BIT = 1;
+	private static final int LENGTH_32BIT = 0x80; // full byte, the other 10 values are unused
+	private static final int LENGTH_64BIT = 0x81;
+	private static final int ENCODED_VALUE = 3;
+
+	// string encodings after an ENCODED_VALUE length
+	private static final int ENCODING_INT8 = 0;
+	private static final int ENCODING_INT16 = 1;
+	private static final int ENCODING_INT32 = 2;
+	private static final int ENCODING_LZF = 3;
+
+	private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final FileChannel channel; // null when reading records already in memory
+	private final byte[] buffer;
+	private int position;
+	private int limit;
+	private int checksummed; // buffer[0..checksummed) is already in crc
+	private long crc;
+	private boolean checksumming = true;
+	private long consumedBefore; // file offset of buffer[0]
+
+	// while capturing, consumed bytes are also copied to capture (buffer[captureFrom..position) still pending)
+	private byte[] capture;
+	private int captureLength;
+	private int captureFrom = -1;
+
+	RDBInput(FileChannel channel) {
+		this.channel = channel;
+		this.buffer = new byte[BUFFER_SIZE];
+	}
+
+	// records captured from a file, decoded without a checksum
+	RDBInput(byte[] bytes, int length) {
+		this.channel = null;
+		this.buffer = bytes;
+		this.limit = length;
+	}
+
+	// file offset of the next byte, for error messages and the values rdb-lazy-load leaves in the file
+	long offset() {
+		return consumedBefore + position;
+	}
+
+	// false at the end of records in memory. a file always has more, up to its EOF opcode and checksum
+	boolean hasRemaining() {
+		return channel != null || position < limit;
+	}
+
+	// the crc64 is left to the caller (see DeferredChecksum), skip() no longer reads what it skips
+	void disableChecksum() {
+		checksumming = false;
+	}
+
+	// crc64 of everything read so far
+	long checksum() {
+		updateChecksum();
+		return crc;
+	}
+
+	private void updateChecksum() {
+		if (checksumming) {
+			crc = Crc64.update(crc, buffer, checksummed, position - checksummed);
+		}
+		checksummed = position;
+	}
+
+	// copies the bytes consumed from now on, until takeCapture()
+	void startCapture() {
+		if (capture == null) {
+			capture = new byte[BUFFER_SIZE];
+		}
+		captureLength = 0;
+		captureFrom = position;
+	}
+
+	int capturedLength() {
+		return captureLength + position - captureFrom;
+	}
+
+	// the bytes consumed since startCapture(), capture stops
+	byte[] takeCapture() {
+		updateCapture();
+		captureFrom = -1;
+		byte[] captured = Arrays.copyOf(capture, captureLength);
+		captureLength = 0;
+		return captured;
+	}
+
+	private void updateCapture() {
+		if (captureFrom >= 0) {
+			appendCapture(buffer, captureFrom, position - captureFrom);
+			captureFrom = position;
+		}
+	}
+
+	private void appendCapture(byte[] bytes, int offset, int length) {
+		if (capture.length - captureLength < length) {
+			capture = Arrays.copyOf(capture, Math.max(capture.length * 2, captureLength + length));
+		}
+		System.arraycopy(bytes, offset, capture, captureLength, length);
+		captureLength += length;
+	}
+
+	private EOFException unexpectedEnd(long offset) {
+		return new EOFException("Unexpected end of RDB file at offset " + offset);
+	}
+
+	// makes count <= BUFFER_SIZE bytes available from position
+	private void require(int count) throws IOException {
+		if (limit - position >= count) {
+			return;
+		}
+		if (channel == null) {
+			throw unexpectedEnd(offset());
+		}
+
+		updateChecksum();
+		updateCapture();
+		int remaining = limit - position;
+		System.arraycopy(buffer, position, buffer, 0, remaining);
+		consumedBefore += position;
+		position = 0;
+		checksummed = 0;
+		if (captureFrom >= 0) {
+			captureFrom = 0;
+		}
+		limit = remaining;
+		ByteBuffer target = ByteBuffer.wrap(buffer);
+		while (limit < count) {
+			target.limit(buffer.length).position(limit);
+			int read = channel.read(target);
+			if (read < 0) {
+				throw unexpectedEnd(consumedBefore + limit);
+			}
+			limit += read;
+		}
+	}
+
+	int readByte() throws IOException {
+		require(1);
+		return buffer[position++] & 0xFF;
+	}
+
+	void readFully(byte[] bytes, int offset, int length) throws IOException {
+		int buffered = Math.min(length, limit - position);
+		System.arraycopy(buffer, position, bytes, offset, buffered);
+		position += buffered;
+		offset += buffered;
+		length -= buffered;
+		if (length == 0) {
+			return;
+		}
+		if (channel == null) {
+			throw unexpectedEnd(offset());
+		}
+
+		// a large string is read straight into its array, past the buffer
+		updateChecksum();
+		updateCapture();
+		ByteBuffer target = ByteBuffer.wrap(bytes, offset, length);
+		while (target.hasRemaining()) {
+			if (channel.read(target) < 0) {
+				throw unexpectedEnd(consumedBefore + position + target.position() - offset);
+			}
+		}
+		if (checksumming) {
+			crc = Crc64.update(crc, bytes, offset, length);
+		}
+		if (captureFrom >= 0) {
+			appendCapture(bytes, offset, length);
+		}
+		consumedBefore += length;
+	}
+
+	void skip(long count) throws IOException {
+		if (!checksumming && channel != null && captureFrom < 0 && count > limit - position) {
+			// past the end of the buffer nothing needs to see the bytes, a short file fails at the next read
+			consumedBefore += position + count;
+			position = 0;
+			limit = 0;
+			checksummed = 0;
+			channel.position(consumedBefore);
+			return;
+		}
+		while (count > 0) {
+			int step = (int) Math.min(count, BUFFER_SIZE);
+			require(step);
+			position += step;
+			count -= step;
+		}
+	}
+
+	int readIntLE() throws IOException {
+		require(4);
+		int value = (int) INT_LE.get(buffer, position);
+		position += 4;
+		return value;
+	}
+
+	long readLongLE() throws IOException {
+		require(8);
+		long value = (long) LONG_LE.get(buffer, position);
+		position += 8;
+		return value;
+	}
+
+	// 8 byte millisecond time (0xFC, stream and hash field times)
+	long readMillisecondTime() throws IOException {
+		return readLongLE();
+	}
+
+	// binary double (ZSET_2)
+	double readBinaryDouble() throws IOException {
+		return Double.longBitsToDouble(readLongLE());
+	}
+
+	// old ZSET scores: a length byte with 253 = nan, 254 = +inf, 255 = -inf, or that many ascii characters
+	double readStringDouble() throws IOException {
+		int length = readByte();
+		switch (length) {
+		case 253:
+			return Double.NaN;
+		case 254:
+			return Double.POSITIVE_INFINITY;
+		case 255:
+			return Double.NEGATIVE_INFINITY;
+		default:
+			byte[] bytes = new byte[length];
+			readFully(bytes, 0, length);
+			try {
+				return Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid double value at offset " + offset());
+			}
+		}
+	}
+
+	long readLength() throws IOException {
+		int first = readByte();
+		return readLength(first);
+	}
+
+	private long readLength(int first) throws IOException {
+		switch (first >> 6) {
+		case LENGTH_6BIT:
+			return first & 0x3F;
+		case LENGTH_14BIT:
+			return ((first & 0x3F) << 8) | readByte();
+		case ENCODED_VALUE:
+			throw new IOException("Unexpected encoded value where a length was expected at offset " + (offset() - 1));
+		default:
+			if (first == LENGTH_32BIT) {
+				require(4);
+				long value = ((buffer[position] & 0xFFL) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+						| ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+				position += 4;
+				return value;
+			}
+			if (first == LENGTH_64BIT) {
+				long value = Long.reverseBytes(readLongLE());
+				if (value < 0) {
+					throw new IOException("Invalid length at offset " + (offset() - 9));
+				}
+				return value;
+			}
+			throw new IOException("Invalid length encoding 0x" + Integer.toHexString(first) + " at offset " + (offset() - 1));
+		}
+	}
+
+	// a length that has to fit an array
+	int readSize() throws IOException {
+		return toSize(readLength());
+	}
+
+	// a string: raw bytes, an integer (returned as its decimal digits) or LZF compressed
+	byte[] readString() throws IOException {
+		int first = readByte();
+		if (first >> 6 != ENCODED_VALUE) {
+			int length = toSize(readLength(first));
+			byte[] bytes = new byte[length];
+			readFully(bytes, 0, length);
+			return bytes;
+		}
+
+		switch (first & 0x3F) {
+		case ENCODING_INT8:
+			return Long.toString((byte) readByte()).getBytes(StandardCharsets.ISO_8859_1);
+		case ENCODING_INT16:
+			require(2);
+			short value = (short) ((buffer[position] & 0xFF) | (buffer[position + 1] << 8));
+			position += 2;
+			return Long.toString(value).getBytes(StandardCharsets.ISO_8859_1);
+		case ENCODING_INT32:
+			return Long.toString(readIntLE()).getBytes(StandardCharsets.ISO_8859_1);
+		case ENCODING_LZF:
+			int compressedLength = readSize();
+			int length = readSize();
+			byte[] compressed = new byte[compressedLength];
+			readFully(compressed, 0, compressedLength);
+			return Lzf.decompress(compressed, length);
+		default:
+			throw new IOException("Unknown string encoding 0x" + Integer.toHexString(first & 0x3F) + " at offset " + (offset() - 1));
+		}
+	}
+
+	// readString() without building the string, for values that are not loaded (or not yet). returns the length
+	// of the string, -1 for an integer encoding
+	long skipString() throws IOException {
+		int first = readByte();
+		if (first >> 6 != ENCODED_VALUE) {
+			long length = readLength(first);
+			skip(length);
+			return length;
+		}
+
+		switch (first & 0x3F) {
+		case ENCODING_INT8:
+			skip(1);
+			return -1;
+		case ENCODING_INT16:
+			skip(2);
+			return -1;
+		case ENCODING_INT32:
+			skip(4);
+			return -1;
+		case ENCODING_LZF:
+			long compressedLength = readLength();
+			long length = readLength();
+			skip(compressedLength);
+			return length;
+		default:
+			throw new IOException("Unknown string encoding 0x" + Integer.toHexString(first & 0x3F) + " at offset " + (offset() - 1));
+		}
+	}
+
+	private int toSize(long length) throws IOException {
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new IOException("Length " + length + " too large at offset " + offset());
+		}
+		return (int) length;
+	}
+}
@@ -0,0 +1,165 @@
+package rdb;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// writes the encodings of an RDB file (lengths, strings, times) to a FileChannel through one buffer that is
+// written out whenever it is full, the counterpart of RDBInput. every byte goes into the crc64 the file ends with
+final class RDBOutput {
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int COMPRESS_MIN_LENGTH = 21; // redis only tries LZF on strings over 20 bytes
+
+	private static final int LENGTH_6BIT = 0;
+	private static final int LENGTH_14BIT = 0x40;
+	private static final int LENGTH_32BIT = 0x80;
+	private static final int LENGTH_64BIT = 0x81;
+	private static final int ENCODING_INT8 = 0xC0;
+	private static final int ENCODING_INT16 = 0xC1;
+	private static final int ENCODING_INT32 = 0xC2;
+	private static final int ENCODING_LZF = 0xC3;
+
+	private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final FileChannel channel;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int checksummed; // buffer[0..checksummed) is already in crc
+	private long crc;
+	private long written; // bytes handed to the channel
+
+	private final Lzf.Compressor compressor = new Lzf.Compressor();
+	private byte[] compressed = new byte[256];
+
+	RDBOutput(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	// bytes written so far, buffered ones included
+	long offset() {
+		return written + position;
+	}
+
+	// crc64 of everything written so far
+	long checksum() {
+		updateChecksum();
+		return crc;
+	}
+
+	private void updateChecksum() {
+		crc = Crc64.update(crc, buffer, checksummed, position - checksummed);
+		checksummed = position;
+	}
+
+	// hands the buffered bytes to the channel
+	void flush() throws IOException {
+		updateChecksum();
+		writeFully(ByteBuffer.wrap(buffer, 0, position));
+		position = 0;
+		checksummed = 0;
+	}
+
+	private void writeFully(ByteBuffer source) throws IOException {
+		written += source.remaining();
+		while (source.hasRemaining()) {
+			channel.write(source);
+		}
+	}
+
+	void writeByte(int b) throws IOException {
+		if (position == BUFFER_SIZE) {
+			flush();
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	void write(byte[] bytes, int offset, int length) throws IOException {
+		if (length > BUFFER_SIZE - position) {
+			flush();
+			if (length > BUFFER_SIZE) {
+				// a large string goes to the channel straight from its array
+				crc = Crc64.update(crc, bytes, offset, length);
+				writeFully(ByteBuffer.wrap(bytes, offset, length));
+				return;
+			}
+		}
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+	}
+
+	void writeLongLE(long value) throws IOException {
+		if (BUFFER_SIZE - position < Long.BYTES) {
+			flush();
+		}
+		LONG_LE.set(buffer, position, value);
+		position += Long.BYTES;
+	}
+
+	// 8 byte millisecond time (0xFC)
+	void writeMillisecondTime(long millis) throws IOException {
+		writeLongLE(millis);
+	}
+
+	// the smallest of the 6, 14, 32 and 64 bit length encodings, the last two big endian
+	void writeLength(long length) throws IOException {
+		if (length < 1 << 6) {
+			writeByte(LENGTH_6BIT | (int) length);
+		} else if (length < 1 << 14) {
+			writeByte(LENGTH_14BIT | (int) (length >> 8));
+			writeByte((int) length);
+		} else if (length <= 0xFFFFFFFFL) {
+			writeByte(LENGTH_32BIT);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				writeByte((int) (length >> shift));
+			}
+		} else {
+			writeByte(LENGTH_64BIT);
+			writeLongLE(Long.reverseBytes(length));
+		}
+	}
+
+	// a string: LZF compressed if that saves something, as it is otherwise
+	void writeString(byte[] bytes) throws IOException {
+		if (bytes.length >= COMPRESS_MIN_LENGTH) {
+			// only worth it if at least 4 bytes are saved, like redis
+			if (compressed.length < bytes.length) {
+				compressed = new byte[Math.max(bytes.length, compressed.length * 2)];
+			}
+			int compressedLength = compressor.compress(bytes, bytes.length, compressed, bytes.length - 4);
+			if (compressedLength > 0) {
+				writeByte(ENCODING_LZF);
+				writeLength(compressedLength);
+				writeLength(bytes.length);
+				write(compressed, 0, compressedLength);
+				return;
+			}
+		}
+		writeLength(bytes.length);
+		write(bytes, 0, bytes.length);
+	}
+
+	// an integer string in the int8/16/32 encodings if it fits them, as its decimal digits otherwise
+	void writeIntegerString(long value) throws IOException {
+		if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			writeByte(ENCODING_INT8);
+			writeByte((int) value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			writeByte(ENCODING_INT16);
+			writeByte((int) value);
+			writeByte((int) (value >> 8));
+		} else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+			writeByte(ENCODING_INT32);
+			for (int shift = 0; shift < 32; shift += 8) {
+				writeByte((int) (value >> shift));
+			}
+		} else {
+			byte[] digits = Long.toString(value).getBytes(StandardCharsets.ISO_8859_1);
+			writeLength(digits.length);
+			write(digits, 0, digits.length);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package rdb;
+
+import config.Config;
+import server.ServerClock;
+import store.Databases;
+import store.Snapshot;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// SAVE, BGSAVE and the save points, with the state redis keeps around them (dirty, lastsave, the status of
+// the last background save). a save writes a temp file in dir and renames it over dbfilename once it is on
+// disk, so the RDB file is always complete. SAVE writes on the calling thread with the server stopped, BGSAVE
+// takes a Snapshot that the server walks in slices (see RedisServer) while a writer thread encodes it.
+// everything but the writer thread runs on the thread executing commands
+public class RDBSaver {
+    private static final long RETRY_DELAY_MILLIS = 5000; // after a failed background save, like CONFIG_BGSAVE_RETRY_DELAY
+
+    private final Databases databases;
+    private final Path dir;
+    private final Path file;
+    private final long[] savePoints; // seconds, changes, seconds, changes ...
+    private Runnable backgroundSaveStarted = () -> {};
+    private AppendOnlyFile aof; // null unless appendonly yes
+
+    private long lastSaveMillis = System.currentTimeMillis();
+    private long dirtyAtLastSave;
+    private long lastAttemptMillis;
+    private boolean lastBackgroundSaveOk = true;
+    private long lastBackgroundSaveSeconds = -1;
+    private boolean scheduled; // BGSAVE SCHEDULE while another one runs
+
+    // the background save in progress
+    private Snapshot snapshot;
+    private long dirtyAtStart;
+    private long startMillis;
+    private volatile boolean written; // set by the writer thread, then error
+    private volatile String error;
+
+    // rdb-lazy-load leaves the checksum of the loaded file to a thread: pending until it is done, then ok or err
+    private volatile String loadChecksumStatus = "ok";
+
+    public RDBSaver(Config config, Databases databases) {
+        this.databases = databases;
+        this.dir = Path.of(config.get("dir"));
+        this.file = dir.resolve(config.get("dbfilename"));
+        this.savePoints = parseSavePoints(config.get("save"));
+    }
+
+    // "<seconds> <changes> ..." pairs, an empty string disables automatic saves
+    private static long[] parseSavePoints(String value) {
+        String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return new long[0];
+        }
+
+        String[] parts = trimmed.split("\\s+");
+        if (parts.length % 2 != 0) {
+            throw new IllegalArgumentException("ERR Invalid save parameters");
+        }
+        long[] points = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                points[i] = Long.parseLong(parts[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("ERR Invalid save parameters");
+            }
+            if (points[i] < 0) {
+                throw new IllegalArgumentException("ERR Invalid save parameters");
+            }
+        }
+        return points;
+    }
+
+    // run whenever a background save starts, the server begins walking its snapshot
+    public void setBackgroundSaveStarted(Runnable backgroundSaveStarted) {
+        this.backgroundSaveStarted = backgroundSaveStarted;
+    }
+
+    // the stores take one snapshot at a time: SAVE and BGSAVE wait for a rewrite of aof, and it for them
+    public void setAppendOnlyFile(AppendOnlyFile aof) {
+        this.aof = aof;
+    }
+
+    public boolean isAofRewriteInProgress() {
+        return aof != null && aof.isRewriteInProgress();
+    }
+
+    // the keyspace just loaded from disk counts as saved. checksum is the one rdb-lazy-load left unchecked, or
+    // null. it is checked on a thread while the server runs, a mismatch can't refuse the file anymore: it is
+    // logged and INFO persistence shows rdb_load_checksum_status:err, the keys stay. values still in the file
+    // may be wrong, restarting with rdb-lazy-load no checks the file before serving it
+    public void loaded(DeferredChecksum checksum) {
+        dirtyAtLastSave = databases.getDirty();
+        if (checksum == null) {
+            return;
+        }
+
+        loadChecksumStatus = "pending";
+        Thread checker = new Thread(() -> {
+            try {
+                checksum.verify();
+                loadChecksumStatus = "ok";
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error checking " + checksum.getFilePath() + " after a lazy load: " + e.getMessage()
+                        + ". The keys loaded from it are served anyway, values still in the file may be corrupt");
+                loadChecksumStatus = "err";
+            }
+        }, "rdb-checksum");
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+    public String getLoadChecksumStatus() {
+        return loadChecksumStatus;
+    }
+
+    public boolean isBackgroundSaveInProgress() {
+        return snapshot != null;
+    }
+
+    // SAVE: the whole keyspace on this thread, which must own it (shards paused)
+    public void save() throws Exception {
+        if (snapshot != null) {
+            throw new Exception("ERR Background save already in progress");
+        }
+        if (isAofRewriteInProgress()) {
+            throw new Exception("ERR Background append only file rewriting in progress");
+        }
+
+        long dirty = databases.getDirty();
+        Snapshot foreground = databases.snapshot(ServerClock.millis(), true);
+        try {
+            long keys = writeAndRename(foreground);
+            System.out.println("DB saved on disk (" + keys + " keys)");
+        } catch (IOException | InterruptedException e) {
+            // the stores stop handing old values to the snapshot
+            foreground.abort();
+            foreground.step(-1, 0);
+            System.out.println("Failed saving the DB: " + e.getMessage());
+            throw new Exception("ERR " + e.getMessage());
+        }
+        dirtyAtLastSave = dirty;
+        lastSaveMillis = System.currentTimeMillis();
+    }
+
+    // BGSAVE: false if one is already running (or an AOF rewrite). schedule marks the request to start once that
+    // one is done
+    public boolean startBackgroundSave(boolean schedule) {
+        if (snapshot != null || isAofRewriteInProgress()) {
+            scheduled |= schedule;
+            return false;
+        }
+
+        scheduled = false;
+        dirtyAtStart = databases.getDirty();
+        startMillis = System.currentTimeMillis();
+        lastAttemptMillis = startMillis;
+        written = false;
+        error = null;
+        Snapshot started = databases.snapshot(ServerClock.millis(), false);
+        snapshot = started;
+
+        Thread writer = new Thread(() -> {
+            try {
+                long keys = writeAndRename(started);
+                System.out.println("DB saved on disk (" + keys + " keys)");
+            } catch (IOException | InterruptedException | RuntimeException | OutOfMemoryError e) {
+                error = e.getMessage() == null ? e.toString() : e.getMessage();
+                started.abort();
+            }
+            written = true;
+        }, "rdb-bgsave");
+        writer.setDaemon(true);
+        writer.start();
+
+        System.out.println("Background saving started");
+        backgroundSaveStarted.run();
+        return true;
+    }
+
+    // the snapshot the server has to walk, null if no background save runs
+    public Snapshot getBackgroundSnapshot() {
+        return snapshot;
+    }
+
+    // called by the server after walking: true once the background save is over (or none runs), then the
+    // snapshot no longer watches any store
+    public boolean finishBackgroundSave() {
+        if (snapshot == null) {
+            return true;
+        }
+        if (!written || !snapshot.isReleased()) {
+            return false;
+        }
+
+        snapshot = null;
+        lastBackgroundSaveSeconds = (System.currentTimeMillis() - startMillis) / 1000;
+        if (error == null) {
+            lastBackgroundSaveOk = true;
+            dirtyAtLastSave = dirtyAtStart;
+            lastSaveMillis = System.currentTimeMillis();
+            System.out.println("Background saving terminated with success");
+        } else {
+            lastBackgroundSaveOk = false;
+            System.out.println("Background saving error: " + error);
+        }
+        return true;
+    }
+
+    // from the cron: a BGSAVE SCHEDULE is waiting, or enough changes happened within the seconds of a save point.
+    // after a failure the next attempt waits RETRY_DELAY_MILLIS
+    public boolean isBackgroundSaveDue() {
+        if (snapshot != null || isAofRewriteInProgress()) {
+            return false;
+        }
+        if (scheduled) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        long changes = getChangesSinceLastSave();
+        for (int i = 0; i < savePoints.length; i += 2) {
+            if (changes >= savePoints[i + 1] && changes > 0 && now - lastSaveMillis >= savePoints[i] * 1000
+                    && (lastBackgroundSaveOk || now - lastAttemptMillis >= RETRY_DELAY_MILLIS)) {
+                System.out.println(savePoints[i + 1] + " changes in " + savePoints[i] + " seconds. Saving...");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the temp file is synced before it replaces the RDB file, and the directory after, so a crash leaves
+    // either the old file or the new one
+    private long writeAndRename(Snapshot snapshot) throws IOException, InterruptedException {
+        Files.createDirectories(dir);
+        Path temp = dir.resolve("temp-" + ProcessHandle.current().pid() + ".rdb");
+        try {
+            long keys = RDBWriter.write(snapshot, temp);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+            return keys;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // LASTSAVE, unix time in seconds of the last successful save
+    public long getLastSaveTime() {
+        return lastSaveMillis / 1000;
+    }
+
+    public long getChangesSinceLastSave() {
+        return databases.getDirty() - dirtyAtLastSave;
+    }
+
+    public boolean isLastBackgroundSaveOk() {
+        return lastBackgroundSaveOk;
+    }
+
+    public long getLastBackgroundSaveSeconds() {
+        return lastBackgroundSaveSeconds;
+    }
+
+    public long getCurrentBackgroundSaveSeconds() {
+        return snapshot == null ? -1 : (System.currentTimeMillis() - startMillis) / 1000;
+    }
+}
@@ -0,0 +1,201 @@
+package rdb;
+
+import store.Snapshot;
+import streams.StreamEntry;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// writes a Snapshot as an RDB file in the format RDBFileParser reads (version 11, what redis 7.0 to 7.2 write):
+// the header and aux fields, then per database SELECTDB, RESIZEDB and its keys, an EOF opcode and the crc64.
+// strings are LZF compressed like with rdbcompression yes, integers use the integer encodings and streams are
+// written as listpack nodes of up to STREAM_NODE_MAX_ENTRIES entries like redis' stream-node-max-entries
+public final class RDBWriter {
+	private static final String MAGIC = "REDIS";
+	private static final int VERSION = 11;
+	private static final String REDIS_VERSION = "7.2.0"; // the aux field tools look at
+
+	private static final int AUX = 0xFA;
+	private static final int RESIZE_DB = 0xFB;
+	private static final int EXPIRE_TIME_MS = 0xFC;
+	private static final int SELECT_DB = 0xFE;
+	private static final int EOF = 0xFF;
+
+	private static final int TYPE_STRING = 0;
+	private static final int TYPE_STREAM_LISTPACKS = 15;
+
+	private static final int STREAM_NODE_MAX_ENTRIES = 100;
+	private static final int STREAM_ITEM_FLAG_NONE = 0;
+	private static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+
+	private final RDBOutput out;
+	private long keys;
+
+	private RDBWriter(RDBOutput out) {
+		this.out = out;
+	}
+
+	// the whole snapshot into path, synced to disk before this returns. returns the number of keys written
+	public static long write(Snapshot snapshot, Path path) throws IOException, InterruptedException {
+		return write(snapshot, path, false);
+	}
+
+	// aofBase marks the file as the RDB preamble of an AOF, commands get appended after it
+	public static long write(Snapshot snapshot, Path path, boolean aofBase) throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			RDBWriter writer = new RDBWriter(new RDBOutput(channel));
+			writer.writeHeader(snapshot.getTime(), aofBase);
+			for (int db = 0; db < snapshot.getDatabaseCount(); db++) {
+				writer.writeDatabase(snapshot, db);
+			}
+			writer.writeTrailer();
+			channel.force(true);
+			return writer.keys;
+		}
+	}
+
+	private void writeHeader(long time, boolean aofBase) throws IOException {
+		byte[] magic = (MAGIC + String.format("%04d", VERSION)).getBytes(StandardCharsets.ISO_8859_1);
+		out.write(magic, 0, magic.length);
+		writeAux("redis-ver", REDIS_VERSION);
+		writeAux("redis-bits", "64");
+		out.writeByte(AUX);
+		out.writeString(bytes("ctime"));
+		out.writeIntegerString(time / 1000);
+		out.writeByte(AUX);
+		out.writeString(bytes("aof-base"));
+		out.writeIntegerString(aofBase ? 1 : 0);
+	}
+
+	private void writeAux(String key, String value) throws IOException {
+		out.writeByte(AUX);
+		out.writeString(bytes(key));
+		out.writeString(bytes(value));
+	}
+
+	// SELECTDB and RESIZEDB come with the first key, a database without any is left out
+	private void writeDatabase(Snapshot snapshot, int db) throws IOException, InterruptedException {
+		boolean selected = false;
+		Snapshot.Record record;
+		while ((record = snapshot.nextRecord(db)) != null) {
+			try {
+				if (!selected) {
+					out.writeByte(SELECT_DB);
+					out.writeLength(db);
+					out.writeByte(RESIZE_DB);
+					out.writeLength(snapshot.getKeyCount(db));
+					out.writeLength(snapshot.getVolatileKeyCount(db));
+					selected = true;
+				}
+				writeKeyValue(record);
+			} finally {
+				record.release();
+			}
+		}
+	}
+
+	private void writeKeyValue(Snapshot.Record record) throws IOException {
+		if (record.getExpiryTimeInMillis() != -1) {
+			out.writeByte(EXPIRE_TIME_MS);
+			out.writeMillisecondTime(record.getExpiryTimeInMillis());
+		}
+
+		if (record.isStream()) {
+			out.writeByte(TYPE_STREAM_LISTPACKS);
+			out.writeString(record.getKey());
+			writeStream(record.getStreamEntries());
+		} else {
+			out.writeByte(TYPE_STRING);
+			out.writeString(record.getKey());
+			if (record.isInteger()) {
+				out.writeIntegerString(record.getLongValue());
+			} else {
+				out.writeString(record.getStringValue());
+			}
+		}
+		keys++;
+	}
+
+	// the nodes keyed by their first id, then the number of entries, the last id and no consumer groups
+	private void writeStream(List<StreamEntry> entries) throws IOException {
+		out.writeLength((entries.size() + STREAM_NODE_MAX_ENTRIES - 1) / STREAM_NODE_MAX_ENTRIES);
+		for (int from = 0; from < entries.size(); from += STREAM_NODE_MAX_ENTRIES) {
+			writeStreamNode(entries.subList(from, Math.min(entries.size(), from + STREAM_NODE_MAX_ENTRIES)));
+		}
+
+		long[] last = entries.isEmpty() ? new long[2] : parseId(entries.get(entries.size() - 1).id());
+		out.writeLength(entries.size());
+		out.writeLength(last[0]);
+		out.writeLength(last[1]);
+		out.writeLength(0); // consumer groups
+	}
+
+	// a master entry with the fields of the first entry, every entry with the same fields only has its values
+	// (SAMEFIELDS). ids are deltas from the node key. see RDBFileParser.readStreamNode()
+	private void writeStreamNode(List<StreamEntry> node) throws IOException {
+		long[] master = parseId(node.get(0).id());
+		String[] masterFields = node.get(0).fields().keySet().toArray(new String[0]);
+
+		Listpack.Writer listpack = new Listpack.Writer();
+		listpack.add(node.size()); // valid entries
+		listpack.add(0); // deleted entries
+		listpack.add(masterFields.length);
+		for (String field : masterFields) {
+			listpack.add(bytes(field));
+		}
+		listpack.add(0); // master entry terminator
+
+		for (StreamEntry entry : node) {
+			long[] id = parseId(entry.id());
+			Map<String, String> fields = entry.fields();
+			boolean sameFields = Arrays.equals(masterFields, fields.keySet().toArray(new String[0]));
+			listpack.add(sameFields ? STREAM_ITEM_FLAG_SAMEFIELDS : STREAM_ITEM_FLAG_NONE);
+			listpack.add(id[0] - master[0]);
+			listpack.add(id[1] - master[1]);
+			if (sameFields) {
+				for (String value : fields.values()) {
+					listpack.add(bytes(value));
+				}
+				listpack.add(3 + fields.size()); // lp-count: the elements of the entry before it
+			} else {
+				listpack.add(fields.size());
+				for (Map.Entry<String, String> field : fields.entrySet()) {
+					listpack.add(bytes(field.getKey()));
+					listpack.add(bytes(field.getValue()));
+				}
+				listpack.add(4 + 2 * fields.size());
+			}
+		}
+
+		byte[] nodeKey = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			nodeKey[i] = (byte) (master[0] >>> (56 - 8 * i));
+			nodeKey[8 + i] = (byte) (master[1] >>> (56 - 8 * i));
+		}
+		out.writeString(nodeKey);
+		out.writeString(listpack.toByteArray());
+	}
+
+	private void writeTrailer() throws IOException {
+		out.writeByte(EOF);
+		out.writeLongLE(out.checksum());
+		out.flush();
+	}
+
+	// ms and seq of an id XADD accepted
+	private static long[] parseId(String id) {
+		int dash = id.indexOf('-');
+		return new long[]{Long.parseUnsignedLong(id.substring(0, dash)), Long.parseUnsignedLong(id.substring(dash + 1))};
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
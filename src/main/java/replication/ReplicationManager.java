@@ -1,9 +1,18 @@
 package replication;
 
+import command.CommandDescriptor;
+import command.CommandRegistry;
+import command.transactions.helper.CapturingClientConnection;
 import config.Config;
-import protocol.RESPParser;
+import protocol.CommandParts;
+import protocol.RESPCommand;
+import protocol.RESPEncoder;
 import replication.wait.WaitRequest;
-import store.DataStore;
+import server.ClientConnection;
+import server.OutputBufferLimits;
+import server.ServerClock;
+import server.TimingWheel;
+import store.Databases;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -15,12 +24,15 @@ import java.util.*;
 
 public class ReplicationManager {
     private final Config config;
-    private final DataStore store;
+    private final Databases databases;
     private Selector selector;
 
+    // database the propagated stream currently writes to (replicas start in 0), -1 forces a SELECT before the next command
+    private int replicationDb = 0;
+
     // only counts propagated commands on master and replicas
     private long processedCommandOffset = 0;
-    private final Map<SocketChannel, Long> replicaAcks = new HashMap<>();
+    private final Map<ClientConnection, Long> replicaAcks = new HashMap<>();
 
     // not used currently
     // private long lastAckTime = 0;
@@ -28,11 +40,15 @@ public class ReplicationManager {
 
 
     private SocketChannel masterConnection;
-    private final Map<SocketChannel, ReplicationState> replicaStates = new HashMap<>();
+    private final Map<ClientConnection, ReplicationState> replicaStates = new HashMap<>();
 
-    private final List<SocketChannel> activeReplicas = new ArrayList<>();
+    private final List<ClientConnection> activeReplicas = new ArrayList<>();
 
     private final List<WaitRequest> pendingWaits = new ArrayList<>();
+    private final TimingWheel timers;
+
+    private final CapturingClientConnection masterReplies = new CapturingClientConnection();
+    private CommandRegistry commandRegistry; // applies the master's stream, set before the replica connects
 
     public enum ReplicationState {
         CONNECTING,
@@ -44,10 +60,12 @@ public class ReplicationManager {
     }
 
     private ReplicationState handshakeState;
+    private boolean awaitingRdbTransfer = false;
 
-    public ReplicationManager(Config config, DataStore store) {
+    public ReplicationManager(Config config, Databases databases, TimingWheel timers) {
         this.config = config;
-        this.store = store;
+        this.databases = databases;
+        this.timers = timers;
     }
 
     public void initializeReplica() throws IOException {
@@ -92,7 +110,57 @@ public class ReplicationManager {
         }
     }
 
-    public void handleMasterResponse(SocketChannel sc, String response) throws IOException {
+    // consumes everything the master sent so far: handshake replies, the RDB transfer and then the command stream
+    public void handleMasterData(ClientConnection master) throws IOException {
+        SocketChannel sc = master.getChannel();
+
+        try {
+            while (processNextMasterFrame(master, sc)) {
+                // keep going until the buffer only holds a partial frame
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("\u001B[31mError parsing master stream: " + e.getMessage() + "\u001B[0m");
+        }
+
+        master.compactQueryBuffer();
+    }
+
+    private boolean processNextMasterFrame(ClientConnection master, SocketChannel sc) throws IOException {
+        if (handshakeState != ReplicationState.REPLICATION_ACTIVE) {
+            String response = master.nextLine();
+            if (response == null) {
+                return false;
+            }
+
+            handleHandshakeReply(sc, response);
+            return true;
+        }
+
+        // master sends the RDB file as "$<len>\r\n<bytes>" right after FULLRESYNC
+        // there probably should be some logic to load it, for now it is skipped
+        if (awaitingRdbTransfer) {
+            if (!master.skipBulkPayload()) {
+                return false;
+            }
+
+            awaitingRdbTransfer = false;
+            return true;
+        }
+
+        RESPCommand command = master.nextCommand();
+        if (command == null) {
+            return false;
+        }
+
+        try {
+            applyMasterCommand(sc, command);
+        } catch (Exception e) {
+            System.out.println("\u001B[31mError executing master command: " + e.getMessage() + "\u001B[0m");
+        }
+        return true;
+    }
+
+    private void handleHandshakeReply(SocketChannel sc, String response) throws IOException {
         switch (handshakeState) {
             case WAIT_PONG:
                 if (response.startsWith("+PONG")) {
@@ -128,105 +196,72 @@ public class ReplicationManager {
             case WAIT_PSYNC:
                 if (response.startsWith("+FULLRESYNC")) {
                     handshakeState = ReplicationState.REPLICATION_ACTIVE;
-                    // there probably should be some logic to parse the RDB file sent by master
-                    // sometimes master sent GETACK request with final step of handshake (not only after activation)
-                    if (response.contains("REPLCONF") && response.contains("GETACK")) {
-                        String ackResponse = "*3\r\n$8\r\nREPLCONF\r\n$3\r\nACK\r\n$" + String.valueOf(processedCommandOffset).length() + "\r\n" + processedCommandOffset + "\r\n";
-                        sc.write(ByteBuffer.wrap(ackResponse.getBytes()));
-                        processedCommandOffset += calculateCommandLength("*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n"); // we can just do +37 since this value wont changes but only for testing purposes
-                    }
+                    awaitingRdbTransfer = true;
                 } else {
                     System.out.println("\u001B[31mUnexpected PSYNC response: " + response + "\u001B[0m");
                 }
                 break;
 
-            case REPLICATION_ACTIVE:
-                // parse master commands and process them
-                // TODO: to be refactored
-                try {
-                    // Check if the response contains RDB data followed by commands
-                    if (response.contains("REDIS0011")) {
-                        // Extract and process any commands that come after the RDB data
-                        int asteriskPos = response.indexOf("*", response.indexOf("REDIS0011"));
-
-                        if (asteriskPos != -1) {
-                            response = response.substring(asteriskPos);
-                        }
-                    }
-                    List<List<String>> commands = RESPParser.processBufferData(response);
-
-                    for (List<String> command : commands) {
-                        String commandName = command.get(0);
-
-                        if ("REPLCONF".equalsIgnoreCase(commandName) && command.size() > 1 && "GETACK".equalsIgnoreCase(command.get(1))) {
-                            String ackResponse = "*3\r\n$8\r\nREPLCONF\r\n$3\r\nACK\r\n$" + String.valueOf(processedCommandOffset).length() + "\r\n" + processedCommandOffset + "\r\n";
-                            sc.write(ByteBuffer.wrap(ackResponse.getBytes()));
-                            processedCommandOffset += calculateCommandLength("*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n");
-                            continue;
-                        }
-
-                        if ("PING".equalsIgnoreCase(commandName)) {
-                            processedCommandOffset += calculateCommandLength("*1\r\n$4\r\nPING\r\n");
-                            continue;
-                        }
-
-                        // process the rest commands (only set commands for now)
-                        String key = command.get(1);
-                        String value = command.get(2);
-
-                        if (command.size() == 5 && "PX".equalsIgnoreCase(command.get(3))) {
-                            long timeMillis = Long.parseLong(command.get(4));
-
-                            if (timeMillis <= 0) {
-                                // to modified to be more descriptive (for replica)
-                                sc.write(ByteBuffer.wrap("$-1\r\n".getBytes()));
-                            }
-
-                            store.set(key, value, timeMillis);
-                            processedCommandOffset += calculateCommandLength(command);
-                        } else if (command.size() == 3) {
-                            store.set(key, value);
-                            processedCommandOffset += calculateCommandLength(command);
-                        } else {
-                            // to modified to be more descriptive (for replica)
-                            sc.write(ByteBuffer.wrap("$-1\r\n".getBytes()));
-                        }
-                    }
-                } catch (Exception e) {
-                    System.out.println("\u001B[31mError executing master command: " + e.getMessage() + "\u001B[0m");
-                }
+            default:
                 break;
         }
-
-        return;
     }
 
+    // apply a propagated write through the command registry, the offset grows by the exact number of bytes of each frame
+    private void applyMasterCommand(SocketChannel sc, RESPCommand command) throws Exception {
+        if (command.argEqualsIgnoreCase(0, "REPLCONF") && command.argEqualsIgnoreCase(1, "GETACK")) {
+            String ackResponse = "*3\r\n$8\r\nREPLCONF\r\n$3\r\nACK\r\n$" + String.valueOf(processedCommandOffset).length() + "\r\n" + processedCommandOffset + "\r\n";
+            sc.write(ByteBuffer.wrap(ackResponse.getBytes()));
+            processedCommandOffset += command.getFrameLength();
+            return;
+        }
 
-    public void propagateCommand(List<String> commandParts) throws IOException {
-        // count propagated commands by master server
-        processedCommandOffset += calculateCommandLength(commandParts);
+        // the frame counts towards the offset even if it can't be applied, the master already counted it
+        processedCommandOffset += command.getFrameLength();
+        if (command.argEqualsIgnoreCase(0, "PING")) {
+            return;
+        }
 
-        if (activeReplicas.isEmpty()) {
+        CommandParts parts = command.toParts();
+        CommandDescriptor descriptor = commandRegistry.lookup(parts.getBytes(0));
+        boolean select = descriptor != null && "select".equals(descriptor.name());
+        if (descriptor == null || !(descriptor.isWrite() || select) || !descriptor.checkArity(parts.size())) {
+            System.out.println("\u001B[31mIgnoring master command: " + parts.get(0) + "\u001B[0m");
             return;
         }
 
+        // replies to the master stream are never sent back, a SELECT from the master moves masterReplies to its database
+        try {
+            descriptor.command().execute(masterReplies, parts, databases.get(masterReplies.getDb()));
+        } finally {
+            masterReplies.discardReplies();
+        }
+    }
 
 
-        // Format command in RESP protocol
-        StringBuilder cmd = new StringBuilder();
-        cmd.append("*").append(commandParts.size()).append("\r\n");
-        for (String part : commandParts) {
-            cmd.append("$").append(part.length()).append("\r\n").append(part).append("\r\n");
+    // db is the database the command ran against, the replicas get a SELECT first when it differs from the last one
+    public void propagateCommand(int db, CommandParts commandParts) throws IOException {
+        if (db != replicationDb) {
+            replicationDb = db;
+            propagateCommand(CommandParts.of("SELECT", Integer.toString(db)));
         }
+        propagateCommand(commandParts);
+    }
+
+    private void propagateCommand(CommandParts commandParts) {
+        // count propagated commands by master server
+        processedCommandOffset += calculateCommandLength(commandParts);
 
-        ByteBuffer respBuffer = ByteBuffer.wrap(cmd.toString().getBytes());
+        if (activeReplicas.isEmpty()) {
+            return;
+        }
 
-        // Send to all active replicas
-        for (SocketChannel replica : activeReplicas) {
-            if (respBuffer.position() > 0) {
-                respBuffer.rewind();
+        // Send to all active replicas, encoded in RESP straight into each replica's reply buffer
+        for (ClientConnection replica : activeReplicas) {
+            replica.addReplyArrayLen(commandParts.size());
+            for (int i = 0; i < commandParts.size(); i++) {
+                replica.addReplyBulk(commandParts.getBytes(i));
             }
-            replica.write(respBuffer);
         }
     }
 
@@ -234,6 +269,10 @@ public class ReplicationManager {
         this.selector = selector;
     }
 
+    public void setCommandRegistry(CommandRegistry commandRegistry) {
+        this.commandRegistry = commandRegistry;
+    }
+
     public Selector getSelector() {
         return this.selector;
     }
@@ -242,42 +281,43 @@ public class ReplicationManager {
         return this.masterConnection;
     }
 
-    public void addReplica(SocketChannel replica) {
+    public void addReplica(ClientConnection replica) {
         replicaStates.put(replica, ReplicationState.WAIT_PONG);
+        replica.setOutputBufferLimits(OutputBufferLimits.fromConfig(config, "replica"));
     }
 
-    public void updateReplicaState(SocketChannel replica, ReplicationState state) {
+    public void updateReplicaState(ClientConnection replica, ReplicationState state) {
         replicaStates.put(replica, state);
         if (state == ReplicationState.REPLICATION_ACTIVE) {
             activeReplicas.add(replica);
+            // a new replica starts in database 0, if the others are elsewhere the next command says where it goes
+            if (replicationDb != 0) {
+                replicationDb = -1;
+            }
         }
     }
 
-    private int calculateCommandLength(List<String> command) {
+    private int calculateCommandLength(CommandParts command) {
         int length = 0;
 
         // Calculate header length: *<num>\r\n
-        length += 1 + String.valueOf(command.size()).length() + 2;
+        length += RESPEncoder.headerLength(command.size());
 
         // Calculate length for each argument
-        for (String arg : command) {
+        for (int i = 0; i < command.size(); i++) {
             // $<length>\r\n
-            length += 1 + String.valueOf(arg.length()).length() + 2;
+            length += RESPEncoder.headerLength(command.length(i));
             // argument + \r\n
-            length += arg.length() + 2;
+            length += command.length(i) + 2;
         }
 
         return length;
     }
 
-    private int calculateCommandLength(String rawCommand) {
-        return rawCommand.getBytes().length;
-    }
-
-
-    public void removeReplica(SocketChannel replica) {
+    public void removeReplica(ClientConnection replica) {
         replicaStates.remove(replica);
         activeReplicas.remove(replica);
+        replicaAcks.remove(replica);
     }
 
     public int getActiveReplicasCount() {
@@ -305,7 +345,7 @@ public class ReplicationManager {
         return processedCommandOffset;
     }
 
-    public void handleReplicaAck(SocketChannel replica, long ackOffset) {
+    public void handleReplicaAck(ClientConnection replica, long ackOffset) {
         replicaAcks.put(replica, ackOffset);
     }
 
@@ -319,45 +359,62 @@ public class ReplicationManager {
         return count;
     }
 
-    public void registerWait(SocketChannel client, int numReplicas, int timeout) {
-        System.out.println("\033[35m>>>>>> registerWait: " + numReplicas + " - " + timeout + "\033[0m");
+    // WAIT does not block the event loop, the client is answered by processPendingWaits() or by its timer
+    public void registerWait(ClientConnection client, int numReplicas, int timeout) {
         long currentOffset = getCurrentCommandOffset();
-        System.out.println("\033[35m>>>>>> current offset (server): " + currentOffset + "\033[0m");
-        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
-        pendingWaits.add(new WaitRequest(client, numReplicas, currentOffset, deadline));
+        long deadline = timeout > 0 ? ServerClock.millis() + timeout : Long.MAX_VALUE;
+        client.setBlocked(true);
+
+        WaitRequest wait = new WaitRequest(client, numReplicas, currentOffset, deadline);
+        pendingWaits.add(wait);
+        if (timeout > 0) {
+            wait.setTimeout(timers.schedule(deadline, () -> completeWait(wait)));
+        }
     }
 
+    // called once per event loop iteration, after the ACKs read in that iteration were applied
     public void processPendingWaits() {
-        System.out.println("\033[35m>>>>>> processPendingWaits: " + pendingWaits + "\033[0m");
         if (pendingWaits.isEmpty()) {
             return;
         }
 
-        long now = System.currentTimeMillis();
         Iterator<WaitRequest> itr = pendingWaits.iterator();
 
         while (itr.hasNext()) {
             WaitRequest wait = itr.next();
-            int ackedReplicas = countAcksForCommand(processedCommandOffset);
-            SocketChannel sc = wait.getClient();
-
-            // Check if we have enough acks or if we have timed out
-            if (wait.isExpired(now) || (ackedReplicas >= wait.getRequiredReplicas())) {
-                try {
-                    // Send the response with the number of acked replicas
-                    int numReplies = Math.min(ackedReplicas, wait.getRequiredReplicas());
-                    String response = ":" + numReplies + "\r\n";
-                    wait.getClient().write(ByteBuffer.wrap(response.getBytes()));
-                    itr.remove();
-                } catch (IOException e) {
-                    System.out.println("Error responding to WAIT command: " + e.getMessage());
-                    itr.remove();
-                }
+            if (countAcksForCommand(wait.getCommandOffset()) >= wait.getRequiredReplicas()) {
+                itr.remove();
+                wait.cancelTimeout();
+                replyToWait(wait);
             }
         }
     }
 
-    public boolean hasWaitRequest(SocketChannel client) {
+    // fired by the timing wheel at the WAIT deadline
+    private void completeWait(WaitRequest wait) {
+        if (pendingWaits.remove(wait)) {
+            replyToWait(wait);
+        }
+    }
+
+    // Send the response with the number of acked replicas
+    private void replyToWait(WaitRequest wait) {
+        ClientConnection sc = wait.getClient();
+        sc.addReplyLong(countAcksForCommand(wait.getCommandOffset()));
+        sc.setBlocked(false);
+    }
+
+    public void removeWaitRequests(ClientConnection client) {
+        pendingWaits.removeIf(wait -> {
+            if (wait.getClient() != client) {
+                return false;
+            }
+            wait.cancelTimeout();
+            return true;
+        });
+    }
+
+    public boolean hasWaitRequest(ClientConnection client) {
         for (WaitRequest wait : pendingWaits) {
             if (wait.getClient().equals(client)) {
                 return true;
@@ -370,8 +427,8 @@ public class ReplicationManager {
         String getackCommand = "*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n";
         ByteBuffer getackBuffer = ByteBuffer.wrap(getackCommand.getBytes());
 
-        for (SocketChannel replica : activeReplicas) {
-            if (replica.isOpen()) { // Check if replica is still connected
+        for (ClientConnection replica : activeReplicas) {
+            if (replica.getChannel().isOpen()) { // Check if replica is still connected
                 if (getackBuffer.position() > 0) {
                     getackBuffer.rewind(); // Reset buffer position
                 }
@@ -1,28 +1,24 @@
-// this class is not in use now but it will be helpful in future
-
 package replication.wait;
 
-import java.nio.channels.SocketChannel;
+import server.ClientConnection;
+import server.TimingWheel;
 
 public class WaitRequest {
-    private final SocketChannel client;
+    private final ClientConnection client;
     private final int requiredReplicas;
     private final long commandOffset;
     private final long deadline;
     private boolean completed = false;
+    private TimingWheel.Timeout timeout;
 
-    public WaitRequest(SocketChannel client, int requiredReplicas, long commandOffset, long timeoutMillis) {
+    public WaitRequest(ClientConnection client, int requiredReplicas, long commandOffset, long timeoutMillis) {
         this.client = client;
         this.requiredReplicas = requiredReplicas;
         this.commandOffset = commandOffset;
         this.deadline = timeoutMillis;
     }
 
-    public boolean isExpired(long currentTime) {
-        return currentTime >= deadline;
-    }
-
-    public SocketChannel getClient() {
+    public ClientConnection getClient() {
         return client;
     }
 
@@ -46,6 +42,16 @@ public class WaitRequest {
         this.completed = completed;
     }
 
+    public void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    public void cancelTimeout() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,853 @@
+package server;
+
+import protocol.CommandParts;
+import protocol.RESPCommand;
+import protocol.RESPEncoder;
+import protocol.RESPParser;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// per connection state, every client owns its query buffer so partial frames survive between reads,
+// and its reply buffer so commands never write to the socket directly.
+// the query buffer is only touched by the thread doing the connection's I/O, the reply buffer is shared
+// with the command executor (io threads, shards, virtual threads), so it is guarded by outputLock.
+// (a lock rather than synchronized: virtual threads would pin their carrier while blocked in a monitor)
+public class ClientConnection {
+    private static final int INITIAL_QUERY_BUFFER_SIZE = 4096;
+    private static final int MIN_FREE_SPACE = 1024; // grow before reading if less than this is left
+    private static final int MAX_QUERY_BUFFER_SIZE = 1024 * 1024 * 1024; // same as redis client-query-buffer-limit (1gb)
+    private static final int REPLY_BLOCK_SIZE = 16 * 1024;
+    // io-threads mode: an io thread stops reading a client with this many command bytes waiting for the executor,
+    // and reads again once the executor got it down to half
+    private static final long MAX_QUEUED_COMMAND_BYTES = 16 * 1024 * 1024;
+
+    private final SocketChannel channel;
+    private SelectionKey selectionKey;
+
+    // bytes [readPosition, queryBuffer.position()) are received but not processed yet
+    private ByteBuffer queryBuffer;
+    private int readPosition;
+
+    // reused for every command parsed from this connection
+    private final RESPCommand command = new RESPCommand();
+
+    // replies waiting to be sent, every block is kept in read mode ([position, limit) is unsent)
+    private final ArrayDeque<ByteBuffer> replyBlocks = new ArrayDeque<>();
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[8];
+    private long pendingReplyBytes;
+    // reply blocks this connection does not own (views of off-heap values), in reply order, each with the
+    // callback to run once the block was sent or dropped
+    private final ArrayDeque<BorrowedBlock> borrowedBlocks = new ArrayDeque<>();
+
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private final Condition repliesAvailable = outputLock.newCondition();
+
+    // the event loop flushes every connection in this queue before going back to select
+    // (null in virtual-threads mode, where writeLoop() sends the replies)
+    private final Queue<ClientConnection> pendingWrites;
+    private boolean queuedForWrite;
+    private boolean repliesHeld; // virtual-threads mode with appendfsync always, see holdReplies()
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private OutputBufferLimits outputBufferLimits;
+    private long softLimitReachedTime;
+    private volatile boolean closeAsap;
+
+    // set after a protocol error: nothing more is read and the connection is closed once the error is sent
+    private boolean readStopped;
+    private boolean closeAfterReply;
+
+    // io-threads mode: bytes of the commands parsed by the io thread and not run by the executor yet (queued or
+    // deferred), compacting the query buffer doesn't bound them. readPaused is handed over with a CAS, see
+    // pauseReadingIfBacklogged()
+    private final AtomicLong queuedCommandBytes = new AtomicLong();
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+
+    // set while the client waits in WAIT or XREAD BLOCK, its next commands are held back until it is answered
+    // (only used by the thread executing commands)
+    private boolean blocked;
+    private final ArrayDeque<CommandParts> deferredCommands = new ArrayDeque<>();
+
+    // virtual-threads mode: the thread of a blocked client parks here until it is answered
+    private Condition unblocked;
+
+    // database chosen with SELECT, commands run against it (only used by the thread executing commands)
+    private int db;
+
+    // shards mode: commands of this client queued on a shard thread and not completed yet (main thread only)
+    private int inFlightShard = -1;
+    private int inFlightCommands;
+    private final ArrayDeque<SplitCommand> splitCommands = new ArrayDeque<>(); // in flight, replied in this order
+
+    public ClientConnection(SocketChannel channel, Queue<ClientConnection> pendingWrites, OutputBufferLimits outputBufferLimits) {
+        this.channel = channel;
+        this.pendingWrites = pendingWrites;
+        this.outputBufferLimits = outputBufferLimits;
+        this.queryBuffer = ByteBuffer.allocate(INITIAL_QUERY_BUFFER_SIZE);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    public void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public void setOutputBufferLimits(OutputBufferLimits outputBufferLimits) {
+        this.outputBufferLimits = outputBufferLimits;
+    }
+
+    // a client over its output buffer limit is closed by the event loop, nothing more is buffered for it
+    public boolean isCloseAsap() {
+        return closeAsap;
+    }
+
+    public boolean hasPendingReplies() {
+        outputLock.lock();
+        try {
+            return pendingReplyBytes > 0;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public long getPendingReplyBytes() {
+        outputLock.lock();
+        try {
+            return pendingReplyBytes;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    public void setBlocked(boolean blocked) {
+        this.blocked = blocked;
+        if (!blocked && unblocked != null) {
+            unblocked.signal();
+        }
+    }
+
+    // the condition has to belong to the lock held by whoever calls setBlocked(false)
+    public void setUnblockedCondition(Condition unblocked) {
+        this.unblocked = unblocked;
+    }
+
+    public void awaitUnblocked() throws InterruptedException {
+        while (blocked && !closed.get()) {
+            unblocked.await();
+        }
+    }
+
+    public void deferCommand(CommandParts commandParts) {
+        deferredCommands.addLast(commandParts);
+    }
+
+    public boolean hasDeferredCommands() {
+        return !deferredCommands.isEmpty();
+    }
+
+    public CommandParts nextDeferredCommand() {
+        return deferredCommands.pollFirst();
+    }
+
+    public CommandParts peekDeferredCommand() {
+        return deferredCommands.peekFirst();
+    }
+
+    public int getDb() {
+        return db;
+    }
+
+    public void setDb(int db) {
+        this.db = db;
+    }
+
+    public int getInFlightShard() {
+        return inFlightShard;
+    }
+
+    public int getInFlightCommands() {
+        return inFlightCommands;
+    }
+
+    public void startShardCommand(int shard) {
+        inFlightShard = shard;
+        inFlightCommands++;
+    }
+
+    void startSplitCommand(int shards, SplitCommand split) {
+        startShardCommand(shards);
+        splitCommands.addLast(split);
+    }
+
+    SplitCommand peekSplitCommand() {
+        return splitCommands.peekFirst();
+    }
+
+    void nextSplitCommand() {
+        splitCommands.pollFirst();
+    }
+
+    public void finishShardCommand() {
+        if (--inFlightCommands == 0) {
+            inFlightShard = -1;
+        }
+    }
+
+    public boolean isReadStopped() {
+        return readStopped;
+    }
+
+    public void stopReading() {
+        this.readStopped = true;
+    }
+
+    public boolean isReadPaused() {
+        return readPaused.get();
+    }
+
+    // io thread, before the command is submitted
+    void addQueuedCommandBytes(long bytes) {
+        queuedCommandBytes.addAndGet(bytes);
+    }
+
+    // io thread, after a read: true if reading has to stop until the executor caught up. the backlog is checked
+    // again after the flag is set, an executor that drained it in between would not see the pause
+    boolean pauseReadingIfBacklogged() {
+        if (queuedCommandBytes.get() <= MAX_QUEUED_COMMAND_BYTES) {
+            return false;
+        }
+
+        readPaused.set(true);
+        return !(queuedCommandBytes.get() <= MAX_QUEUED_COMMAND_BYTES / 2 && readPaused.compareAndSet(true, false));
+    }
+
+    // executor, once a command ran: a paused client goes to its io thread, which registers for reads again
+    void removeQueuedCommandBytes(long bytes) {
+        if (queuedCommandBytes.addAndGet(-bytes) <= MAX_QUEUED_COMMAND_BYTES / 2 && readPaused.compareAndSet(true, false)) {
+            outputLock.lock();
+            try {
+                queueForWrite();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+    }
+
+    public boolean isCloseAfterReply() {
+        outputLock.lock();
+        try {
+            return closeAfterReply;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // queued like a reply so the thread flushing this connection notices it even if nothing else is pending
+    public void closeAfterReply() {
+        outputLock.lock();
+        try {
+            closeAfterReply = true;
+            queueForWrite();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // closes the socket, returns false if it was closed already
+    public boolean close() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+
+        Socket socket = channel.socket();
+        String clientInfo = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        System.out.println("Disconnected: " + clientInfo);
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+
+        // wake a writeLoop() waiting for replies, what is still queued will never be sent
+        outputLock.lock();
+        try {
+            releaseBorrowedBlocks();
+            repliesAvailable.signal();
+        } finally {
+            outputLock.unlock();
+        }
+        return true;
+    }
+
+    public int readFromSocket() throws IOException {
+        if (queryBuffer.remaining() < MIN_FREE_SPACE) {
+            growQueryBuffer();
+        }
+
+        return channel.read(queryBuffer);
+    }
+
+    // parses the next complete command of the pipeline, returns null if the rest of the buffer is a partial frame.
+    // the returned command points into the query buffer and is only valid until compactQueryBuffer() is called.
+    public RESPCommand nextCommand() {
+        while (true) {
+            int frameEnd = RESPParser.parseCommand(queryBuffer.array(), readPosition, queryBuffer.position(), command);
+            if (frameEnd == RESPParser.INCOMPLETE) {
+                return null;
+            }
+
+            readPosition = frameEnd;
+            if (!command.isEmpty()) {
+                return command;
+            }
+        }
+    }
+
+    // reads a simple reply line like "+PONG" (used by the replica handshake), null if the line is not complete yet
+    public String nextLine() {
+        int lineEnd = RESPParser.findLineEnd(queryBuffer.array(), readPosition, queryBuffer.position());
+        if (lineEnd == RESPParser.INCOMPLETE) {
+            return null;
+        }
+
+        String line = new String(queryBuffer.array(), readPosition, lineEnd - readPosition, StandardCharsets.ISO_8859_1);
+        readPosition = lineEnd + 2;
+        return line;
+    }
+
+    // skips a "$<len>\r\n<payload>" transfer without trailing CRLF (the RDB file sent after FULLRESYNC)
+    public boolean skipBulkPayload() {
+        int payloadEnd = RESPParser.skipBulkPayload(queryBuffer.array(), readPosition, queryBuffer.position());
+        if (payloadEnd == RESPParser.INCOMPLETE) {
+            return false;
+        }
+
+        readPosition = payloadEnd;
+        return true;
+    }
+
+    // drops processed bytes, called once per read batch instead of once per command
+    public void compactQueryBuffer() {
+        if (readPosition == 0) {
+            return;
+        }
+
+        queryBuffer.flip();
+        queryBuffer.position(readPosition);
+        queryBuffer.compact();
+        readPosition = 0;
+
+        // give back memory once a big payload has been processed
+        if (queryBuffer.position() == 0 && queryBuffer.capacity() > INITIAL_QUERY_BUFFER_SIZE) {
+            queryBuffer = ByteBuffer.allocate(INITIAL_QUERY_BUFFER_SIZE);
+        }
+    }
+
+    private void growQueryBuffer() {
+        // reclaim processed space first, only grow when the pending frame really needs it
+        if (readPosition > 0) {
+            compactQueryBuffer();
+            if (queryBuffer.remaining() >= MIN_FREE_SPACE) {
+                return;
+            }
+        }
+
+        int newCapacity = queryBuffer.capacity() * 2;
+        if (newCapacity > MAX_QUERY_BUFFER_SIZE) {
+            throw new IllegalStateException("ERR Protocol error: query buffer limit reached");
+        }
+
+        ByteBuffer bigger = ByteBuffer.allocate(newCapacity);
+        queryBuffer.flip();
+        bigger.put(queryBuffer);
+        queryBuffer = bigger;
+    }
+
+    // appends a reply to the output buffer, the bytes are sent later by the event loop
+    public int write(ByteBuffer src) {
+        int length = src.remaining();
+        outputLock.lock();
+        try {
+            if (closeAsap || length == 0) {
+                return length;
+            }
+
+            while (src.hasRemaining()) {
+                // a big reply gets a single block of its own size
+                ByteBuffer tail = replyTail(1, src.remaining());
+                int chunk = Math.min(src.remaining(), tail.capacity() - tail.limit());
+                int at = tail.limit();
+                tail.limit(at + chunk);
+                tail.put(at, src, src.position(), chunk);
+                src.position(src.position() + chunk);
+            }
+
+            replyAppended(length);
+            return length;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // the addReply methods encode straight into the reply blocks, small values come from the shared
+    // pre-encoded replies of RESPEncoder, nothing is allocated unless a new block is needed
+
+    public void addReply(byte[] reply) {
+        outputLock.lock();
+        try {
+            if (!closeAsap) {
+                replyAppended(appendBytes(reply, 0, reply.length));
+            }
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // ":<value>\r\n"
+    public void addReplyLong(long value) {
+        addReplyHeader((byte) ':', value);
+    }
+
+    // "*<length>\r\n", the elements follow as separate replies
+    public void addReplyArrayLen(long length) {
+        addReplyHeader((byte) '*', length);
+    }
+
+    // bulk string of a latin-1 String (what the parser produces), null is sent as the null bulk string
+    public void addReplyBulk(String value) {
+        outputLock.lock();
+        try {
+            if (closeAsap) {
+                return;
+            }
+
+            if (value == null) {
+                replyAppended(appendBytes(RESPEncoder.NULL_BULK, 0, RESPEncoder.NULL_BULK.length));
+                return;
+            }
+
+            long length = appendHeader((byte) '$', value.length());
+            length += appendChars(value);
+            length += appendBytes(RESPEncoder.CRLF, 0, 2);
+            replyAppended(length);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void addReplyBulk(byte[] value) {
+        addReplyBulk(value, 0, value.length);
+    }
+
+    public void addReplyBulk(byte[] value, int offset, int count) {
+        outputLock.lock();
+        try {
+            if (closeAsap) {
+                return;
+            }
+
+            long length = appendHeader((byte) '$', count);
+            length += appendBytes(value, offset, count);
+            length += appendBytes(RESPEncoder.CRLF, 0, 2);
+            replyAppended(length);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // bulk string sent straight from value's bytes, the buffer is queued as a reply block of its own instead of
+    // being copied. release runs once it was written to the socket or dropped, the bytes must not change before
+    public void addReplyBulk(ByteBuffer value, Runnable release) {
+        outputLock.lock();
+        try {
+            if (closeAsap || closed.get()) {
+                release.run();
+                return;
+            }
+
+            int count = value.remaining();
+            long length = appendHeader((byte) '$', count);
+            replyBlocks.addLast(value);
+            borrowedBlocks.addLast(new BorrowedBlock(value, release));
+            length += count;
+            length += appendBytes(RESPEncoder.CRLF, 0, 2);
+            replyAppended(length);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // bulk string holding the decimal digits of value, how integer encoded strings are sent
+    public void addReplyBulkLong(long value) {
+        outputLock.lock();
+        try {
+            if (closeAsap) {
+                return;
+            }
+
+            long length = appendHeader((byte) '$', RESPEncoder.digits(value));
+            length += appendNumber(value);
+            replyAppended(length);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // "+<status>\r\n", the status must not contain CR or LF
+    public void addReplyStatus(String status) {
+        addReplyLine(RESPEncoder.STATUS_PREFIX, status);
+    }
+
+    // messages that already carry an error code ("ERR ...", "WRONGTYPE ...") are sent as they are
+    public void addReplyError(String message) {
+        if (RESPEncoder.hasErrorCode(message)) {
+            addReplyLine(RESPEncoder.ERROR_PREFIX, message);
+        } else {
+            addReplyLine(RESPEncoder.ERR_PREFIX, message);
+        }
+    }
+
+    private void addReplyHeader(byte prefix, long value) {
+        outputLock.lock();
+        try {
+            if (!closeAsap) {
+                replyAppended(appendHeader(prefix, value));
+            }
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    private void addReplyLine(byte[] prefix, String line) {
+        outputLock.lock();
+        try {
+            if (closeAsap) {
+                return;
+            }
+
+            long length = appendBytes(prefix, 0, prefix.length);
+            length += appendChars(line);
+            length += appendBytes(RESPEncoder.CRLF, 0, 2);
+            replyAppended(length);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // last block if it has room left for at least minRoom bytes, otherwise a new block of at least wanted bytes
+    private ByteBuffer replyTail(int minRoom, int wanted) {
+        ByteBuffer tail = replyBlocks.peekLast();
+        if (tail == null || tail.isReadOnly() || tail.capacity() - tail.limit() < minRoom) {
+            tail = ByteBuffer.allocate(Math.max(REPLY_BLOCK_SIZE, wanted));
+            tail.limit(0);
+            replyBlocks.addLast(tail);
+        }
+        return tail;
+    }
+
+    private int appendBytes(byte[] bytes, int offset, int length) {
+        int done = 0;
+        while (done < length) {
+            ByteBuffer tail = replyTail(1, length - done);
+            int chunk = Math.min(length - done, tail.capacity() - tail.limit());
+            int at = tail.limit();
+            tail.limit(at + chunk);
+            tail.put(at, bytes, offset + done, chunk);
+            done += chunk;
+        }
+        return length;
+    }
+
+    private int appendHeader(byte prefix, long value) {
+        byte[] shared = switch (prefix) {
+            case '$' -> RESPEncoder.sharedBulkHeader(value);
+            case '*' -> RESPEncoder.sharedArrayHeader(value);
+            case ':' -> RESPEncoder.sharedInteger(value);
+            default -> null;
+        };
+        if (shared != null) {
+            return appendBytes(shared, 0, shared.length);
+        }
+
+        // a header is never split, at most a few bytes of the previous block stay unused
+        ByteBuffer tail = replyTail(RESPEncoder.MAX_HEADER_LENGTH, RESPEncoder.MAX_HEADER_LENGTH);
+        int at = tail.limit();
+        tail.limit(at + RESPEncoder.headerLength(value));
+        return RESPEncoder.encodeHeader(tail, at, prefix, value);
+    }
+
+    // "<value>\r\n", the shared integer replies without their ':' cover small values
+    private int appendNumber(long value) {
+        byte[] shared = RESPEncoder.sharedInteger(value);
+        if (shared != null) {
+            return appendBytes(shared, 1, shared.length - 1);
+        }
+
+        ByteBuffer tail = replyTail(RESPEncoder.MAX_HEADER_LENGTH, RESPEncoder.MAX_HEADER_LENGTH);
+        int at = tail.limit();
+        tail.limit(at + RESPEncoder.headerLength(value) - 1);
+        return RESPEncoder.encodeNumber(tail, at, value);
+    }
+
+    // strings hold one byte per char (ISO-8859-1), so the chars are the bytes
+    private int appendChars(String value) {
+        int length = value.length();
+        int done = 0;
+        while (done < length) {
+            ByteBuffer tail = replyTail(1, length - done);
+            int chunk = Math.min(length - done, tail.capacity() - tail.limit());
+            int at = tail.limit();
+            tail.limit(at + chunk);
+            for (int i = 0; i < chunk; i++) {
+                tail.put(at + i, (byte) value.charAt(done + i));
+            }
+            done += chunk;
+        }
+        return length;
+    }
+
+    private void replyAppended(long length) {
+        pendingReplyBytes += length;
+        checkOutputBufferLimits();
+        queueForWrite();
+    }
+
+    // hands out everything buffered so far instead of sending it, for connections without a socket
+    protected byte[] takeReplies() {
+        outputLock.lock();
+        try {
+            byte[] replies = new byte[(int) pendingReplyBytes];
+            int at = 0;
+            for (ByteBuffer block : replyBlocks) {
+                int n = block.remaining();
+                block.get(block.position(), replies, at, n);
+                at += n;
+            }
+            replyBlocks.clear();
+            releaseBorrowedBlocks();
+            pendingReplyBytes = 0;
+            return replies;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // drops everything buffered so far, for connections without a socket whose replies nobody reads. one block
+    // is kept, so running commands on such a connection does not allocate a reply block per command
+    protected void discardReplies() {
+        outputLock.lock();
+        try {
+            for (ByteBuffer block : replyBlocks) {
+                block.position(block.limit());
+            }
+            releaseSentBlocks();
+            pendingReplyBytes = 0;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    private void queueForWrite() {
+        if (pendingWrites == null) {
+            repliesAvailable.signal();
+            return;
+        }
+
+        if (!queuedForWrite) {
+            queuedForWrite = true;
+            pendingWrites.add(this);
+        }
+    }
+
+    // sends as much as the socket accepts with one gathering write per round, returns true once everything is out
+    public boolean flush() throws IOException {
+        outputLock.lock();
+        try {
+            queuedForWrite = false;
+
+            while (pendingReplyBytes > 0) {
+                int count = replyBlocks.size();
+                if (gatherBuffers.length < count) {
+                    gatherBuffers = new ByteBuffer[Math.max(count, gatherBuffers.length * 2)];
+                }
+                replyBlocks.toArray(gatherBuffers);
+
+                long written = channel.write(gatherBuffers, 0, count);
+                pendingReplyBytes -= written;
+                releaseSentBlocks();
+
+                if (written == 0) {
+                    break; // socket send buffer is full, wait for OP_WRITE
+                }
+            }
+
+            if (pendingReplyBytes < outputBufferLimits.softLimitBytes()) {
+                softLimitReachedTime = 0;
+            }
+            return pendingReplyBytes == 0;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // virtual-threads mode: writeLoop() keeps what is added from now on until releaseReplies(), so the reply to a
+    // write command is not sent before the AOF has it on disk (the event loop flushes the AOF before any reply)
+    public void holdReplies() {
+        outputLock.lock();
+        try {
+            repliesHeld = true;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void releaseReplies() {
+        outputLock.lock();
+        try {
+            repliesHeld = false;
+            repliesAvailable.signal();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // virtual-threads mode: runs on the connection's writer thread with a blocking socket. the pending blocks are
+    // taken out under the lock and written without it, so producers never wait for a slow socket.
+    // returns when the connection is closed, over its limits, or done after closeAfterReply().
+    public void writeLoop() throws IOException, InterruptedException {
+        while (true) {
+            ByteBuffer[] blocks;
+            BorrowedBlock[] borrowed;
+            long bytes;
+
+            outputLock.lock();
+            try {
+                while ((pendingReplyBytes == 0 || repliesHeld) && !closeAsap && !closeAfterReply && !closed.get()) {
+                    repliesAvailable.await();
+                }
+
+                if (closeAsap || closed.get() || pendingReplyBytes == 0) {
+                    return;
+                }
+
+                blocks = replyBlocks.toArray(new ByteBuffer[0]);
+                borrowed = borrowedBlocks.toArray(new BorrowedBlock[0]);
+                bytes = pendingReplyBytes;
+                replyBlocks.clear();
+                borrowedBlocks.clear();
+            } finally {
+                outputLock.unlock();
+            }
+
+            try {
+                while (blocks[blocks.length - 1].hasRemaining()) {
+                    channel.write(blocks);
+                }
+            } finally {
+                for (BorrowedBlock block : borrowed) {
+                    block.release().run();
+                }
+            }
+
+            outputLock.lock();
+            try {
+                if (!closeAsap) {
+                    // the bytes count against the limits until they are really sent
+                    pendingReplyBytes -= bytes;
+                    if (pendingReplyBytes < outputBufferLimits.softLimitBytes()) {
+                        softLimitReachedTime = 0;
+                    }
+                }
+            } finally {
+                outputLock.unlock();
+            }
+        }
+    }
+
+    private void releaseSentBlocks() {
+        while (!replyBlocks.isEmpty() && !replyBlocks.peekFirst().hasRemaining()) {
+            ByteBuffer sent = replyBlocks.pollFirst();
+            if (!borrowedBlocks.isEmpty() && borrowedBlocks.peekFirst().block() == sent) {
+                borrowedBlocks.pollFirst().release().run();
+                continue;
+            }
+
+            // keep one regular block around so a request/response client does not allocate per reply
+            if (replyBlocks.isEmpty() && sent.capacity() == REPLY_BLOCK_SIZE) {
+                sent.clear();
+                sent.limit(0);
+                replyBlocks.addLast(sent);
+                break;
+            }
+        }
+    }
+
+    private void releaseBorrowedBlocks() {
+        BorrowedBlock block;
+        while ((block = borrowedBlocks.pollFirst()) != null) {
+            block.release().run();
+        }
+    }
+
+    private void checkOutputBufferLimits() {
+        long hard = outputBufferLimits.hardLimitBytes();
+        long soft = outputBufferLimits.softLimitBytes();
+
+        if (hard > 0 && pendingReplyBytes >= hard) {
+            scheduleClose("hard");
+            return;
+        }
+
+        if (soft > 0 && pendingReplyBytes >= soft) {
+            long now = ServerClock.millis();
+            if (softLimitReachedTime == 0) {
+                softLimitReachedTime = now;
+            } else if (now - softLimitReachedTime >= outputBufferLimits.softLimitSeconds() * 1000) {
+                scheduleClose("soft");
+            }
+        } else {
+            softLimitReachedTime = 0;
+        }
+    }
+
+    private void scheduleClose(String limit) {
+        System.out.println("\u001B[31mClient scheduled to be closed ASAP for overcoming of output buffer " + limit + " limit (" + pendingReplyBytes + " bytes)\u001B[0m");
+        closeAsap = true;
+        replyBlocks.clear();
+        releaseBorrowedBlocks();
+        pendingReplyBytes = 0;
+
+        // a writeLoop() has to notice it
+        if (pendingWrites == null) {
+            repliesAvailable.signal();
+        }
+    }
+
+    private record BorrowedBlock(ByteBuffer block, Runnable release) {
+    }
+}
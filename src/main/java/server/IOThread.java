@@ -0,0 +1,183 @@
+package server;
+
+import protocol.RESPCommand;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// one reactor of the io-threads mode: owns a selector and does socket reads, RESP parsing and reply writes
+// for the connections the acceptor handed to it. parsed commands go to the main thread which executes them
+// one at a time, so the data store is still only touched by a single thread.
+public final class IOThread extends Thread {
+    private final RedisServer server;
+    private final Selector selector;
+
+    // accepted connections waiting to be registered with this reactor's selector
+    private final Queue<ClientConnection> newClients = new ConcurrentLinkedQueue<>();
+
+    // connections that got replies from the executor (or from this thread) and need a flush
+    private final Queue<ClientConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    // appendfsync always: the executor's replies wait here until the AOF is on disk, see wakeupIfPendingWrites()
+    private final Queue<ClientConnection> stagedWrites = new ConcurrentLinkedQueue<>();
+
+    private boolean commandsSubmitted;
+
+    public IOThread(int id, RedisServer server) throws IOException {
+        super("io-thread-" + id);
+        this.server = server;
+        this.selector = Selector.open();
+        setDaemon(true);
+    }
+
+    public Queue<ClientConnection> getPendingWrites() {
+        return pendingWrites;
+    }
+
+    public Queue<ClientConnection> getStagedWrites() {
+        return stagedWrites;
+    }
+
+    public void addClient(ClientConnection connection) {
+        newClients.add(connection);
+        selector.wakeup();
+    }
+
+    // called by the executor after a batch of commands (and after the AOF flush), one wakeup covers all replies
+    // of the batch
+    public void wakeupIfPendingWrites() {
+        ClientConnection staged;
+        while ((staged = stagedWrites.poll()) != null) {
+            pendingWrites.add(staged);
+        }
+        if (!pendingWrites.isEmpty()) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                registerNewClients();
+                handleClientsWithPendingWrites();
+
+                selector.select();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid() || !(key.attachment() instanceof ClientConnection connection)) {
+                        continue;
+                    }
+
+                    if (key.isWritable()) {
+                        writeToClient(connection);
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        readFromClient(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // wake the executor once for everything parsed in this round
+                if (commandsSubmitted) {
+                    commandsSubmitted = false;
+                    server.wakeupExecutor();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("\u001B[31m" + getName() + " error: " + e.getMessage() + "\u001B[0m");
+        }
+    }
+
+    private void registerNewClients() throws IOException {
+        ClientConnection connection;
+        while ((connection = newClients.poll()) != null) {
+            connection.setSelectionKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+        }
+    }
+
+    private void handleClientsWithPendingWrites() {
+        ClientConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            writeToClient(connection);
+        }
+    }
+
+    private void readFromClient(ClientConnection connection) {
+        int bytesRead;
+        try {
+            bytesRead = connection.readFromSocket();
+        } catch (IOException | IllegalStateException e) {
+            System.out.println("\u001B[31mError reading from client: " + e.getMessage() + "\u001B[0m");
+            bytesRead = -1;
+        }
+
+        if (bytesRead == -1) {
+            closeClient(connection);
+            return;
+        }
+
+        // commands are copied out of the query buffer, so it can be compacted right away. what they hold is counted
+        // until the executor ran them, a client pipelining faster than that stops being read
+        try {
+            RESPCommand command;
+            while ((command = connection.nextCommand()) != null) {
+                server.submitCommand(connection, command.toParts());
+                commandsSubmitted = true;
+            }
+        } catch (IllegalArgumentException e) {
+            // the executor replies with the error after the commands queued before it
+            connection.stopReading();
+            connection.getSelectionKey().interestOps(0);
+            server.submitProtocolError(connection, e.getMessage());
+            commandsSubmitted = true;
+            return;
+        }
+
+        connection.compactQueryBuffer();
+
+        // the executor queues the connection for a write once it worked off the backlog, see writeToClient()
+        if (connection.pauseReadingIfBacklogged()) {
+            SelectionKey key = connection.getSelectionKey();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void writeToClient(ClientConnection connection) {
+        SelectionKey key = connection.getSelectionKey();
+        if (connection.isCloseAsap()) {
+            closeClient(connection);
+            return;
+        }
+
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        try {
+            boolean flushed = connection.flush();
+            if (flushed && connection.isCloseAfterReply()) {
+                closeClient(connection);
+                return;
+            }
+
+            int readInterest = connection.isReadStopped() || connection.isReadPaused() ? 0 : SelectionKey.OP_READ;
+            key.interestOps(flushed ? readInterest : readInterest | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.out.println("\u001B[31mError writing to client: " + e.getMessage() + "\u001B[0m");
+            closeClient(connection);
+        }
+    }
+
+    // the socket is closed here, the executor drops the client's server side state afterwards
+    private void closeClient(ClientConnection connection) {
+        if (connection.close()) {
+            server.submitDisconnect(connection);
+            commandsSubmitted = true;
+        }
+    }
+}
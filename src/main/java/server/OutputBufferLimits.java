@@ -0,0 +1,21 @@
+package server;
+
+import config.Config;
+
+// client-output-buffer-limit for one class of clients, 0 disables a limit
+public record OutputBufferLimits(long hardLimitBytes, long softLimitBytes, long softLimitSeconds) {
+
+    public static OutputBufferLimits fromConfig(Config config, String clientClass) {
+        String value = config.get("client-output-buffer-limit-" + clientClass);
+        if (value == null) {
+            return new OutputBufferLimits(0, 0, 0);
+        }
+
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("ERR invalid client-output-buffer-limit for class " + clientClass + ": " + value);
+        }
+
+        return new OutputBufferLimits(Config.parseMemory(parts[0]), Config.parseMemory(parts[1]), Long.parseLong(parts[2]));
+    }
+}
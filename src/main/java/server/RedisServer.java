@@ -1,13 +1,25 @@
 package server;
 
+import command.CommandDescriptor;
 import command.CommandRegistry;
-import command.Command;
+import command.SplittableCommand;
+import command.transactions.helper.CapturingClientConnection;
 import config.Config;
-import protocol.RESPParser;
+import protocol.CommandParts;
+import protocol.RESPCommand;
+import protocol.RESPEncoder;
+import rdb.AppendOnlyFile;
+import rdb.DeferredChecksum;
 import rdb.RDBFileParser;
+import rdb.RDBSaver;
 import replication.ReplicationManager;
-import store.DataStore;
+import store.Database;
+import store.Databases;
+import store.DeletedKeys;
 import store.Entry;
+import store.EvictionPolicy;
+import store.ShardedDataStore;
+import store.Snapshot;
 import streams.manager.StreamManager;
 import transaction.TransactionManager;
 
@@ -19,41 +31,123 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
 import java.nio.ByteBuffer;
 import java.net.Socket;
 
 public class RedisServer {
     private final int port;
     private final Config config;
-    private final DataStore store;
+    private final Databases databases;
     private final CommandRegistry commandRegistry;
     private final ReplicationManager replicationManager;
     private final StreamManager streamManager;
+    private final RDBSaver rdbSaver;
+    private final AppendOnlyFile aof; // null unless appendonly yes
 
-    // TODO: this needs to be refactored
-    public static Map<String, List<String>> cmdContext = Map.of(
-            "minimalCtx", Arrays.asList("PING", "DISCARD"),
-            "partialCtx", Arrays.asList("CONFIG", "INFO", "REPLCONF", "PSYNC", "ECHO", "WAIT"),
-            "fullCtx", Arrays.asList("SET", "GET", "KEYS", "TYPE", "XADD", "XRANGE", "XREAD", "INCR", "MULTI", "EXEC")
-    );
+    // single key commands whose implementation only touches their key, so a shard thread can run them on its own
+    // (XADD is single key too but wakes clients blocked in XREAD, which live on the main thread)
+    private static final Set<String> SHARDED_COMMANDS = Set.of("set", "get", "type", "incr");
+    private static final int SPLIT_SHARDS = -2; // in flight "shard" of a split multi-key command, it waits for all of them
+    private static final byte[] DEL = {'D', 'E', 'L'};
 
 
-    private static final int CLEANUP_INTERVAL_MS = 1000; // 1 second
+    private static final String OOM_ERROR = "OOM command not allowed when used memory > 'maxmemory'.";
+    private static final int CLEANUP_INTERVAL_MS = 100; // 10 times per second like redis' default hz
     private static final int SAMPLE_SIZE = 20;
     private static final int EXPIRY_THRESHOLD = 25;
+    private static final int EXPIRY_TIME_LIMIT_MS = CLEANUP_INTERVAL_MS * 25 / 100; // at most 25% of the loop's time
+    private static final int REHASH_TIME_LIMIT_MICROS = 1000; // keyspace resize work per cron run, like redis' activerehashing
+    private static final int VALUE_LOG_COMPACT_TIME_LIMIT_MICROS = 1000; // value log compaction work per cron run
+    private static final int LAZY_WARM_TIME_LIMIT_MICROS = 2000; // decoding of lazily loaded values per cron run
+    private static final int SNAPSHOT_STEP_INTERVAL_MS = 5;
+    private static final long SNAPSHOT_STEP_TIME_LIMIT_NANOS = 1_000_000; // a background save takes 20% of a thread's time
+    private static final int TCP_BACKLOG = 511; // redis tcp-backlog default, java's default of 50 drops SYNs on connection bursts
+    private static final int MAX_ACCEPTS_PER_CALL = 1000; // same as redis MAX_ACCEPTS_PER_CALL
+    private static final int MAX_COMMANDS_PER_BATCH = 1024; // keeps timers and reply flushing going under load
 
     private ServerSocketChannel serverSocketChannel;
     private Selector selector;
-    private final Set<SocketChannel> clients = new HashSet<>();
+    private final Set<ClientConnection> clients = new HashSet<>();
 
-    public RedisServer(Config config, DataStore store) {
+    // connections that got replies during this loop iteration, flushed right before select
+    // (concurrent because shard threads write replies too)
+    private final Queue<ClientConnection> clientsPendingWrite = new ConcurrentLinkedQueue<>();
+    private OutputBufferLimits normalClientLimits;
+
+    // io-threads mode: reactors do the socket work and hand parsed commands to this (single) executor thread
+    private final List<IOThread> ioThreads = new ArrayList<>();
+    private int nextIoThread;
+    private final Queue<QueuedCommand> queuedCommands = new ConcurrentLinkedQueue<>();
+
+    // clients with commands held back: blocked by WAIT / XREAD BLOCK, or waiting for commands still running on a shard
+    private final Set<ClientConnection> clientsWithDeferredCommands = new HashSet<>();
+
+    // shards mode: every shard thread owns one DataStore of the ShardedDataStore, this thread coordinates
+    private final List<ShardThread> shardThreads = new ArrayList<>();
+    private final Queue<ShardCompletion> shardCompletions = new ConcurrentLinkedQueue<>();
+    private CountDownLatch shardsResume; // non null while the shard threads are parked
+
+    // a command parsed by an io thread, or a protocol error / disconnect of its connection (commandParts == null)
+    private record QueuedCommand(ClientConnection client, CommandParts commandParts, String protocolError) {
+    }
+
+    // a command finished by a shard thread, write commands carry their arguments for replica propagation.
+    // split is the multi-key command whose last part finished, null for single key commands. a key the shard
+    // expired or evicted comes without a client, its DEL only has to be propagated
+    private record ShardCompletion(ClientConnection client, int db, CommandParts propagate, SplitCommand split) {
+    }
+
+    // virtual-threads mode: every connection has a reader thread executing its commands with blocking I/O and a
+    // writer thread sending its replies. the main loop only accepts, runs the timers and the master link.
+    // commands, the timers and anything else touching the store run while holding this (fair) lock.
+    private final boolean virtualThreads;
+    private final ReentrantLock storeLock = new ReentrantLock(true);
+
+    // every timeout of the server (XREAD BLOCK, WAIT, periodic jobs) lives here, the loop sleeps until the next one
+    private final TimingWheel timers;
+    private long selectDeadline;
+    private TimingWheel.Timeout evictionTimer; // keeps evicting after a write hit the eviction time limit
+    private TimingWheel.Timeout snapshotTimer; // walks the snapshot of a background save
+    private final boolean lazyWarmer; // the cron decodes the values rdb-lazy-load left in the RDB file
+
+    public RedisServer(Config config, Databases databases) {
         this.config = config;
         this.port = Integer.parseInt(config.get("port"));
-        this.store = store;
-        this.replicationManager = new ReplicationManager(config, store);
-        this.streamManager = new StreamManager();
-        this.commandRegistry = new CommandRegistry(config, replicationManager, streamManager);
+        this.databases = databases;
+        ServerClock.setPerCommand("command".equals(config.get("clock-update")));
+        this.timers = new TimingWheel(ServerClock.update());
+        this.replicationManager = new ReplicationManager(config, databases, timers);
+        this.streamManager = new StreamManager(timers);
+        this.rdbSaver = new RDBSaver(config, databases);
+        this.rdbSaver.setBackgroundSaveStarted(this::scheduleSnapshotCycle);
+        this.aof = "yes".equalsIgnoreCase(config.get("appendonly")) ? new AppendOnlyFile(config, databases, rdbSaver) : null;
+        if (aof != null) {
+            this.rdbSaver.setAppendOnlyFile(aof);
+            this.aof.setRewriteStarted(this::scheduleSnapshotCycle);
+        }
+        this.commandRegistry = new CommandRegistry(config, databases, replicationManager, streamManager, rdbSaver, aof);
+        this.replicationManager.setCommandRegistry(commandRegistry);
+        databases.configureEviction(Config.parseMemory(config.get("maxmemory")),
+                EvictionPolicy.fromConfig(config.get("maxmemory-policy")), Integer.parseInt(config.get("maxmemory-samples")));
+        databases.configureOffHeap(Config.parseMemory(config.get("offheap-threshold")));
+        if ("yes".equalsIgnoreCase(config.get("value-log"))) {
+            databases.configureValueLog(Path.of(config.get("dir")));
+        }
+        if (config.get("replicaof") != null) {
+            databases.configureReplica();
+        }
+
+        String executionModel = config.get("execution-model");
+        if (!"reactor".equals(executionModel) && !"virtual-threads".equals(executionModel)) {
+            throw new IllegalArgumentException("ERR unsupported execution-model '" + executionModel + "' (reactor, virtual-threads)");
+        }
+        this.virtualThreads = "virtual-threads".equals(executionModel);
+        this.lazyWarmer = "yes".equalsIgnoreCase(config.get("rdb-lazy-load")) && "yes".equalsIgnoreCase(config.get("rdb-lazy-warmer"));
     }
 
     public void initialize() throws IOException {
@@ -61,154 +155,158 @@ public class RedisServer {
         selector = Selector.open();
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-        serverSocketChannel.bind(new InetSocketAddress(port));
+        serverSocketChannel.bind(new InetSocketAddress(port), TCP_BACKLOG);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         this.replicationManager.setSelector(selector);
+        this.normalClientLimits = OutputBufferLimits.fromConfig(config, "normal");
+
+        // with a single io thread the main loop does the socket I/O itself
+        // (io threads and shard threads are reactor-mode only, virtual threads do both jobs)
+        int ioThreadCount = Integer.parseInt(config.get("io-threads"));
+        if (ioThreadCount > 1 && !virtualThreads) {
+            for (int i = 0; i < ioThreadCount; i++) {
+                IOThread ioThread = new IOThread(i, this);
+                ioThreads.add(ioThread);
+                ioThread.start();
+            }
+        }
+
+        if (!virtualThreads) {
+            for (int i = 0; i < databases.getShardCount(); i++) {
+                shardThreads.add(new ShardThread(i, databases.getShardView(i), this));
+            }
+        }
+
+        // keys go into the databases as they are read, a replica keeps expired keys for its master's DELs
+        int loadThreads = Integer.parseInt(config.get("rdb-load-threads"));
+        boolean dropExpired = config.get("replicaof") == null;
+        boolean lazyLoad = "yes".equalsIgnoreCase(config.get("rdb-lazy-load"));
+        DeferredChecksum[] deferredChecksum = new DeferredChecksum[1];
+        RDBFileParser.KeyConsumer keyConsumer = new RDBFileParser.KeyConsumer() {
+            @Override
+            public void accept(int db, Entry entry) throws IOException {
+                if (db >= databases.count()) {
+                    throw new IOException("RDB file has database " + db + ", only " + databases.count() + " are configured");
+                }
+                databases.load(db, entry);
+            }
+
+            @Override
+            public void reserve(int db, long keys) {
+                if (db < databases.count()) {
+                    databases.reserve(db, keys);
+                }
+            }
+
+            // rdb-lazy-load: checked once the server runs, see RDBSaver.loaded()
+            @Override
+            public void checksumDeferred(DeferredChecksum checksum) {
+                deferredChecksum[0] = checksum;
+            }
+        };
 
-        // Load RDB file if it exists (new change)
+        // with appendonly yes the AOF has the dataset and the RDB file is not read, like redis. a broken AOF
+        // stops the server, one that was only cut short is truncated by the loader
         String dir = config.get("dir");
         String dbfilename = config.get("dbfilename");
         String rdbFilePath = dir + "/" + dbfilename;
         File rdbFile = new File(rdbFilePath);
-        if (rdbFile.exists()) {
+        if (aof != null && aof.exists()) {
+            CapturingClientConnection replayClient = new CapturingClientConnection();
+            aof.load(loadThreads, dropExpired, lazyLoad, keyConsumer, commandParts -> replayCommand(replayClient, commandParts));
+        } else if (rdbFile.exists()) {
             try {
-                Map<String, Entry> data = RDBFileParser.parseFile(rdbFilePath);
-                store.load(data);
+                RDBFileParser.parseFile(rdbFilePath, loadThreads, dropExpired, lazyLoad, keyConsumer);
             } catch (IOException e) {
                 System.out.println("Error loading RDB file: " + e.getMessage());
+                databases.flushAll(); // no half loaded dataset
+                deferredChecksum[0] = null;
             }
         } else {
             System.out.println("RDB file not found, starting with an empty database.");
         }
+        databases.discardDeletedKeys();
+        if (aof != null) {
+            aof.open();
+        }
+        rdbSaver.loaded(deferredChecksum[0]);
+
+        // shards start after the RDB load, which goes through the routing view
+        for (ShardThread shardThread : shardThreads) {
+            shardThread.start();
+        }
 
         // Initialize replication context if needed
         if (config.get("replicaof") != null) {
             this.replicationManager.initializeReplica();
         }
 
-        System.out.println("\u001B[32mStarting Redis server on port " + port + "\u001B[0m");
+        System.out.println("\u001B[32mStarting Redis server on port " + port + " (" + config.get("execution-model") + ", io threads: " + Math.max(1, ioThreads.size()) + ", shards: " + Math.max(1, shardThreads.size()) + ")\u001B[0m");
     }
 
     public void start() throws IOException {
         initialize();
 
-        ByteBuffer buffer = ByteBuffer.allocate(4096); // Increased buffer size from original 256
-        long lastCleanupTime = System.currentTimeMillis();
+        // periodic cleanup of expired keys and keyspace rehashing
+        timers.scheduleAtFixedRate(CLEANUP_INTERVAL_MS, this::databasesCron);
+
+        // in virtual-threads mode the loop holds the store lock except while it waits in select
+        if (virtualThreads) {
+            storeLock.lock();
+        }
 
         try {
             while (true) {
-                // 1. Check for expired keys (periodic cleanup)
-                long currentTimeInMillis = System.currentTimeMillis();
-                if (currentTimeInMillis > lastCleanupTime + CLEANUP_INTERVAL_MS) {
-                    store.activeExpiryCycle(SAMPLE_SIZE, EXPIRY_THRESHOLD);
-                    lastCleanupTime = currentTimeInMillis;
+                // 1. The writes of the last iteration go to the AOF before their replies are sent (redis' beforeSleep),
+                //    then everything produced since the last select (one gathering write per client)
+                if (aof != null) {
+                    aof.flush();
                 }
+                handleClientsWithPendingWrites();
 
-                streamManager.processTimedOutRequests();
+                // shard threads run again while this thread waits for I/O
+                resumeShards();
 
-                // Non-blocking select with timeout
-                if (selector.select(100) == 0) {
-                    continue;
+                // sleep until the next timer is due, don't block while io threads still have commands queued for us
+                selectDeadline = timers.nextDeadline();
+                long selectTimeout = selectDeadline == Long.MAX_VALUE ? 0 : selectDeadline - ServerClock.update();
+                if (!queuedCommands.isEmpty() || !shardCompletions.isEmpty() || (selectDeadline != Long.MAX_VALUE && selectTimeout <= 0)) {
+                    selector.selectNow();
+                } else if (virtualThreads) {
+                    storeLock.unlock();
+                    try {
+                        selector.select(selectTimeout);
+                    } finally {
+                        storeLock.lock();
+                    }
+                } else {
+                    selector.select(selectTimeout);
                 }
 
+                // one clock reading for everything this iteration reads and executes
+                ServerClock.update();
+
                 // Accept new connections and handle client requests
                 for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
                     if (key.isAcceptable()) {
                         // Accept new connection
                         if (key.channel() instanceof ServerSocketChannel serverSocket) {
-                            SocketChannel client = serverSocket.accept();
-                            Socket socket = client.socket();
-                            String clientInfo = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
-                            System.out.println("\u001B[32mCONNECTED: " + clientInfo + "\u001B[0m");
-                            client.configureBlocking(false);
-                            client.register(selector, SelectionKey.OP_READ);
-                            clients.add(client);
+                            acceptClients(serverSocket);
                         }
                     } else if (key.isConnectable()) { // is master ready in master-replica connection
                         replicationManager.initiateMasterReplication(key);
-                    } else if (key.isReadable()) {
+                    } else {
+                        if (key.isWritable() && key.attachment() instanceof ClientConnection connection) {
+                            writeToClient(connection);
+                        }
+
                         // Handle client data
-                        if (key.channel() instanceof SocketChannel sc) {
-                            int bytesRead = sc.read(buffer);
-
-                            if (bytesRead == -1) {
-                                // Client disconnected
-                                Socket socket = sc.socket();
-                                String clientInfo = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
-                                System.out.println("Disconnected: " + clientInfo);
-
-                                // Clean up client resources
-                                replicationManager.removeReplica(sc);
-                                clients.remove(sc);
-                                sc.close();
-                                key.cancel();
-                                continue;
-                            }
-
-                            // Process the received data
-                            buffer.flip();
-                            String message = new String(buffer.array(), buffer.position(), bytesRead);
-                            buffer.clear();
-
-                            // replica context (process commands coming from master)
-                            if (sc.equals(replicationManager.getMasterConnection())) {
-                                replicationManager.handleMasterResponse(sc, message);
-                                continue;
-                            }
-
-
-                            // Parse and execute command
-                            List<String> commandParts = RESPParser.process(message);
-                            if (!commandParts.isEmpty()) {
-                                String commandName = commandParts.get(0);
-                                Command cmd = commandRegistry.getCommand(commandName);
-
-                                if (cmd != null) {
-                                    try {
-                                        // check if client is in multi mode (command wont be executed just queued in connection transaction)
-                                        if (TransactionManager.isInTransaction(sc) &&
-                                                !"MULTI".equalsIgnoreCase(commandName) &&
-                                                !"EXEC".equalsIgnoreCase(commandName) &&
-                                                !"DISCARD".equalsIgnoreCase(commandName)) {
-                                            TransactionManager.queueCommand(sc, commandParts);
-                                            sc.write(ByteBuffer.wrap("+QUEUED\r\n".getBytes()));
-                                            continue;
-                                        }
-
-                                        // Execute command based on its context requirements
-                                        if (cmdContext.get("minimalCtx").contains(commandName.toUpperCase())) {
-                                            cmd.execute(sc);
-                                        } else if (cmdContext.get("partialCtx").contains(commandName.toUpperCase())) {
-                                            cmd.execute(sc, commandParts);
-
-                                            // Handle replication state transitions (replconf listening-port, capa, psync)
-                                            if ("REPLCONF".equalsIgnoreCase(commandName) && !"ACK".equalsIgnoreCase(commandParts.get(1))) { // this condition needs to be refactored
-                                                replicationManager.addReplica(sc);
-                                                replicationManager.updateReplicaState(sc, ReplicationManager.ReplicationState.WAIT_PSYNC);
-                                            } else if ("PSYNC".equalsIgnoreCase(commandName)) {
-                                                replicationManager.updateReplicaState(sc, ReplicationManager.ReplicationState.REPLICATION_ACTIVE);
-                                            }
-
-                                        } else if (cmdContext.get("fullCtx").contains(commandName.toUpperCase())) {
-                                            cmd.execute(sc, commandParts, store);
-
-                                            // 4. Propagate changes to replicas
-                                            if ("SET".equalsIgnoreCase(commandName) || "DEL".equalsIgnoreCase(commandName)) {
-                                                // Propagate write commands to replicas
-                                                replicationManager.propagateCommand(commandParts);
-                                            }
-                                        } else {
-                                            // Unknown command context
-                                            sendErrorResponse(sc, "unknown command '" + commandName + "'");
-                                        }
-                                    } catch (Exception e) {
-                                        sendErrorResponse(sc, e.getMessage());
-                                    }
-                                } else {
-                                    // Command not found in registry
-                                    sendErrorResponse(sc, "unknown command '" + commandName + "'");
-                                }
-                            }
+                        if (key.isValid() && key.isReadable() && key.channel() instanceof SocketChannel sc) {
+                            readFromClient(key, sc);
                         }
                     }
                 }
@@ -228,6 +326,14 @@ public class RedisServer {
 
                 // Clear processed keys
                 selector.selectedKeys().clear();
+
+                // 2. Execute what the io threads parsed, then the timers that may answer blocked clients
+                processShardCompletions();
+                processQueuedCommands();
+                timers.advance(ServerClock.update());
+                replicationManager.processPendingWaits();
+                processShardCompletions();
+                runDeferredCommands();
             }
         } catch (IOException e) {
             System.out.println("Server error: " + e.getMessage());
@@ -235,8 +341,8 @@ public class RedisServer {
         } finally {
             try {
                 // clean up
-                for (SocketChannel client : clients) {
-                    client.close();
+                for (ClientConnection client : clients) {
+                    client.getChannel().close();
                 }
 
                 if (serverSocketChannel != null)
@@ -248,8 +354,826 @@ public class RedisServer {
         }
     }
 
-    private void sendErrorResponse(SocketChannel client, String errorMessage) throws IOException {
-        String response = "-ERR " + errorMessage + "\r\n";
-        client.write(ByteBuffer.wrap(response.getBytes()));
+    // drains the accept queue, one select wakeup per connection would not keep up with a burst of connects
+    private void acceptClients(ServerSocketChannel serverSocket) throws IOException {
+        for (int i = 0; i < MAX_ACCEPTS_PER_CALL; i++) {
+            SocketChannel client = serverSocket.accept();
+            if (client == null) {
+                return;
+            }
+            acceptClient(client);
+        }
+    }
+
+    private void acceptClient(SocketChannel client) throws IOException {
+        Socket socket = client.socket();
+        String clientInfo = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        System.out.println("\u001B[32mCONNECTED: " + clientInfo + "\u001B[0m");
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        if (virtualThreads) {
+            ClientConnection connection = new ClientConnection(client, null, normalClientLimits);
+            connection.setUnblockedCondition(storeLock.newCondition());
+            clients.add(connection);
+            Thread.ofVirtual().name("client-" + clientInfo).start(() -> serveClient(connection));
+            return;
+        }
+
+        client.configureBlocking(false);
+
+        if (ioThreads.isEmpty()) {
+            ClientConnection connection = new ClientConnection(client, clientsPendingWrite, normalClientLimits);
+            connection.setSelectionKey(client.register(selector, SelectionKey.OP_READ, connection));
+            clients.add(connection);
+            return;
+        }
+
+        // round robin, the connection stays on the same reactor for its whole life
+        IOThread ioThread = ioThreads.get(nextIoThread++ % ioThreads.size());
+        Queue<ClientConnection> pendingWrites = isFsyncAlways() ? ioThread.getStagedWrites() : ioThread.getPendingWrites();
+        ClientConnection connection = new ClientConnection(client, pendingWrites, normalClientLimits);
+        clients.add(connection);
+        ioThread.addClient(connection);
+    }
+
+    private void readFromClient(SelectionKey key, SocketChannel sc) throws IOException {
+        // the master link is registered by the replication manager, so it gets its connection state on first read
+        if (key.attachment() == null) {
+            ClientConnection masterLink = new ClientConnection(sc, clientsPendingWrite, normalClientLimits);
+            masterLink.setSelectionKey(key);
+            key.attach(masterLink);
+        }
+        ClientConnection connection = (ClientConnection) key.attachment();
+
+        int bytesRead;
+        try {
+            bytesRead = connection.readFromSocket();
+        } catch (IOException | IllegalStateException e) {
+            System.out.println("\u001B[31mError reading from client: " + e.getMessage() + "\u001B[0m");
+            bytesRead = -1;
+        }
+
+        if (bytesRead == -1) {
+            // Client disconnected
+            closeClient(connection);
+            return;
+        }
+
+        // replica context (process commands coming from master)
+        if (sc.equals(replicationManager.getMasterConnection())) {
+            pauseShards();
+            replicationManager.handleMasterData(connection);
+            return;
+        }
+
+        // run every complete command of the pipeline, a partial trailing frame stays in the query buffer
+        try {
+            RESPCommand command;
+            while ((command = connection.nextCommand()) != null && !connection.isCloseAsap()) {
+                processCommand(connection, command.toParts());
+            }
+        } catch (IllegalArgumentException e) {
+            // reply with the protocol error and close once it is sent
+            connection.stopReading();
+            key.interestOps(0);
+            sendErrorResponse(connection, e.getMessage());
+            connection.closeAfterReply();
+            return;
+        }
+
+        connection.compactQueryBuffer();
+    }
+
+    private void executeCommand(ClientConnection sc, CommandParts commandParts) throws IOException {
+        ServerClock.beforeCommand();
+        CommandDescriptor descriptor = commandRegistry.lookup(commandParts.getBytes(0));
+
+        if (descriptor == null) {
+            // Command not found in registry
+            sendErrorResponse(sc, "unknown command '" + commandParts.get(0) + "'");
+            return;
+        }
+
+        if (!descriptor.checkArity(commandParts.size())) {
+            sendErrorResponse(sc, "wrong number of arguments for '" + descriptor.name() + "' command");
+            return;
+        }
+
+        try {
+            // check if client is in multi mode (command wont be executed just queued in connection transaction)
+            if (TransactionManager.isInTransaction(sc) && !descriptor.hasFlag(CommandDescriptor.TRANSACTION)) {
+                TransactionManager.queueCommand(sc, commandParts);
+                sc.addReply(RESPEncoder.QUEUED);
+                return;
+            }
+
+            int evictionResult = performEvictions(sc, descriptor, databases);
+            if (evictionResult == Databases.EVICT_RUNNING && shardThreads.isEmpty()) {
+                scheduleEvictionCycle();
+            }
+            if (evictionResult == Databases.EVICT_FAIL && isDenyOom(sc, descriptor)) {
+                // a refused EXEC discards the transaction, like redis' execCommandAbort
+                TransactionManager.abortTransaction(sc);
+                sendErrorResponse(sc, OOM_ERROR);
+                return;
+            }
+
+            if (descriptor.isWrite() && aof != null && aof.getWriteError() != null) {
+                sendErrorResponse(sc, "MISCONF Errors writing to the AOF file: " + aof.getWriteError());
+                return;
+            }
+
+            // EXEC removes the transaction, its writes are propagated from this copy
+            List<CommandParts> transaction = "exec".equals(descriptor.name()) && TransactionManager.isInTransaction(sc)
+                    ? new ArrayList<>(TransactionManager.getTransaction(sc)) : null;
+            int db = sc.getDb();
+
+            descriptor.command().execute(sc, commandParts, databases.get(db));
+            propagateDeletions();
+
+            // Handle replication state transitions (replconf listening-port, capa, psync)
+            if ("replconf".equals(descriptor.name()) && commandParts.size() > 1 && !commandParts.equalsIgnoreCase(1, "ACK")) { // this condition needs to be refactored
+                replicationManager.addReplica(sc);
+                replicationManager.updateReplicaState(sc, ReplicationManager.ReplicationState.WAIT_PSYNC);
+            } else if ("psync".equals(descriptor.name())) {
+                replicationManager.updateReplicaState(sc, ReplicationManager.ReplicationState.REPLICATION_ACTIVE);
+            }
+
+            // Propagate write commands to replicas and the AOF
+            if (descriptor.isWrite()) {
+                propagate(sc.getDb(), commandParts);
+            } else if (transaction != null) {
+                propagateTransaction(db, transaction);
+            }
+        } catch (Exception e) {
+            sendErrorResponse(sc, e.getMessage());
+        } finally {
+            // keys expired or evicted by a command that failed
+            propagateDeletions();
+        }
+    }
+
+    // virtual-threads mode: the reader thread of one connection (the socket is in blocking mode)
+    private void serveClient(ClientConnection connection) {
+        Thread.ofVirtual().name("client-writer").start(() -> {
+            try {
+                connection.writeLoop();
+            } catch (IOException | InterruptedException e) {
+                System.out.println("\u001B[31mError writing to client: " + e.getMessage() + "\u001B[0m");
+            }
+            // over its output limits, or done sending the error of closeAfterReply()
+            connection.close();
+        });
+
+        try {
+            while (!connection.isCloseAsap() && !connection.isCloseAfterReply()) {
+                if (connection.readFromSocket() == -1) {
+                    break;
+                }
+                ServerClock.update();
+
+                try {
+                    RESPCommand command;
+                    while ((command = connection.nextCommand()) != null && !connection.isCloseAsap()) {
+                        executeWithStoreLock(connection, command.toParts());
+                    }
+                } catch (IllegalArgumentException e) {
+                    // the writer thread closes the connection once the error is sent
+                    sendErrorResponse(connection, e.getMessage());
+                    connection.closeAfterReply();
+                    break;
+                }
+
+                connection.compactQueryBuffer();
+            }
+        } catch (IOException | IllegalStateException e) {
+            // also the way a blocked read ends when the writer thread closes the socket
+            if (connection.getChannel().isOpen()) {
+                System.out.println("\u001B[31mError reading from client: " + e.getMessage() + "\u001B[0m");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!connection.isCloseAfterReply()) {
+            connection.close();
+        }
+
+        storeLock.lock();
+        try {
+            releaseClient(connection);
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    // WAIT and XREAD BLOCK just park this virtual thread: the command registers the client as usual and the thread
+    // sleeps on its condition until an XADD, a replica ACK or the timers of the main loop answer it
+    private void executeWithStoreLock(ClientConnection connection, CommandParts commandParts) throws IOException, InterruptedException {
+        // with appendfsync always the reply is held until the command is on disk, each command syncs on its own
+        boolean holdReplies = isFsyncAlways();
+        storeLock.lock();
+        try {
+            if (holdReplies) {
+                connection.holdReplies();
+            }
+            executeCommand(connection, commandParts);
+            if (holdReplies) {
+                aof.flush();
+            }
+
+            // a REPLCONF ACK may be what a waiting WAIT needs
+            replicationManager.processPendingWaits();
+
+            // the event loop sleeps until selectDeadline, a blocking command may need it earlier
+            if (timers.getEarliestScheduled() < selectDeadline) {
+                selector.wakeup();
+            }
+
+            connection.awaitUnblocked();
+        } finally {
+            if (holdReplies) {
+                connection.releaseReplies();
+            }
+            storeLock.unlock();
+        }
+    }
+
+    // called from the io threads
+    void submitCommand(ClientConnection client, CommandParts commandParts) {
+        client.addQueuedCommandBytes(commandParts.byteLength());
+        queuedCommands.add(new QueuedCommand(client, commandParts, null));
+    }
+
+    void submitProtocolError(ClientConnection client, String error) {
+        queuedCommands.add(new QueuedCommand(client, null, error));
+    }
+
+    void submitDisconnect(ClientConnection client) {
+        queuedCommands.add(new QueuedCommand(client, null, null));
+    }
+
+    void wakeupExecutor() {
+        selector.wakeup();
+    }
+
+    // runs commands in arrival order, which keeps the order of every connection's pipeline
+    private void processQueuedCommands() throws IOException {
+        QueuedCommand queued;
+        int processed = 0;
+        while (processed++ < MAX_COMMANDS_PER_BATCH && (queued = queuedCommands.poll()) != null) {
+            ClientConnection connection = queued.client();
+            if (queued.commandParts() != null) {
+                // counted before it runs, SET rewrites its arguments and a shard may be running it already
+                long bytes = queued.commandParts().byteLength();
+                if (connection.isCloseAsap() || processCommand(connection, queued.commandParts())) {
+                    connection.removeQueuedCommandBytes(bytes);
+                }
+            } else if (queued.protocolError() != null) {
+                sendErrorResponse(connection, queued.protocolError());
+                connection.closeAfterReply();
+            } else {
+                releaseClient(connection);
+            }
+        }
+    }
+
+    // a blocked client keeps its place in line: later commands wait until WAIT / XREAD BLOCK is answered.
+    // returns false if the command was deferred
+    private boolean processCommand(ClientConnection connection, CommandParts commandParts) throws IOException {
+        if (connection.hasDeferredCommands() || !dispatchCommand(connection, commandParts)) {
+            connection.deferCommand(commandParts);
+            clientsWithDeferredCommands.add(connection);
+            return false;
+        }
+        return true;
+    }
+
+    private void runDeferredCommands() throws IOException {
+        if (clientsWithDeferredCommands.isEmpty()) {
+            return;
+        }
+
+        Iterator<ClientConnection> itr = clientsWithDeferredCommands.iterator();
+        while (itr.hasNext()) {
+            ClientConnection connection = itr.next();
+            CommandParts commandParts;
+            while ((commandParts = connection.peekDeferredCommand()) != null) {
+                long bytes = ioThreads.isEmpty() ? 0 : commandParts.byteLength();
+                if (!dispatchCommand(connection, commandParts)) {
+                    break;
+                }
+                connection.nextDeferredCommand();
+                // only the io threads count the commands they queue
+                if (!ioThreads.isEmpty()) {
+                    connection.removeQueuedCommandBytes(bytes);
+                }
+            }
+
+            if (!connection.hasDeferredCommands()) {
+                itr.remove();
+            }
+        }
+    }
+
+    // runs the command here or on its shard, returns false if the client has to wait first
+    private boolean dispatchCommand(ClientConnection connection, CommandParts commandParts) throws IOException {
+        if (connection.isBlocked()) {
+            return false;
+        }
+
+        if (shardThreads.isEmpty()) {
+            executeCommand(connection, commandParts);
+            return true;
+        }
+
+        // replies must keep the pipeline order, so a client only has commands in flight on one shard at a time
+        CommandDescriptor descriptor = commandRegistry.lookup(commandParts.getBytes(0));
+        if (isSplittable(connection, descriptor, commandParts)) {
+            if (connection.getInFlightCommands() > 0 && connection.getInFlightShard() != SPLIT_SHARDS) {
+                return false;
+            }
+            executeOnShards(connection, descriptor, commandParts);
+            return true;
+        }
+
+        int shard = routeToShard(connection, descriptor, commandParts);
+        if (connection.getInFlightCommands() > 0 && shard != connection.getInFlightShard()) {
+            return false;
+        }
+
+        if (shard >= 0) {
+            connection.startShardCommand(shard);
+            ShardThread shardThread = shardThreads.get(shard);
+            int db = connection.getDb();
+            shardThread.submit(() -> executeOnShard(connection, descriptor, commandParts, shardThread, db));
+            return true;
+        }
+
+        // everything else runs here, with the shards parked if it touches the keyspace or snapshots it
+        if (descriptor != null && (descriptor.accessesKeyspace() || descriptor.hasFlag(CommandDescriptor.PAUSE_SHARDS))) {
+            pauseShards();
+        }
+        executeCommand(connection, commandParts);
+        return true;
+    }
+
+    // shard of a single key command, -1 if it has to run on this thread (which also reports unknown commands and arity errors)
+    // with appendfsync always (or while the AOF can't be written) writes stay here too, their replies have to wait
+    // for the AOF flush before the next select
+    private int routeToShard(ClientConnection connection, CommandDescriptor descriptor, CommandParts commandParts) {
+        if (shardsResume != null || descriptor == null || !descriptor.isSingleKey() || !descriptor.checkArity(commandParts.size())
+                || !SHARDED_COMMANDS.contains(descriptor.name()) || TransactionManager.isInTransaction(connection)) {
+            return -1;
+        }
+        if (descriptor.isWrite() && aof != null && (isFsyncAlways() || aof.getWriteError() != null)) {
+            return -1;
+        }
+        return ((ShardedDataStore) databases.get(connection.getDb())).shardIndex(commandParts.getBytes(descriptor.firstKey()));
+    }
+
+    // MGET / MSET / DEL: split by shard unless they have to run here like single key commands do. with maxmemory
+    // MSET stays here, a shard running out of memory could not refuse it without the others having written
+    private boolean isSplittable(ClientConnection connection, CommandDescriptor descriptor, CommandParts commandParts) {
+        if (shardsResume != null || descriptor == null || !(descriptor.command() instanceof SplittableCommand)
+                || !descriptor.checkArity(commandParts.size()) || (commandParts.size() - descriptor.firstKey()) % descriptor.keyStep() != 0
+                || TransactionManager.isInTransaction(connection)) {
+            return false;
+        }
+        if (descriptor.isWrite() && aof != null && (isFsyncAlways() || aof.getWriteError() != null)) {
+            return false;
+        }
+        return !descriptor.hasFlag(CommandDescriptor.DENYOOM) || databases.getMaxMemory() == 0;
+    }
+
+    // every shard gets the keys it owns in one task. shards run their tasks in the order this thread queued them,
+    // so each part runs after everything queued before the command on that shard and before everything queued
+    // after it: like any other command the split one sees and leaves the keyspace as if it ran alone. the part
+    // finishing last hands the command back, it is propagated right away and replied in the client's order
+    private void executeOnShards(ClientConnection connection, CommandDescriptor descriptor, CommandParts commandParts) {
+        ShardedDataStore sharded = (ShardedDataStore) databases.get(connection.getDb());
+        int last = descriptor.lastKey() >= 0 ? descriptor.lastKey() : commandParts.size() + descriptor.lastKey();
+        int[] shardOfKey = new int[commandParts.size()];
+        int[] counts = new int[shardThreads.size()];
+        for (int i = descriptor.firstKey(); i <= last; i += descriptor.keyStep()) {
+            shardOfKey[i] = sharded.shardIndex(commandParts.getBytes(i));
+            counts[shardOfKey[i]]++;
+        }
+
+        int[][] keys = new int[shardThreads.size()][];
+        int parts = 0;
+        for (int s = 0; s < keys.length; s++) {
+            if (counts[s] > 0) {
+                keys[s] = new int[counts[s]];
+                counts[s] = 0;
+                parts++;
+            }
+        }
+        for (int i = descriptor.firstKey(); i <= last; i += descriptor.keyStep()) {
+            int s = shardOfKey[i];
+            keys[s][counts[s]++] = i;
+        }
+
+        SplittableCommand command = (SplittableCommand) descriptor.command();
+        SplitCommand split = new SplitCommand(command, commandParts, parts);
+        CommandParts propagate = descriptor.isWrite() ? commandParts : null;
+        int db = connection.getDb();
+        connection.startSplitCommand(SPLIT_SHARDS, split);
+        for (int s = 0; s < keys.length; s++) {
+            if (keys[s] == null) {
+                continue;
+            }
+
+            ShardThread shardThread = shardThreads.get(s);
+            int[] shardKeys = keys[s];
+            shardThread.submit(() -> {
+                ServerClock.beforeCommand();
+                if (performEvictions(connection, descriptor, shardThread.getDatabases()) == Databases.EVICT_RUNNING) {
+                    shardThread.continueEvictions();
+                }
+                command.executeKeys(commandParts, shardKeys, shardThread.getDatabases().get(db), split.getResults());
+                queueDeletions(shardThread.getDatabases());
+                if (split.finishPart()) {
+                    shardCompletions.add(new ShardCompletion(connection, db, propagate, split));
+                }
+            });
+        }
+    }
+
+    // runs on a shard thread: only the shard's own DataStores and the client's (locked) reply buffer are touched
+    private void executeOnShard(ClientConnection connection, CommandDescriptor descriptor, CommandParts commandParts, ShardThread shardThread, int db) {
+        Database shard = shardThread.getDatabases().get(db);
+        CommandParts propagate = null;
+        ServerClock.beforeCommand();
+        try {
+            int evictionResult = performEvictions(connection, descriptor, shardThread.getDatabases());
+            if (evictionResult == Databases.EVICT_RUNNING) {
+                shardThread.continueEvictions();
+            }
+            if (evictionResult == Databases.EVICT_FAIL && isDenyOom(connection, descriptor)) {
+                throw new Exception(OOM_ERROR);
+            }
+
+            descriptor.command().execute(connection, commandParts, shard);
+            if (descriptor.isWrite()) {
+                propagate = commandParts;
+            }
+        } catch (Exception e) {
+            sendErrorResponse(connection, e.getMessage());
+        }
+        queueDeletions(shardThread.getDatabases());
+        shardCompletions.add(new ShardCompletion(connection, db, propagate, null));
+    }
+
+    // runs on a shard thread: the keys its stores deleted on their own go to the main thread as DELs, ahead of the
+    // command that deleted them
+    void queueDeletions(Databases shard) {
+        DeletedKeys deleted = shard.getDeletedKeys();
+        for (int i = 0; i < deleted.size(); i++) {
+            shardCompletions.add(new ShardCompletion(null, deleted.getDb(i), deleteCommand(deleted.getKey(i)), null));
+        }
+        deleted.clear();
+    }
+
+    // the keys the stores this thread may touch deleted on their own, before the command that deleted them
+    private void propagateDeletions() throws IOException {
+        if (shardThreads.isEmpty()) {
+            propagateDeletions(databases);
+        } else if (shardsResume != null) {
+            for (int i = 0; i < databases.getShardCount(); i++) {
+                propagateDeletions(databases.getShardView(i));
+            }
+        }
+    }
+
+    private void propagateDeletions(Databases owner) throws IOException {
+        DeletedKeys deleted = owner.getDeletedKeys();
+        for (int i = 0; i < deleted.size(); i++) {
+            propagateDeletion(deleted.getDb(i), deleteCommand(deleted.getKey(i)));
+        }
+        deleted.clear();
+    }
+
+    private static CommandParts deleteCommand(byte[] key) {
+        return new CommandParts(new byte[][] {DEL, key});
+    }
+
+    // the DEL of a key a store deleted on its own (redis' propagateDeletion), to the replicas and the AOF
+    private void propagateDeletion(int db, CommandParts delete) throws IOException {
+        propagate(db, delete);
+    }
+
+    private void processShardCompletions() throws IOException {
+        ShardCompletion completion;
+        while ((completion = shardCompletions.poll()) != null) {
+            if (completion.client() == null) {
+                propagateDeletion(completion.db(), completion.propagate());
+                continue;
+            }
+            if (completion.propagate() != null) {
+                propagate(completion.db(), completion.propagate());
+            }
+            if (completion.split() == null) {
+                completion.client().finishShardCommand();
+                continue;
+            }
+
+            completion.split().markDone();
+            ClientConnection client = completion.client();
+            SplitCommand split;
+            while ((split = client.peekSplitCommand()) != null && split.isDone()) {
+                split.addReplyTo(client);
+                client.nextSplitCommand();
+                client.finishShardCommand();
+            }
+        }
+    }
+
+    // a write command as it ran (commands turn relative arguments into absolute ones, like SET PX into PXAT) goes
+    // to the replicas and the AOF
+    private void propagate(int db, CommandParts commandParts) throws IOException {
+        replicationManager.propagateCommand(db, commandParts);
+        if (aof != null) {
+            aof.feed(db, commandParts);
+        }
+    }
+
+    // the writes an EXEC ran, for the AOF inside MULTI / EXEC so a transaction is replayed whole or not at all.
+    // a queued SELECT moves the commands after it to its database
+    private void propagateTransaction(int db, List<CommandParts> transaction) throws IOException {
+        boolean wrapped = false;
+        for (CommandParts commandParts : transaction) {
+            CommandDescriptor descriptor = commandRegistry.lookup(commandParts.getBytes(0));
+            if (descriptor == null || !descriptor.checkArity(commandParts.size())) {
+                continue;
+            }
+
+            if ("select".equals(descriptor.name())) {
+                try {
+                    int index = Integer.parseInt(commandParts.get(1));
+                    if (index >= 0 && index < databases.count()) {
+                        db = index;
+                    }
+                } catch (NumberFormatException e) {
+                    // the SELECT failed, the database stays
+                }
+            } else if (descriptor.isWrite()) {
+                if (aof != null && !wrapped) {
+                    aof.feed(db, CommandParts.of("MULTI"));
+                    wrapped = true;
+                }
+                propagate(db, commandParts);
+            }
+        }
+
+        if (wrapped) {
+            aof.feed(db, CommandParts.of("EXEC"));
+        }
+    }
+
+    // a command read from the AOF while loading, its reply is dropped like the replies to the master link
+    private void replayCommand(CapturingClientConnection replayClient, CommandParts commandParts) throws IOException {
+        CommandDescriptor descriptor = commandRegistry.lookup(commandParts.getBytes(0));
+        if (descriptor == null || !descriptor.checkArity(commandParts.size())) {
+            throw new IOException("Unknown command '" + commandParts.get(0) + "' reading the append only file");
+        }
+
+        try {
+            descriptor.command().execute(replayClient, commandParts, databases.get(replayClient.getDb()));
+        } catch (Exception e) {
+            // it failed the same way when it ran
+        } finally {
+            replayClient.discardReplies();
+        }
+    }
+
+    private boolean isFsyncAlways() {
+        return aof != null && aof.getFsyncPolicy() == AppendOnlyFile.FsyncPolicy.ALWAYS;
+    }
+
+    // parks every shard thread once it has finished the work queued before, after this the routing view in
+    // 'databases' can be used by this thread. completions are drained so replicas see writes in execution order.
+    private void pauseShards() throws IOException {
+        if (shardThreads.isEmpty() || shardsResume != null) {
+            return;
+        }
+
+        CountDownLatch parked = new CountDownLatch(shardThreads.size());
+        CountDownLatch resume = new CountDownLatch(1);
+        for (ShardThread shardThread : shardThreads) {
+            shardThread.submit(() -> {
+                parked.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // the pause may have been long (SAVE, a big EXEC), the shard's clock moves on to now
+                ServerClock.update();
+            });
+        }
+
+        try {
+            parked.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while pausing shards");
+        }
+        shardsResume = resume;
+        processShardCompletions();
+    }
+
+    private void resumeShards() {
+        if (shardsResume != null) {
+            shardsResume.countDown();
+            shardsResume = null;
+        }
+    }
+
+    private void databasesCron() {
+        if (aof != null && aof.isRewriteDue()) {
+            try {
+                pauseShards();
+                aof.rewrite();
+            } catch (IOException e) {
+                System.out.println("Background append only file rewriting not started: " + e.getMessage());
+            }
+        }
+        if (rdbSaver.isBackgroundSaveDue()) {
+            try {
+                pauseShards();
+                rdbSaver.startBackgroundSave(false);
+            } catch (IOException e) {
+                System.out.println("Background saving not started: " + e.getMessage());
+            }
+        }
+
+        if (shardThreads.isEmpty()) {
+            databases.activeExpiryCycle(SAMPLE_SIZE, EXPIRY_THRESHOLD, EXPIRY_TIME_LIMIT_MS);
+            databases.incrementallyRehash(REHASH_TIME_LIMIT_MICROS);
+            databases.compactValueLogs(VALUE_LOG_COMPACT_TIME_LIMIT_MICROS);
+            if (lazyWarmer) {
+                databases.warmLazyValues(LAZY_WARM_TIME_LIMIT_MICROS);
+            }
+            // reads bring spilled values back, so memory can grow without any write
+            if (databases.performEvictions() == Databases.EVICT_RUNNING) {
+                scheduleEvictionCycle();
+            }
+            propagateTimerDeletions();
+            return;
+        }
+
+        for (ShardThread shardThread : shardThreads) {
+            shardThread.submit(() -> {
+                Databases shard = shardThread.getDatabases();
+                shard.activeExpiryCycle(SAMPLE_SIZE, EXPIRY_THRESHOLD, EXPIRY_TIME_LIMIT_MS);
+                shard.incrementallyRehash(REHASH_TIME_LIMIT_MICROS);
+                shard.compactValueLogs(VALUE_LOG_COMPACT_TIME_LIMIT_MICROS);
+                if (lazyWarmer) {
+                    shard.warmLazyValues(LAZY_WARM_TIME_LIMIT_MICROS);
+                }
+                if (shard.performEvictions() == Databases.EVICT_RUNNING) {
+                    shardThread.continueEvictions();
+                }
+                queueDeletions(shard);
+            });
+        }
+    }
+
+    // write commands (and EXEC with queued writes) free memory first when over maxmemory
+    private int performEvictions(ClientConnection client, CommandDescriptor descriptor, Databases target) {
+        if (!descriptor.isWrite() && !isDenyOom(client, descriptor) && !"exec".equals(descriptor.name())) {
+            return Databases.EVICT_OK;
+        }
+        return target.performEvictions();
+    }
+
+    // DENYOOM commands, or an EXEC running one, are refused while memory can't be freed
+    private boolean isDenyOom(ClientConnection client, CommandDescriptor descriptor) {
+        if (descriptor.hasFlag(CommandDescriptor.DENYOOM)) {
+            return true;
+        }
+        if (!"exec".equals(descriptor.name()) || !TransactionManager.isInTransaction(client)) {
+            return false;
+        }
+
+        for (CommandParts queued : TransactionManager.getTransaction(client)) {
+            CommandDescriptor queuedDescriptor = commandRegistry.lookup(queued.getBytes(0));
+            if (queuedDescriptor != null && queuedDescriptor.hasFlag(CommandDescriptor.DENYOOM)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // evicts a bit more on every tick until the store is back under maxmemory (redis' evictionTimeProc)
+    private void scheduleEvictionCycle() {
+        if (evictionTimer == null || !evictionTimer.isPending()) {
+            evictionTimer = timers.schedule(ServerClock.millis(), () -> {
+                if (databases.performEvictions() == Databases.EVICT_RUNNING) {
+                    scheduleEvictionCycle();
+                }
+                propagateTimerDeletions();
+            });
+        }
+    }
+
+    // keys the cron or the eviction timer deleted, there is no client to report a failure to
+    private void propagateTimerDeletions() {
+        try {
+            propagateDeletions();
+        } catch (IOException e) {
+            System.out.println("Error propagating deleted keys: " + e.getMessage());
+        }
+    }
+
+    // a background save or AOF rewrite: the threads owning the keyspace walk its snapshot a slice at a time, the
+    // writer thread encodes what they hand over. once the file is written (or that failed) the stores are let go
+    private void scheduleSnapshotCycle() {
+        if (snapshotTimer == null || !snapshotTimer.isPending()) {
+            snapshotTimer = timers.scheduleAtFixedRate(SNAPSHOT_STEP_INTERVAL_MS, this::snapshotCycle);
+        }
+    }
+
+    private void snapshotCycle() {
+        Snapshot snapshot = aof != null && aof.isRewriteInProgress() ? aof.getRewriteSnapshot() : rdbSaver.getBackgroundSnapshot();
+        if (snapshot != null) {
+            if (shardThreads.isEmpty()) {
+                snapshot.step(-1, SNAPSHOT_STEP_TIME_LIMIT_NANOS);
+            } else if (snapshot.isAborted()) {
+                for (int i = 0; i < shardThreads.size(); i++) {
+                    int shard = i;
+                    shardThreads.get(i).submit(() -> snapshot.step(shard, 0));
+                }
+            } else {
+                int shard = snapshot.getCurrentShard();
+                if (shard >= 0) {
+                    shardThreads.get(shard).submit(() -> snapshot.step(shard, SNAPSHOT_STEP_TIME_LIMIT_NANOS));
+                }
+            }
+        }
+
+        if (rdbSaver.finishBackgroundSave() && (aof == null || aof.finishRewrite())) {
+            snapshotTimer.cancel();
+        }
+    }
+
+    private void handleClientsWithPendingWrites() throws IOException {
+        ClientConnection connection;
+        while ((connection = clientsPendingWrite.poll()) != null) {
+            writeToClient(connection);
+        }
+
+        for (IOThread ioThread : ioThreads) {
+            ioThread.wakeupIfPendingWrites();
+        }
+    }
+
+    // flushes a client's reply buffer, OP_WRITE stays registered only while the socket cannot take more
+    private void writeToClient(ClientConnection connection) throws IOException {
+        if (connection.isCloseAsap()) {
+            closeClient(connection);
+            return;
+        }
+
+        SelectionKey key = connection.getSelectionKey();
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        try {
+            boolean flushed = connection.flush();
+            if (flushed && connection.isCloseAfterReply()) {
+                closeClient(connection);
+                return;
+            }
+
+            int readInterest = connection.isReadStopped() ? 0 : SelectionKey.OP_READ;
+            key.interestOps(flushed ? readInterest : readInterest | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.out.println("\u001B[31mError writing to client: " + e.getMessage() + "\u001B[0m");
+            closeClient(connection);
+        }
+    }
+
+    private void closeClient(ClientConnection connection) {
+        if (connection.close()) {
+            releaseClient(connection);
+        }
+    }
+
+    // drops the server side state of a closed connection, always on the executor thread
+    private void releaseClient(ClientConnection connection) {
+        replicationManager.removeReplica(connection);
+        replicationManager.removeWaitRequests(connection);
+        TransactionManager.abortTransaction(connection);
+        StreamManager.removeClient(connection);
+        clients.remove(connection);
+        clientsPendingWrite.remove(connection);
+        clientsWithDeferredCommands.remove(connection);
+    }
+
+    private void sendErrorResponse(ClientConnection client, String errorMessage) {
+        client.addReplyError(errorMessage);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// cached wall clock in milliseconds for TTLs, stream ids and blocking deadlines, so a lookup or a full
+// keyspace scan never asks the OS for the time. it is refreshed once per event loop iteration and once per
+// command batch (shard threads, virtual threads), or before every command with --clock-update command.
+// it never goes backwards, a wall clock step back just holds it until the real time catches up.
+// every thread running commands reads its own copy, taken by its last update() / beforeCommand(): another
+// thread refreshing the clock doesn't move it, so time is frozen while a command runs (EXEC included) and all
+// its TTL checks agree with each other. threads that never refresh it read the shared time
+public final class ServerClock {
+    private static final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    private static final ThreadLocal<long[]> frozen = ThreadLocal.withInitial(() -> new long[] {-1});
+    private static volatile boolean perCommand;
+
+    private ServerClock() {
+    }
+
+    public static void setPerCommand(boolean perCommand) {
+        ServerClock.perCommand = perCommand;
+    }
+
+    public static long millis() {
+        long time = frozen.get()[0];
+        return time >= 0 ? time : now.get();
+    }
+
+    // refreshes the cached time, the calling thread reads the returned value until its next refresh
+    public static long update() {
+        long current = System.currentTimeMillis();
+        long cached = now.get();
+        if (current > cached) {
+            cached = now.accumulateAndGet(current, Math::max);
+        }
+        frozen.get()[0] = cached;
+        return cached;
+    }
+
+    // called before each top level command, only refreshes in per-command mode. otherwise the command runs with
+    // the time of its thread's last update(), at the start of the loop iteration or batch it belongs to
+    public static void beforeCommand() {
+        if (perCommand) {
+            update();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import store.Databases;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// owns one shard of every database, nothing else ever touches those DataStores while the shard is running.
+// the main thread routes single key commands and its part of MGET / MSET / DEL here and parks the shard (see
+// RedisServer.pauseShards) for other commands touching the keyspace, the shard itself only queues its leftover
+// eviction work.
+public final class ShardThread extends Thread {
+    private static final int MAX_TASKS_PER_CLOCK_READING = 1024; // like the main loop's command batches
+
+    private final Databases databases; // the shard's part of every database
+    private final RedisServer server;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private boolean evictionQueued; // only used by this thread
+
+    public ShardThread(int id, Databases databases, RedisServer server) {
+        super("shard-" + id);
+        this.databases = databases;
+        this.server = server;
+        setDaemon(true);
+    }
+
+    public Databases getDatabases() {
+        return databases;
+    }
+
+    public void submit(Runnable task) {
+        tasks.add(task);
+        LockSupport.unpark(this);
+    }
+
+    // called on this thread when evicting hit its time limit: the rest is freed in slices between the commands
+    void continueEvictions() {
+        if (evictionQueued) {
+            return;
+        }
+
+        evictionQueued = true;
+        tasks.add(() -> {
+            evictionQueued = false;
+            if (databases.performEvictions() == Databases.EVICT_RUNNING) {
+                continueEvictions();
+            }
+            server.queueDeletions(databases);
+        });
+    }
+
+    @Override
+    public void run() {
+        boolean ranTasks = false;
+        int batchTasks = 0;
+        while (true) {
+            Runnable task = tasks.poll();
+            if (task != null) {
+                // a batch of commands shares one clock reading, a queue that never drains still gets a fresh one
+                // every MAX_TASKS_PER_CLOCK_READING tasks
+                if (!ranTasks || ++batchTasks == MAX_TASKS_PER_CLOCK_READING) {
+                    ServerClock.update();
+                    batchTasks = 0;
+                }
+                task.run();
+                ranTasks = true;
+                continue;
+            }
+
+            // queue drained: one wakeup lets the main thread pick up all completions of this batch
+            if (ranTasks) {
+                ranTasks = false;
+                server.wakeupExecutor();
+            }
+            LockSupport.park(this);
+        }
+    }
+}
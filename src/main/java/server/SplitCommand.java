@@ -0,0 +1,46 @@
+package server;
+
+import command.SplittableCommand;
+import protocol.CommandParts;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a multi-key command split over the shards (see RedisServer.executeOnShards). every shard fills in the results
+// of its keys, the main thread adds the reply once all parts are done and the client's split commands queued
+// before it have replied, so a pipeline can keep several of them in flight
+final class SplitCommand {
+    private final SplittableCommand command;
+    private final CommandParts commandParts;
+    private final Object[] results;
+    private final AtomicInteger remainingParts;
+    private boolean done; // main thread only
+
+    SplitCommand(SplittableCommand command, CommandParts commandParts, int parts) {
+        this.command = command;
+        this.commandParts = commandParts;
+        this.results = new Object[commandParts.size()];
+        this.remainingParts = new AtomicInteger(parts);
+    }
+
+    Object[] getResults() {
+        return results;
+    }
+
+    // called by a shard once its part ran, true for the last one. the decrement publishes the part's results
+    // to the thread finishing the last one
+    boolean finishPart() {
+        return remainingParts.decrementAndGet() == 0;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    void markDone() {
+        done = true;
+    }
+
+    void addReplyTo(ClientConnection client) {
+        command.addCombinedReply(client, commandParts, results);
+    }
+}
@@ -0,0 +1,206 @@
+package server;
+
+// hierarchical timing wheel with millisecond ticks (the cascading timer wheel of the linux kernel).
+// level 0 has one slot per millisecond for the next 64 ms, every level above covers 64 times the span
+// of the one below, so 5 levels reach ~12 days, anything later is parked in the top level and rescheduled.
+// schedule and cancel are O(1), advance() does O(1) work per elapsed tick plus the timers it fires.
+// not thread safe: only the thread running the event loop (or holding the store lock) may touch it.
+public class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+    private static final long MAX_SPAN = 1L << (SLOT_BITS * LEVELS);
+
+    // circular doubly linked lists, the slot heads are sentinels
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    // earliest deadline scheduled since the last nextDeadline() call, lets another thread notice
+    // that the event loop sleeps for too long (virtual-threads mode)
+    private long earliestScheduled = Long.MAX_VALUE;
+
+    public TimingWheel(long now) {
+        this.currentTick = now;
+        for (Timeout[] level : wheel) {
+            for (int i = 0; i < SLOTS; i++) {
+                Timeout head = new Timeout(this, 0, null, 0);
+                head.next = head;
+                head.prev = head;
+                level[i] = head;
+            }
+        }
+    }
+
+    public static final class Timeout {
+        private final TimingWheel owner;
+        private long deadline;
+        private final Runnable task;
+        private final long period;
+        private long expires;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel owner, long deadline, Runnable task, long period) {
+            this.owner = owner;
+            this.deadline = deadline;
+            this.task = task;
+            this.period = period;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isPending() {
+            return next != null;
+        }
+
+        // no-op if the timer already fired or was cancelled
+        public void cancel() {
+            if (next != null) {
+                owner.unlink(this);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // runs task once at the given wall clock time (or on the next tick if that is already past)
+    public Timeout schedule(long deadline, Runnable task) {
+        return add(new Timeout(this, deadline, task, 0));
+    }
+
+    // runs task every period ms, the first time one period from now
+    public Timeout scheduleAtFixedRate(long period, Runnable task) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return add(new Timeout(this, currentTick + period, task, period));
+    }
+
+    private Timeout add(Timeout timeout) {
+        place(timeout, currentTick + 1);
+        earliestScheduled = Math.min(earliestScheduled, timeout.deadline);
+        return timeout;
+    }
+
+    // earliest is the first tick whose slot has not been processed yet
+    private void place(Timeout timeout, long earliest) {
+        long expires = Math.max(timeout.deadline, earliest);
+        long delta = expires - currentTick;
+        if (delta >= MAX_SPAN) {
+            // fires at the end of the wheel's range and gets placed again from there
+            expires = currentTick + MAX_SPAN - 1;
+            delta = MAX_SPAN - 1;
+        }
+        timeout.expires = expires;
+        size++;
+
+        int level = 0;
+        while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        Timeout head = wheel[level][(int) ((expires >>> (SLOT_BITS * level)) & SLOT_MASK)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    // fires every timer due up to now, timers scheduled by a task are fired in the same call if they are due
+    public void advance(long now) {
+        if (size == 0) {
+            // nothing to cascade, an idle wheel just jumps ahead
+            currentTick = Math.max(currentTick, now);
+            return;
+        }
+
+        while (currentTick < now) {
+            currentTick++;
+            int index = (int) (currentTick & SLOT_MASK);
+
+            // moving into a new slot of level n pulls that slot's timers down to the levels below
+            for (int level = 1; index == 0 && level < LEVELS; level++) {
+                index = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                cascade(wheel[level][index]);
+            }
+
+            Timeout head = wheel[0][(int) (currentTick & SLOT_MASK)];
+            while (head.next != head) {
+                Timeout timeout = head.next;
+                unlink(timeout);
+
+                if (timeout.deadline > currentTick) {
+                    // parked beyond the wheel's range
+                    place(timeout, currentTick + 1);
+                    continue;
+                }
+
+                // a periodic timer is placed again before it runs, so the task may cancel it
+                if (timeout.period > 0) {
+                    timeout.deadline = currentTick + timeout.period;
+                    place(timeout, currentTick + 1);
+                }
+                timeout.task.run();
+            }
+
+            if (size == 0) {
+                currentTick = Math.max(currentTick, now);
+                return;
+            }
+        }
+    }
+
+    private void cascade(Timeout head) {
+        while (head.next != head) {
+            Timeout timeout = head.next;
+            unlink(timeout);
+            place(timeout, currentTick);
+        }
+    }
+
+    // wall clock time the event loop has to call advance() at, Long.MAX_VALUE if no timer is pending.
+    // exact for timers within the next 64 ms, for later ones it is the tick their slot gets cascaded at
+    public long nextDeadline() {
+        earliestScheduled = Long.MAX_VALUE;
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            long base = currentTick >>> shift;
+            for (int k = 1; k <= SLOTS; k++) {
+                long tick = (base + k) << shift;
+                if (tick >= next) {
+                    break;
+                }
+
+                Timeout head = wheel[level][(int) ((base + k) & SLOT_MASK)];
+                if (head.next != head) {
+                    next = tick;
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+
+    public long getEarliestScheduled() {
+        return earliestScheduled;
+    }
+}
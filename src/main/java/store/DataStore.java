@@ -1,137 +1,668 @@
 package store;
 
+import server.ServerClock;
 import streams.Stream;
 import streams.StreamEntry;
 import streams.manager.StreamManager;
 
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
+import java.util.function.Consumer;
 
-public class DataStore {
-    private final Map<String, Entry> store;
+// one logical database: a keyspace dict, the index of its keys with a TTL and their memory accounting.
+// Databases holds the numbered ones and drives eviction across them
+public class DataStore implements Database {
+    private Dict store; // replaced by flush() while a snapshot still walks the old one
+    private final ExpiresIndex expires;
     private final Random random;
 
+    private Evictor evictor;
+    private int offHeapThreshold; // 0 keeps every value on the heap
+    private volatile OffHeapArena offHeap; // replaced by flush(), read by INFO
+    private ValueLog valueLog; // null unless cold values are spilled to disk
+    private long spillableValues; // RAW and OFFHEAP values in memory, what the value log could take
+    private volatile long lazyValues; // LAZY values not decoded yet, read by INFO
+    private long warmCursor; // scan cursor of warmLazyValues()
+    private int id; // database number, changes with SWAPDB
+    private Snapshot.Part snapshot; // set while an RDB save walks this store, sees every write first
+    private DeletedKeys deletedKeys; // where expired and evicted keys are recorded for DEL propagation, null if nowhere
+    private boolean replica; // expired keys stay until the master's DEL removes them
+
+    // expiry and memory stats for INFO, only written by the thread owning this store
+    private volatile long expiredKeys;
+    private volatile long expiredTimeCapReachedCount;
+    private volatile long expireCycleCpuNanos;
+    private volatile double expiredStalePerc;
+    private volatile long avgTtl; // estimated from the keys the expiry cycle samples, like redis' db->avg_ttl
+    private volatile long entriesMemory; // sum of Entry.getMemoryUsage() over the keyspace
+    private volatile long evictedKeys;
+    private volatile long dirty; // writes since the start, the save points compare it with its value at the last save
+
     public DataStore() {
-        this.store = new HashMap<>();
+        this.store = new Dict();
+        this.expires = new ExpiresIndex();
         this.random = new Random();
+        this.evictor = new Evictor(EvictionPolicy.NOEVICTION, 5, random);
     }
 
-    public void set(String key, Object value, long expiryTimeInMillis) {
-        long expiryTime = System.currentTimeMillis() + expiryTimeInMillis;
-        store.put(key, new Entry(value, expiryTime));
+    // maxmemory-policy and maxmemory-samples, set before the store is used
+    void configureEviction(EvictionPolicy policy, int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("ERR maxmemory-samples must be positive");
+        }
+        this.evictor = new Evictor(policy, samples, random);
     }
 
-    // overload to set expire time to default = -1
-    public void set(String key, Object value) {
-        store.put(key, new Entry(value));
+    // string values longer than threshold bytes are stored off-heap, set before the store is used
+    void configureOffHeap(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("ERR offheap-threshold must not be negative");
+        }
+        this.offHeapThreshold = threshold;
+        this.offHeap = threshold > 0 ? new OffHeapArena(threshold) : null;
     }
 
-    // TODO: this method should return Entry Object (much cleaner)
-    public Object get(String key) {
+    // cold string values move to a value log in dir when over maxmemory, set before the store is used
+    void configureValueLog(Path dir) {
+        this.valueLog = new ValueLog(dir);
+    }
+
+    void setDeletedKeys(DeletedKeys deletedKeys) {
+        this.deletedKeys = deletedKeys;
+    }
+
+    // a replica hides keys whose TTL passed but leaves deleting them to its master (redis does the same), so
+    // both hold the same keys whatever their clocks say. set before the store is used
+    void configureReplica() {
+        this.replica = true;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    // SET ... PXAT, the expiry is a unix time in ms. the store keeps key and value, the caller must not change them
+    @Override
+    public void setWithExpiryAt(byte[] key, byte[] value, long expiryTimeInMillis) {
+        put(Entry.ofString(key, value, expiryTimeInMillis));
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+        put(Entry.ofString(key, value, -1));
+    }
+
+    // INCRBY: INT values are updated in place, other strings are parsed and stored as INT. the TTL is kept
+    @Override
+    public long increment(byte[] k, long delta) {
+        Entry entry = lookup(k);
+        if (entry == null) {
+            put(Entry.ofLong(k, delta, -1));
+            return delta;
+        }
+
+        if (!entry.isString()) {
+            throw new IllegalArgumentException("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+
+        long current;
+        if (entry.getEncoding() == Entry.ENCODING_INT) {
+            current = entry.getLongValue();
+        } else {
+            try {
+                current = Long.parseLong((String) entry.getValue());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("ERR value is not an integer or out of range");
+            }
+        }
+
+        long result;
+        try {
+            result = Math.addExact(current, delta);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("ERR increment or decrement would overflow");
+        }
+
+        if (entry.getEncoding() == Entry.ENCODING_INT) {
+            if (snapshot != null) {
+                snapshot.beforeWrite(k, k.length, entry);
+            }
+            entry.setLongValue(result);
+            dirty++;
+        } else {
+            put(Entry.ofLong(k, result, entry.getExpiryTimeInMillis()));
+        }
+        return result;
+    }
+
+    // keys given as Strings (the stream commands) are latin-1, one char per byte
+    private static byte[] keyBytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // every write goes through here so the expires index and the memory accounting always match the keyspace
+    private void put(Entry entry) {
+        if (offHeap != null) {
+            Entry moved = entry.moveOffHeap(offHeap);
+            if (moved != null) {
+                entry = moved;
+            }
+        }
+
+        entry.setClock(evictor.initialClock());
+        Entry old = store.put(entry);
+        if (snapshot != null) {
+            snapshot.beforeWrite(entry.key, entry.keyLength, old);
+        }
+        dirty++;
+        if (old != null) {
+            expires.remove(old);
+            entriesMemory -= old.getMemoryUsage();
+            old.releaseValue();
+            if (old.isSpillable()) {
+                spillableValues--;
+            } else if (old.getEncoding() == Entry.ENCODING_LAZY) {
+                lazyValues--;
+            }
+        }
+        expires.add(entry);
+        entriesMemory += entry.getMemoryUsage();
+        if (entry.isSpillable()) {
+            spillableValues++;
+        } else if (entry.getEncoding() == Entry.ENCODING_LAZY) {
+            lazyValues++;
+        }
+    }
+
+    // detaches the entry in O(1) whatever its value: a stream of millions of entries is unlinked like a
+    // short string and left to the garbage collector, which reclaims it concurrently with the event loop
+    // (the work redis hands to its lazyfree thread). DEL, UNLINK, expiry and eviction all end here
+    private void delete(Entry entry) {
+        store.remove(entry.key, entry.keyLength);
+        if (snapshot != null) {
+            snapshot.beforeWrite(entry.key, entry.keyLength, entry);
+        }
+        dirty++;
+        expires.remove(entry);
+        evictor.forget(entry);
+        entriesMemory -= entry.getMemoryUsage();
+        entry.releaseValue();
+        if (entry.isSpillable()) {
+            spillableValues--;
+        } else if (entry.getEncoding() == Entry.ENCODING_LAZY) {
+            lazyValues--;
+        }
+    }
+
+    private void expire(Entry entry) {
+        delete(entry);
+        expiredKeys++;
+        if (deletedKeys != null) {
+            deletedKeys.add(id, entry);
+        }
+    }
+
+    // DEL / UNLINK, true if the key existed
+    @Override
+    public boolean delete(byte[] key) {
+        Entry entry = store.get(key);
+        if (entry == null) {
+            return false;
+        }
+
+        if (entry.isExpired()) {
+            expire(entry);
+            return false;
+        }
+        delete(entry);
+        return true;
+    }
+
+    // FLUSHALL / FLUSHDB: new empty tables replace the old ones, which are dropped as a whole instead of key by key.
+    // so is the off-heap arena, its slabs are freed by the collector once no pending reply is sending from them.
+    // a snapshot in progress keeps walking the old table, nothing writes to it anymore
+    @Override
+    public void flush() {
+        dirty += store.size();
+        if (snapshot != null) {
+            snapshot = null;
+            store = new Dict();
+        } else {
+            store.clear();
+        }
+        expires.clear();
+        evictor.clearPool();
+        entriesMemory = 0;
+        spillableValues = 0;
+        lazyValues = 0;
+        if (valueLog != null) {
+            valueLog.clear();
+        }
+        if (offHeap != null) {
+            offHeap = new OffHeapArena(offHeapThreshold);
+        }
+    }
+
+    // the live entry of key, an expired one is deleted on the way (only hidden on a replica). a hit counts as an
+    // access for LRU / LFU and brings a spilled (or not yet decoded) value into memory
+    private Entry lookup(byte[] key) {
         Entry entry = store.get(key);
         if (entry == null) {
             return null;
         }
 
         if (entry.isExpired()) {
-            store.remove(key);
+            if (!replica) {
+                expire(entry);
+            }
             return null;
         }
+        evictor.touch(entry);
+        byte encoding = entry.getEncoding();
+        if (encoding == Entry.ENCODING_SPILLED || encoding == Entry.ENCODING_LAZY) {
+            restore(entry);
+        }
+        return entry;
+    }
 
-        return entry.getValue();
+    private void restore(Entry entry) {
+        if (entry.getEncoding() == Entry.ENCODING_LAZY) {
+            lazyValues--;
+        }
+        long before = entry.getMemoryUsage();
+        entry.restore(offHeap);
+        entriesMemory += entry.getMemoryUsage() - before;
+        spillableValues++;
+    }
+
+    @Override
+    public Entry getEntry(byte[] key) {
+        return lookup(key);
+    }
+
+    // strings are returned decoded as a String, streams as the Stream
+    @Override
+    public Object get(String key) {
+        Entry entry = lookup(keyBytes(key));
+        return entry == null ? null : entry.getValue();
     }
 
-    public void activeExpiryCycle(int sampleSize, int threshold) {
-        if (store.isEmpty()) {
+    // samples volatile keys only and keeps going while more than threshold percent of a sample was expired,
+    // so a burst of expiring keys is reclaimed quickly. the clock is checked every 16 samples, the cycle
+    // stops once timeLimitNanos is used up and continues from fresh samples next time.
+    public void activeExpiryCycle(int sampleSize, int threshold, long timeLimitNanos) {
+        if (expires.size() == 0 || replica) {
             return;
         }
 
-        Set<Map.Entry<String, Entry>> entries = store.entrySet();
-        @SuppressWarnings("unchecked")
-        Map.Entry<String, Entry>[] entryArray = entries.toArray(new Map.Entry[0]);
-        int expired = 0;
-        int sampled = 0;
+        long start = System.nanoTime();
+        long now = ServerClock.millis();
+        long totalSampled = 0;
+        long totalExpired = 0;
+        long ttlSum = 0;
+        int iteration = 0;
+        int expired;
+        int sampled;
+
+        do {
+            expired = 0;
+            sampled = 0;
+            for (int i = 0; i < sampleSize && expires.size() > 0; i++) {
+                Entry entry = expires.entryAt(random.nextInt(expires.size()));
+                if (entry.isExpired(now)) {
+                    expire(entry);
+                    expired++;
+                } else {
+                    ttlSum += entry.getExpiryTimeInMillis() - now;
+                }
+                sampled++;
+            }
+            totalSampled += sampled;
+            totalExpired += expired;
+
+            if ((++iteration & 15) == 0 && System.nanoTime() - start > timeLimitNanos) {
+                expiredTimeCapReachedCount++;
+                break;
+            }
+        } while (sampled > 0 && expired * 100 > sampled * threshold);
+
+        expireCycleCpuNanos += System.nanoTime() - start;
+
+        // moving average of the stale keys found, like redis' expired_stale_perc
+        if (totalSampled > 0) {
+            double stale = (double) totalExpired / totalSampled;
+            expiredStalePerc = stale * 0.05 + expiredStalePerc * 0.95;
+        }
+
+        // and of the remaining time to live, weighted like redis' avg_ttl
+        long alive = totalSampled - totalExpired;
+        if (alive > 0) {
+            long ttl = ttlSum / alive;
+            avgTtl = avgTtl == 0 ? ttl : avgTtl / 50 * 49 + ttl / 50;
+        }
+    }
+
+    // finishes a pending resize of the keyspace table when the server is idle
+    public void incrementallyRehash(long timeLimitMicros) {
+        store.rehashFor(timeLimitMicros * 1000);
+    }
+
+    // eviction primitives for Databases.performEvictions(): sample into the pool and report the best idle
+    // score (Evictor.NO_CANDIDATE if none), then evict the pooled best or, for the random policies, any key
+    long fillEvictionPool() {
+        return evictor.fillPool(store, expires);
+    }
+
+    boolean evictBest() {
+        return evict(evictor.popBest());
+    }
+
+    boolean evictRandom() {
+        return evict(evictor.randomVictim(store, expires));
+    }
+
+    // spilling primitives, used by Databases.performEvictions() before any key is evicted: sample for the coldest
+    // value in memory (Evictor.NO_CANDIDATE if there is none or no value log), then move it to the value log
+    long sampleSpillCandidate() {
+        if (valueLog == null || spillableValues == 0) {
+            return Evictor.NO_CANDIDATE;
+        }
+        return evictor.sampleSpillCandidate(store);
+    }
+
+    boolean spillCandidate() {
+        Entry entry = evictor.takeSpillCandidate();
+        if (entry == null) {
+            return false;
+        }
+
+        long before = entry.getMemoryUsage();
+        try {
+            entry.spill(valueLog);
+        } catch (UncheckedIOException e) {
+            // the disk is full or gone: memory is freed by eviction instead
+            System.out.println("value log: " + e.getMessage());
+            return false;
+        }
+        entriesMemory += entry.getMemoryUsage() - before;
+        spillableValues--;
+        return true;
+    }
+
+    // reclaims dead space of the value log for about timeLimitMicros, called by the cron
+    public void compactValueLog(long timeLimitMicros) {
+        if (valueLog != null) {
+            valueLog.compact(store, timeLimitMicros * 1000);
+        }
+    }
+
+    // decodes the values rdb-lazy-load left in the RDB file for about timeLimitMicros, called by the cron until
+    // none is left. only the load creates LAZY values, so one pass of the scan cursor finds all of them
+    public void warmLazyValues(long timeLimitMicros) {
+        if (lazyValues == 0) {
+            return;
+        }
 
-        for (int i = 0; i < sampleSize && i < entryArray.length; i++) {
-            int index = random.nextInt(entryArray.length);
-            Map.Entry<String, Entry> entry = entryArray[index];
-            if (entry.getValue().isExpired()) {
-                store.remove(entry.getKey());
-                expired++;
+        long deadline = System.nanoTime() + timeLimitMicros * 1000;
+        List<Entry> lazy = new ArrayList<>();
+        do {
+            warmCursor = store.scan(warmCursor, entry -> {
+                if (entry.getEncoding() == Entry.ENCODING_LAZY) {
+                    lazy.add(entry);
+                }
+            });
+            for (Entry entry : lazy) {
+                restore(entry);
             }
+            lazy.clear();
+        } while (warmCursor != 0 && lazyValues > 0 && System.nanoTime() < deadline);
+    }
 
-            sampled++;
+    private boolean evict(Entry victim) {
+        if (victim == null) {
+            return false;
+        }
+        delete(victim);
+        evictedKeys++;
+        if (deletedKeys != null) {
+            deletedKeys.add(id, victim);
         }
+        return true;
+    }
+
+    // estimated bytes used by the keyspace: entries plus the tables indexing them
+    public long getUsedMemory() {
+        return entriesMemory + store.tableMemoryUsage() + expires.memoryUsage();
+    }
+
+    // direct memory reserved for off-heap values and the part of it in use
+    public long getOffHeapSlabBytes() {
+        OffHeapArena arena = offHeap;
+        return arena == null ? 0 : arena.getSlabBytes();
+    }
+
+    public long getOffHeapUsedBytes() {
+        OffHeapArena arena = offHeap;
+        return arena == null ? 0 : arena.getUsedBytes();
+    }
+
+    // values on disk, bytes written to the value log files and the part of them still referenced
+    public long getSpilledValues() {
+        return valueLog == null ? 0 : valueLog.getSpilledValues();
+    }
+
+    public long getValueLogBytes() {
+        return valueLog == null ? 0 : valueLog.getLogBytes();
+    }
+
+    public long getValueLogLiveBytes() {
+        return valueLog == null ? 0 : valueLog.getLiveBytes();
+    }
+
+    // values loaded with rdb-lazy-load that are still only in the RDB file
+    public long getLazyValues() {
+        return lazyValues;
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys;
+    }
+
+    public long getExpiredKeys() {
+        return expiredKeys;
+    }
 
-        if (sampled > 0 && (expired * 100 / sampled) > threshold) {
-            System.out.println("High expiration rate detected: " + expired + "/" + sampled);
-            // Could trigger additional cleanup here, but we'll keep it simple for now
+    public long getExpiredTimeCapReachedCount() {
+        return expiredTimeCapReachedCount;
+    }
+
+    public long getExpireCycleCpuMillis() {
+        return expireCycleCpuNanos / 1_000_000;
+    }
+
+    public double getExpiredStalePerc() {
+        return expiredStalePerc * 100;
+    }
+
+    @Override
+    public int getVolatileKeyCount() {
+        return expires.size();
+    }
+
+    // keys in the table, expired ones not reclaimed yet included (what redis' INFO keyspace reports)
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public long getAvgTtl() {
+        return expires.size() == 0 ? 0 : avgTtl;
+    }
+
+    public long getDirty() {
+        return dirty;
+    }
+
+    // a snapshot starts to walk this store, returns the table it walks
+    Dict startSnapshot(Snapshot.Part part) {
+        snapshot = part;
+        return store;
+    }
+
+    void endSnapshot(Snapshot.Part part) {
+        if (snapshot == part) {
+            snapshot = null;
         }
     }
 
-    public void load(Map<String, Entry> data) {
-        store.putAll(data);
+    // a key read from the RDB file at startup
+    @Override
+    public void load(Entry entry) {
+        put(entry);
     }
 
-    public List<String> getAllKeys() {
-        List<String> keys = new ArrayList<>();
-        for (String key : store.keySet()) {
-            if (!store.get(key).isExpired()) {
-                keys.add(key);
+    // the RDB file announces how many keys follow, the table is sized for them up front
+    @Override
+    public void reserve(long keys) {
+        store.expand(keys);
+    }
+
+    // number of live keys matching pattern, KEYS sends it before the keys themselves
+    @Override
+    public long countKeys(GlobPattern pattern) {
+        if (pattern.isLiteral()) {
+            Entry entry = store.get(pattern.literal());
+            return entry != null && !entry.isExpired() ? 1 : 0;
+        }
+        if (pattern.matchesAll() && expires.size() == 0) {
+            return store.size();
+        }
+
+        long[] count = new long[1];
+        long now = ServerClock.millis();
+        store.forEach(entry -> {
+            if (!entry.isExpired(now) && pattern.matches(entry.key, entry.keyLength)) {
+                count[0]++;
             }
+        });
+        return count[0];
+    }
+
+    // visits the live keys matching pattern without copying them, expired keys are skipped (not deleted,
+    // the table must not change during the walk). the action must not modify the keyspace
+    @Override
+    public void forEachKey(GlobPattern pattern, Consumer<Entry> action) {
+        if (pattern.isLiteral()) {
+            Entry entry = store.get(pattern.literal());
+            if (entry != null && !entry.isExpired()) {
+                action.accept(entry);
+            }
+            return;
         }
 
-        return keys;
+        long now = ServerClock.millis();
+        store.forEach(entry -> {
+            if (!entry.isExpired(now) && pattern.matches(entry.key, entry.keyLength)) {
+                action.accept(entry);
+            }
+        });
+    }
+
+    // one SCAN call: walks buckets from cursor until about count keys were collected into out (at most 10 * count
+    // buckets, so a sparse table or a selective pattern still returns quickly) and returns the next cursor, 0 at
+    // the end. type null means any type. expired keys found on the way are deleted (skipped on a replica) instead of returned
+    @Override
+    public long scan(long cursor, long count, GlobPattern pattern, DataType type, List<Entry> out) {
+        int first = out.size();
+        Consumer<Entry> collect = entry -> {
+            if (pattern.matches(entry.key, entry.keyLength) && (type == null || typeOf(entry) == type)) {
+                out.add(entry);
+            }
+        };
+
+        long maxIterations = count > Long.MAX_VALUE / 10 ? Long.MAX_VALUE : count * 10;
+        do {
+            cursor = store.scan(cursor, collect);
+        } while (cursor != 0 && maxIterations-- > 0 && out.size() - first < count);
+
+        long now = ServerClock.millis();
+        int kept = first;
+        for (int i = first; i < out.size(); i++) {
+            Entry entry = out.get(i);
+            if (!entry.isExpired(now)) {
+                out.set(kept++, entry);
+            } else if (!replica) {
+                expire(entry);
+            }
+        }
+        out.subList(kept, out.size()).clear();
+        return cursor;
     }
 
+    @Override
     public boolean exists(String key) {
-        return store.containsKey(key);
+        return store.containsKey(keyBytes(key));
     }
 
+    @Override
     public String addToStream(String key, String id, Map<String, String> fields) {
         Stream stream;
-        Entry entry = store.get(key);
+        byte[] k = keyBytes(key);
+        Entry entry = lookup(k);
 
         if (entry == null) {
             stream = new Stream();
-            set(key, stream);
-        } else if (entry.getValue() instanceof Stream) {
+            put(Entry.ofStream(k, stream));
+        } else if (!entry.isString()) {
             stream = (Stream) entry.getValue();
         } else {
             throw new IllegalArgumentException("ERR value is not a stream or list of streams");
         }
 
         StreamEntry se = new StreamEntry(id, fields);
+        if (entry != null && snapshot != null) {
+            snapshot.beforeWrite(k, k.length, entry);
+        }
+        long before = stream.getMemoryUsage();
         String result = stream.addEntry(se);
-        StreamManager.notifyNewEntry(key, stream);
+        entriesMemory += stream.getMemoryUsage() - before;
+        if (entry != null) {
+            dirty++;
+        }
+        StreamManager.notifyNewEntry(getId(), key, stream);
 
         return result;
 
     }
 
+    @Override
     public DataType getDataType(String key) {
-        if (!exists(key)) {
-            return DataType.NONE;
-        }
-
-        Entry entry = store.get(key);
-        if (entry == null || entry.isExpired()) {
-            store.remove(key);
-            return DataType.NONE;
-        }
+        return getDataType(keyBytes(key));
+    }
 
-        Object value = entry.getValue();
+    @Override
+    public DataType getDataType(byte[] key) {
+        Entry entry = lookup(key);
+        return entry == null ? DataType.NONE : typeOf(entry);
+    }
 
+    private static DataType typeOf(Entry entry) {
         // to be updated when adding new types
-        if (value instanceof Stream) {
+        if (entry.getEncoding() == Entry.ENCODING_STREAM) {
             return DataType.STREAM;
         } else {
             return DataType.STRING;
         }
-
     }
 }
@@ -0,0 +1,51 @@
+package store;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// one numbered logical database as commands see it (SELECT picks one, see Databases.get()).
+// a DataStore on its own, or a ShardedDataStore routing every key to the DataStore of its shard
+public interface Database {
+    int getId();
+
+    void setWithExpiryAt(byte[] key, byte[] value, long expiryTimeInMillis);
+
+    void set(byte[] key, byte[] value);
+
+    long increment(byte[] key, long delta);
+
+    boolean delete(byte[] key);
+
+    void flush();
+
+    Entry getEntry(byte[] key);
+
+    Object get(String key);
+
+    boolean exists(String key);
+
+    String addToStream(String key, String id, Map<String, String> fields);
+
+    DataType getDataType(String key);
+
+    DataType getDataType(byte[] key);
+
+    long size();
+
+    int getVolatileKeyCount();
+
+    long getAvgTtl();
+
+    // RDB loading
+    void load(Entry entry);
+
+    void reserve(long keys);
+
+    // KEYS and SCAN
+    long countKeys(GlobPattern pattern);
+
+    void forEachKey(GlobPattern pattern, Consumer<Entry> action);
+
+    long scan(long cursor, long count, GlobPattern pattern, DataType type, List<Entry> out);
+}
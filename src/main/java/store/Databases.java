@@ -0,0 +1,412 @@
+package store;
+
+import java.nio.file.Path;
+import java.util.function.ToLongFunction;
+
+// the numbered logical databases (SELECT, SWAPDB), like redis' server.db array. every database is a DataStore
+// with its own keyspace and expires index, maxmemory and eviction span all of them.
+// with --shards every database is a ShardedDataStore and getShardView(i) is what shard thread i owns: a
+// Databases over the i-th shard of every database, swapped together with this one and evicting on its own
+// against an equal part of maxmemory. the sharded Databases itself holds no DataStore, its memory, expiry and
+// eviction work is that of its shard views.
+public class Databases {
+    // results of performEvictions(), as in redis
+    public static final int EVICT_OK = 0;
+    public static final int EVICT_RUNNING = 1; // time limit reached, more has to be freed by later calls
+    public static final int EVICT_FAIL = 2;    // over maxmemory and nothing can be evicted
+
+    private static final long EVICTION_TIME_LIMIT_NANOS = 500_000; // redis' limit with the default eviction tenacity
+
+    private final Database[] dbs;
+    private final DataStore[] stores;     // the same as dbs, empty when sharded
+    private final Databases[] shardViews; // empty unless sharded
+    private final DeletedKeys deletedKeys = new DeletedKeys(); // what the stores deleted on their own
+
+    private long maxMemory; // 0 means no limit
+    private EvictionPolicy policy = EvictionPolicy.NOEVICTION;
+    private int nextRandomDb;  // the random policies take the databases in turn
+    private int nextExpiryDb;  // where the next expiry cycle starts when the last one ran out of time
+    private boolean valueLog;  // cold values are spilled to disk before keys are evicted
+
+    public Databases(int count, int shards) {
+        if (count < 1) {
+            throw new IllegalArgumentException("ERR databases must be at least 1");
+        }
+
+        if (shards <= 1) {
+            stores = new DataStore[count];
+            for (int i = 0; i < count; i++) {
+                stores[i] = new DataStore();
+                stores[i].setId(i);
+                stores[i].setDeletedKeys(deletedKeys);
+            }
+            dbs = stores.clone();
+            shardViews = new Databases[0];
+            return;
+        }
+
+        ShardedDataStore[] sharded = new ShardedDataStore[count];
+        for (int i = 0; i < count; i++) {
+            sharded[i] = new ShardedDataStore(shards);
+        }
+        dbs = sharded;
+        stores = new DataStore[0];
+
+        shardViews = new Databases[shards];
+        for (int s = 0; s < shards; s++) {
+            DataStore[] shardDbs = new DataStore[count];
+            for (int i = 0; i < count; i++) {
+                shardDbs[i] = sharded[i].getShard(s);
+                shardDbs[i].setId(i);
+            }
+            shardViews[s] = new Databases(shardDbs);
+        }
+    }
+
+    private Databases(DataStore[] stores) {
+        this.stores = stores;
+        this.dbs = stores.clone();
+        this.shardViews = new Databases[0];
+        for (DataStore store : stores) {
+            store.setDeletedKeys(deletedKeys);
+        }
+    }
+
+    public int count() {
+        return dbs.length;
+    }
+
+    public Database get(int index) {
+        return dbs[index];
+    }
+
+    public int getShardCount() {
+        return shardViews.length;
+    }
+
+    public Databases getShardView(int shard) {
+        return shardViews[shard];
+    }
+
+    // keys expired or evicted since they were last propagated, only used by the thread owning the stores.
+    // always empty when sharded, every shard view has its own
+    public DeletedKeys getDeletedKeys() {
+        return deletedKeys;
+    }
+
+    // loading replays what the files hold, keys it expires or evicts are not news to anyone
+    public void discardDeletedKeys() {
+        deletedKeys.clear();
+        for (Databases view : shardViews) {
+            view.discardDeletedKeys();
+        }
+    }
+
+    // O(1): the two slots trade their DataStore, clients that selected a or b see the other data from now on
+    public void swap(int a, int b) {
+        Database db = dbs[a];
+        dbs[a] = dbs[b];
+        dbs[b] = db;
+
+        if (stores.length > 0) {
+            DataStore store = stores[a];
+            stores[a] = stores[b];
+            stores[b] = store;
+            stores[a].setId(a);
+            stores[b].setId(b);
+        }
+
+        for (Databases view : shardViews) {
+            view.swap(a, b);
+        }
+    }
+
+    public void flushAll() {
+        for (Database db : dbs) {
+            db.flush();
+        }
+    }
+
+    // every database as it is now, for an RDB save. only while nothing else touches the keyspace (shards paused).
+    // a foreground snapshot is walked by the thread reading it, a background one by the owners of the keyspace
+    public Snapshot snapshot(long time, boolean foreground) {
+        return new Snapshot(dbs, time, foreground);
+    }
+
+    public void load(int index, Entry entry) {
+        dbs[index].load(entry);
+    }
+
+    public void reserve(int index, long keys) {
+        dbs[index].reserve(keys);
+    }
+
+    // maxmemory, maxmemory-policy and maxmemory-samples, set before the databases are used
+    public void configureEviction(long maxMemory, EvictionPolicy policy, int samples) {
+        this.maxMemory = maxMemory;
+        this.policy = policy;
+
+        for (DataStore store : stores) {
+            store.configureEviction(policy, samples);
+        }
+        for (Databases view : shardViews) {
+            view.configureEviction(maxMemory == 0 ? 0 : Math.max(1, maxMemory / shardViews.length), policy, samples);
+        }
+    }
+
+    // replicaof: keys with a passed TTL are only deleted by the master's DEL
+    public void configureReplica() {
+        for (DataStore store : stores) {
+            store.configureReplica();
+        }
+        for (Databases view : shardViews) {
+            view.configureReplica();
+        }
+    }
+
+    // offheap-threshold: string values longer than this are kept in direct memory slabs, 0 disables it
+    public void configureOffHeap(long threshold) {
+        if (threshold > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ERR offheap-threshold is too large");
+        }
+        for (DataStore store : stores) {
+            store.configureOffHeap((int) threshold);
+        }
+        for (Databases view : shardViews) {
+            view.configureOffHeap(threshold);
+        }
+    }
+
+    // tiered storage: over maxmemory, the coldest string values move to a value log in dir (one per database and
+    // shard) and keys are only evicted once no value is left to move
+    public void configureValueLog(Path dir) {
+        this.valueLog = true;
+        for (DataStore store : stores) {
+            store.configureValueLog(dir);
+        }
+        for (Databases view : shardViews) {
+            view.configureValueLog(dir);
+        }
+    }
+
+    // evicts keys until the estimated memory is back under maxmemory, called before write commands like redis'
+    // performEvictions(). every eviction samples each database into its pool and takes the best candidate over
+    // all of them, with a value log the coldest value is spilled instead while there is one in memory.
+    // a single call stops after EVICTION_TIME_LIMIT_NANOS, so a big overshoot (a lowered limit, one
+    // huge value) is worked off incrementally by the following writes and the cron
+    public int performEvictions() {
+        if (shardViews.length > 0) {
+            int result = EVICT_OK;
+            for (Databases view : shardViews) {
+                result = Math.max(result, view.performEvictions());
+            }
+            return result;
+        }
+
+        if (maxMemory == 0 || getUsedMemory() <= maxMemory) {
+            return EVICT_OK;
+        }
+        if (policy == EvictionPolicy.NOEVICTION && !valueLog) {
+            return EVICT_FAIL;
+        }
+
+        long start = System.nanoTime();
+        int evicted = 0;
+        while (getUsedMemory() > maxMemory) {
+            if (!spillOne() && (policy == EvictionPolicy.NOEVICTION || !evictOne())) {
+                return EVICT_FAIL;
+            }
+            if ((++evicted & 15) == 0 && System.nanoTime() - start > EVICTION_TIME_LIMIT_NANOS) {
+                return EVICT_RUNNING;
+            }
+        }
+        return EVICT_OK;
+    }
+
+    private boolean spillOne() {
+        if (!valueLog) {
+            return false;
+        }
+
+        DataStore coldest = null;
+        long coldestScore = Evictor.NO_CANDIDATE;
+        for (DataStore db : stores) {
+            long score = db.sampleSpillCandidate();
+            if (score != Evictor.NO_CANDIDATE && (coldest == null || score > coldestScore)) {
+                coldest = db;
+                coldestScore = score;
+            }
+        }
+        return coldest != null && coldest.spillCandidate();
+    }
+
+    private boolean evictOne() {
+        if (policy.isRandom()) {
+            for (int i = 0; i < stores.length; i++) {
+                DataStore db = stores[nextRandomDb];
+                nextRandomDb = (nextRandomDb + 1) % stores.length;
+                if (db.evictRandom()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        DataStore best = null;
+        long bestScore = Evictor.NO_CANDIDATE;
+        for (DataStore db : stores) {
+            long score = db.fillEvictionPool();
+            if (score != Evictor.NO_CANDIDATE && (best == null || score > bestScore)) {
+                best = db;
+                bestScore = score;
+            }
+        }
+        return best != null && best.evictBest();
+    }
+
+    // the expiry cycles of all databases share one time budget, a cycle that runs out of time is continued
+    // from the next database the next time (like redis' current_db)
+    public void activeExpiryCycle(int sampleSize, int threshold, long timeLimitMillis) {
+        for (Databases view : shardViews) {
+            view.activeExpiryCycle(sampleSize, threshold, timeLimitMillis);
+        }
+
+        long deadline = System.nanoTime() + timeLimitMillis * 1_000_000;
+        for (int i = 0; i < stores.length; i++) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+
+            DataStore db = stores[nextExpiryDb];
+            nextExpiryDb = (nextExpiryDb + 1) % stores.length;
+            db.activeExpiryCycle(sampleSize, threshold, remaining);
+        }
+    }
+
+    // finishes pending resizes of the keyspace tables when the server is idle
+    public void incrementallyRehash(long timeLimitMicros) {
+        for (DataStore db : stores) {
+            db.incrementallyRehash(timeLimitMicros);
+        }
+        for (Databases view : shardViews) {
+            view.incrementallyRehash(timeLimitMicros);
+        }
+    }
+
+    // moves the live values out of mostly dead value log segments, a slice of work per call
+    public void compactValueLogs(long timeLimitMicros) {
+        for (DataStore db : stores) {
+            db.compactValueLog(timeLimitMicros);
+        }
+        for (Databases view : shardViews) {
+            view.compactValueLogs(timeLimitMicros);
+        }
+    }
+
+    // decodes values rdb-lazy-load left in the RDB file, a slice of work per call. it stops at maxmemory, the
+    // values a read doesn't need are not worth evicting keys for
+    public void warmLazyValues(long timeLimitMicros) {
+        for (DataStore db : stores) {
+            if (maxMemory > 0 && getUsedMemory() >= maxMemory) {
+                return;
+            }
+            db.warmLazyValues(timeLimitMicros);
+        }
+        for (Databases view : shardViews) {
+            view.warmLazyValues(timeLimitMicros);
+        }
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return policy;
+    }
+
+    // stats are summed over the databases (read from other threads in shards mode, they are only informative)
+
+    public long getUsedMemory() {
+        return sum(DataStore::getUsedMemory);
+    }
+
+    public long getOffHeapSlabBytes() {
+        return sum(DataStore::getOffHeapSlabBytes);
+    }
+
+    public long getOffHeapUsedBytes() {
+        return sum(DataStore::getOffHeapUsedBytes);
+    }
+
+    public long getSpilledValues() {
+        return sum(DataStore::getSpilledValues);
+    }
+
+    public long getLazyValues() {
+        return sum(DataStore::getLazyValues);
+    }
+
+    public long getValueLogBytes() {
+        return sum(DataStore::getValueLogBytes);
+    }
+
+    public long getValueLogLiveBytes() {
+        return sum(DataStore::getValueLogLiveBytes);
+    }
+
+    public long getEvictedKeys() {
+        return sum(DataStore::getEvictedKeys);
+    }
+
+    public long getDirty() {
+        return sum(DataStore::getDirty);
+    }
+
+    public long getExpiredKeys() {
+        return sum(DataStore::getExpiredKeys);
+    }
+
+    public long getExpiredTimeCapReachedCount() {
+        return sum(DataStore::getExpiredTimeCapReachedCount);
+    }
+
+    public long getExpireCycleCpuMillis() {
+        return sum(DataStore::getExpireCycleCpuMillis);
+    }
+
+    public long getVolatileKeyCount() {
+        return sum(DataStore::getVolatileKeyCount);
+    }
+
+    // average over the databases (the shards of every database) holding keys with a TTL
+    public double getExpiredStalePerc() {
+        double total = 0;
+        int counted = 0;
+        for (DataStore db : stores) {
+            if (db.getVolatileKeyCount() > 0) {
+                total += db.getExpiredStalePerc();
+                counted++;
+            }
+        }
+        for (Databases view : shardViews) {
+            if (view.getVolatileKeyCount() > 0) {
+                total += view.getExpiredStalePerc();
+                counted++;
+            }
+        }
+        return counted == 0 ? 0 : total / counted;
+    }
+
+    private long sum(ToLongFunction<DataStore> stat) {
+        long total = 0;
+        for (DataStore db : stores) {
+            total += stat.applyAsLong(db);
+        }
+        for (Databases view : shardViews) {
+            total += view.sum(stat);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,49 @@
+package store;
+
+import java.util.Arrays;
+
+// keys the DataStores deleted on their own (TTL passed, evicted) since the last drain, in order. the server
+// sends each one to the replicas and the AOF as a DEL, like redis' propagateDeletion(), so neither keeps a key
+// the master dropped. filled and drained by the thread owning the DataStores
+public final class DeletedKeys {
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] dbs = new int[MIN_CAPACITY];
+    private byte[][] keys = new byte[MIN_CAPACITY][];
+    private int size;
+
+    void add(int db, Entry entry) {
+        if (size == keys.length) {
+            dbs = Arrays.copyOf(dbs, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+
+        // the key array of an EMBSTR entry holds its value too
+        dbs[size] = db;
+        keys[size] = Arrays.copyOf(entry.key, entry.keyLength);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDb(int index) {
+        return dbs[index];
+    }
+
+    public byte[] getKey(int index) {
+        return keys[index];
+    }
+
+    // a burst of expired keys doesn't pin its arrays for good
+    public void clear() {
+        if (keys.length > MIN_CAPACITY * 64) {
+            dbs = new int[MIN_CAPACITY];
+            keys = new byte[MIN_CAPACITY][];
+        } else {
+            Arrays.fill(keys, 0, size, null);
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,433 @@
+package store;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+// keyspace hash table modelled on redis' dict: power of two bucket arrays, entries chained intrusively
+// (the key and the next pointer live in Entry, so a mapping costs no node object on top of its Entry).
+// growing or shrinking allocates a second table and moves buckets over a few at a time on every
+// lookup/insert/delete and from the server cron, instead of rehashing everything in one pause.
+// not thread safe, a Dict belongs to the thread owning its DataStore.
+public class Dict {
+    private static final int INITIAL_SIZE = 16;
+    private static final int MAX_SIZE = 1 << 30;
+    private static final int MIN_FILL_PERCENT = 10; // shrink below this load, like redis' HT_MIN_FILL
+    private static final int EMPTY_VISITS_PER_STEP = 10; // bounds the work of a step in a sparse table
+
+    // tables[1] is only set while rehashing from tables[0] into it
+    private final Entry[][] tables = new Entry[2][];
+    private final long[] used = new long[2];
+    private int rehashIndex = -1;
+
+    public Dict() {
+        tables[0] = new Entry[INITIAL_SIZE];
+    }
+
+    public long size() {
+        return used[0] + used[1];
+    }
+
+    // bytes taken by the bucket arrays, may be called from another thread (INFO)
+    public long tableMemoryUsage() {
+        Entry[] t0 = tables[0];
+        Entry[] t1 = tables[1];
+        long size = 16 + 4L * t0.length;
+        if (t1 != null) {
+            size += 16 + 4L * t1.length;
+        }
+        return size;
+    }
+
+    public boolean isRehashing() {
+        return rehashIndex != -1;
+    }
+
+    // number of buckets of the table new keys go to
+    public int capacity() {
+        return isRehashing() ? tables[1].length : tables[0].length;
+    }
+
+    public Entry get(byte[] key) {
+        return get(key, key.length);
+    }
+
+    // key[0..length) is the key
+    public Entry get(byte[] key, int length) {
+        rehashStep();
+        int hash = hash(key, length);
+        for (int t = 0; t <= 1; t++) {
+            Entry[] table = tables[t];
+            if (table == null) {
+                break;
+            }
+
+            for (Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+                if (e.keyEquals(key, length)) {
+                    return e;
+                }
+            }
+
+            if (!isRehashing()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    // inserts the entry or replaces the one with the same key (taking its place in the chain), returns the old entry
+    public Entry put(Entry entry) {
+        rehashStep();
+        byte[] key = entry.key;
+        int length = entry.keyLength;
+
+        int hash = hash(key, length);
+        for (int t = 0; t <= 1; t++) {
+            Entry[] table = tables[t];
+            if (table == null) {
+                break;
+            }
+
+            int bucket = hash & (table.length - 1);
+            Entry prev = null;
+            for (Entry e = table[bucket]; e != null; prev = e, e = e.next) {
+                if (e.keyEquals(key, length)) {
+                    entry.next = e.next;
+                    if (prev == null) {
+                        table[bucket] = entry;
+                    } else {
+                        prev.next = entry;
+                    }
+                    e.next = null;
+                    return e;
+                }
+            }
+
+            if (!isRehashing()) {
+                break;
+            }
+        }
+
+        // new keys go to the table being filled
+        int t = isRehashing() ? 1 : 0;
+        Entry[] table = tables[t];
+        int bucket = hash & (table.length - 1);
+        entry.next = table[bucket];
+        table[bucket] = entry;
+        used[t]++;
+
+        expandIfNeeded();
+        return null;
+    }
+
+    public Entry remove(byte[] key) {
+        return remove(key, key.length);
+    }
+
+    public Entry remove(byte[] key, int length) {
+        rehashStep();
+        int hash = hash(key, length);
+        for (int t = 0; t <= 1; t++) {
+            Entry[] table = tables[t];
+            if (table == null) {
+                break;
+            }
+
+            int bucket = hash & (table.length - 1);
+            Entry prev = null;
+            for (Entry e = table[bucket]; e != null; prev = e, e = e.next) {
+                if (e.keyEquals(key, length)) {
+                    if (prev == null) {
+                        table[bucket] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                    e.next = null;
+                    used[t]--;
+                    shrinkIfNeeded();
+                    return e;
+                }
+            }
+
+            if (!isRehashing()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(byte[] key) {
+        return get(key) != null;
+    }
+
+    public void clear() {
+        tables[0] = new Entry[INITIAL_SIZE];
+        tables[1] = null;
+        used[0] = 0;
+        used[1] = 0;
+        rehashIndex = -1;
+    }
+
+    // visits every entry, the table must not be modified meanwhile
+    public void forEach(Consumer<Entry> action) {
+        for (int t = 0; t <= 1; t++) {
+            Entry[] table = tables[t];
+            if (table == null) {
+                break;
+            }
+
+            for (Entry head : table) {
+                for (Entry e = head; e != null; e = e.next) {
+                    action.accept(e);
+                }
+            }
+        }
+    }
+
+    // visits the bucket(s) at cursor and returns the next cursor, 0 once everything was visited (redis' dictScan).
+    // the cursor counts up with its bits reversed, so when the table grows or shrinks between calls the buckets
+    // already visited map to cursors already passed: every key present for the whole iteration is returned at
+    // least once, some may be returned twice. the action must not modify the table
+    public long scan(long cursor, Consumer<Entry> action) {
+        if (size() == 0) {
+            return 0;
+        }
+
+        long v = cursor;
+        if (!isRehashing()) {
+            Entry[] table = tables[0];
+            long mask = table.length - 1;
+            emitBucket(table[(int) (v & mask)], action);
+            return nextCursor(v, mask);
+        }
+
+        // the small table first, then every bucket of the large table its bucket expands to
+        Entry[] small = tables[0];
+        Entry[] large = tables[1];
+        if (small.length > large.length) {
+            small = tables[1];
+            large = tables[0];
+        }
+        long smallMask = small.length - 1;
+        long largeMask = large.length - 1;
+
+        emitBucket(small[(int) (v & smallMask)], action);
+        do {
+            emitBucket(large[(int) (v & largeMask)], action);
+            v = nextCursor(v, largeMask);
+        } while ((v & (smallMask ^ largeMask)) != 0);
+        return v;
+    }
+
+    private static void emitBucket(Entry head, Consumer<Entry> action) {
+        for (Entry e = head; e != null; e = e.next) {
+            action.accept(e);
+        }
+    }
+
+    // increments the masked bits of the cursor starting from the most significant one
+    private static long nextCursor(long v, long mask) {
+        v |= ~mask;
+        v = Long.reverse(v);
+        v++;
+        return Long.reverse(v);
+    }
+
+    // a random entry: random non empty bucket, then a random element of its chain. null if empty
+    public Entry randomEntry(Random random) {
+        if (size() == 0) {
+            return null;
+        }
+        rehashStep();
+
+        Entry head;
+        do {
+            if (isRehashing()) {
+                // buckets below rehashIndex of the old table are empty
+                long total = tables[0].length + (long) tables[1].length;
+                int slot = (int) (rehashIndex + (long) (random.nextDouble() * (total - rehashIndex)));
+                head = slot >= tables[0].length ? tables[1][slot - tables[0].length] : tables[0][slot];
+            } else {
+                head = tables[0][random.nextInt(tables[0].length)];
+            }
+        } while (head == null);
+
+        int length = 0;
+        for (Entry e = head; e != null; e = e.next) {
+            length++;
+        }
+
+        Entry e = head;
+        for (int i = random.nextInt(length); i > 0; i--) {
+            e = e.next;
+        }
+        return e;
+    }
+
+    // up to count entries from consecutive buckets after a random one, cheaper than count randomEntry()
+    // calls and good enough for sampling (redis' dictGetSomeKeys). returns the number written to out
+    public int sampleEntries(Random random, Entry[] out, int count) {
+        count = (int) Math.min(count, Math.min(out.length, size()));
+        if (count == 0) {
+            return 0;
+        }
+
+        for (int i = 0; i < count && isRehashing(); i++) {
+            rehashStep();
+        }
+
+        int tablesInUse = isRehashing() ? 2 : 1;
+        int maxMask = tables[tablesInUse - 1].length - 1;
+        if (tablesInUse == 2) {
+            maxMask = Math.max(maxMask, tables[0].length - 1);
+        }
+
+        int index = random.nextInt() & maxMask;
+        int emptyRun = 0;
+        int stored = 0;
+        int maxSteps = count * 10;
+
+        while (stored < count && maxSteps-- > 0) {
+            for (int t = 0; t < tablesInUse; t++) {
+                Entry[] table = tables[t];
+
+                // already moved part of the old table, jump ahead
+                if (tablesInUse == 2 && t == 0 && index < rehashIndex) {
+                    if (index < tables[1].length) {
+                        continue;
+                    }
+                    index = rehashIndex;
+                }
+                if (index >= table.length) {
+                    continue;
+                }
+
+                Entry head = table[index];
+                if (head == null) {
+                    // a long run of empty buckets: restart somewhere else
+                    if (++emptyRun >= 5 && emptyRun > count) {
+                        index = random.nextInt() & maxMask;
+                        emptyRun = 0;
+                    }
+                } else {
+                    emptyRun = 0;
+                    for (Entry e = head; e != null && stored < count; e = e.next) {
+                        out[stored++] = e;
+                    }
+                }
+            }
+            index = (index + 1) & maxMask;
+        }
+        return stored;
+    }
+
+    // moves buckets for about timeLimitNanos, used by the cron so an idle server still finishes rehashing
+    public void rehashFor(long timeLimitNanos) {
+        long start = System.nanoTime();
+        while (isRehashing()) {
+            for (int i = 0; i < 100 && isRehashing(); i++) {
+                rehash();
+            }
+            if (System.nanoTime() - start > timeLimitNanos) {
+                break;
+            }
+        }
+    }
+
+    private void rehashStep() {
+        if (isRehashing()) {
+            rehash();
+        }
+    }
+
+    // moves one non empty bucket of the old table (visiting at most EMPTY_VISITS_PER_STEP empty ones)
+    private void rehash() {
+        Entry[] from = tables[0];
+        Entry[] to = tables[1];
+        int mask = to.length - 1;
+
+        int emptyVisits = EMPTY_VISITS_PER_STEP;
+        while (rehashIndex < from.length && from[rehashIndex] == null) {
+            rehashIndex++;
+            if (--emptyVisits == 0) {
+                break;
+            }
+        }
+
+        if (rehashIndex < from.length && from[rehashIndex] != null) {
+            Entry e = from[rehashIndex];
+            while (e != null) {
+                Entry next = e.next;
+                int bucket = hash(e.key, e.keyLength) & mask;
+                e.next = to[bucket];
+                to[bucket] = e;
+                used[0]--;
+                used[1]++;
+                e = next;
+            }
+            from[rehashIndex] = null;
+            rehashIndex++;
+        }
+
+        // everything moved, the remaining buckets of the old table are empty
+        if (used[0] == 0) {
+            tables[0] = to;
+            tables[1] = null;
+            used[0] = used[1];
+            used[1] = 0;
+            rehashIndex = -1;
+        }
+    }
+
+    // sizes the table for count keys ahead of inserting them (an RDB section announces its key count),
+    // so they go in without a rehash. an empty table is replaced, a filled one is rehashed into the larger one
+    public void expand(long count) {
+        if (isRehashing() || count <= tables[0].length) {
+            return;
+        }
+        int target = tables[0].length;
+        while (target < count && target < MAX_SIZE) {
+            target <<= 1;
+        }
+        if (used[0] == 0) {
+            tables[0] = new Entry[target];
+        } else {
+            startRehash(target);
+        }
+    }
+
+    // a table at MAX_SIZE stays as it is, its chains just get longer (doubling it would overflow the int size)
+    private void expandIfNeeded() {
+        if (!isRehashing() && used[0] >= tables[0].length && tables[0].length < MAX_SIZE) {
+            startRehash(tables[0].length * 2);
+        }
+    }
+
+    private void shrinkIfNeeded() {
+        if (!isRehashing() && tables[0].length > INITIAL_SIZE && used[0] * 100 / tables[0].length < MIN_FILL_PERCENT) {
+            int target = INITIAL_SIZE;
+            while (target < used[0]) {
+                target <<= 1;
+            }
+            startRehash(target);
+        }
+    }
+
+    private void startRehash(int newSize) {
+        tables[1] = new Entry[newSize];
+        rehashIndex = 0;
+    }
+
+    // polynomial hash of the key bytes mixed with murmur3's finalizer so that similar keys spread over the low bits
+    static int hash(byte[] key, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + key[i];
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -1,29 +1,334 @@
 package store;
 
+import server.ClientConnection;
+import server.ServerClock;
+import streams.Stream;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// a key and its value. strings use the smallest of three encodings (like redis' object encodings):
+// INT keeps a canonical integer as 8 bytes after the key, EMBSTR keeps a short value after the key in the
+// same array, RAW keeps a long value in an array of its own and OFFHEAP keeps a value above the off-heap
+// threshold in an OffHeapArena chunk, the entry only pointing to its handle. a cold RAW or OFFHEAP value can be
+// moved to the ValueLog on disk in place (SPILLED) and back on its next access. a long value loaded with
+// rdb-lazy-load is LAZY, a LazyValue pointing into the RDB file, until it is decoded. keys with a TTL are
+// VolatileEntry instances, so the expiry fields cost nothing for the others. created through the of* factories
 public class Entry {
-	private Object value;
-	private final long expiryTimeInMillis;
+	public static final byte ENCODING_RAW = 0;
+	public static final byte ENCODING_INT = 1;
+	public static final byte ENCODING_EMBSTR = 2;
+	public static final byte ENCODING_STREAM = 3;
+	public static final byte ENCODING_OFFHEAP = 4;
+	public static final byte ENCODING_SPILLED = 5;
+	public static final byte ENCODING_LAZY = 6;
+
+	// longer values get their own array, same limit as redis
+	static final int EMBSTR_SIZE_LIMIT = 44;
+
+	private static final VarHandle LONG_AT = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	// key bytes, followed by the value for INT and EMBSTR. Dict hashes and compares key[0..keyLength)
+	final byte[] key;
+	final int keyLength;
+	// chains the entries of a Dict bucket
+	Entry next;
 
-	public Entry(Object value, long expiryTimeInMillis) {
+	// encoding in the top 8 bits, the 24-bit LRU / LFU access clock of Evictor below it (like redis' robj)
+	private int meta;
+	private Object value; // the byte[] of a RAW string, the OffHeapValue, the SpilledValue, the LazyValue or the Stream, null otherwise
+
+	Entry(byte[] key, int keyLength, byte encoding, Object value) {
+		this.key = key;
+		this.keyLength = keyLength;
+		this.meta = encoding << 24;
 		this.value = value;
-		this.expiryTimeInMillis = expiryTimeInMillis;
 	}
 
-	public Entry(Object value) {
+	// expiryTimeInMillis is an absolute unix time, -1 for no TTL
+	public static Entry ofString(byte[] key, byte[] value, long expiryTimeInMillis) {
+		if (isCanonicalLong(value)) {
+			return ofLong(key, parseLong(value), expiryTimeInMillis);
+		}
+
+		if (value.length <= EMBSTR_SIZE_LIMIT) {
+			byte[] data = new byte[key.length + value.length];
+			System.arraycopy(key, 0, data, 0, key.length);
+			System.arraycopy(value, 0, data, key.length, value.length);
+			return create(data, key.length, ENCODING_EMBSTR, null, expiryTimeInMillis);
+		}
+
+		return create(key, key.length, ENCODING_RAW, value, expiryTimeInMillis);
+	}
+
+	public static Entry ofLong(byte[] key, long number, long expiryTimeInMillis) {
+		byte[] data = new byte[key.length + Long.BYTES];
+		System.arraycopy(key, 0, data, 0, key.length);
+		LONG_AT.set(data, key.length, number);
+		return create(data, key.length, ENCODING_INT, null, expiryTimeInMillis);
+	}
+
+	// a string value longer than EMBSTR_SIZE_LIMIT that stays in the loaded file for now
+	public static Entry ofLazyString(byte[] key, LazyValue value, long expiryTimeInMillis) {
+		return create(key, key.length, ENCODING_LAZY, value, expiryTimeInMillis);
+	}
+
+	public static Entry ofStream(byte[] key, Stream stream) {
+		return new Entry(key, key.length, ENCODING_STREAM, stream);
+	}
+
+	private static Entry create(byte[] key, int keyLength, byte encoding, Object value, long expiryTimeInMillis) {
+		if (expiryTimeInMillis == -1) {
+			return new Entry(key, keyLength, encoding, value);
+		}
+		return new VolatileEntry(key, keyLength, encoding, value, expiryTimeInMillis);
+	}
+
+	// the same key and TTL with the value moved into arena, for RAW values the arena accepts (null otherwise)
+	Entry moveOffHeap(OffHeapArena arena) {
+		if (getEncoding() != ENCODING_RAW || !arena.accepts(((byte[]) value).length)) {
+			return null;
+		}
+		return create(key, keyLength, ENCODING_OFFHEAP, arena.store((byte[]) value), getExpiryTimeInMillis());
+	}
+
+	// the keyspace let go of the entry, its off-heap chunk can be reused once no reply is sending it, its value
+	// log record is dead
+	void releaseValue() {
+		if (value instanceof OffHeapValue offHeap) {
+			offHeap.release();
+		} else if (value instanceof SpilledValue spilled) {
+			spilled.release();
+		}
+	}
+
+	// RAW and OFFHEAP values can move to the value log, smaller ones are not worth a handle
+	boolean isSpillable() {
+		byte encoding = getEncoding();
+		return encoding == ENCODING_RAW || encoding == ENCODING_OFFHEAP;
+	}
+
+	// moves the value to the end of log, the entry keeps only the handle
+	void spill(ValueLog log) {
+		ByteBuffer bytes = value instanceof OffHeapValue offHeap
+				? offHeap.chunk.slice(0, offHeap.length) : ByteBuffer.wrap((byte[]) value);
+		SpilledValue spilled = log.append(key, keyLength, bytes);
+		releaseValue();
+		setValue(ENCODING_SPILLED, spilled);
+	}
+
+	// takes a SPILLED value back into memory or decodes a LAZY one, off-heap if arena (may be null) accepts it
+	void restore(OffHeapArena arena) {
+		byte[] bytes;
+		if (value instanceof SpilledValue spilled) {
+			bytes = spilled.toBytes();
+			spilled.release();
+		} else {
+			bytes = ((LazyValue) value).decode();
+		}
+		if (arena != null && arena.accepts(bytes.length)) {
+			setValue(ENCODING_OFFHEAP, arena.store(bytes));
+		} else {
+			setValue(ENCODING_RAW, bytes);
+		}
+	}
+
+	// the byte[], OffHeapValue, SpilledValue or Stream behind the encoding, null for INT and EMBSTR
+	Object getRawValue() {
+		return value;
+	}
+
+	SpilledValue getSpilledValue() {
+		return value instanceof SpilledValue spilled ? spilled : null;
+	}
+
+	// compaction moved the record
+	void setSpilledValue(SpilledValue spilled) {
+		value = spilled;
+	}
+
+	private void setValue(byte encoding, Object value) {
+		this.meta = (meta & Evictor.CLOCK_MAX) | encoding << 24;
 		this.value = value;
-		this.expiryTimeInMillis = -1;
 	}
 
+	public String getKey() {
+		return new String(key, 0, keyLength, StandardCharsets.ISO_8859_1);
+	}
+
+	boolean keyEquals(byte[] other, int length) {
+		return keyLength == length && Arrays.equals(key, 0, keyLength, other, 0, length);
+	}
+
+	public byte getEncoding() {
+		return (byte) (meta >>> 24);
+	}
+
+	int getClock() {
+		return meta & Evictor.CLOCK_MAX;
+	}
+
+	void setClock(int clock) {
+		meta = (meta & ~Evictor.CLOCK_MAX) | (clock & Evictor.CLOCK_MAX);
+	}
+
+	public String getEncodingName() {
+		return switch (getEncoding()) {
+			case ENCODING_INT -> "int";
+			case ENCODING_EMBSTR -> "embstr";
+			case ENCODING_STREAM -> "stream";
+			// where the bytes live is invisible to clients, like redis' raw
+			case ENCODING_OFFHEAP, ENCODING_SPILLED, ENCODING_LAZY -> "raw";
+			default -> "raw";
+		};
+	}
+
+	public boolean isString() {
+		return getEncoding() != ENCODING_STREAM;
+	}
+
+	// strings are decoded into a new String, replies should use addValueReplyTo()
 	public Object getValue() {
-		return value;
+		return switch (getEncoding()) {
+			case ENCODING_INT -> Long.toString(getLongValue());
+			case ENCODING_EMBSTR -> new String(key, keyLength, key.length - keyLength, StandardCharsets.ISO_8859_1);
+			case ENCODING_RAW -> new String((byte[]) value, StandardCharsets.ISO_8859_1);
+			case ENCODING_OFFHEAP -> new String(((OffHeapValue) value).toBytes(), StandardCharsets.ISO_8859_1);
+			case ENCODING_SPILLED -> new String(((SpilledValue) value).toBytes(), StandardCharsets.ISO_8859_1);
+			case ENCODING_LAZY -> new String(((LazyValue) value).decode(), StandardCharsets.ISO_8859_1);
+			default -> value;
+		};
+	}
+
+	// the string value as bytes of its own, for a reply that is put together after the owning thread moved on
+	// (the shard parts of MGET). a RAW value is never changed in place, it is shared
+	public byte[] getValueBytes() {
+		return switch (getEncoding()) {
+			case ENCODING_INT -> Long.toString(getLongValue()).getBytes(StandardCharsets.ISO_8859_1);
+			case ENCODING_EMBSTR -> Arrays.copyOfRange(key, keyLength, key.length);
+			case ENCODING_RAW -> (byte[]) value;
+			case ENCODING_OFFHEAP -> ((OffHeapValue) value).toBytes();
+			case ENCODING_SPILLED -> ((SpilledValue) value).toBytes();
+			case ENCODING_LAZY -> ((LazyValue) value).decode();
+			default -> throw new IllegalStateException("not a string");
+		};
+	}
+
+	// only for INT entries
+	public long getLongValue() {
+		return (long) LONG_AT.get(key, keyLength);
+	}
+
+	// INCR updates INT entries in place
+	void setLongValue(long number) {
+		LONG_AT.set(key, keyLength, number);
+	}
+
+	// the string value as a bulk reply, straight from the stored bytes. an off-heap value is not copied at all,
+	// the reply block is a view of its chunk that the socket write reads directly
+	public void addValueReplyTo(ClientConnection client) {
+		switch (getEncoding()) {
+			case ENCODING_INT -> client.addReplyBulkLong(getLongValue());
+			case ENCODING_EMBSTR -> client.addReplyBulk(key, keyLength, key.length - keyLength);
+			case ENCODING_RAW -> client.addReplyBulk((byte[]) value);
+			case ENCODING_OFFHEAP -> {
+				OffHeapValue offHeap = (OffHeapValue) value;
+				client.addReplyBulk(offHeap.pinForReply(), offHeap::releaseFromReply);
+			}
+			case ENCODING_SPILLED -> client.addReplyBulk(((SpilledValue) value).toBytes());
+			case ENCODING_LAZY -> client.addReplyBulk(((LazyValue) value).decode());
+			default -> throw new IllegalStateException("not a string");
+		}
+	}
+
+	// the key as a bulk reply, straight from the stored bytes
+	public void addKeyReplyTo(ClientConnection client) {
+		client.addReplyBulk(key, 0, keyLength);
+	}
+
+	// estimated heap footprint (compressed oops: 12 byte headers, 8 byte alignment) for maxmemory
+	public long getMemoryUsage() {
+		long size = shallowSize() + arraySize(key.length);
+		if (value instanceof byte[] bytes) {
+			size += arraySize(bytes.length);
+		} else if (value instanceof OffHeapValue offHeap) {
+			size += offHeap.getMemoryUsage();
+		} else if (value instanceof SpilledValue) {
+			size += SpilledValue.memoryUsage();
+		} else if (value instanceof LazyValue lazy) {
+			size += lazy.getMemoryUsage();
+		} else if (value instanceof Stream stream) {
+			size += stream.getMemoryUsage();
+		}
+		return size;
+	}
+
+	// header, key, keyLength, next, meta and value
+	long shallowSize() {
+		return 32;
+	}
+
+	static long arraySize(int length) {
+		return (16 + length + 7) & ~7;
 	}
 
 	public long getExpiryTimeInMillis() {
-		return expiryTimeInMillis;
+		return -1;
 	}
 
 	public boolean isExpired() {
-		return expiryTimeInMillis != -1 && System.currentTimeMillis() > expiryTimeInMillis;
+		return isExpired(ServerClock.millis());
+	}
+
+	public boolean isExpired(long now) {
+		return false;
 	}
 
+	// true if the string is an integer that prints back exactly the same, so INT loses nothing
+	// (no '+', leading zeros, spaces or "-0")
+	static boolean isCanonicalLong(byte[] s) {
+		int length = s.length;
+		if (length == 0 || length > 20) {
+			return false;
+		}
+
+		int i = s[0] == '-' ? 1 : 0;
+		if (i == length) {
+			return false;
+		}
+		if (s[i] == '0') {
+			return length == 1;
+		}
+
+		for (; i < length; i++) {
+			if (s[i] < '0' || s[i] > '9') {
+				return false;
+			}
+		}
+
+		// up to 18 digits always fit in a long
+		if (length - (s[0] == '-' ? 1 : 0) < 19) {
+			return true;
+		}
+		try {
+			Long.parseLong(new String(s, StandardCharsets.ISO_8859_1));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	// for strings isCanonicalLong() accepted, accumulated negatively so Long.MIN_VALUE doesn't overflow
+	private static long parseLong(byte[] s) {
+		boolean negative = s[0] == '-';
+		long result = 0;
+		for (int i = negative ? 1 : 0; i < s.length; i++) {
+			result = result * 10 - (s[i] - '0');
+		}
+		return negative ? result : -result;
+	}
 }
@@ -0,0 +1,45 @@
+package store;
+
+// maxmemory-policy values, same names and meaning as in redis
+public enum EvictionPolicy {
+    NOEVICTION("noeviction"),
+    ALLKEYS_LRU("allkeys-lru"),
+    ALLKEYS_LFU("allkeys-lfu"),
+    ALLKEYS_RANDOM("allkeys-random"),
+    VOLATILE_LRU("volatile-lru"),
+    VOLATILE_LFU("volatile-lfu"),
+    VOLATILE_RANDOM("volatile-random"),
+    VOLATILE_TTL("volatile-ttl");
+
+    private final String configName;
+
+    EvictionPolicy(String configName) {
+        this.configName = configName;
+    }
+
+    public static EvictionPolicy fromConfig(String name) {
+        for (EvictionPolicy policy : values()) {
+            if (policy.configName.equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("ERR invalid maxmemory-policy '" + name + "'");
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    // only keys with a TTL are candidates
+    boolean isVolatile() {
+        return this == VOLATILE_LRU || this == VOLATILE_LFU || this == VOLATILE_RANDOM || this == VOLATILE_TTL;
+    }
+
+    boolean isLfu() {
+        return this == ALLKEYS_LFU || this == VOLATILE_LFU;
+    }
+
+    boolean isRandom() {
+        return this == ALLKEYS_RANDOM || this == VOLATILE_RANDOM;
+    }
+}
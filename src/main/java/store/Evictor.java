@@ -0,0 +1,268 @@
+package store;
+
+import server.ServerClock;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// approximated LRU / LFU eviction, the way redis' evict.c does it: keys are not kept in access order, every
+// entry carries a 24-bit access clock instead (LRU: seconds of the last access, LFU: minutes of the last
+// decrement plus a logarithmic access counter). each eviction samples a few keys and keeps the best
+// candidates seen so far in a small pool sorted by idle score, so good candidates survive across samples.
+class Evictor {
+    static final int POOL_SIZE = 16;
+    static final int CLOCK_MAX = (1 << 24) - 1;
+    static final long NO_CANDIDATE = Long.MIN_VALUE;
+    private static final int LRU_CLOCK_RESOLUTION_MS = 1000;
+    private static final int LFU_INIT_VAL = 5; // new keys are not evicted before they had a chance to be used
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+    private static final int SPILL_SAMPLE_ATTEMPTS = 16;
+
+    private final EvictionPolicy policy;
+    private final int samples;
+    private final Random random;
+
+    // best candidate last, free slots (null) are always at the end
+    private final Entry[] pool = new Entry[POOL_SIZE];
+    private final long[] poolIdle = new long[POOL_SIZE];
+    private final Entry[] sampled;
+    private Entry spillCandidate;
+    private long spillScore;
+    private long spillCursor; // where the scan for a spill candidate goes on when sampling found none
+
+    Evictor(EvictionPolicy policy, int samples, Random random) {
+        this.policy = policy;
+        this.samples = samples;
+        this.random = random;
+        this.sampled = new Entry[samples];
+    }
+
+    EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    // access clock of a new entry
+    int initialClock() {
+        return policy.isLfu() ? lfuTimeInMinutes() << 8 | LFU_INIT_VAL : lruClock();
+    }
+
+    // called on every key lookup
+    void touch(Entry entry) {
+        if (policy.isLfu()) {
+            int counter = lfuLogIncr(lfuDecrAndReturn(entry.getClock()));
+            entry.setClock(lfuTimeInMinutes() << 8 | counter);
+        } else {
+            entry.setClock(lruClock());
+        }
+    }
+
+    // samples the keyspace of one database into the pool and returns the idle score of the best candidate,
+    // NO_CANDIDATE if there is none (empty keyspace, no TTL keys for volatile-*). Databases compares the
+    // pools of all databases and evicts from the best one, like redis' pool shared by every db
+    long fillPool(Dict keys, ExpiresIndex expires) {
+        if (policy.isVolatile() ? expires.size() == 0 : keys.size() == 0) {
+            return NO_CANDIDATE;
+        }
+
+        int count = sample(keys, expires);
+        for (int i = 0; i < count; i++) {
+            insert(sampled[i], idleScore(sampled[i]));
+            sampled[i] = null;
+        }
+
+        // candidates deleted or overwritten since they were pooled are skipped
+        for (int k = POOL_SIZE - 1; k >= 0; k--) {
+            Entry candidate = pool[k];
+            if (candidate == null) {
+                continue;
+            }
+            if (keys.get(candidate.key, candidate.keyLength) == candidate) {
+                return poolIdle[k];
+            }
+            pool[k] = null;
+        }
+        return NO_CANDIDATE;
+    }
+
+    // takes the best candidate out of the pool, right after fillPool() found one
+    Entry popBest() {
+        for (int k = POOL_SIZE - 1; k >= 0; k--) {
+            if (pool[k] != null) {
+                Entry candidate = pool[k];
+                pool[k] = null;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // allkeys-random / volatile-random, null if the policy has no candidate
+    Entry randomVictim(Dict keys, ExpiresIndex expires) {
+        if (policy.isVolatile()) {
+            return expires.size() == 0 ? null : expires.entryAt(random.nextInt(expires.size()));
+        }
+        return keys.randomEntry(random);
+    }
+
+    // samples the keyspace for the coldest value that can move to the value log and returns its score. cold means
+    // least frequently used under the LFU policies and idle the longest otherwise (volatile-ttl included, a value
+    // is spilled for how it is read, not for when it expires). when few values are spillable a sample can miss
+    // them all, then the buckets are walked from where the last walk stopped until one is found. NO_CANDIDATE
+    // only if the keyspace holds none
+    long sampleSpillCandidate(Dict keys) {
+        spillCandidate = null;
+        spillScore = NO_CANDIDATE;
+        for (int attempt = 0; attempt < SPILL_SAMPLE_ATTEMPTS && spillCandidate == null; attempt++) {
+            int count = keys.sampleEntries(random, sampled, samples);
+            for (int i = 0; i < count; i++) {
+                considerForSpill(sampled[i]);
+                sampled[i] = null;
+            }
+        }
+
+        // the second return to cursor 0 means every bucket was visited
+        int wraps = 0;
+        while (spillCandidate == null && wraps < 2 && keys.size() > 0) {
+            spillCursor = keys.scan(spillCursor, this::considerForSpill);
+            if (spillCursor == 0) {
+                wraps++;
+            }
+        }
+        return spillScore;
+    }
+
+    private void considerForSpill(Entry entry) {
+        if (!entry.isSpillable()) {
+            return;
+        }
+
+        long score = policy.isLfu() ? 255 - lfuDecrAndReturn(entry.getClock()) : estimateIdleMillis(entry.getClock());
+        if (spillCandidate == null || score > spillScore) {
+            spillCandidate = entry;
+            spillScore = score;
+        }
+    }
+
+    // the value sampleSpillCandidate() found
+    Entry takeSpillCandidate() {
+        Entry candidate = spillCandidate;
+        spillCandidate = null;
+        return candidate;
+    }
+
+    // drops a deleted entry from the pool, so the pool never keeps a big value alive after it left the keyspace
+    void forget(Entry entry) {
+        if (spillCandidate == entry) {
+            spillCandidate = null;
+        }
+        for (int k = 0; k < POOL_SIZE; k++) {
+            if (pool[k] == entry) {
+                // keep the free slots at the end
+                System.arraycopy(pool, k + 1, pool, k, POOL_SIZE - k - 1);
+                System.arraycopy(poolIdle, k + 1, poolIdle, k, POOL_SIZE - k - 1);
+                pool[POOL_SIZE - 1] = null;
+                return;
+            }
+        }
+    }
+
+    void clearPool() {
+        Arrays.fill(pool, null);
+        spillCandidate = null;
+    }
+
+    private int sample(Dict keys, ExpiresIndex expires) {
+        if (!policy.isVolatile()) {
+            return keys.sampleEntries(random, sampled, samples);
+        }
+
+        int count = Math.min(samples, expires.size());
+        for (int i = 0; i < count; i++) {
+            sampled[i] = expires.entryAt(random.nextInt(expires.size()));
+        }
+        return count;
+    }
+
+    // higher is a better candidate
+    private long idleScore(Entry entry) {
+        if (policy == EvictionPolicy.VOLATILE_TTL) {
+            return Long.MAX_VALUE - entry.getExpiryTimeInMillis();
+        }
+        if (policy.isLfu()) {
+            return 255 - lfuDecrAndReturn(entry.getClock());
+        }
+        return estimateIdleMillis(entry.getClock());
+    }
+
+    private void insert(Entry entry, long idle) {
+        int k = 0;
+        while (k < POOL_SIZE && pool[k] != null && poolIdle[k] < idle) {
+            k++;
+        }
+
+        for (int i = 0; i < POOL_SIZE && pool[i] != null; i++) {
+            if (pool[i] == entry) {
+                return;
+            }
+        }
+
+        if (k == 0 && pool[POOL_SIZE - 1] != null) {
+            // worse than every candidate of a full pool
+            return;
+        }
+
+        if (k < POOL_SIZE && pool[k] == null) {
+            // free slot at the end
+        } else if (pool[POOL_SIZE - 1] == null) {
+            // room left: shift the better candidates right
+            System.arraycopy(pool, k, pool, k + 1, POOL_SIZE - k - 1);
+            System.arraycopy(poolIdle, k, poolIdle, k + 1, POOL_SIZE - k - 1);
+        } else {
+            // full: drop the worst candidate (first slot) and shift the worse ones left
+            k--;
+            System.arraycopy(pool, 1, pool, 0, k);
+            System.arraycopy(poolIdle, 1, poolIdle, 0, k);
+        }
+
+        pool[k] = entry;
+        poolIdle[k] = idle;
+    }
+
+    private static int lruClock() {
+        return (int) ((ServerClock.millis() / LRU_CLOCK_RESOLUTION_MS) & CLOCK_MAX);
+    }
+
+    // the clock wraps every ~194 days, an older access just looks recent
+    private static long estimateIdleMillis(int clock) {
+        int now = lruClock();
+        long ticks = now >= clock ? now - clock : CLOCK_MAX - clock + now;
+        return ticks * LRU_CLOCK_RESOLUTION_MS;
+    }
+
+    private static int lfuTimeInMinutes() {
+        return (int) ((ServerClock.millis() / 60_000) & 0xFFFF);
+    }
+
+    // the counter loses one per LFU_DECAY_MINUTES since its last decrement, so old hits fade away
+    private static int lfuDecrAndReturn(int clock) {
+        int lastDecrement = clock >>> 8;
+        int counter = clock & 0xFF;
+
+        int now = lfuTimeInMinutes();
+        long elapsed = now >= lastDecrement ? now - lastDecrement : 0xFFFF - lastDecrement + now;
+        long periods = elapsed / LFU_DECAY_MINUTES;
+        return periods >= counter ? 0 : counter - (int) periods;
+    }
+
+    // logarithmic counter: the more hits a key has, the less likely one more increments it
+    private int lfuLogIncr(int counter) {
+        if (counter == 255) {
+            return 255;
+        }
+
+        double base = Math.max(0, counter - LFU_INIT_VAL);
+        double p = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return random.nextDouble() < p ? counter + 1 : counter;
+    }
+}
@@ -0,0 +1,70 @@
+package store;
+
+// keys that have a TTL, kept apart from the keyspace so the active expiry cycle samples only volatile keys.
+// a dense array with swap-remove: add, remove and picking a random key are O(1), every entry knows its slot
+class ExpiresIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private VolatileEntry[] entries = new VolatileEntry[MIN_CAPACITY];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    long memoryUsage() {
+        return 16 + 4L * entries.length;
+    }
+
+    VolatileEntry entryAt(int slot) {
+        return entries[slot];
+    }
+
+    // no-op for entries without a TTL
+    void add(Entry entry) {
+        if (!(entry instanceof VolatileEntry volatileEntry)) {
+            return;
+        }
+
+        if (size == entries.length) {
+            resize(entries.length * 2);
+        }
+
+        entries[size] = volatileEntry;
+        volatileEntry.setExpiresSlot(size);
+        size++;
+    }
+
+    // no-op for entries without a TTL
+    void remove(Entry entry) {
+        if (!(entry instanceof VolatileEntry volatileEntry) || volatileEntry.getExpiresSlot() < 0) {
+            return;
+        }
+
+        // the last key takes the freed slot
+        int slot = volatileEntry.getExpiresSlot();
+        int last = --size;
+        if (slot != last) {
+            entries[slot] = entries[last];
+            entries[slot].setExpiresSlot(slot);
+        }
+        entries[last] = null;
+        volatileEntry.setExpiresSlot(-1);
+
+        // shrink late so add/remove around a boundary doesn't resize every time
+        if (entries.length > MIN_CAPACITY && size < entries.length / 4) {
+            resize(entries.length / 2);
+        }
+    }
+
+    void clear() {
+        entries = new VolatileEntry[MIN_CAPACITY];
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        VolatileEntry[] newEntries = new VolatileEntry[capacity];
+        System.arraycopy(entries, 0, newEntries, 0, size);
+        entries = newEntries;
+    }
+}
@@ -0,0 +1,174 @@
+package store;
+
+import java.nio.charset.StandardCharsets;
+
+// redis glob-style pattern (KEYS, SCAN MATCH): '*' any run of bytes, '?' any byte, '[abc]' / '[^a-z]' a class,
+// '\' escapes the next byte. compiled once per command into one token per pattern position, so matching a key
+// is a loop over bytes with a single backtrack point for the last '*' (linear, no recursion).
+public final class GlobPattern {
+    private static final int ANY = -1;
+    private static final int STAR = -2;
+    private static final int CLASS = -3; // class i is classes[i], stored as CLASS - i
+
+    private static final GlobPattern MATCH_ALL = new GlobPattern(new int[] {STAR}, new long[0][]);
+
+    // a byte value (0..255) or one of the markers above
+    private final int[] tokens;
+    private final long[][] classes; // 256-bit sets
+
+    private GlobPattern(int[] tokens, long[][] classes) {
+        this.tokens = tokens;
+        this.classes = classes;
+    }
+
+    public static GlobPattern compile(String pattern) {
+        byte[] p = pattern.getBytes(StandardCharsets.ISO_8859_1);
+        int[] tokens = new int[p.length];
+        long[][] classes = new long[p.length][];
+        int count = 0;
+        int classCount = 0;
+
+        for (int i = 0; i < p.length; i++) {
+            int c = p[i] & 0xFF;
+            switch (c) {
+                case '*' -> {
+                    // consecutive stars are one star
+                    if (count == 0 || tokens[count - 1] != STAR) {
+                        tokens[count++] = STAR;
+                    }
+                }
+                case '?' -> tokens[count++] = ANY;
+                case '[' -> {
+                    long[] set = new long[4];
+                    i++;
+                    boolean negate = i < p.length && p[i] == '^';
+                    if (negate) {
+                        i++;
+                    }
+
+                    // an unterminated class ends with the pattern, like in redis
+                    while (i < p.length && p[i] != ']') {
+                        int from = p[i] & 0xFF;
+                        if (from == '\\' && i + 1 < p.length) {
+                            from = p[++i] & 0xFF;
+                            addRange(set, from, from);
+                        } else if (i + 2 < p.length && p[i + 1] == '-') {
+                            int to = p[i + 2] & 0xFF;
+                            addRange(set, Math.min(from, to), Math.max(from, to));
+                            i += 2;
+                        } else {
+                            addRange(set, from, from);
+                        }
+                        i++;
+                    }
+
+                    if (negate) {
+                        for (int w = 0; w < 4; w++) {
+                            set[w] = ~set[w];
+                        }
+                    }
+                    classes[classCount] = set;
+                    tokens[count++] = CLASS - classCount++;
+                }
+                case '\\' -> {
+                    // a trailing backslash is a literal one
+                    tokens[count++] = i + 1 < p.length ? p[++i] & 0xFF : '\\';
+                }
+                default -> tokens[count++] = c;
+            }
+        }
+
+        if (count == 1 && tokens[0] == STAR) {
+            return MATCH_ALL;
+        }
+        int[] compact = new int[count];
+        System.arraycopy(tokens, 0, compact, 0, count);
+        long[][] compactClasses = new long[classCount][];
+        System.arraycopy(classes, 0, compactClasses, 0, classCount);
+        return new GlobPattern(compact, compactClasses);
+    }
+
+    private static void addRange(long[] set, int from, int to) {
+        for (int c = from; c <= to; c++) {
+            set[c >>> 6] |= 1L << c;
+        }
+    }
+
+    public boolean matchesAll() {
+        return this == MATCH_ALL;
+    }
+
+    // true if the pattern matches exactly one string, which literal() returns
+    public boolean isLiteral() {
+        for (int token : tokens) {
+            if (token < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] literal() {
+        byte[] bytes = new byte[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            bytes[i] = (byte) tokens[i];
+        }
+        return bytes;
+    }
+
+    public boolean matches(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        return matches(bytes, bytes.length);
+    }
+
+    // matches s[0..length)
+    public boolean matches(byte[] s, int length) {
+        if (this == MATCH_ALL) {
+            return true;
+        }
+
+        int t = 0;
+        int i = 0;
+        int starToken = -1; // token after the last star seen, and where in s it started matching
+        int starAt = 0;
+
+        while (i < length) {
+            if (t < tokens.length) {
+                int token = tokens[t];
+                if (token == STAR) {
+                    starToken = ++t;
+                    starAt = i;
+                    continue;
+                }
+                if (matchesOne(token, s[i] & 0xFF)) {
+                    t++;
+                    i++;
+                    continue;
+                }
+            }
+
+            // mismatch: let the last star swallow one more byte, fail without one
+            if (starToken < 0) {
+                return false;
+            }
+            t = starToken;
+            i = ++starAt;
+        }
+
+        while (t < tokens.length && tokens[t] == STAR) {
+            t++;
+        }
+        return t == tokens.length;
+    }
+
+    private boolean matchesOne(int token, int c) {
+        if (token >= 0) {
+            return token == c;
+        }
+        if (token == ANY) {
+            return true;
+        }
+        long[] set = classes[CLASS - token];
+        return (set[c >>> 6] & (1L << c)) != 0;
+    }
+}
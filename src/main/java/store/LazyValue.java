@@ -0,0 +1,12 @@
+package store;
+
+// a string value still in the file it was loaded from (rdb-lazy-load): the entry keeps only this handle and the
+// value is decoded on its first access or by the warmer (DataStore.warmLazyValues()). the loader implements it,
+// the store doesn't know the file format
+public interface LazyValue {
+    // the value's bytes, decoded from the file on every call
+    byte[] decode();
+
+    // heap bytes of the handle, for maxmemory
+    long getMemoryUsage();
+}
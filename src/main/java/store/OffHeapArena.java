@@ -0,0 +1,118 @@
+package store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// slab allocator for string values above the off-heap threshold, kept in direct buffers outside the java heap
+// so the collector never scans or copies them (memcached's slabs): chunk sizes grow by GROWTH_FACTOR from the
+// threshold up, each size class cuts its chunks out of SLAB_SIZE buffers (a chunk above that gets a buffer of
+// its own) and keeps freed chunks for the next value of its class. only the OffHeapValue handles are on the heap.
+// owned by the thread of its DataStore like the Dict. the one exception is the last reply sending a value
+// after it was deleted, that frees the chunk from an io thread through freeLater()
+final class OffHeapArena {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int CHUNK_ALIGNMENT = 64;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024 * 1024; // the client query buffer limit caps values too
+
+    private final int threshold;
+    private final int[] chunkSizes; // ascending, class i holds values up to chunkSizes[i] bytes
+    private final List<ArrayDeque<ByteBuffer>> freeChunks; // by size class
+    private final ConcurrentLinkedQueue<OffHeapValue> releasedByReplies = new ConcurrentLinkedQueue<>();
+
+    // for INFO, only written by the owning thread
+    private volatile long slabBytes;
+    private volatile long usedBytes;
+
+    OffHeapArena(int threshold) {
+        this.threshold = threshold;
+
+        int[] sizes = new int[64];
+        int count = 0;
+        long size = align(threshold + 1L);
+        while (true) {
+            sizes[count++] = (int) Math.min(size, MAX_CHUNK_SIZE);
+            if (size >= MAX_CHUNK_SIZE) {
+                break;
+            }
+            size = align(Math.max(size + 1, (long) (size * GROWTH_FACTOR)));
+        }
+        this.chunkSizes = Arrays.copyOf(sizes, count);
+        this.freeChunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            freeChunks.add(new ArrayDeque<>());
+        }
+    }
+
+    private static long align(long size) {
+        return (size + CHUNK_ALIGNMENT - 1) & -CHUNK_ALIGNMENT;
+    }
+
+    // true if a string value of this length is stored here rather than on the heap
+    boolean accepts(int length) {
+        return length > threshold && length <= MAX_CHUNK_SIZE;
+    }
+
+    // copies value into a chunk of the smallest class that fits it
+    OffHeapValue store(byte[] value) {
+        reclaimReleased();
+
+        int sizeClass = Arrays.binarySearch(chunkSizes, value.length);
+        if (sizeClass < 0) {
+            sizeClass = -sizeClass - 1;
+        }
+
+        ByteBuffer chunk = freeChunks.get(sizeClass).pollLast();
+        if (chunk == null) {
+            chunk = carveSlab(sizeClass);
+        }
+        chunk.put(0, value);
+        usedBytes += chunk.capacity();
+        return new OffHeapValue(this, chunk, value.length, sizeClass);
+    }
+
+    // a new slab for the class, all of its chunks but the returned one go to the free list
+    private ByteBuffer carveSlab(int sizeClass) {
+        int chunkSize = chunkSizes[sizeClass];
+        int chunks = Math.max(1, SLAB_SIZE / chunkSize);
+        ByteBuffer slab = ByteBuffer.allocateDirect(chunkSize * chunks);
+        slabBytes += slab.capacity();
+
+        for (int i = 1; i < chunks; i++) {
+            freeChunks.get(sizeClass).addLast(slab.slice(i * chunkSize, chunkSize));
+        }
+        return slab.slice(0, chunkSize);
+    }
+
+    // the chunk of a value nothing refers to anymore goes back to its class
+    void free(OffHeapValue value) {
+        freeChunks.get(value.sizeClass).addLast(value.chunk);
+        usedBytes -= value.chunk.capacity();
+    }
+
+    // free() for the io thread that sent the last reply pinning a deleted value, done by the owner on its next store()
+    void freeLater(OffHeapValue value) {
+        releasedByReplies.add(value);
+    }
+
+    private void reclaimReleased() {
+        OffHeapValue value;
+        while ((value = releasedByReplies.poll()) != null) {
+            free(value);
+        }
+    }
+
+    // direct memory reserved by the slabs
+    long getSlabBytes() {
+        return slabBytes;
+    }
+
+    // part of it holding values
+    long getUsedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,63 @@
+package store;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+// heap handle of a string value stored in an OffHeapArena chunk. the keyspace holds one reference, every reply
+// sending the bytes straight from the chunk holds another until the socket took them, the chunk is reused only
+// after the last one is released (so a DEL or an overwrite can not change a value that is still being sent)
+final class OffHeapValue {
+    private static final VarHandle REFS;
+
+    static {
+        try {
+            REFS = MethodHandles.lookup().findVarHandle(OffHeapValue.class, "refs", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final OffHeapArena arena;
+    final ByteBuffer chunk;
+    final int length;
+    final int sizeClass;
+    private volatile int refs = 1;
+
+    OffHeapValue(OffHeapArena arena, ByteBuffer chunk, int length, int sizeClass) {
+        this.arena = arena;
+        this.chunk = chunk;
+        this.length = length;
+        this.sizeClass = sizeClass;
+    }
+
+    // a read only view of the value for one reply, released with releaseFromReply() once sent
+    ByteBuffer pinForReply() {
+        REFS.getAndAdd(this, 1);
+        return chunk.slice(0, length).asReadOnlyBuffer();
+    }
+
+    void releaseFromReply() {
+        if ((int) REFS.getAndAdd(this, -1) == 1) {
+            arena.freeLater(this);
+        }
+    }
+
+    // the keyspace dropped the value (delete, overwrite), called by the owning thread
+    void release() {
+        if ((int) REFS.getAndAdd(this, -1) == 1) {
+            arena.free(this);
+        }
+    }
+
+    byte[] toBytes() {
+        byte[] bytes = new byte[length];
+        chunk.get(0, bytes);
+        return bytes;
+    }
+
+    // the chunk and this handle
+    long getMemoryUsage() {
+        return chunk.capacity() + 80;
+    }
+}
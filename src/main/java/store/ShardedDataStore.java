@@ -0,0 +1,198 @@
+package store;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// one database split into independent DataStore shards by key hash. every shard is owned by its own thread
+// (see server.ShardThread), single key commands and the per-shard parts of MGET / MSET / DEL run there directly
+// against getShard(i). the methods of this class route each key to its shard and are only used by the main
+// thread while all shard threads are paused (EXEC, KEYS / SCAN, replication stream, RDB load).
+// memory, eviction and expiry work on the shards themselves, through the shard views of Databases
+public class ShardedDataStore implements Database {
+    private final DataStore[] shards;
+
+    public ShardedDataStore(int shardCount) {
+        this.shards = new DataStore[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new DataStore();
+        }
+    }
+
+    // the shards carry the database's number, Databases sets it through its shard views
+    @Override
+    public int getId() {
+        return shards[0].getId();
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    DataStore getShard(int index) {
+        return shards[index];
+    }
+
+    // the hash of String.hashCode() over the key's bytes (chars of a latin-1 String), so both forms agree
+    public int shardIndex(byte[] key) {
+        int h = 0;
+        for (byte b : key) {
+            h = 31 * h + (b & 0xFF);
+        }
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    public int shardIndex(String key) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    private DataStore shardFor(byte[] key) {
+        return shards[shardIndex(key)];
+    }
+
+    private DataStore shardFor(String key) {
+        return shards[shardIndex(key)];
+    }
+
+    @Override
+    public void setWithExpiryAt(byte[] key, byte[] value, long expiryTimeInMillis) {
+        shardFor(key).setWithExpiryAt(key, value, expiryTimeInMillis);
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+        shardFor(key).set(key, value);
+    }
+
+    @Override
+    public long increment(byte[] key, long delta) {
+        return shardFor(key).increment(key, delta);
+    }
+
+    @Override
+    public boolean delete(byte[] key) {
+        return shardFor(key).delete(key);
+    }
+
+    @Override
+    public void flush() {
+        for (DataStore shard : shards) {
+            shard.flush();
+        }
+    }
+
+    @Override
+    public Entry getEntry(byte[] key) {
+        return shardFor(key).getEntry(key);
+    }
+
+    @Override
+    public Object get(String key) {
+        return shardFor(key).get(key);
+    }
+
+    @Override
+    public int getVolatileKeyCount() {
+        int total = 0;
+        for (DataStore shard : shards) {
+            total += shard.getVolatileKeyCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long size() {
+        long total = 0;
+        for (DataStore shard : shards) {
+            total += shard.size();
+        }
+        return total;
+    }
+
+    // average over the shards holding keys with a TTL
+    @Override
+    public long getAvgTtl() {
+        long total = 0;
+        int counted = 0;
+        for (DataStore shard : shards) {
+            if (shard.getVolatileKeyCount() > 0) {
+                total += shard.getAvgTtl();
+                counted++;
+            }
+        }
+        return counted == 0 ? 0 : total / counted;
+    }
+
+    @Override
+    public void load(Entry entry) {
+        shards[shardIndex(entry.getKey())].load(entry);
+    }
+
+    // keys spread evenly over the shards, a little slack for the uneven ones
+    @Override
+    public void reserve(long keys) {
+        long perShard = keys / shards.length + keys / shards.length / 8;
+        for (DataStore shard : shards) {
+            shard.reserve(perShard);
+        }
+    }
+
+    @Override
+    public long countKeys(GlobPattern pattern) {
+        long total = 0;
+        for (DataStore shard : shards) {
+            total += shard.countKeys(pattern);
+        }
+        return total;
+    }
+
+    @Override
+    public void forEachKey(GlobPattern pattern, Consumer<Entry> action) {
+        for (DataStore shard : shards) {
+            shard.forEachKey(pattern, action);
+        }
+    }
+
+    // the shards are scanned one after the other: the cursor is shardCursor * shardCount + shard index.
+    // shard cursors stay below the table size, so this never overflows
+    @Override
+    public long scan(long cursor, long count, GlobPattern pattern, DataType type, List<Entry> out) {
+        int index = (int) Long.remainderUnsigned(cursor, shards.length);
+        long shardCursor = Long.divideUnsigned(cursor, shards.length);
+
+        while (true) {
+            shardCursor = shards[index].scan(shardCursor, count - out.size(), pattern, type, out);
+            if (shardCursor != 0) {
+                return shardCursor * shards.length + index;
+            }
+
+            if (++index == shards.length) {
+                return 0;
+            }
+            if (out.size() >= count) {
+                return index;
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return shardFor(key).exists(key);
+    }
+
+    @Override
+    public String addToStream(String key, String id, Map<String, String> fields) {
+        return shardFor(key).addToStream(key, id, fields);
+    }
+
+    @Override
+    public DataType getDataType(String key) {
+        return shardFor(key).getDataType(key);
+    }
+
+    @Override
+    public DataType getDataType(byte[] key) {
+        return shardFor(key).getDataType(key);
+    }
+}
@@ -0,0 +1,360 @@
+package store;
+
+import streams.Stream;
+import streams.StreamEntry;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// every database as it was at one point in time, for an RDB save without fork(). redis' child process gets
+// that view from the kernel's copy-on-write pages, here the keyspace stays where it is: the thread owning each
+// DataStore walks its Dict with a scan cursor, a slice at a time (step()), and a write to a key the walk has not
+// reached yet first hands the old value over (beforeWrite()). keys created after the snapshot are remembered
+// until the walk passes them, so they are left out. the records of every DataStore queue up for the writer
+// thread (nextRecord()), which gets each key of the snapshot exactly once with its value at snapshot time.
+// created by Databases.snapshot() while nothing else runs against the keyspace
+public final class Snapshot {
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024; // how far the walk may run ahead of the writer
+    private static final long FOREGROUND_STEP_NANOS = 10_000_000;
+
+    private final long time;
+    private final boolean foreground;
+    private final Part[] parts; // in database order, the shards of a database one after the other
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile int current; // the part being walked, the ones before are done
+    private volatile boolean aborted;
+    private int readPart; // only used by the writer
+
+    Snapshot(Database[] dbs, long time, boolean foreground) {
+        this.time = time;
+        this.foreground = foreground;
+
+        List<Part> parts = new ArrayList<>();
+        for (int i = 0; i < dbs.length; i++) {
+            if (dbs[i] instanceof ShardedDataStore sharded) {
+                for (int s = 0; s < sharded.getShardCount(); s++) {
+                    parts.add(new Part(this, i, s, sharded.getShard(s)));
+                }
+            } else {
+                parts.add(new Part(this, i, -1, (DataStore) dbs[i]));
+            }
+        }
+        this.parts = parts.toArray(new Part[0]);
+    }
+
+    // unix time in ms the snapshot shows, keys expired by then are left out
+    public long getTime() {
+        return time;
+    }
+
+    public int getDatabaseCount() {
+        return parts.length == 0 ? 0 : parts[parts.length - 1].db + 1;
+    }
+
+    // keys and keys with a TTL of database db at snapshot time, for RESIZEDB
+    public long getKeyCount(int db) {
+        long keys = 0;
+        for (Part part : parts) {
+            if (part.db == db) {
+                keys += part.keys;
+            }
+        }
+        return keys;
+    }
+
+    public long getVolatileKeyCount(int db) {
+        long keys = 0;
+        for (Part part : parts) {
+            if (part.db == db) {
+                keys += part.volatileKeys;
+            }
+        }
+        return keys;
+    }
+
+    // the shard owning the part being walked, -1 if it isn't sharded or the walk is over. in shards mode the
+    // server runs step() on that shard's thread
+    public int getCurrentShard() {
+        int index = current;
+        return index < parts.length ? parts[index].shard : -1;
+    }
+
+    // walks for about budgetNanos, called by the thread owning the keyspace. shard -1 means the caller owns every
+    // part (no shards, or all shards paused), otherwise only the parts of that shard are touched. once aborted,
+    // the parts stop watching their DataStore
+    public void step(int shard, long budgetNanos) {
+        if (aborted) {
+            for (Part part : parts) {
+                if (shard < 0 || part.shard == shard) {
+                    part.detach();
+                }
+            }
+            return;
+        }
+
+        long deadline = System.nanoTime() + budgetNanos;
+        int index;
+        while ((index = current) < parts.length && (shard < 0 || parts[index].shard == shard)) {
+            if (!parts[index].scan(deadline)) {
+                return;
+            }
+        }
+    }
+
+    // the writer gave up, see step()
+    public void abort() {
+        aborted = true;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    // no part watches its DataStore anymore: all walked, or detached after abort()
+    public boolean isReleased() {
+        for (Part part : parts) {
+            if (!part.scanned && !part.detached) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the writer's side: the next key of database db, null once it has none left. databases have to be read in
+    // order. a background snapshot waits for the walk, a foreground one (SAVE) walks itself on the calling thread
+    public Record nextRecord(int db) throws InterruptedException {
+        while (readPart < parts.length && parts[readPart].db <= db) {
+            Record record = parts[readPart].take();
+            if (record != null) {
+                return record;
+            }
+            readPart++;
+        }
+        return null;
+    }
+
+    // one DataStore of a database
+    static final class Part {
+        private final Snapshot snapshot;
+        private final int db;
+        private final int shard;
+        private final DataStore store;
+        private final Dict dict; // the table at snapshot time, kept by a FLUSHALL that comes in between
+        private final long keys;
+        private final long volatileKeys;
+        private final LinkedBlockingQueue<Record> records = new LinkedBlockingQueue<>();
+
+        // owner thread only: the next scan cursor, and the keys written before the walk reached them
+        private long cursor;
+        private long scanFrom;
+        private Set<String> written = new HashSet<>();
+        private final Consumer<Entry> emitter = this::emit;
+
+        private volatile boolean scanned;
+        private volatile boolean detached;
+
+        Part(Snapshot snapshot, int db, int shard, DataStore store) {
+            this.snapshot = snapshot;
+            this.db = db;
+            this.shard = shard;
+            this.store = store;
+            this.dict = store.startSnapshot(this);
+            this.keys = dict.size();
+            this.volatileKeys = store.getVolatileKeyCount();
+        }
+
+        // true once the walk is through. the cursor counts up with its bits reversed (see Dict.scan), so a key
+        // was visited if its reversed hash is below the reversed cursor, whatever resizes happened in between
+        private boolean visited(int hash) {
+            return scanned || Integer.compareUnsigned(Integer.reverse(hash), Integer.reverse((int) cursor)) < 0;
+        }
+
+        // walks until the deadline or until enough records wait for the writer, true if done
+        private boolean scan(long deadline) {
+            int steps = 0;
+            while (snapshot.pendingBytes.get() < MAX_PENDING_BYTES) {
+                scanFrom = cursor;
+                cursor = dict.scan(cursor, emitter);
+                if (cursor == 0) {
+                    finish();
+                    return true;
+                }
+                if ((++steps & 63) == 0 && System.nanoTime() > deadline) {
+                    break;
+                }
+            }
+            return false;
+        }
+
+        private void emit(Entry entry) {
+            // after a shrink the bucket of the cursor also holds keys already visited
+            int reversed = Integer.reverse(Dict.hash(entry.key, entry.keyLength));
+            if (Integer.compareUnsigned(reversed, Integer.reverse((int) scanFrom)) < 0) {
+                return;
+            }
+            if (!written.isEmpty() && written.remove(new String(entry.key, 0, entry.keyLength, StandardCharsets.ISO_8859_1))) {
+                return;
+            }
+            add(entry);
+        }
+
+        // a write is about to replace or remove old (null if the key is new), on the owner thread
+        void beforeWrite(byte[] key, int keyLength, Entry old) {
+            if (snapshot.aborted) {
+                detach();
+                return;
+            }
+            if (visited(Dict.hash(key, keyLength))) {
+                return;
+            }
+            if (written.add(new String(key, 0, keyLength, StandardCharsets.ISO_8859_1)) && old != null) {
+                add(old);
+            }
+        }
+
+        private void add(Entry entry) {
+            long expiry = entry.getExpiryTimeInMillis();
+            if (expiry != -1 && expiry <= snapshot.time) {
+                return;
+            }
+            Record record = Record.of(entry, expiry);
+            snapshot.pendingBytes.addAndGet(record.size);
+            records.add(record);
+        }
+
+        private void finish() {
+            written = null;
+            store.endSnapshot(this);
+            scanned = true;
+            snapshot.current++;
+        }
+
+        // drops what the writer will never take
+        private void detach() {
+            if (detached || scanned) {
+                return;
+            }
+            written = null;
+            store.endSnapshot(this);
+            detached = true;
+            Record record;
+            while ((record = records.poll()) != null) {
+                record.release();
+            }
+        }
+
+        private Record take() throws InterruptedException {
+            while (true) {
+                // read first: records queued before the walk ended are found by the poll
+                boolean complete = scanned;
+                Record record = snapshot.foreground ? records.poll() : records.poll(10, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    snapshot.pendingBytes.addAndGet(-record.size);
+                    return record;
+                }
+                if (complete) {
+                    return null;
+                }
+                if (snapshot.foreground) {
+                    scan(System.nanoTime() + FOREGROUND_STEP_NANOS);
+                }
+            }
+        }
+    }
+
+    // a key and its value as they were at snapshot time. strings are referenced, not copied: RAW arrays and the
+    // value part of EMBSTR keys never change, an off-heap value is pinned like a reply until release() and a
+    // spilled one stays readable from its mapping. INT values and the entries of a stream are copied
+    public static final class Record {
+        private final byte[] key;
+        private final int keyLength;
+        private final long expiryTimeInMillis;
+        private final byte encoding;
+        private final Object value; // byte[], OffHeapValue, SpilledValue or the List of stream entries
+        private final ByteBuffer pinned; // view of an off-heap value
+        private final long number;
+        private final long size; // heap bytes held while queued
+
+        private Record(Entry entry, long expiryTimeInMillis, Object value, ByteBuffer pinned, long number, long valueSize) {
+            this.key = entry.key;
+            this.keyLength = entry.keyLength;
+            this.expiryTimeInMillis = expiryTimeInMillis;
+            this.encoding = entry.getEncoding();
+            this.value = value;
+            this.pinned = pinned;
+            this.number = number;
+            this.size = 64 + entry.key.length + valueSize;
+        }
+
+        private static Record of(Entry entry, long expiryTimeInMillis) {
+            Object value = entry.getRawValue();
+            return switch (entry.getEncoding()) {
+                case Entry.ENCODING_INT -> new Record(entry, expiryTimeInMillis, null, null, entry.getLongValue(), 0);
+                case Entry.ENCODING_RAW -> new Record(entry, expiryTimeInMillis, value, null, 0, ((byte[]) value).length);
+                case Entry.ENCODING_OFFHEAP -> new Record(entry, expiryTimeInMillis, value, ((OffHeapValue) value).pinForReply(), 0, 0);
+                case Entry.ENCODING_STREAM -> {
+                    Stream stream = (Stream) value;
+                    yield new Record(entry, expiryTimeInMillis, new ArrayList<>(stream.getEntries().values()), null, 0, stream.getMemoryUsage());
+                }
+                default -> new Record(entry, expiryTimeInMillis, value, null, 0, 0); // EMBSTR (in the key array), SPILLED, LAZY
+            };
+        }
+
+        public byte[] getKey() {
+            return Arrays.copyOf(key, keyLength);
+        }
+
+        public long getExpiryTimeInMillis() {
+            return expiryTimeInMillis;
+        }
+
+        public boolean isStream() {
+            return encoding == Entry.ENCODING_STREAM;
+        }
+
+        public boolean isInteger() {
+            return encoding == Entry.ENCODING_INT;
+        }
+
+        public long getLongValue() {
+            return number;
+        }
+
+        // the value of any other string encoding
+        public byte[] getStringValue() {
+            return switch (encoding) {
+                case Entry.ENCODING_EMBSTR -> Arrays.copyOfRange(key, keyLength, key.length);
+                case Entry.ENCODING_RAW -> (byte[]) value;
+                case Entry.ENCODING_OFFHEAP -> {
+                    byte[] bytes = new byte[pinned.remaining()];
+                    pinned.get(0, bytes);
+                    yield bytes;
+                }
+                case Entry.ENCODING_SPILLED -> ((SpilledValue) value).toBytes();
+                case Entry.ENCODING_LAZY -> ((LazyValue) value).decode();
+                default -> throw new IllegalStateException("not a string");
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<StreamEntry> getStreamEntries() {
+            return (List<StreamEntry>) value;
+        }
+
+        // the writer is done with the record, an off-heap chunk can be reused once the keyspace let go of it too
+        public void release() {
+            if (pinned != null) {
+                ((OffHeapValue) value).releaseFromReply();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package store;
+
+// heap handle of a string value moved to the ValueLog: where its bytes are in which segment
+final class SpilledValue {
+    final ValueLog.Segment segment;
+    final int offset;
+    final int length;
+    private final int recordLength;
+
+    SpilledValue(ValueLog.Segment segment, int offset, int length, int recordLength) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+        this.recordLength = recordLength;
+    }
+
+    // reading the mapping faults the pages in from disk if the kernel dropped them
+    byte[] toBytes() {
+        byte[] bytes = new byte[length];
+        segment.map.get(offset, bytes);
+        return bytes;
+    }
+
+    // the keyspace dropped the value or took it back into memory
+    void release() {
+        segment.log.release(this);
+    }
+
+    int recordLength() {
+        return recordLength;
+    }
+
+    // header, a reference and three ints
+    static long memoryUsage() {
+        return 32;
+    }
+}
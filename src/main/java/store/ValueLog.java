@@ -0,0 +1,194 @@
+package store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// append-only log on local disk for the cold string values of one DataStore (tiered storage): a value moved
+// here leaves only its key, metadata and a SpilledValue handle in memory. the log is a list of memory-mapped
+// segment files, records are appended to the last one and read back through the mapping, so a cold read is a
+// page fault rather than a system call. each record is <key length><value length><key><value>, the key lets
+// compact() find the entry owning a record. overwritten or deleted values leave dead records behind, a segment
+// that is mostly dead is compacted: its live records are appended again and the file is deleted.
+// not thread safe, owned by the thread of its DataStore like the Dict. the log is a cache tier, not persistence:
+// the files are temporary and deleted when the server exits
+final class ValueLog {
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int RECORD_HEADER = 8;
+    private static final int COMPACT_DEAD_PERCENT = 50; // segments with at least this much dead space are compacted
+
+    private final Path dir;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+
+    // compaction in progress, continued by every compact() call
+    private Segment compacting;
+    private int compactPosition;
+
+    // for INFO, only written by the owning thread
+    private volatile long spilledValues;
+    private volatile long logBytes;  // written to the segments that still exist
+    private volatile long liveBytes; // records still referenced by the keyspace
+
+    ValueLog(Path dir) {
+        this.dir = dir;
+    }
+
+    static final class Segment {
+        final ValueLog log;
+        final MappedByteBuffer map;
+        private final Path path;
+        private int writePosition;
+        private long liveBytes;
+
+        private Segment(ValueLog log, Path path, MappedByteBuffer map) {
+            this.log = log;
+            this.path = path;
+            this.map = map;
+        }
+    }
+
+    // appends key and value[position..limit) as a new record
+    SpilledValue append(byte[] key, int keyLength, ByteBuffer value) {
+        int length = value.remaining();
+        int recordLength = RECORD_HEADER + keyLength + length;
+        if (active == null || active.map.capacity() - active.writePosition < recordLength) {
+            active = newSegment(Math.max(SEGMENT_SIZE, recordLength));
+        }
+
+        MappedByteBuffer map = active.map;
+        int at = active.writePosition;
+        map.putInt(at, keyLength);
+        map.putInt(at + 4, length);
+        map.put(at + RECORD_HEADER, key, 0, keyLength);
+        map.put(at + RECORD_HEADER + keyLength, value, value.position(), length);
+        active.writePosition += recordLength;
+        active.liveBytes += recordLength;
+
+        spilledValues++;
+        logBytes += recordLength;
+        liveBytes += recordLength;
+        return new SpilledValue(active, at + RECORD_HEADER + keyLength, length, recordLength);
+    }
+
+    private Segment newSegment(int size) {
+        try {
+            Files.createDirectories(dir);
+            Path path = Files.createTempFile(dir, "values-", ".vlog");
+            path.toFile().deleteOnExit();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // the mapping stays valid after the channel is closed
+                Segment segment = new Segment(this, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                segments.add(segment);
+                return segment;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("value log: " + e.getMessage(), e);
+        }
+    }
+
+    // the keyspace dropped the value or took it back into memory, its record is dead
+    void release(SpilledValue value) {
+        Segment segment = value.segment;
+        int recordLength = value.recordLength();
+        segment.liveBytes -= recordLength;
+        spilledValues--;
+        liveBytes -= recordLength;
+
+        // a segment nothing lives in anymore goes right away
+        if (segment.liveBytes == 0 && segment != active && segment != compacting) {
+            drop(segment);
+        }
+    }
+
+    // moves the live records of a mostly dead segment to the end of the log for about timeLimitNanos, called
+    // from the cron. the entries of keys get their new handles, the segment file is deleted once it is done
+    void compact(Dict keys, long timeLimitNanos) {
+        if (compacting == null && (compacting = pickSegmentToCompact()) == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        MappedByteBuffer map = compacting.map;
+        int records = 0;
+        while (compactPosition < compacting.writePosition) {
+            int keyLength = map.getInt(compactPosition);
+            int length = map.getInt(compactPosition + 4);
+            int valueOffset = compactPosition + RECORD_HEADER + keyLength;
+
+            byte[] key = new byte[keyLength];
+            map.get(compactPosition + RECORD_HEADER, key);
+            Entry entry = keys.get(key);
+            if (entry != null && entry.getSpilledValue() instanceof SpilledValue spilled
+                    && spilled.segment == compacting && spilled.offset == valueOffset) {
+                SpilledValue moved = append(key, keyLength, map.slice(valueOffset, length));
+                entry.setSpilledValue(moved);
+                release(spilled);
+            }
+            compactPosition = valueOffset + length;
+
+            if ((++records & 63) == 0 && System.nanoTime() - start > timeLimitNanos) {
+                return;
+            }
+        }
+
+        drop(compacting);
+        compacting = null;
+        compactPosition = 0;
+    }
+
+    private Segment pickSegmentToCompact() {
+        Segment best = null;
+        long bestDead = 0;
+        for (Segment segment : segments) {
+            long dead = segment.writePosition - segment.liveBytes;
+            if (segment != active && dead * 100 >= (long) segment.writePosition * COMPACT_DEAD_PERCENT && dead > bestDead) {
+                best = segment;
+                bestDead = dead;
+            }
+        }
+        return best;
+    }
+
+    // the file is deleted now, the kernel releases its pages once the mapping is collected
+    private void drop(Segment segment) {
+        segments.remove(segment);
+        logBytes -= segment.writePosition;
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            System.out.println("value log: could not delete " + segment.path + ": " + e.getMessage());
+        }
+    }
+
+    // FLUSHALL / FLUSHDB: every segment goes
+    void clear() {
+        for (Segment segment : new ArrayList<>(segments)) {
+            drop(segment);
+        }
+        active = null;
+        compacting = null;
+        compactPosition = 0;
+        spilledValues = 0;
+        liveBytes = 0;
+    }
+
+    long getSpilledValues() {
+        return spilledValues;
+    }
+
+    long getLogBytes() {
+        return logBytes;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+}
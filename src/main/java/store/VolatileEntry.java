@@ -0,0 +1,36 @@
+package store;
+
+// an Entry with a TTL, also the only kind of entry the expires index holds
+class VolatileEntry extends Entry {
+	private final long expiryTimeInMillis;
+	private int expiresSlot = -1; // position in the expires index, -1 if not in it
+
+	VolatileEntry(byte[] key, int keyLength, byte encoding, Object value, long expiryTimeInMillis) {
+		super(key, keyLength, encoding, value);
+		this.expiryTimeInMillis = expiryTimeInMillis;
+	}
+
+	// Entry's 32 bytes plus the long and the int
+	@Override
+	long shallowSize() {
+		return 48;
+	}
+
+	@Override
+	public long getExpiryTimeInMillis() {
+		return expiryTimeInMillis;
+	}
+
+	@Override
+	public boolean isExpired(long now) {
+		return now > expiryTimeInMillis;
+	}
+
+	int getExpiresSlot() {
+		return expiresSlot;
+	}
+
+	void setExpiresSlot(int expiresSlot) {
+		this.expiresSlot = expiresSlot;
+	}
+}
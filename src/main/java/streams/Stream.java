@@ -1,5 +1,7 @@
 package streams;
 
+import server.ServerClock;
+
 import java.util.*;
 
 public class Stream {
@@ -8,11 +10,17 @@ public class Stream {
     private static final String fullyAutoGeneratedId = "^\\*$";                // *
 
     private final Map<String, StreamEntry> entries;
+    private long memoryUsage = 96; // the Stream and its empty LinkedHashMap
 
     public Stream() {
         entries = new LinkedHashMap<>();
     }
 
+    // rough heap footprint for maxmemory accounting
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
     public String addEntry(StreamEntry entry) {
         String id = entry.id();
         if (id.matches(autoGeneratedSequenceId)) {
@@ -28,9 +36,29 @@ public class Stream {
         validateEntryId(id);
         entry = new StreamEntry(id, entry.fields());
         entries.put(id, entry);
+        memoryUsage += estimateSize(entry);
         return entry.id();
     }
 
+    // an entry read back from an RDB file, the ids were checked by XADD before they were saved
+    public void restoreEntry(StreamEntry entry) {
+        entries.put(entry.id(), entry);
+        memoryUsage += estimateSize(entry);
+    }
+
+    // map node, record, id and a LinkedHashMap of fields, strings counted with their byte[]
+    private static long estimateSize(StreamEntry entry) {
+        long size = 40 + 24 + stringSize(entry.id()) + 64;
+        for (Map.Entry<String, String> field : entry.fields().entrySet()) {
+            size += 40 + stringSize(field.getKey()) + stringSize(field.getValue());
+        }
+        return size;
+    }
+
+    private static long stringSize(String s) {
+        return 24 + ((16 + s.length() + 7) & ~7);
+    }
+
     public Map<String, StreamEntry> getEntries() {
         return entries;
     }
@@ -68,7 +96,7 @@ public class Stream {
 
     // this works since entries are sorted by timestamp and sequence number (monotonically increasing)
     private String generateFullId() {
-        long timestamp = System.currentTimeMillis();
+        long timestamp = ServerClock.millis();
         long sequence = 0;
         long[] lastEntryId = parseEntryId(getLastEntryId());
 
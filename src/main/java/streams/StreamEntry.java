@@ -1,6 +1,18 @@
 package streams;
 
+import server.ClientConnection;
+
 import java.util.Map;
 
 public record StreamEntry(String id, Map<String, String> fields) {
+    // [id, [field, value, ...]] as XRANGE and XREAD return it
+    public void addReplyTo(ClientConnection client) {
+        client.addReplyArrayLen(2);
+        client.addReplyBulk(id);
+        client.addReplyArrayLen(fields.size() * 2L);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            client.addReplyBulk(field.getKey());
+            client.addReplyBulk(field.getValue());
+        }
+    }
 }
@@ -1,26 +1,35 @@
 package streams.manager;
 
-import java.nio.channels.SocketChannel;
+import server.ClientConnection;
+import server.ServerClock;
+import server.TimingWheel;
 
 public class BlockingRequest {
-    private final SocketChannel client;
+    private final ClientConnection client;
+    private final int db; // database the client had selected, only XADDs there can serve it
     private final String streamKey;
     private final String startId;
     private final long timeout;
     private final long creationTime;
+    private TimingWheel.Timeout timeoutTimer;
 
-    public BlockingRequest(SocketChannel client, String streamKey, String startId, long timeout) {
+    public BlockingRequest(ClientConnection client, String streamKey, String startId, long timeout) {
         this.client = client;
+        this.db = client.getDb();
         this.streamKey = streamKey;
         this.startId = startId;
         this.timeout = timeout;
-        this.creationTime = System.currentTimeMillis();
+        this.creationTime = ServerClock.millis();
     }
 
-    public SocketChannel getClient() {
+    public ClientConnection getClient() {
         return client;
     }
 
+    public int getDb() {
+        return db;
+    }
+
     public String getStreamKey() {
         return streamKey;
     }
@@ -37,10 +46,13 @@ public class BlockingRequest {
         return creationTime;
     }
 
-    public boolean isTimedOut() {
-        if (timeout == 0) {
-            return false; // never timeout, keep listening
+    public void setTimeout(TimingWheel.Timeout timeoutTimer) {
+        this.timeoutTimer = timeoutTimer;
+    }
+
+    public void cancelTimeout() {
+        if (timeoutTimer != null) {
+            timeoutTimer.cancel();
         }
-        return System.currentTimeMillis() > creationTime + timeout;
     }
 }
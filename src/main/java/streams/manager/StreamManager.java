@@ -1,11 +1,12 @@
 package streams.manager;
 
+import protocol.RESPEncoder;
+import server.ClientConnection;
+import server.TimingWheel;
 import streams.Stream;
 import streams.StreamEntry;
 
-import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
 import java.util.*;
 
 public class StreamManager {
@@ -14,49 +15,51 @@ public class StreamManager {
     // Key: stream key, value: list of blocking requests
     private static Map<String, List<BlockingRequest>> pendingRequests;
 
-    public StreamManager() {
+    private final TimingWheel timers;
+
+    public StreamManager(TimingWheel timers) {
         pendingRequests = new HashMap<>();
+        this.timers = timers;
     }
 
-    public void addBlockRequest(SocketChannel client, String streamKey, String startId, long timeout) {
+    public void addBlockRequest(ClientConnection client, String streamKey, String startId, long timeout) {
         BlockingRequest request = new BlockingRequest(client, streamKey, startId, timeout);
+        client.setBlocked(true);
         pendingRequests.computeIfAbsent(streamKey, k -> new ArrayList<>()).add(request);
-    }
-
-    public void processTimedOutRequests() {
-        long currentTime = System.currentTimeMillis();
-        Iterator<Map.Entry<String, List<BlockingRequest>>> Itr = pendingRequests.entrySet().iterator();
-
-        // Check all pending requests
-        while (Itr.hasNext()) {
-
-            Map.Entry<String, List<BlockingRequest>> entry = Itr.next();
-            String streamKey = entry.getKey();
-            List<BlockingRequest> requests = entry.getValue();
 
-            for (Iterator<BlockingRequest> requestIt = requests.iterator(); requestIt.hasNext(); ) {
-                BlockingRequest request = requestIt.next();
+        // BLOCK 0 waits forever, no timer needed
+        if (timeout > 0) {
+            request.setTimeout(timers.schedule(request.getCreationTime() + timeout, () -> timeoutRequest(request)));
+        }
+    }
 
-                // Check if request has timed out
-                if (request.isTimedOut()) {
-                    try {
-                        // Send null response for timeout
-                        request.getClient().write(ByteBuffer.wrap("$-1\r\n".getBytes()));
-                    } catch (Exception e) {
-                        System.out.println("Error sending timeout response: " + e.getMessage());
-                    }
-                    requestIt.remove();
-                    continue;
+    // a disconnected client must not be answered later
+    public static void removeClient(ClientConnection client) {
+        Iterator<Map.Entry<String, List<BlockingRequest>>> itr = pendingRequests.entrySet().iterator();
+        while (itr.hasNext()) {
+            List<BlockingRequest> requests = itr.next().getValue();
+            requests.removeIf(request -> {
+                if (request.getClient() != client) {
+                    return false;
                 }
-            }
-
-            // Remove stream entry if no more requests
+                request.cancelTimeout();
+                return true;
+            });
             if (requests.isEmpty()) {
-                Itr.remove();
+                itr.remove();
             }
         }
     }
 
+    // fired by the timing wheel, the requests of the other streams of the same XREAD go too
+    private void timeoutRequest(BlockingRequest request) {
+        ClientConnection client = request.getClient();
+        removeClient(client);
+
+        // Send null response for timeout
+        client.addReply(RESPEncoder.NULL_BULK);
+        client.setBlocked(false);
+    }
 
     // wont be used for now (it works as clean up method)
 //    public void processPendingRequests() {
@@ -133,8 +136,8 @@ public class StreamManager {
         return pendingRequests;
     }
 
-    // notify client about new entries in the stream
-    public static void notifyNewEntry(String streamKey, Stream stream) {
+    // notify client about new entries in the stream, db is the database the stream belongs to
+    public static void notifyNewEntry(int db, String streamKey, Stream stream) {
         List<BlockingRequest> requests = getPendingRequests().get(streamKey);
 
         if (requests == null || requests.isEmpty()) {
@@ -142,41 +145,30 @@ public class StreamManager {
         }
 
         List<BlockingRequest> requestsToRemove = new ArrayList<>();
+        List<ClientConnection> servedClients = new ArrayList<>();
 
         for (BlockingRequest request : requests) {
+            if (request.getDb() != db) {
+                continue;
+            }
+
             try {
                 List<StreamEntry> entries = stream.getEntriesGreaterThan(request.getStartId());
 
                 if (!entries.isEmpty()) {
-                    // Format XREAD response
-                    StringBuilder response = new StringBuilder();
-                    response.append("*1\r\n");  // One stream
-
-                    // Stream name and entries array
-                    response.append("*2\r\n");
-                    response.append("$").append(streamKey.length()).append("\r\n").append(streamKey).append("\r\n");
-
-                    // Entries array
-                    response.append("*").append(entries.size()).append("\r\n");
-
-                    // For each entry in this stream
+                    // Format XREAD response: one stream with its entries
+                    ClientConnection client = request.getClient();
+                    client.addReplyArrayLen(1);
+                    client.addReplyArrayLen(2);
+                    client.addReplyBulk(streamKey);
+                    client.addReplyArrayLen(entries.size());
                     for (StreamEntry entry : entries) {
-                        // Entry ID and fields
-                        response.append("*2\r\n");
-                        response.append("$").append(entry.id().length()).append("\r\n").append(entry.id()).append("\r\n");
-
-                        // Fields array
-                        Map<String, String> fields = entry.fields();
-                        response.append("*").append(fields.size() * 2).append("\r\n");
-
-                        for (Map.Entry<String, String> field : fields.entrySet()) {
-                            response.append("$").append(field.getKey().length()).append("\r\n").append(field.getKey()).append("\r\n");
-                            response.append("$").append(field.getValue().length()).append("\r\n").append(field.getValue()).append("\r\n");
-                        }
+                        entry.addReplyTo(client);
                     }
 
-                    request.getClient().write(ByteBuffer.wrap(response.toString().getBytes()));
+                    request.getClient().setBlocked(false);
                     requestsToRemove.add(request);
+                    servedClients.add(client);
                 }
             } catch (Exception e) {
                 System.out.println("Error notifying client: " + e.getMessage());
@@ -185,9 +177,17 @@ public class StreamManager {
         }
 
         // Remove processed requests
+        for (BlockingRequest request : requestsToRemove) {
+            request.cancelTimeout();
+        }
         requests.removeAll(requestsToRemove);
         if (requests.isEmpty()) {
             pendingRequests.remove(streamKey);
         }
+
+        // a served XREAD is also done waiting on its other streams
+        for (ClientConnection client : servedClients) {
+            removeClient(client);
+        }
     }
 }
@@ -1,39 +1,40 @@
 package transaction;
 
-import java.nio.channels.SocketChannel;
+import protocol.CommandParts;
+import server.ClientConnection;
+
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.ArrayDeque;
 
 public class TransactionManager {
-    private static final Map<SocketChannel, Queue<List<String>>> transactionMap = new HashMap<>();
+    private static final Map<ClientConnection, Queue<CommandParts>> transactionMap = new HashMap<>();
 
-    public static boolean isInTransaction(SocketChannel client) {
+    public static boolean isInTransaction(ClientConnection client) {
         return transactionMap.containsKey(client);
     }
 
-    public static void startTransaction(SocketChannel client) {
+    public static void startTransaction(ClientConnection client) {
         transactionMap.put(client, new ArrayDeque<>());
     }
 
-    public static void queueCommand(SocketChannel client, List<String> commandParts) {
-        Queue<List<String>> queue = transactionMap.get(client);
+    public static void queueCommand(ClientConnection client, CommandParts commandParts) {
+        Queue<CommandParts> queue = transactionMap.get(client);
         if (queue != null) {
             queue.offer(commandParts);
         }
     }
 
-    public static Queue<List<String>> getTransaction(SocketChannel client) {
+    public static Queue<CommandParts> getTransaction(ClientConnection client) {
         return transactionMap.get(client);
     }
 
-    public static Queue<List<String>> removeTransaction(SocketChannel client) {
+    public static Queue<CommandParts> removeTransaction(ClientConnection client) {
         return transactionMap.remove(client);
     }
 
-    public static void abortTransaction(SocketChannel client) {
+    public static void abortTransaction(ClientConnection client) {
         transactionMap.remove(client);
     }
 }
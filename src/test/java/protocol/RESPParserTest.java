@@ -0,0 +1,144 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RESPParserTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static List<String> arguments(RESPCommand command) {
+        List<String> arguments = new ArrayList<>();
+        for (int i = 0; i < command.size(); i++) {
+            arguments.add(new String(command.argToBytes(i), StandardCharsets.ISO_8859_1));
+        }
+        return arguments;
+    }
+
+    @Test
+    void parsesAWholeFrame() {
+        byte[] frame = bytes("*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n");
+        RESPCommand command = new RESPCommand();
+
+        assertEquals(frame.length, RESPParser.parseCommand(frame, 0, frame.length, command));
+        assertEquals(List.of("SET", "key", "value"), arguments(command));
+        assertEquals(frame.length, command.getFrameLength());
+    }
+
+    @Test
+    void bulkStringsMayHoldCRLF() {
+        byte[] frame = bytes("*3\r\n$3\r\nSET\r\n$4\r\nk\r\n1\r\n$8\r\n\r\n$2\r\n*1\r\n");
+        RESPCommand command = new RESPCommand();
+
+        assertEquals(frame.length, RESPParser.parseCommand(frame, 0, frame.length, command));
+        assertEquals(List.of("SET", "k\r\n1", "\r\n$2\r\n*1"), arguments(command));
+    }
+
+    @Test
+    void bulkStringsAreBinarySafe() {
+        byte[] value = new byte[256];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        byte[] head = bytes("*2\r\n$3\r\nGET\r\n$256\r\n");
+        byte[] frame = new byte[head.length + value.length + 2];
+        System.arraycopy(head, 0, frame, 0, head.length);
+        System.arraycopy(value, 0, frame, head.length, value.length);
+        frame[frame.length - 2] = '\r';
+        frame[frame.length - 1] = '\n';
+        RESPCommand command = new RESPCommand();
+
+        assertEquals(frame.length, RESPParser.parseCommand(frame, 0, frame.length, command));
+        assertArrayEquals(value, command.argToBytes(1));
+    }
+
+    // every split point, including inside "\r\n" of a length line and inside a bulk holding CRLF
+    @Test
+    void resumesAFrameReceivedInTwoParts() {
+        byte[] frame = bytes("*3\r\n$3\r\nSET\r\n$2\r\nk1\r\n$6\r\na\r\nb\r\n\r\n");
+        for (int split = 1; split < frame.length; split++) {
+            RESPCommand command = new RESPCommand();
+
+            assertEquals(RESPParser.INCOMPLETE, RESPParser.parseCommand(frame, 0, split, command), "split at " + split);
+            assertEquals(frame.length, RESPParser.parseCommand(frame, 0, frame.length, command), "split at " + split);
+            assertEquals(List.of("SET", "k1", "a\r\nb\r\n"), arguments(command), "split at " + split);
+        }
+    }
+
+    // one byte per read, and the frame moves between reads like it does when the query buffer is compacted or grown
+    @Test
+    void resumesAFrameThatMovedInTheBuffer() {
+        byte[] frame = bytes("*2\r\n$4\r\nECHO\r\n$12\r\nhello\r\nworld\r\n");
+        RESPCommand command = new RESPCommand();
+        int result = RESPParser.INCOMPLETE;
+        for (int received = 1; received <= frame.length; received++) {
+            int frameStart = received % 3;
+            byte[] buffer = new byte[frameStart + frame.length];
+            System.arraycopy(frame, 0, buffer, frameStart, received);
+
+            result = RESPParser.parseCommand(buffer, frameStart, frameStart + received, command);
+            if (received < frame.length) {
+                assertEquals(RESPParser.INCOMPLETE, result, received + " bytes received");
+            } else {
+                assertEquals(frameStart + frame.length, result);
+            }
+        }
+        assertEquals(List.of("ECHO", "hello\r\nworld"), arguments(command));
+        assertEquals(frame.length, command.getFrameLength());
+    }
+
+    @Test
+    void parsesAPipelineOneFrameAtATime() {
+        byte[] buffer = bytes("*1\r\n$4\r\nPING\r\n*2\r\n$3\r\nGET\r\n$1\r\nk\r\n*2\r\n$3\r\nGET\r\n$1");
+        RESPCommand command = new RESPCommand();
+
+        int next = RESPParser.parseCommand(buffer, 0, buffer.length, command);
+        assertEquals(List.of("PING"), arguments(command));
+        next = RESPParser.parseCommand(buffer, next, buffer.length, command);
+        assertEquals(List.of("GET", "k"), arguments(command));
+        assertEquals(RESPParser.INCOMPLETE, RESPParser.parseCommand(buffer, next, buffer.length, command));
+    }
+
+    @Test
+    void parsesInlineCommands() {
+        byte[] buffer = bytes("SET  k\tv\r\nPING\n");
+        RESPCommand command = new RESPCommand();
+
+        int next = RESPParser.parseCommand(buffer, 0, buffer.length, command);
+        assertEquals(List.of("SET", "k", "v"), arguments(command));
+        assertEquals(buffer.length, RESPParser.parseCommand(buffer, next, buffer.length, command));
+        assertEquals(List.of("PING"), arguments(command));
+    }
+
+    @Test
+    void consumesAnEmptyMultibulk() {
+        byte[] buffer = bytes("*0\r\n");
+        RESPCommand command = new RESPCommand();
+
+        assertEquals(buffer.length, RESPParser.parseCommand(buffer, 0, buffer.length, command));
+        assertTrue(command.isEmpty());
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        byte[] unterminated = bytes("*1\r\n$3\r\nGETxx");
+        byte[] badLength = bytes("*1\r\n$x\r\nGET\r\n");
+        byte[] notBulk = bytes("*1\r\n+GET\r\n");
+        byte[] tooManyArguments = bytes("*99999999\r\n");
+
+        assertThrows(IllegalArgumentException.class, () -> RESPParser.parseCommand(unterminated, 0, unterminated.length, new RESPCommand()));
+        assertThrows(IllegalArgumentException.class, () -> RESPParser.parseCommand(badLength, 0, badLength.length, new RESPCommand()));
+        assertThrows(IllegalArgumentException.class, () -> RESPParser.parseCommand(notBulk, 0, notBulk.length, new RESPCommand()));
+        assertThrows(IllegalArgumentException.class, () -> RESPParser.parseCommand(tooManyArguments, 0, tooManyArguments.length, new RESPCommand()));
+    }
+}
@@ -0,0 +1,150 @@
+package rdb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import store.Database;
+import store.Databases;
+import store.Entry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// the crc64 trailer, checked while loading or, with rdb-lazy-load, handed over as a DeferredChecksum
+class RDBFileParserTest {
+    private static final int KEYS = 200;
+    private static final int VALUE_LENGTH = 1_000;
+
+    @TempDir
+    Path dir;
+
+    // random bytes, stored as they are
+    private static byte[] value(int i) {
+        byte[] value = new byte[VALUE_LENGTH];
+        new Random(i).nextBytes(value);
+        return value;
+    }
+
+    private Path write() throws IOException, InterruptedException {
+        Databases databases = new Databases(1, 1);
+        Database db = databases.get(0);
+        for (int i = 0; i < KEYS; i++) {
+            db.set(("key:" + i).getBytes(StandardCharsets.US_ASCII), value(i));
+        }
+        Path file = dir.resolve("dump.rdb");
+        RDBWriter.write(databases.snapshot(System.currentTimeMillis(), true), file);
+        return file;
+    }
+
+    // one byte inside the value of the last key, the structure of the file stays intact
+    private static void corrupt(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        byte[] value = value(KEYS - 1);
+        for (int at = 0; at <= bytes.length - value.length; at++) {
+            if (Arrays.equals(bytes, at, at + value.length, value, 0, value.length)) {
+                bytes[at + value.length / 2] ^= 0x01;
+                Files.write(file, bytes);
+                return;
+            }
+        }
+        throw new AssertionError("value not found in " + file);
+    }
+
+    // the trailer rdbchecksum no writes
+    private static void clearChecksum(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        Arrays.fill(bytes, bytes.length - 8, bytes.length, (byte) 0);
+        Files.write(file, bytes);
+    }
+
+    // loads lazily, the checksums handed over go to deferred
+    private static Databases loadLazily(Path file, List<DeferredChecksum> deferred) throws IOException {
+        Databases databases = new Databases(1, 1);
+        RDBFileParser.parseFile(file.toString(), 1, true, true, new RDBFileParser.KeyConsumer() {
+            @Override
+            public void accept(int db, Entry entry) {
+                databases.load(db, entry);
+            }
+
+            @Override
+            public void checksumDeferred(DeferredChecksum checksum) {
+                deferred.add(checksum);
+            }
+        });
+        return databases;
+    }
+
+    @Test
+    void refusesACorruptFile() throws IOException, InterruptedException {
+        Path file = write();
+        corrupt(file);
+
+        IOException e = assertThrows(IOException.class, () -> RDBFileParser.parseFile(file.toString(), 1, true, false, (db, entry) -> {
+        }));
+        assertTrue(e.getMessage().startsWith("Wrong RDB checksum"), e.getMessage());
+        assertThrows(IOException.class, () -> RDBFileParser.parseFile(file.toString(), 4, true, false, (db, entry) -> {
+        }));
+    }
+
+    @Test
+    void lazyLoadLeavesTheChecksumForLater() throws IOException, InterruptedException {
+        Path file = write();
+        List<DeferredChecksum> deferred = new ArrayList<>();
+
+        Databases loaded = loadLazily(file, deferred);
+
+        assertEquals(KEYS, loaded.get(0).size());
+        assertEquals(1, deferred.size());
+        assertEquals(file.toString(), deferred.get(0).getFilePath());
+        deferred.get(0).verify();
+    }
+
+    // the keys are served from the corrupt file, only the late check notices
+    @Test
+    void lateCheckOfACorruptFileFails() throws IOException, InterruptedException {
+        Path file = write();
+        corrupt(file);
+        List<DeferredChecksum> deferred = new ArrayList<>();
+
+        Databases loaded = loadLazily(file, deferred);
+
+        assertEquals(KEYS, loaded.get(0).size());
+        assertArrayEquals(value(0), loaded.get(0).getEntry("key:0".getBytes(StandardCharsets.US_ASCII)).getValueBytes());
+        IOException e = assertThrows(IOException.class, () -> deferred.get(0).verify());
+        assertTrue(e.getMessage().startsWith("Wrong RDB checksum"), e.getMessage());
+    }
+
+    // the default consumer checks right away
+    @Test
+    void defaultConsumerChecksALazyLoadRightAway() throws IOException, InterruptedException {
+        Path file = write();
+        corrupt(file);
+
+        assertThrows(IOException.class, () -> RDBFileParser.parseFile(file.toString(), 1, true, true, (db, entry) -> {
+        }));
+    }
+
+    @Test
+    void zeroTrailerIsNotChecked() throws IOException, InterruptedException {
+        Path file = write();
+        clearChecksum(file);
+        List<DeferredChecksum> deferred = new ArrayList<>();
+
+        RDBFileParser.parseFile(file.toString(), 1, true, false, (db, entry) -> {
+        });
+        Databases loaded = loadLazily(file, deferred);
+
+        assertEquals(KEYS, loaded.get(0).size());
+        assertTrue(deferred.isEmpty());
+    }
+}
@@ -0,0 +1,143 @@
+package rdb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import store.Database;
+import store.Databases;
+import store.Entry;
+import streams.Stream;
+import streams.StreamEntry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// a keyspace written by RDBWriter and read back by RDBFileParser in each of its modes
+class RDBWriterTest {
+    // an hour ahead, so the key expiring before it is still in the store when the snapshot is taken
+    private static final long TIME = System.currentTimeMillis() + 3_600_000;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // every string encoding, TTLs and a stream, in three databases
+    private static Map<String, byte[]> fill(Databases databases) {
+        Map<String, byte[]> strings = new HashMap<>();
+        Random random = new Random(7);
+        Database db0 = databases.get(0);
+        for (int i = 0; i < 2_000; i++) {
+            byte[] value = switch (i % 5) {
+                case 0 -> bytes("short:" + i); // EMBSTR
+                case 1 -> bytes(Long.toString(i * 1_000_003L - 500_000_000L)); // INT
+                case 2 -> bytes("compressible ".repeat(20 + i % 50)); // LZF in the file
+                case 3 -> {
+                    byte[] binary = new byte[100 + random.nextInt(2_000)];
+                    random.nextBytes(binary);
+                    yield binary;
+                }
+                default -> bytes("with\r\nCRLF and \0 " + i);
+            };
+            db0.set(bytes("s:" + i), value);
+            strings.put("s:" + i, value);
+        }
+
+        byte[] large = new byte[300_000];
+        random.nextBytes(large);
+        databases.get(1).setWithExpiryAt(bytes("large"), large, TIME + 60_000);
+        strings.put("large", large);
+        databases.get(1).setWithExpiryAt(bytes("expired"), bytes("gone"), TIME - 1);
+
+        // built apart from XADD, which would notify the blocked readers of a server
+        Stream stream = new Stream();
+        for (int i = 1; i <= 300; i++) {
+            stream.addEntry(new StreamEntry("1-" + i, Map.of("field", "value" + i, "n", Integer.toString(i))));
+        }
+        databases.get(2).load(Entry.ofStream(bytes("stream"), stream));
+        return strings;
+    }
+
+    private Path write(Databases databases) throws IOException, InterruptedException {
+        Path file = dir.resolve("dump.rdb");
+        assertEquals(2_002, RDBWriter.write(databases.snapshot(TIME, true), file));
+        return file;
+    }
+
+    private static Databases read(Path file, int loadThreads, boolean lazy) throws IOException {
+        Databases databases = new Databases(3, 1);
+        long end = RDBFileParser.parseFile(file.toString(), loadThreads, true, lazy, (db, entry) -> databases.load(db, entry));
+        assertEquals(Files.size(file), end);
+        return databases;
+    }
+
+    private static void assertSameKeyspace(Map<String, byte[]> strings, Databases loaded) {
+        assertEquals(2_000, loaded.get(0).size());
+        assertEquals(1, loaded.get(1).size());
+        assertEquals(1, loaded.get(2).size());
+        for (Map.Entry<String, byte[]> string : strings.entrySet()) {
+            Database db = string.getKey().equals("large") ? loaded.get(1) : loaded.get(0);
+            Entry entry = db.getEntry(bytes(string.getKey()));
+            assertNotNull(entry, string.getKey());
+            assertArrayEquals(string.getValue(), entry.getValueBytes(), string.getKey());
+        }
+        assertEquals(TIME + 60_000, loaded.get(1).getEntry(bytes("large")).getExpiryTimeInMillis());
+        assertEquals(-1, loaded.get(0).getEntry(bytes("s:0")).getExpiryTimeInMillis());
+        assertNull(loaded.get(1).getEntry(bytes("expired")));
+
+        Stream stream = (Stream) loaded.get(2).get("stream");
+        List<StreamEntry> entries = new ArrayList<>(stream.getEntries().values());
+        assertEquals(300, entries.size());
+        for (int i = 1; i <= 300; i++) {
+            StreamEntry entry = entries.get(i - 1);
+            assertEquals("1-" + i, entry.id());
+            assertEquals(Map.of("field", "value" + i, "n", Integer.toString(i)), entry.fields());
+        }
+        assertEquals("1-300", stream.getLastEntryId());
+    }
+
+    @Test
+    void readsBackWhatItWrote() throws IOException, InterruptedException {
+        Databases databases = new Databases(3, 1);
+        Map<String, byte[]> strings = fill(databases);
+
+        assertSameKeyspace(strings, read(write(databases), 1, false));
+    }
+
+    @Test
+    void readsBackWhatItWroteOnSeveralThreads() throws IOException, InterruptedException {
+        Databases databases = new Databases(3, 1);
+        Map<String, byte[]> strings = fill(databases);
+
+        assertSameKeyspace(strings, read(write(databases), 4, false));
+    }
+
+    @Test
+    void readsBackWhatItWroteLazily() throws IOException, InterruptedException {
+        Databases databases = new Databases(3, 1);
+        Map<String, byte[]> strings = fill(databases);
+
+        assertSameKeyspace(strings, read(write(databases), 1, true));
+    }
+
+    @Test
+    void readsBackTheSnapshotOfShards() throws IOException, InterruptedException {
+        Databases databases = new Databases(3, 4);
+        Map<String, byte[]> strings = fill(databases);
+
+        assertSameKeyspace(strings, read(write(databases), 1, false));
+    }
+}
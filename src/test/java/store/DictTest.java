@@ -0,0 +1,200 @@
+package store;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DictTest {
+
+    private static byte[] key(int i) {
+        return ("key:" + i).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static Entry entry(int i) {
+        return Entry.ofString(key(i), ("value:" + i).getBytes(StandardCharsets.US_ASCII), -1);
+    }
+
+    @Test
+    void findsEveryKeyWhileGrowing() {
+        Dict dict = new Dict();
+        boolean sawRehash = false;
+        for (int i = 0; i < 10_000; i++) {
+            assertNull(dict.put(entry(i)));
+            sawRehash |= dict.isRehashing();
+            // keys in both tables are found during the rehash
+            assertNotNull(dict.get(key(i / 2)), "key " + i / 2 + " after inserting " + i);
+        }
+
+        assertTrue(sawRehash);
+        assertEquals(10_000, dict.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertNotNull(dict.get(key(i)), "key " + i);
+        }
+        assertNull(dict.get(key(10_000)));
+    }
+
+    @Test
+    void replacingAKeyReturnsTheOldEntry() {
+        Dict dict = new Dict();
+        for (int i = 0; i < 100; i++) {
+            dict.put(entry(i));
+        }
+        Entry old = dict.get(key(42));
+        Entry replacement = Entry.ofString(key(42), "other".getBytes(StandardCharsets.US_ASCII), -1);
+
+        assertSame(old, dict.put(replacement));
+        assertSame(replacement, dict.get(key(42)));
+        assertEquals(100, dict.size());
+    }
+
+    @Test
+    void shrinksAfterRemovals() {
+        Dict dict = new Dict();
+        for (int i = 0; i < 10_000; i++) {
+            dict.put(entry(i));
+        }
+        dict.rehashFor(Long.MAX_VALUE);
+        int grown = dict.capacity();
+
+        for (int i = 0; i < 9_990; i++) {
+            assertNotNull(dict.remove(key(i)), "key " + i);
+        }
+        dict.rehashFor(Long.MAX_VALUE);
+
+        assertFalse(dict.isRehashing());
+        assertTrue(dict.capacity() < grown, dict.capacity() + " buckets, " + grown + " before");
+        assertEquals(10, dict.size());
+        for (int i = 9_990; i < 10_000; i++) {
+            assertNotNull(dict.get(key(i)), "key " + i);
+        }
+        assertNull(dict.remove(key(0)));
+    }
+
+    @Test
+    void expandSizesTheTableAhead() {
+        Dict dict = new Dict();
+        dict.expand(1000);
+
+        assertEquals(1024, dict.capacity());
+        for (int i = 0; i < 1000; i++) {
+            dict.put(entry(i));
+            assertFalse(dict.isRehashing());
+        }
+    }
+
+    private static String name(Entry entry) {
+        return new String(entry.key, 0, entry.keyLength, StandardCharsets.US_ASCII);
+    }
+
+    private static long scanStep(Dict dict, long cursor, Map<String, Integer> seen) {
+        return dict.scan(cursor, e -> seen.merge(name(e), 1, Integer::sum));
+    }
+
+    @Test
+    void scanReturnsEveryKeyOnceOnAStableTable() {
+        Dict dict = new Dict();
+        for (int i = 0; i < 5_000; i++) {
+            dict.put(entry(i));
+        }
+        dict.rehashFor(Long.MAX_VALUE);
+
+        Map<String, Integer> seen = new HashMap<>();
+        long cursor = 0;
+        do {
+            cursor = scanStep(dict, cursor, seen);
+        } while (cursor != 0);
+
+        assertEquals(5_000, seen.size());
+        assertTrue(seen.values().stream().allMatch(count -> count == 1));
+    }
+
+    // keys are added between the calls, the table doubles several times and is rehashing for part of the scan
+    @Test
+    void scanReturnsEveryKeyPresentThroughoutAcrossGrowing() {
+        Dict dict = new Dict();
+        for (int i = 0; i < 1_000; i++) {
+            dict.put(entry(i));
+        }
+        dict.rehashFor(Long.MAX_VALUE);
+
+        Map<String, Integer> seen = new HashMap<>();
+        long cursor = 0;
+        int next = 1_000;
+        boolean sawRehash = false;
+        do {
+            cursor = scanStep(dict, cursor, seen);
+            // up to 8x the keys, a table growing for good would outrun the cursor
+            for (int i = 0; i < 50 && next < 8_000; i++) {
+                dict.put(entry(next++));
+                sawRehash |= dict.isRehashing();
+            }
+        } while (cursor != 0);
+
+        assertTrue(sawRehash);
+        assertEquals(8_000, dict.size());
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(seen.containsKey("key:" + i), "key " + i + " missed");
+        }
+    }
+
+    // most keys are removed between the calls, the table shrinks while the scan is half way
+    @Test
+    void scanReturnsEveryKeyPresentThroughoutAcrossShrinking() {
+        Dict dict = new Dict();
+        for (int i = 0; i < 20_000; i++) {
+            dict.put(entry(i));
+        }
+        dict.rehashFor(Long.MAX_VALUE);
+        int grown = dict.capacity();
+
+        Map<String, Integer> seen = new HashMap<>();
+        long cursor = 0;
+        int removed = 0;
+        boolean sawRehash = false;
+        do {
+            cursor = scanStep(dict, cursor, seen);
+            // every tenth key stays
+            for (int i = 0; i < 200 && removed < 20_000; i++, removed++) {
+                if (removed % 10 != 0) {
+                    dict.remove(key(removed));
+                }
+                sawRehash |= dict.isRehashing();
+            }
+        } while (cursor != 0);
+
+        assertTrue(sawRehash);
+        assertTrue(dict.capacity() < grown);
+        for (int i = 0; i < 20_000; i += 10) {
+            assertTrue(seen.containsKey("key:" + i), "key " + i + " missed");
+        }
+    }
+
+    // a scan started while both tables are in use, finished after the rehash
+    @Test
+    void scanReturnsEveryKeyWhenStartedDuringARehash() {
+        Dict dict = new Dict();
+        int count = 0;
+        while (!dict.isRehashing() || dict.capacity() < 1024) {
+            dict.put(entry(count++));
+        }
+
+        Map<String, Integer> seen = new HashMap<>();
+        long cursor = scanStep(dict, 0, seen);
+        dict.rehashFor(Long.MAX_VALUE);
+        assertFalse(dict.isRehashing());
+        while (cursor != 0) {
+            cursor = scanStep(dict, cursor, seen);
+        }
+
+        assertEquals(count, seen.size());
+    }
+}
@@ -0,0 +1,130 @@
+package store;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotTest {
+    private static final long TIME = 1_700_000_000_000L;
+    private static final int KEYS = 20_000;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static Databases filled(int shards) {
+        Databases databases = new Databases(1, shards);
+        Database db = databases.get(0);
+        for (int i = 0; i < KEYS; i++) {
+            db.set(bytes("k:" + i), bytes("before:" + i));
+        }
+        return databases;
+    }
+
+    // every record the writer gets, failing on a key returned twice
+    private static Map<String, String> read(Snapshot snapshot) throws InterruptedException {
+        Map<String, String> records = new HashMap<>();
+        Snapshot.Record record;
+        while ((record = snapshot.nextRecord(0)) != null) {
+            String value = record.isInteger() ? Long.toString(record.getLongValue()) : new String(record.getStringValue(), StandardCharsets.US_ASCII);
+            String key = new String(record.getKey(), StandardCharsets.US_ASCII);
+            assertNull(records.put(key, value), key + " returned twice");
+            record.release();
+        }
+        return records;
+    }
+
+    private static void assertSnapshotTimeValues(Map<String, String> records) {
+        assertEquals(KEYS, records.size());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("before:" + i, records.get("k:" + i), "k:" + i);
+        }
+    }
+
+    // overwrites, deletes, deletes and recreates and new keys on both sides of the walk's cursor
+    private static void walkWhileWriting(Databases databases, Snapshot snapshot) {
+        Database db = databases.get(0);
+        int round = 0;
+        while (!snapshot.isReleased()) {
+            snapshot.step(-1, 0);
+            for (int j = 0; j < 20; j++) {
+                int i = (round * 7919 + j * 104_729) % KEYS;
+                switch (j % 4) {
+                    case 0 -> db.set(bytes("k:" + i), bytes("after:" + i));
+                    case 1 -> db.delete(bytes("k:" + i));
+                    case 2 -> {
+                        db.delete(bytes("k:" + i));
+                        db.set(bytes("k:" + i), bytes("recreated:" + i));
+                    }
+                    default -> db.set(bytes("new:" + round + ":" + j), bytes("new"));
+                }
+            }
+            round++;
+        }
+        assertTrue(round > 10, "the walk took " + round + " steps");
+    }
+
+    @Test
+    void writesDuringTheWalkDontChangeTheSnapshot() throws InterruptedException {
+        Databases databases = filled(1);
+        Snapshot snapshot = databases.snapshot(TIME, false);
+
+        walkWhileWriting(databases, snapshot);
+
+        assertSnapshotTimeValues(read(snapshot));
+    }
+
+    @Test
+    void writesDuringTheWalkDontChangeTheSnapshotOfShards() throws InterruptedException {
+        Databases databases = filled(4);
+        Snapshot snapshot = databases.snapshot(TIME, false);
+
+        walkWhileWriting(databases, snapshot);
+
+        assertSnapshotTimeValues(read(snapshot));
+    }
+
+    // the old table keeps being walked after a FLUSHALL replaced it
+    @Test
+    void flushDuringTheWalkKeepsTheSnapshot() throws InterruptedException {
+        Databases databases = filled(1);
+        Snapshot snapshot = databases.snapshot(TIME, false);
+
+        snapshot.step(-1, 0);
+        databases.flushAll();
+        databases.get(0).set(bytes("k:0"), bytes("after"));
+        while (!snapshot.isReleased()) {
+            snapshot.step(-1, 0);
+        }
+
+        assertSnapshotTimeValues(read(snapshot));
+    }
+
+    @Test
+    void foregroundSnapshotWalksOnTheReadingThread() throws InterruptedException {
+        Databases databases = filled(1);
+
+        assertSnapshotTimeValues(read(databases.snapshot(TIME, true)));
+    }
+
+    // the snapshot is taken an hour ahead, the key expiring in between is still there for the store
+    @Test
+    void leavesOutKeysExpiredAtSnapshotTime() throws InterruptedException {
+        long time = System.currentTimeMillis() + 3_600_000;
+        Databases databases = new Databases(1, 1);
+        Database db = databases.get(0);
+        db.setWithExpiryAt(bytes("expired"), bytes("x"), time - 1);
+        db.setWithExpiryAt(bytes("volatile"), bytes("y"), time + 60_000);
+        db.set(bytes("counter"), bytes("12345"));
+
+        Map<String, String> records = read(databases.snapshot(time, true));
+
+        assertEquals(Map.of("volatile", "y", "counter", "12345"), records);
+    }
+}